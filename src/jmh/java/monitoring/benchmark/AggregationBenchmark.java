@@ -0,0 +1,82 @@
+package monitoring.benchmark;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DefaultDBDecoder;
+import monitoring.DailyMonitoringDataReadConverter;
+import monitoring.StreamingDailyMonitoringDataDecoder;
+import monitoring.service.AggregateFunction;
+import monitoring.service.BucketWidth;
+import monitoring.service.MetricAccumulator;
+import monitoring.service.MonitoringService;
+import org.apache.commons.lang3.time.DateUtils;
+import org.bson.BSON;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-hour aggregation of a week of full-day documents read from memory instead of a cursor: the work
+ * {@link MonitoringService#aggregatedValuesByHour} does for each document it receives.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregationBenchmark {
+
+    private static final int DAYS = 7;
+
+    private final DailyMonitoringDataReadConverter converter = new DailyMonitoringDataReadConverter();
+    private final DBDecoder dbDecoder = new DefaultDBDecoder();
+    private final StreamingDailyMonitoringDataDecoder decoder = new StreamingDailyMonitoringDataDecoder();
+
+    private List<byte[]> documents;
+    private Date startDate;
+    private Date endDate;
+
+    @Setup
+    public void setUp() {
+        startDate = DateUtils.addDays(DateUtils.truncate(new Date(), Calendar.DAY_OF_MONTH), -DAYS);
+        endDate = DateUtils.addDays(startDate, DAYS);
+        documents = new ArrayList<>();
+        for (int i = 0; i < DAYS; i++) {
+            documents.add(BSON.encode(BenchmarkDocuments.fullDayDocument("server-1", DateUtils.addDays(startDate, i), i)));
+        }
+    }
+
+    /** tree decoding, map-based model */
+    @Benchmark
+    public SortedMap<Date, Map<String, Double>> hourlyAveragesFromTree() {
+        SortedMap<Date, Map<String, Double>> result = new TreeMap<>();
+        for (byte[] bson : documents) {
+            result.putAll(MonitoringService.averageByHour(converter.convert(dbDecoder.decode(bson, (DBCollection) null))));
+        }
+        return result;
+    }
+
+    /** streaming decoding, columnar model: the CLIENT aggregation mode */
+    @Benchmark
+    public SortedMap<Date, Map<String, Double>> hourlyAveragesStreaming() {
+        SortedMap<Date, Map<String, Double>> result = new TreeMap<>();
+        for (byte[] bson : documents) {
+            result.putAll(MonitoringService.averageByHour(decoder.decode(bson, null)));
+        }
+        return result;
+    }
+
+    /** generic aggregation with percentile sketches */
+    @Benchmark
+    public SortedMap<Date, Map<String, Map<AggregateFunction, Double>>> fiveMinutePercentiles() {
+        SortedMap<Date, Map<String, MetricAccumulator>> accumulators = new TreeMap<>();
+        for (byte[] bson : documents) {
+            MonitoringService.accumulateDay(decoder.decode(bson, null), BucketWidth.FIVE_MINUTES, startDate, endDate,
+                    true, accumulators);
+        }
+        return MonitoringService.evaluate(accumulators, AggregateFunction.MEAN, AggregateFunction.P95,
+                AggregateFunction.P99);
+    }
+}
@@ -0,0 +1,77 @@
+package monitoring.benchmark;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import monitoring.StorageCodec;
+import monitoring.domain.ColumnarDailyMonitoringData;
+import org.apache.commons.lang3.time.DateUtils;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Realistic full-day documents shared by the benchmarks: 2 metrics, a value every minute.
+ */
+class BenchmarkDocuments {
+
+    static final String[] METRICS = {"mem", "cpu"};
+
+    private BenchmarkDocuments() {
+    }
+
+    /**
+     * @param serverName
+     * @param day
+     * @param seed       seed of the simulated values
+     * @return nested ("data.HH.MM.metric") day document
+     */
+    static DBObject fullDayDocument(String serverName, Date day, long seed) {
+        ColumnarDailyMonitoringData data = fullDay(serverName, day, seed);
+        DBObject doc = new BasicDBObject("_id", data.getId());
+        doc.put("metadata", metadata(data));
+        doc.put("data", new BasicDBObject(data.toDataMap()));
+        return doc;
+    }
+
+    /**
+     * @param serverName
+     * @param day
+     * @param seed       seed of the simulated values
+     * @param codec      packed codec
+     * @return packed day document
+     */
+    static DBObject packedDayDocument(String serverName, Date day, long seed, StorageCodec codec) {
+        ColumnarDailyMonitoringData data = fullDay(serverName, day, seed);
+        DBObject doc = new BasicDBObject("_id", data.getId());
+        doc.put("metadata", metadata(data));
+        doc.put(StorageCodec.FIELD, codec.encodeDay(data));
+        return doc;
+    }
+
+    private static ColumnarDailyMonitoringData fullDay(String serverName, Date day, long seed) {
+        Random random = new Random(seed);
+        ColumnarDailyMonitoringData data = new ColumnarDailyMonitoringData(serverName,
+                DateUtils.truncate(day, Calendar.DAY_OF_MONTH), METRICS);
+        for (int minuteOfDay = 0; minuteOfDay < ColumnarDailyMonitoringData.MINUTES_PER_DAY; minuteOfDay++) {
+            // daily cycle plus noise, rounded like typical collectors do
+            double cycle = Math.sin(Math.PI * 2 * minuteOfDay / ColumnarDailyMonitoringData.MINUTES_PER_DAY);
+            data.setValue(0, minuteOfDay, Math.round((0.5 + 0.1 * cycle + random.nextGaussian() * 0.01) * 1000) / 1000.0);
+            data.setValue(1, minuteOfDay, Math.round((0.3 + 0.2 * cycle + random.nextGaussian() * 0.05) * 1000) / 1000.0);
+        }
+        return data;
+    }
+
+    private static DBObject metadata(ColumnarDailyMonitoringData data) {
+        DBObject metadata = new BasicDBObject();
+        metadata.put("serverName", data.getServerName());
+        metadata.put("date", data.getDate());
+        BasicDBList metrics = new BasicDBList();
+        for (String metric : data.getMetrics()) {
+            metrics.add(metric);
+        }
+        metadata.put("metrics", metrics);
+        return metadata;
+    }
+}
@@ -0,0 +1,52 @@
+package monitoring.benchmark;
+
+import monitoring.chart.ChartFormat;
+import monitoring.chart.ChartSeries;
+import monitoring.chart.ChartService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of 30 days of minute values of a metric (43200 points) as an 800 pixels wide PNG chart, with and
+ * without LTTB downsampling to the pixel width first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ChartBenchmark {
+
+    private ChartSeries series;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        series = new ChartSeries("cpu", 43200);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 43200; i++) {
+            series.add(start + i * 60000L, 0.5 + 0.1 * Math.sin(i * Math.PI / 720) + random.nextGaussian() * 0.02);
+        }
+    }
+
+    @Benchmark
+    public ChartSeries downsample() {
+        return series.downsample(800);
+    }
+
+    @Benchmark
+    public byte[] renderDownsampled() throws IOException {
+        return ChartService.render("cpu", Collections.singletonList(series.downsample(800)), 800, 400,
+                ChartFormat.PNG);
+    }
+
+    @Benchmark
+    public byte[] renderAllPoints() throws IOException {
+        return ChartService.render("cpu", Collections.singletonList(series), 800, 400, ChartFormat.PNG);
+    }
+}
@@ -0,0 +1,77 @@
+package monitoring.benchmark;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import monitoring.DailyMonitoringDataReadConverter;
+import monitoring.StorageCodec;
+import monitoring.StreamingDailyMonitoringDataDecoder;
+import monitoring.domain.ColumnarDailyMonitoringData;
+import monitoring.domain.DailyMonitoringData;
+import org.bson.BSON;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of full-day documents, starting from a decoded {@link DBObject} tree (what Spring Data hands to
+ * the read converter) or from raw BSON bytes as received from MongoDB.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConverterBenchmark {
+
+    private final DailyMonitoringDataReadConverter converter = new DailyMonitoringDataReadConverter();
+    private final DBDecoder dbDecoder = new DefaultDBDecoder();
+    private final StreamingDailyMonitoringDataDecoder decoder = new StreamingDailyMonitoringDataDecoder();
+    private final Set<String> oneMetric = Collections.singleton("cpu");
+
+    private DBObject doc;
+    private byte[] bson;
+    private byte[] gorillaBson;
+
+    @Setup
+    public void setUp() {
+        bson = BSON.encode(BenchmarkDocuments.fullDayDocument("server-1", new Date(), 1));
+        doc = dbDecoder.decode(bson, (DBCollection) null);
+        gorillaBson = BSON.encode(BenchmarkDocuments.packedDayDocument("server-1", new Date(), 1, StorageCodec.GORILLA));
+    }
+
+    @Benchmark
+    public DailyMonitoringData convert() {
+        return converter.convert(doc);
+    }
+
+    @Benchmark
+    public ColumnarDailyMonitoringData convertColumnar() {
+        return converter.convertColumnar(doc);
+    }
+
+    @Benchmark
+    public DailyMonitoringData decodeTreeAndConvert() {
+        return converter.convert(dbDecoder.decode(bson, (DBCollection) null));
+    }
+
+    @Benchmark
+    public ColumnarDailyMonitoringData decodeStreaming() {
+        return decoder.decode(bson, null);
+    }
+
+    @Benchmark
+    public ColumnarDailyMonitoringData decodeStreamingOneMetric() {
+        return decoder.decode(bson, oneMetric);
+    }
+
+    @Benchmark
+    public ColumnarDailyMonitoringData decodeStreamingGorilla() {
+        return decoder.decode(gorillaBson, null);
+    }
+}
@@ -0,0 +1,52 @@
+package monitoring.benchmark;
+
+import monitoring.domain.DailyMonitoringData;
+import org.apache.commons.lang3.time.DateUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Map-based domain model: single value updates and preallocation of a whole day.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DailyMonitoringDataBenchmark {
+
+    private Date day;
+    private DailyMonitoringData data;
+    private Calendar cal;
+    private int minuteOfDay;
+
+    @Setup
+    public void setUp() {
+        day = DateUtils.truncate(new Date(), Calendar.DAY_OF_MONTH);
+        data = new DailyMonitoringData("server-1", day, BenchmarkDocuments.METRICS);
+        data.preallocateDay();
+        cal = DateUtils.toCalendar(day);
+    }
+
+    @Benchmark
+    public DailyMonitoringData setValue() {
+        // walk through the whole day, like a collector does
+        minuteOfDay = (minuteOfDay + 1) % 1440;
+        cal.set(Calendar.HOUR_OF_DAY, minuteOfDay / 60);
+        cal.set(Calendar.MINUTE, minuteOfDay % 60);
+        data.setValue(cal, "cpu", 0.5);
+        return data;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public DailyMonitoringData preallocateDay() {
+        DailyMonitoringData result = new DailyMonitoringData("server-1", day, BenchmarkDocuments.METRICS);
+        result.preallocateDay();
+        return result;
+    }
+}
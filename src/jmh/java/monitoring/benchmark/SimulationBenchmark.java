@@ -0,0 +1,48 @@
+package monitoring.benchmark;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.openjdk.jmh.annotations.*;
+import util.data.DataSimulationUtils;
+import util.data.FleetSimulator;
+import util.data.ServerLoadSimulator;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulation of one day of server load, one sample per minute: into a sorted map of dates, and into a
+ * primitive array as done by the SETUP and BENCH commands.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimulationBenchmark {
+
+    private Date startDate;
+    private Date endDate;
+    private final FleetSimulator fleet = new FleetSimulator(1, new ServerLoadSimulator(1, 0.5, 0.01));
+    private final double[] values = new double[1440];
+    private int server;
+
+    @Setup
+    public void setUp() {
+        startDate = DateUtils.truncate(new Date(), Calendar.DAY_OF_MONTH);
+        endDate = DateUtils.addDays(startDate, 1);
+    }
+
+    @Benchmark
+    public SortedMap<Date, Double> simulateServerLoad() {
+        return DataSimulationUtils.simulateServerLoad(startDate, endDate, 1, 0.5, 0.01);
+    }
+
+    @Benchmark
+    public double[] simulateServerLoadPrimitive() {
+        fleet.newSeries(server++, 0).fill(values, 0, values.length);
+        return values;
+    }
+}
@@ -0,0 +1,41 @@
+package monitoring.benchmark;
+
+import monitoring.TimeBuckets;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolution of the document id and field path of a sample, as done on every write; with -prof gc the
+ * allocation rate should be close to zero.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeBucketsBenchmark {
+
+    private final TimeBuckets timeBuckets = new TimeBuckets(TimeZone.getTimeZone("Europe/Paris"), 0);
+    private long timestamp;
+
+    @Setup
+    public void setUp() {
+        timestamp = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public String formatId() {
+        // walk through the day, like a collector does
+        timestamp += 1000;
+        return timeBuckets.formatId("server-1", timestamp);
+    }
+
+    @Benchmark
+    public String fieldPath() {
+        timestamp += 1000;
+        return TimeBuckets.fieldPath(timeBuckets.minuteOfDay(timestamp), "cpu");
+    }
+}
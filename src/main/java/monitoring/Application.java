@@ -1,8 +1,18 @@
 package monitoring;
 
-import monitoring.domain.DailyMonitoringData;
+import monitoring.bench.LoadGenerator;
+import monitoring.chart.ChartFormat;
+import monitoring.chart.ChartService;
+import monitoring.ingest.IngestionServer;
+import monitoring.service.AggregateFunction;
+import monitoring.service.AggregatedPoint;
+import monitoring.service.BucketWidth;
+import monitoring.service.IndexService;
 import monitoring.service.MonitoringService;
-import org.apache.commons.lang3.time.DateUtils;
+import monitoring.service.PointIterator;
+import monitoring.service.PreallocationService;
+import monitoring.service.RetentionService;
+import monitoring.service.SampleBatch;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartFrame;
 import org.jfree.chart.JFreeChart;
@@ -18,8 +28,12 @@ import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.data.mongodb.core.MongoTemplate;
-import util.data.DataSimulationUtils;
+import util.data.FleetSimulator;
+import util.data.ServerLoadSimulator;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.text.ParseException;
 import java.util.*;
 
@@ -46,6 +60,12 @@ public class Application implements CommandLineRunner {
     private Logger log = LoggerFactory.getLogger(this.getClass());
     private MonitoringService monitoringService;
     private MongoTemplate mongoTemplate;
+    private RetentionService retentionService;
+    private LoadGenerator loadGenerator;
+    private PreallocationService preallocationService;
+    private IngestionServer ingestionServer;
+    private IndexService indexService;
+    private ChartService chartService;
 
     @Autowired
     public void setMonitoringService(MonitoringService monitoringService) {
@@ -57,6 +77,36 @@ public class Application implements CommandLineRunner {
         this.mongoTemplate = mongoTemplate;
     }
 
+    @Autowired
+    public void setRetentionService(RetentionService retentionService) {
+        this.retentionService = retentionService;
+    }
+
+    @Autowired
+    public void setPreallocationService(PreallocationService preallocationService) {
+        this.preallocationService = preallocationService;
+    }
+
+    @Autowired
+    public void setIngestionServer(IngestionServer ingestionServer) {
+        this.ingestionServer = ingestionServer;
+    }
+
+    @Autowired
+    public void setIndexService(IndexService indexService) {
+        this.indexService = indexService;
+    }
+
+    @Autowired
+    public void setChartService(ChartService chartService) {
+        this.chartService = chartService;
+    }
+
+    @Autowired
+    public void setLoadGenerator(LoadGenerator loadGenerator) {
+        this.loadGenerator = loadGenerator;
+    }
+
     /**
      * Setup example: database, data, etc.
      *
@@ -66,6 +116,7 @@ public class Application implements CommandLineRunner {
 
         mongoTemplate.dropCollection(monitoringService.getCollectionName());
         mongoTemplate.createCollection(monitoringService.getCollectionName());
+        indexService.ensureIndexes();
 
         Date startDate = DateFormatUtils.timestampFormat.parse("20140101_000000");
         Date endDate = DateFormatUtils.timestampFormat.parse("20140108_000000");
@@ -78,37 +129,33 @@ public class Application implements CommandLineRunner {
 
         String[] metrics = {"mem", "cpu"};
 
+        // pre-allocate empty data for each day (nothing with packed codecs)
+        Map<String, String[]> servers = new LinkedHashMap<>();
         for (ExamplesServerConf conf : configurations) {
-
-            // pre-allocate empty data for each day
-            Calendar cal = DateUtils.toCalendar(DateUtils.truncate(startDate, Calendar.DAY_OF_MONTH));
-            while (cal.getTime().before(endDate)) {
-                DailyMonitoringData entry = new DailyMonitoringData(conf.serverName, cal.getTime(), metrics);
-                entry.preallocateDay();
-                mongoTemplate.insert(entry, monitoringService.getCollectionName());
-                cal.add(Calendar.DAY_OF_MONTH, 1);
-            }
-
-            SortedMap<Date, Double> memData = DataSimulationUtils.simulateServerLoad(startDate, endDate, 1,
-                    conf.memMean, conf.memSd);
-            SortedMap<Date, Double> cpuData = DataSimulationUtils.simulateServerLoad(startDate, endDate, 1,
-                    conf.memMean, conf.memSd);
-
-            int i = 0;
-            for (Date timestamp : memData.keySet()) {
-                Map<String, Double> samples;
-
-                samples = new HashMap<>();
-                samples.put("mem", memData.get(timestamp));
-                samples.put("cpu", cpuData.get(timestamp));
-
-                monitoringService.addSample(conf.serverName, timestamp, samples);
-
-                i++;
-                if (i > 0 && i % 100 == 0) {
-                    log.info("Server: " + conf.serverName + ", saved " + i + " samples");
+            servers.put(conf.serverName, metrics);
+        }
+        log.info("Preallocated " + preallocationService.preallocate(servers, startDate, endDate) + " documents");
+
+        // reproducible: same seed, same data
+        long startTime = startDate.getTime();
+        int samplesCount = (int) ((endDate.getTime() - startTime) / 60000);
+        double[] values = new double[samplesCount];
+        for (int server = 0; server < configurations.size(); server++) {
+            ExamplesServerConf conf = configurations.get(server);
+            FleetSimulator simulator = new FleetSimulator(1,
+                    new ServerLoadSimulator(1, conf.memMean, conf.memSd),
+                    new ServerLoadSimulator(1, conf.cpuMean, conf.cpuSd));
+
+            SampleBatch batch = new SampleBatch();
+            for (int m = 0; m < metrics.length; m++) {
+                simulator.newSeries(server, m).fill(values, 0, samplesCount);
+                for (int i = 0; i < samplesCount; i++) {
+                    batch.add(conf.serverName, startTime + i * 60000L, metrics[m], values[i]);
                 }
             }
+
+            monitoringService.writeBatch(batch);
+            log.info("Server: " + conf.serverName + ", saved " + samplesCount + " samples");
         }
     }
 
@@ -155,7 +202,8 @@ public class Application implements CommandLineRunner {
      */
     public static void main(String[] args) {
         SpringApplicationBuilder builder = new SpringApplicationBuilder(Application.class);
-        builder.headless(false).run(args);
+        // only the example client opens a window
+        builder.headless(args.length == 0 || !"RUN".equalsIgnoreCase(args[0])).run(args);
     }
 
     @Override
@@ -165,6 +213,19 @@ public class Application implements CommandLineRunner {
             System.err.println("COMMAND:");
             System.err.println("  SETUP : create database, sample data and functions");
             System.err.println("  RUN : run example client");
+            System.err.println("  REBUILD_ROLLUPS [serverName] : recompute hourly/daily rollups from raw data");
+            System.err.println("  COMPACT : move expired data to the hourly/daily retention tiers");
+            System.err.println("  MIGRATE_STORAGE [codec] : rewrite raw data with a storage codec (default: configured one)");
+            System.err.println("  PREALLOCATE : preallocate tomorrow's documents of all servers with data today");
+            System.err.println("  BENCH [key=value ...] : ingestion and query load test, options (default):");
+            System.err.println("    servers (10), metrics (2), days (1), interval minutes (1), start yyyyMMdd (20140101),");
+            System.err.println("    rate samples/sec (0 = flat-out), writers (4), readers (2), batch samples/write (60)");
+            System.err.println("  AGGREGATE serverName startDate endDate width functions : print aggregated values,");
+            System.err.println("    dates as yyyyMMdd_HHmmss, width 1m/5m/15m/1h/1d, functions e.g. MEAN,P95,P99");
+            System.err.println("  EXPORT serverName startDate endDate [width] : stream averages as CSV, width 1h by default");
+            System.err.println("  LISTEN : receive Graphite (TCP) and StatsD (UDP) samples until stopped");
+            System.err.println("  CHART serverName startDate endDate file [metrics] [width] [height] : render minute values");
+            System.err.println("    as a PNG or SVG line chart, by file extension, e.g. cpu,mem 800 400");
 
             System.exit(1);
         }
@@ -174,6 +235,105 @@ public class Application implements CommandLineRunner {
 
         } else if ("RUN".equalsIgnoreCase(args[0])) {
             runExample();
+
+        } else if ("REBUILD_ROLLUPS".equalsIgnoreCase(args[0])) {
+            int updated = monitoringService.rebuildRollups(args.length > 1 ? args[1] : null);
+            log.info("Rebuilt rollups of " + updated + " documents");
+
+        } else if ("COMPACT".equalsIgnoreCase(args[0])) {
+            retentionService.compact();
+
+        } else if ("MIGRATE_STORAGE".equalsIgnoreCase(args[0])) {
+            StorageCodec codec = args.length > 1 ? StorageCodec.parse(args[1]) : monitoringService.getStorageCodec();
+            int updated = monitoringService.migrateStorage(codec);
+            log.info("Migrated " + updated + " documents to " + codec);
+
+        } else if ("PREALLOCATE".equalsIgnoreCase(args[0])) {
+            preallocationService.preallocateTomorrow();
+
+        } else if ("BENCH".equalsIgnoreCase(args[0])) {
+            loadGenerator.run(LoadGenerator.Config.parse(Arrays.copyOfRange(args, 1, args.length)), System.out);
+
+        } else if ("AGGREGATE".equalsIgnoreCase(args[0])) {
+            printAggregate(args);
+
+        } else if ("EXPORT".equalsIgnoreCase(args[0])) {
+            printExport(args);
+
+        } else if ("LISTEN".equalsIgnoreCase(args[0])) {
+            ingestionServer.start();
+            ingestionServer.awaitTermination();
+
+        } else if ("CHART".equalsIgnoreCase(args[0])) {
+            writeChart(args);
+        }
+    }
+
+    private void writeChart(String... args) throws ParseException, IOException {
+        if (args.length < 5) {
+            throw new IllegalArgumentException("Usage: CHART serverName startDate endDate file [metrics] [width] [height]");
+        }
+        File file = new File(args[4]);
+        ChartFormat format = file.getName().toLowerCase().endsWith(".svg") ? ChartFormat.SVG : ChartFormat.PNG;
+        Set<String> metrics = args.length > 5 ? new LinkedHashSet<>(Arrays.asList(args[5].split(","))) : null;
+
+        long start = System.nanoTime();
+        byte[] image = chartService.render(args[1],
+                DateFormatUtils.timestampFormat.parse(args[2]),
+                DateFormatUtils.timestampFormat.parse(args[3]),
+                metrics,
+                args.length > 6 ? Integer.parseInt(args[6]) : 800,
+                args.length > 7 ? Integer.parseInt(args[7]) : 400,
+                format);
+        Files.write(file.toPath(), image);
+        log.info("Chart written to " + file + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    private void printExport(String... args) throws ParseException {
+        if (args.length < 4) {
+            throw new IllegalArgumentException("Usage: EXPORT serverName startDate endDate [width]");
+        }
+        PointIterator points = monitoringService.streamValues(args[1],
+                DateFormatUtils.timestampFormat.parse(args[2]),
+                DateFormatUtils.timestampFormat.parse(args[3]),
+                args.length > 4 ? BucketWidth.parse(args[4]) : BucketWidth.HOUR, null);
+
+        try {
+            System.out.println("timestamp,metric,value");
+            while (points.hasNext()) {
+                AggregatedPoint point = points.next();
+                String timestamp = DateFormatUtils.timestampFormat.format(point.getDate());
+                for (int i = 0; i < point.size(); i++) {
+                    if (!Double.isNaN(point.getValue(i))) {
+                        System.out.println(timestamp + "," + point.getMetrics()[i] + "," + point.getValue(i));
+                    }
+                }
+            }
+        } finally {
+            points.close();
+        }
+    }
+
+    private void printAggregate(String... args) throws ParseException {
+        if (args.length < 6) {
+            throw new IllegalArgumentException("Usage: AGGREGATE serverName startDate endDate width functions");
+        }
+        String[] names = args[5].split(",");
+        AggregateFunction[] functions = new AggregateFunction[names.length];
+        for (int i = 0; i < names.length; i++) {
+            functions[i] = AggregateFunction.valueOf(names[i].trim().toUpperCase());
+        }
+
+        SortedMap<Date, Map<String, Map<AggregateFunction, Double>>> result = monitoringService.aggregate(args[1],
+                DateFormatUtils.timestampFormat.parse(args[2]),
+                DateFormatUtils.timestampFormat.parse(args[3]),
+                BucketWidth.parse(args[4]), null, functions);
+
+        for (Map.Entry<Date, Map<String, Map<AggregateFunction, Double>>> entry : result.entrySet()) {
+            for (Map.Entry<String, Map<AggregateFunction, Double>> metric : entry.getValue().entrySet()) {
+                System.out.println(DateFormatUtils.timestampFormat.format(entry.getKey()) + " "
+                        + metric.getKey() + " " + metric.getValue());
+            }
         }
     }
 }
\ No newline at end of file
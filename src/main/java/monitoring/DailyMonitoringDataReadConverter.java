@@ -2,11 +2,14 @@ package monitoring;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.DBObject;
+import monitoring.domain.ColumnarDailyMonitoringData;
 import monitoring.domain.DailyMonitoringData;
+import monitoring.metrics.Instrumentation;
 import org.springframework.core.convert.converter.Converter;
 import org.springframework.data.convert.ReadingConverter;
 
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -19,6 +22,7 @@ public class DailyMonitoringDataReadConverter implements Converter<DBObject, Dai
 
     @Override
     public DailyMonitoringData convert(DBObject doc) {
+        long start = Instrumentation.CONVERT.start();
         DailyMonitoringData result = new DailyMonitoringData();
 
         DBObject metadata = (DBObject) doc.get("metadata");
@@ -34,18 +38,111 @@ public class DailyMonitoringDataReadConverter implements Converter<DBObject, Dai
         result.getMetadata().setMetrics(metrics);
 
         DBObject data = (DBObject) doc.get("data");
-        for (String hhKey : data.keySet()) {
-            DBObject hhDoc = (DBObject) data.get(hhKey);
-            SortedMap<String, Map<String, Double>> hhMap = new TreeMap<>();
+        if (data != null) {
+            for (String hhKey : data.keySet()) {
+                DBObject hhDoc = (DBObject) data.get(hhKey);
+                SortedMap<String, Map<String, Double>> hhMap = new TreeMap<>();
+                result.getData().put(hhKey, hhMap);
+
+                for (String mmKey : hhDoc.keySet()) {
+                    DBObject mmDoc = (DBObject) hhDoc.get(mmKey);
+                    Map<String, Double> mmMap = mmDoc.toMap();
+                    hhMap.put(mmKey, mmMap);
+                }
+            }
+        }
+
+        DBObject packed = (DBObject) doc.get(StorageCodec.FIELD);
+        if (packed != null) {
+            double[] values = new double[60];
+            for (String metric : packed.keySet()) {
+                DBObject hours = (DBObject) packed.get(metric);
+                for (String hhKey : hours.keySet()) {
+                    for (Object block : (BasicDBList) hours.get(hhKey)) {
+                        long present = StorageCodec.decodeHour((byte[]) block, values);
+                        for (int minute = 0; minute < 60; minute++) {
+                            if ((present & (1L << minute)) != 0) {
+                                setValue(result, hhKey, TimeBuckets.minuteKey(minute), metric, values[minute]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        Instrumentation.DOCUMENTS_CONVERTED.increment();
+        Instrumentation.CONVERT.stop(start);
+        return result;
+    }
+
+    private static void setValue(DailyMonitoringData result, String hhKey, String mmKey, String metric, double value) {
+        SortedMap<String, Map<String, Double>> hhMap = result.getData().get(hhKey);
+        if (hhMap == null) {
+            hhMap = new TreeMap<>();
             result.getData().put(hhKey, hhMap);
+        }
+        Map<String, Double> mmMap = hhMap.get(mmKey);
+        if (mmMap == null) {
+            mmMap = new HashMap<>();
+            hhMap.put(mmKey, mmMap);
+        }
+        mmMap.put(metric, value);
+    }
+
+    /**
+     * Deserialize directly into the columnar representation, without building intermediate maps.
+     *
+     * @param doc
+     * @return
+     */
+    public ColumnarDailyMonitoringData convertColumnar(DBObject doc) {
+        long start = Instrumentation.CONVERT.start();
+        DBObject metadata = (DBObject) doc.get("metadata");
+
+        BasicDBList docMetrics = (BasicDBList) metadata.get("metrics");
+        String[] metrics = new String[docMetrics.size()];
+        for (int i = 0; i < docMetrics.size(); i++) {
+            metrics[i] = (String) docMetrics.get(i);
+        }
+
+        ColumnarDailyMonitoringData result = new ColumnarDailyMonitoringData(
+                (String) metadata.get("serverName"), (Date) metadata.get("date"), metrics);
+
+        DBObject data = (DBObject) doc.get("data");
+        if (data != null) {
+            for (String hhKey : data.keySet()) {
+                DBObject hhDoc = (DBObject) data.get(hhKey);
+
+                for (String mmKey : hhDoc.keySet()) {
+                    DBObject mmDoc = (DBObject) hhDoc.get(mmKey);
+                    int minuteOfDay = ColumnarDailyMonitoringData.minuteOfDay(hhKey, mmKey);
+
+                    for (String metric : mmDoc.keySet()) {
+                        Object value = mmDoc.get(metric);
+                        if (value instanceof Number) {
+                            result.setValue(metric, minuteOfDay, ((Number) value).doubleValue());
+                        }
+                    }
+                }
+            }
+        }
 
-            for (String mmKey : hhDoc.keySet()) {
-                DBObject mmDoc = (DBObject) hhDoc.get(mmKey);
-                Map<String, Double> mmMap = mmDoc.toMap();
-                hhMap.put(mmKey, mmMap);
+        DBObject packed = (DBObject) doc.get(StorageCodec.FIELD);
+        if (packed != null) {
+            for (String metric : packed.keySet()) {
+                DBObject hours = (DBObject) packed.get(metric);
+                double[] column = result.getColumn(result.addMetric(metric));
+                for (String hhKey : hours.keySet()) {
+                    int hour = Integer.parseInt(hhKey);
+                    for (Object block : (BasicDBList) hours.get(hhKey)) {
+                        StorageCodec.decodeHour((byte[]) block, hour, column);
+                    }
+                }
             }
         }
 
+        Instrumentation.DOCUMENTS_CONVERTED.increment();
+        Instrumentation.CONVERT.stop(start);
         return result;
     }
 }
@@ -1,9 +1,68 @@
 package monitoring;
 
 import java.text.DateFormat;
+import java.text.FieldPosition;
+import java.text.NumberFormat;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
 
+/**
+ * Shared date formats, in the time zone of {@link TimeBuckets#get()}. Thread-safe: every thread uses its own
+ * {@link SimpleDateFormat}.
+ */
 public class DateFormatUtils {
-    public static final DateFormat dayFormat = new SimpleDateFormat("yyyyMMdd");
-    public static final DateFormat timestampFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
+    public static final DateFormat dayFormat = new ThreadLocalDateFormat("yyyyMMdd");
+    public static final DateFormat timestampFormat = new ThreadLocalDateFormat("yyyyMMdd_HHmmss");
+
+    private static class ThreadLocalDateFormat extends DateFormat {
+
+        private static final long serialVersionUID = 1L;
+
+        /** format of a thread, with the time bucketing whose time zone it uses */
+        private static final class Format {
+            final SimpleDateFormat format;
+            TimeBuckets timeBuckets;
+
+            Format(SimpleDateFormat format) {
+                this.format = format;
+            }
+        }
+
+        private final transient ThreadLocal<Format> formats;
+
+        ThreadLocalDateFormat(final String pattern) {
+            this.formats = new ThreadLocal<Format>() {
+                @Override
+                protected Format initialValue() {
+                    return new Format(new SimpleDateFormat(pattern));
+                }
+            };
+            // only used by the inherited equals/hashCode/clone
+            this.calendar = Calendar.getInstance();
+            this.numberFormat = NumberFormat.getIntegerInstance();
+        }
+
+        private SimpleDateFormat format() {
+            Format format = formats.get();
+            // TimeBuckets#getTimeZone() clones: only once per thread and configuration
+            TimeBuckets timeBuckets = TimeBuckets.get();
+            if (format.timeBuckets != timeBuckets) {
+                format.format.setTimeZone(timeBuckets.getTimeZone());
+                format.timeBuckets = timeBuckets;
+            }
+            return format.format;
+        }
+
+        @Override
+        public StringBuffer format(Date date, StringBuffer toAppendTo, FieldPosition fieldPosition) {
+            return format().format(date, toAppendTo, fieldPosition);
+        }
+
+        @Override
+        public Date parse(String source, ParsePosition pos) {
+            return format().parse(source, pos);
+        }
+    }
 }
@@ -0,0 +1,94 @@
+package monitoring;
+
+import com.mongodb.*;
+import org.bson.BSONCallback;
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link com.mongodb.LazyDBObject} giving access to the raw BSON bytes it was read from, so that they can be
+ * decoded in a single streaming pass (see {@link StreamingDailyMonitoringDataDecoder}).
+ * <p>
+ * Set {@link #FACTORY} as decoder factory of a {@link com.mongodb.DBCursor} to receive instances of this class.
+ */
+public class RawBsonDBObject extends LazyDBObject {
+
+    public static final DBDecoderFactory FACTORY = new DBDecoderFactory() {
+        @Override
+        public DBDecoder create() {
+            return new Decoder();
+        }
+    };
+
+    public RawBsonDBObject(byte[] bytes, DBCollection collection) {
+        super(bytes, new LazyDBCallback(collection));
+    }
+
+    /**
+     * @return the whole BSON document (not a copy)
+     */
+    public byte[] toByteArray() {
+        return getBytes();
+    }
+
+    static class Decoder implements DBDecoder {
+
+        @Override
+        public DBCallback getDBCallback(DBCollection collection) {
+            return new LazyDBCallback(collection);
+        }
+
+        @Override
+        public DBObject decode(byte[] bytes, DBCollection collection) {
+            return new RawBsonDBObject(bytes, collection);
+        }
+
+        @Override
+        public DBObject decode(InputStream in, DBCollection collection) throws IOException {
+            // document size is the first little-endian int32, and includes itself
+            byte[] sizeBytes = new byte[4];
+            readFully(in, sizeBytes, 0, 4);
+            int size = (sizeBytes[0] & 0xff) | (sizeBytes[1] & 0xff) << 8
+                    | (sizeBytes[2] & 0xff) << 16 | (sizeBytes[3] & 0xff) << 24;
+
+            byte[] bytes = new byte[size];
+            System.arraycopy(sizeBytes, 0, bytes, 0, 4);
+            readFully(in, bytes, 4, size - 4);
+            return new RawBsonDBObject(bytes, collection);
+        }
+
+        private static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                int read = in.read(buffer, offset, length);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of BSON document");
+                }
+                offset += read;
+                length -= read;
+            }
+        }
+
+        @Override
+        public BSONObject readObject(byte[] bytes) {
+            return new BasicBSONDecoder().readObject(bytes);
+        }
+
+        @Override
+        public BSONObject readObject(InputStream in) throws IOException {
+            return new BasicBSONDecoder().readObject(in);
+        }
+
+        @Override
+        public int decode(byte[] bytes, BSONCallback callback) {
+            return new BasicBSONDecoder().decode(bytes, callback);
+        }
+
+        @Override
+        public int decode(InputStream in, BSONCallback callback) throws IOException {
+            return new BasicBSONDecoder().decode(in, callback);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package monitoring;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import monitoring.domain.ColumnarDailyMonitoringData;
+
+import java.util.Arrays;
+
+/**
+ * Storage format of minute values in day documents.
+ * <ul>
+ * <li>NESTED: one field per value, "data.HH.MM.metric" (original format)</li>
+ * <li>FLOAT32: packed single-precision values</li>
+ * <li>GORILLA: packed double-precision values, XOR-compressed as in Facebook's Gorilla</li>
+ * </ul>
+ * Packed codecs store each metric as per-hour arrays of binary blocks, "packed.metric.HH": every write appends
+ * ("$push") one block with the minutes it sets, so single minutes are written in one round trip, and readers
+ * apply the blocks of an hour in order, later blocks overriding earlier ones. "packedLast.metric.HH" keeps the
+ * last minute written to each hour, so that in-order writes can be told from overwrites.
+ * {@link monitoring.service.MonitoringService#migrateStorage} repacks each hour into a single block, as do the
+ * merged overwrites of {@link monitoring.service.MonitoringService}.
+ * <p>
+ * Block layout: codec id (1 byte), bitmap of the minutes present (8 bytes, bit N = minute N), then the
+ * values of the minutes present in ascending order: 4 bytes each (FLOAT32) or a Gorilla bit stream.
+ */
+public enum StorageCodec {
+    NESTED((byte) 0),
+    FLOAT32((byte) 1) {
+        @Override
+        void encodeValues(double[] values, long present, BitWriter out) {
+            for (int minute = 0; minute < 60; minute++) {
+                if ((present & (1L << minute)) != 0) {
+                    out.writeBits(Float.floatToIntBits((float) values[minute]), 32);
+                }
+            }
+        }
+
+        @Override
+        void decodeValues(BitReader in, long present, double[] values) {
+            for (int minute = 0; minute < 60; minute++) {
+                if ((present & (1L << minute)) != 0) {
+                    values[minute] = Float.intBitsToFloat((int) in.readBits(32));
+                }
+            }
+        }
+    },
+    GORILLA((byte) 2) {
+        @Override
+        void encodeValues(double[] values, long present, BitWriter out) {
+            long previous = 0;
+            int previousLeading = -1;
+            int previousTrailing = 0;
+            boolean first = true;
+
+            for (int minute = 0; minute < 60; minute++) {
+                if ((present & (1L << minute)) == 0) {
+                    continue;
+                }
+                long bits = Double.doubleToLongBits(values[minute]);
+                if (first) {
+                    out.writeBits(bits, 64);
+                    first = false;
+                } else {
+                    long xor = bits ^ previous;
+                    if (xor == 0) {
+                        // same value as before
+                        out.writeBits(0, 1);
+                    } else {
+                        out.writeBits(1, 1);
+                        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                        int trailing = Long.numberOfTrailingZeros(xor);
+                        if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                            // meaningful bits fit in the previous window
+                            out.writeBits(0, 1);
+                            out.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+                        } else {
+                            int meaningful = 64 - leading - trailing;
+                            out.writeBits(1, 1);
+                            out.writeBits(leading, 5);
+                            out.writeBits(meaningful - 1, 6);
+                            out.writeBits(xor >>> trailing, meaningful);
+                            previousLeading = leading;
+                            previousTrailing = trailing;
+                        }
+                    }
+                }
+                previous = bits;
+            }
+        }
+
+        @Override
+        void decodeValues(BitReader in, long present, double[] values) {
+            long previous = 0;
+            int previousLeading = 0;
+            int previousTrailing = 0;
+            boolean first = true;
+
+            for (int minute = 0; minute < 60; minute++) {
+                if ((present & (1L << minute)) == 0) {
+                    continue;
+                }
+                if (first) {
+                    previous = in.readBits(64);
+                    first = false;
+                } else if (in.readBits(1) == 1) {
+                    if (in.readBits(1) == 1) {
+                        previousLeading = (int) in.readBits(5);
+                        int meaningful = (int) in.readBits(6) + 1;
+                        previousTrailing = 64 - previousLeading - meaningful;
+                    }
+                    long xor = in.readBits(64 - previousLeading - previousTrailing) << previousTrailing;
+                    previous ^= xor;
+                }
+                values[minute] = Double.longBitsToDouble(previous);
+            }
+        }
+    };
+
+    /** sub-document of packed values */
+    public static final String FIELD = "packed";
+    /** sub-document of the last minute written to each packed hour: metric =&gt; HH =&gt; minute */
+    public static final String LAST_FIELD = "packedLast";
+
+    private static final int HEADER_SIZE = 9;
+
+    private final byte id;
+
+    StorageCodec(byte id) {
+        this.id = id;
+    }
+
+    /**
+     * @return true if values are stored in the "packed" sub-document
+     */
+    public boolean isPacked() {
+        return this != NESTED;
+    }
+
+    /**
+     * Encode the values of one metric in one hour.
+     *
+     * @param values 60 values, NaN for missing minutes
+     * @return block, null if no value is present
+     */
+    public byte[] encodeHour(double[] values) {
+        if (!isPacked()) {
+            throw new UnsupportedOperationException(name() + " is not a packed codec");
+        }
+        long present = 0;
+        for (int minute = 0; minute < 60; minute++) {
+            if (!Double.isNaN(values[minute])) {
+                present |= 1L << minute;
+            }
+        }
+        if (present == 0) {
+            return null;
+        }
+
+        BitWriter out = new BitWriter(HEADER_SIZE + Long.bitCount(present) * 8);
+        out.writeBits(id, 8);
+        out.writeBits(present, 64);
+        encodeValues(values, present, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode a whole day, one block per metric and hour.
+     *
+     * @param data
+     * @return content of the "packed" sub-document: metric =&gt; HH =&gt; [block]
+     */
+    public DBObject encodeDay(ColumnarDailyMonitoringData data) {
+        DBObject result = new BasicDBObject();
+        String[] metrics = data.getMetrics();
+        double[] values = new double[60];
+
+        for (int i = 0; i < metrics.length; i++) {
+            double[] column = data.getColumn(i);
+            DBObject hours = new BasicDBObject();
+            for (int hour = 0; hour < column.length / 60; hour++) {
+                System.arraycopy(column, hour * 60, values, 0, 60);
+                byte[] block = encodeHour(values);
+                if (block != null) {
+                    BasicDBList blocks = new BasicDBList();
+                    blocks.add(block);
+                    hours.put(TimeBuckets.hourKey(hour), blocks);
+                }
+            }
+            if (!hours.keySet().isEmpty()) {
+                result.put(metrics[i], hours);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param data
+     * @return content of the "packedLast" sub-document matching {@link #encodeDay}: metric =&gt; HH =&gt; minute
+     */
+    public static DBObject lastMinutes(ColumnarDailyMonitoringData data) {
+        DBObject result = new BasicDBObject();
+        String[] metrics = data.getMetrics();
+
+        for (int i = 0; i < metrics.length; i++) {
+            double[] column = data.getColumn(i);
+            DBObject hours = new BasicDBObject();
+            for (int minuteOfDay = column.length - 1; minuteOfDay >= 0; minuteOfDay--) {
+                String hh = TimeBuckets.hourKey(minuteOfDay / 60);
+                if (!Double.isNaN(column[minuteOfDay]) && !hours.containsField(hh)) {
+                    hours.put(hh, minuteOfDay % 60);
+                }
+            }
+            if (!hours.keySet().isEmpty()) {
+                result.put(metrics[i], hours);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Decode a block written by any packed codec.
+     *
+     * @param block  block
+     * @param values 60 values of the hour; only the minutes present in the block are written
+     * @return bitmap of the minutes present, bit N = minute N
+     */
+    public static long decodeHour(byte[] block, double[] values) {
+        BitReader in = new BitReader(block);
+        byte codecId = (byte) in.readBits(8);
+        long present = in.readBits(64);
+        for (StorageCodec codec : values()) {
+            if (codec.id == codecId && codec.isPacked()) {
+                codec.decodeValues(in, present, values);
+                return present;
+            }
+        }
+        throw new IllegalArgumentException("Unknown storage codec id: " + codecId);
+    }
+
+    /**
+     * Decode a block into a column of a whole day.
+     *
+     * @param block  block
+     * @param hour   hour of the block
+     * @param column values of the day, by minute of day
+     */
+    public static void decodeHour(byte[] block, int hour, double[] column) {
+        double[] values = new double[60];
+        long present = decodeHour(block, values);
+        for (int minute = 0; minute < 60; minute++) {
+            if ((present & (1L << minute)) != 0) {
+                column[hour * 60 + minute] = values[minute];
+            }
+        }
+    }
+
+    /**
+     * @param value codec name, case insensitive
+     * @return
+     */
+    public static StorageCodec parse(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+
+    void encodeValues(double[] values, long present, BitWriter out) {
+        throw new UnsupportedOperationException(name() + " is not a packed codec");
+    }
+
+    void decodeValues(BitReader in, long present, double[] values) {
+        throw new UnsupportedOperationException(name() + " is not a packed codec");
+    }
+
+    /** big-endian bit stream */
+    static class BitWriter {
+        private byte[] buffer;
+        private int bitPosition;
+
+        BitWriter(int initialBytes) {
+            buffer = new byte[initialBytes];
+        }
+
+        void writeBits(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                int bytePosition = bitPosition >>> 3;
+                if (bytePosition == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                if (((value >>> i) & 1) != 0) {
+                    buffer[bytePosition] |= 0x80 >>> (bitPosition & 7);
+                }
+                bitPosition++;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, (bitPosition + 7) >>> 3);
+        }
+    }
+
+    static class BitReader {
+        private final byte[] buffer;
+        private int bitPosition;
+
+        BitReader(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        long readBits(int count) {
+            long result = 0;
+            for (int i = 0; i < count; i++) {
+                int bit = (buffer[bitPosition >>> 3] >>> (7 - (bitPosition & 7))) & 1;
+                result = (result << 1) | bit;
+                bitPosition++;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package monitoring;
+
+import monitoring.domain.ColumnarDailyMonitoringData;
+import monitoring.domain.DailyMonitoringData;
+import monitoring.metrics.Instrumentation;
+import org.bson.BSONCallback;
+import org.bson.BasicBSONDecoder;
+import org.bson.EmptyBSONCallback;
+import org.bson.types.ObjectId;
+
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * Decode a raw BSON day document in a single pass, writing values directly into a
+ * {@link monitoring.domain.ColumnarDailyMonitoringData}: no intermediate {@link com.mongodb.DBObject} tree,
+ * no per-hour/per-minute maps, no boxed values.
+ * <p>
+ * Metrics not in the requested set are skipped. Documents created by upserts, without "metadata",
+ * take server name and day from their id. Values stored by packed {@link StorageCodec}s are decoded
+ * too, in the order blocks were written, after the nested ones.
+ * <p>
+ * Extends {@link EmptyBSONCallback} only to inherit the deprecated gotBinaryArray callback, never called by
+ * {@link BasicBSONDecoder}; all the others are implemented here.
+ * <p>
+ * Not thread-safe: use one instance per thread.
+ */
+public class StreamingDailyMonitoringDataDecoder extends EmptyBSONCallback {
+
+    private static final int SECTION_OTHER = 0;
+    private static final int SECTION_METADATA = 1;
+    private static final int SECTION_DATA = 2;
+    private static final int SECTION_PACKED = 3;
+
+    private final BasicBSONDecoder decoder = new BasicBSONDecoder();
+    private Set<String> metricsFilter;
+
+    private ColumnarDailyMonitoringData result;
+    private String id;
+    private String serverName;
+    private Date date;
+    private int depth;
+    private int section;
+    private boolean inMetrics;
+    private int hour;
+    private int minuteOfDay;
+    private String packedMetric;
+    private final double[] packedValues = new double[60];
+
+    /**
+     * Decode a day document.
+     *
+     * @param bson    raw BSON document
+     * @param metrics metrics to decode, null for all
+     * @return
+     */
+    public ColumnarDailyMonitoringData decode(byte[] bson, Set<String> metrics) {
+        this.metricsFilter = metrics;
+        reset();
+        decoder.decode(bson, this);
+        Instrumentation.BYTES_READ.add(bson.length);
+        Instrumentation.DOCUMENTS_CONVERTED.increment();
+        return result;
+    }
+
+    private boolean wanted(String metric) {
+        return metricsFilter == null || metricsFilter.contains(metric);
+    }
+
+    @Override
+    public void reset() {
+        result = new ColumnarDailyMonitoringData();
+        id = null;
+        serverName = null;
+        date = null;
+        depth = 0;
+        section = SECTION_OTHER;
+        inMetrics = false;
+    }
+
+    @Override
+    public Object get() {
+        return result;
+    }
+
+    @Override
+    public void objectStart() {
+        depth++;
+    }
+
+    @Override
+    public void objectStart(boolean array) {
+        depth++;
+    }
+
+    @Override
+    public void objectStart(String name) {
+        depth++;
+        if (depth == 2) {
+            if ("metadata".equals(name)) {
+                section = SECTION_METADATA;
+            } else if ("data".equals(name)) {
+                section = SECTION_DATA;
+            } else if (StorageCodec.FIELD.equals(name)) {
+                section = SECTION_PACKED;
+            } else {
+                section = SECTION_OTHER;
+            }
+        } else if (section == SECTION_DATA) {
+            if (depth == 3) {
+                hour = twoDigits(name);
+            } else if (depth == 4) {
+                minuteOfDay = ColumnarDailyMonitoringData.minuteOfDay(hour, twoDigits(name));
+            }
+        } else if (section == SECTION_PACKED && depth == 3) {
+            packedMetric = name;
+        }
+    }
+
+    @Override
+    public Object objectDone() {
+        depth--;
+        if (depth == 1) {
+            section = SECTION_OTHER;
+        } else if (depth == 0) {
+            done();
+        }
+        return null;
+    }
+
+    @Override
+    public void arrayStart() {
+        depth++;
+    }
+
+    @Override
+    public void arrayStart(String name) {
+        depth++;
+        inMetrics = depth == 3 && section == SECTION_METADATA && "metrics".equals(name);
+        if (depth == 4 && section == SECTION_PACKED) {
+            hour = twoDigits(name);
+        }
+    }
+
+    @Override
+    public Object arrayDone() {
+        depth--;
+        inMetrics = false;
+        if (depth == 1) {
+            section = SECTION_OTHER;
+        }
+        return null;
+    }
+
+    private void done() {
+        if ((serverName == null || date == null) && id != null) {
+            date = DailyMonitoringData.parseIdDate(id);
+            if (date != null) {
+                serverName = id.substring(0, id.lastIndexOf('/'));
+            }
+        }
+        result.setServerName(serverName);
+        result.setDate(date);
+    }
+
+    private void value(String name, double value) {
+        if (section == SECTION_DATA && depth == 4 && wanted(name)) {
+            result.setValue(name, minuteOfDay, value);
+        }
+    }
+
+    private static int twoDigits(String s) {
+        if (s.length() != 2) {
+            return Integer.parseInt(s);
+        }
+        return (s.charAt(0) - '0') * 10 + (s.charAt(1) - '0');
+    }
+
+    @Override
+    public void gotDouble(String name, double value) {
+        value(name, value);
+    }
+
+    @Override
+    public void gotInt(String name, int value) {
+        value(name, value);
+    }
+
+    @Override
+    public void gotLong(String name, long value) {
+        value(name, value);
+    }
+
+    @Override
+    public void gotString(String name, String value) {
+        if (depth == 1 && "_id".equals(name)) {
+            id = value;
+        } else if (inMetrics) {
+            if (wanted(value)) {
+                result.addMetric(value);
+            }
+        } else if (section == SECTION_METADATA && depth == 2 && "serverName".equals(name)) {
+            serverName = value;
+        }
+    }
+
+    @Override
+    public void gotDate(String name, long millis) {
+        if (section == SECTION_METADATA && depth == 2 && "date".equals(name)) {
+            date = new Date(millis);
+        }
+    }
+
+    @Override
+    public void gotBinary(String name, byte type, byte[] data) {
+        if (section == SECTION_PACKED && depth == 4 && wanted(packedMetric)) {
+            long present = StorageCodec.decodeHour(data, packedValues);
+            for (int minute = 0; minute < 60; minute++) {
+                if ((present & (1L << minute)) != 0) {
+                    result.setValue(packedMetric, hour * 60 + minute, packedValues[minute]);
+                }
+            }
+        }
+    }
+
+    // everything else is not part of day documents, or not needed
+
+    @Override
+    public BSONCallback createBSONCallback() {
+        return new EmptyBSONCallback();
+    }
+
+    @Override
+    public void gotNull(String name) {
+    }
+
+    @Override
+    public void gotUndefined(String name) {
+    }
+
+    @Override
+    public void gotMinKey(String name) {
+    }
+
+    @Override
+    public void gotMaxKey(String name) {
+    }
+
+    @Override
+    public void gotBoolean(String name, boolean value) {
+    }
+
+    @Override
+    public void gotSymbol(String name, String value) {
+    }
+
+    @Override
+    public void gotRegex(String name, String pattern, String flags) {
+    }
+
+    @Override
+    public void gotTimestamp(String name, int time, int inc) {
+    }
+
+    @Override
+    public void gotObjectId(String name, ObjectId id) {
+    }
+
+    @Override
+    public void gotDBRef(String name, String ns, ObjectId id) {
+    }
+
+    @Override
+    public void gotUUID(String name, long part1, long part2) {
+    }
+
+    @Override
+    public void gotCode(String name, String code) {
+    }
+
+    @Override
+    public void gotCodeWScope(String name, String code, Object scope) {
+    }
+}
@@ -0,0 +1,442 @@
+package monitoring;
+
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time bucketing of samples into day documents, with epoch arithmetic instead of {@link java.util.Calendar}.
+ * <p>
+ * A day starts dayStartMinutes after local midnight in the configured time zone, and is labelled with the
+ * local date of its start (yyyyMMdd, as in document ids). Minutes of the day are wall-clock minutes since the
+ * day start, 0-1439: on a DST spring-forward the skipped hour has no samples. On a fall-back the second
+ * occurrence of the repeated hour gets minutes of its own, 1440-1499 (hour "24"), so that it never overwrites
+ * the first one.
+ * <p>
+ * The boundaries of recently used days are cached, so that resolving the day, minute, document id and field
+ * path of a timestamp allocates nothing in the common case. Immutable and thread-safe; the instance used
+ * by the application is {@link #get()}, configured at startup.
+ */
+public final class TimeBuckets {
+
+    public static final int MINUTES_PER_DAY = 1440;
+    /** minutes of the longest day, with the repeated hour of a DST fall-back */
+    public static final int MAX_MINUTES_PER_DAY = 25 * 60;
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private static final String[] HOUR_KEYS = twoDigitKeys(25);
+    private static final String[] MINUTE_KEYS = twoDigitKeys(60);
+
+    private static final int MAX_CACHED_METRICS = 1024;
+    private static final int MAX_CACHED_IDS = 100000;
+    /** metric =&gt; minute of day =&gt; "data.HH.MM.metric", filled lazily */
+    private static final ConcurrentMap<String, String[]> FIELD_PATHS = new ConcurrentHashMap<>();
+
+    private static volatile TimeBuckets current = new TimeBuckets(TimeZone.getDefault(), 0);
+
+    /** boundaries of a day, immutable */
+    private static final class Day {
+        final long localDay;
+        /** local wall-clock time of the start, as if it were UTC */
+        final long localStart;
+        final long start;
+        final long end;
+        /** offset of the whole day, or null if it has a DST transition */
+        final Integer offset;
+        /** end of the first occurrence of the repeated wall-clock times, end of the day if none */
+        final long fallBack;
+        /** minutes repeated after fallBack, 0-60 */
+        final int repeatedMinutes;
+        final String label;
+
+        Day(long localDay, long localStart, long start, long end, Integer offset, long fallBack, int repeatedMinutes,
+            String label) {
+            this.localDay = localDay;
+            this.localStart = localStart;
+            this.start = start;
+            this.end = end;
+            this.offset = offset;
+            this.fallBack = fallBack;
+            this.repeatedMinutes = repeatedMinutes;
+            this.label = label;
+        }
+
+        boolean contains(long timestamp) {
+            return timestamp >= start && timestamp < end;
+        }
+    }
+
+    private static final class CachedId {
+        final long localDay;
+        final String id;
+
+        CachedId(long localDay, String id) {
+            this.localDay = localDay;
+            this.id = id;
+        }
+    }
+
+    private final TimeZone timeZone;
+    private final int dayStartMinutes;
+    private final long dayStartMillis;
+    /** direct-mapped by local day; entries are immutable, so racy updates are harmless */
+    private final Day[] days = new Day[64];
+    /** serverName =&gt; id of the last day formatted */
+    private final ConcurrentMap<String, CachedId> ids = new ConcurrentHashMap<>();
+
+    /**
+     * @param timeZone        time zone of the day boundaries
+     * @param dayStartMinutes start of the day, in minutes after local midnight
+     */
+    public TimeBuckets(TimeZone timeZone, int dayStartMinutes) {
+        if (dayStartMinutes < 0 || dayStartMinutes >= MINUTES_PER_DAY) {
+            throw new IllegalArgumentException("Day start out of range: " + dayStartMinutes);
+        }
+        this.timeZone = (TimeZone) timeZone.clone();
+        this.dayStartMinutes = dayStartMinutes;
+        this.dayStartMillis = dayStartMinutes * MINUTE;
+    }
+
+    /**
+     * @return time bucketing of the application
+     */
+    public static TimeBuckets get() {
+        return current;
+    }
+
+    /**
+     * Replace the time bucketing of the application, at startup.
+     *
+     * @param timeBuckets
+     */
+    public static void configure(TimeBuckets timeBuckets) {
+        current = timeBuckets;
+    }
+
+    public TimeZone getTimeZone() {
+        return (TimeZone) timeZone.clone();
+    }
+
+    public int getDayStartMinutes() {
+        return dayStartMinutes;
+    }
+
+    /**
+     * @param timestamp
+     * @return start of the day of the timestamp
+     */
+    public long dayStart(long timestamp) {
+        return day(timestamp).start;
+    }
+
+    /**
+     * @param timestamp
+     * @param days      days to add, may be negative
+     * @return start of the day, some days after the day of the timestamp
+     */
+    public long addDays(long timestamp, int days) {
+        return localDay(day(timestamp).localDay + days).start;
+    }
+
+    public boolean isSameDay(long timestamp1, long timestamp2) {
+        return day(timestamp1).localDay == day(timestamp2).localDay;
+    }
+
+    /**
+     * @param timestamp
+     * @return wall-clock minute of its day, 0-1439, or 1440-1499 during the repeated hour of a DST fall-back
+     */
+    public int minuteOfDay(long timestamp) {
+        Day day = day(timestamp);
+        if (day.offset != null) {
+            return (int) ((timestamp - day.start) / MINUTE);
+        }
+        if (timestamp >= day.fallBack && timestamp < day.fallBack + day.repeatedMinutes * MINUTE) {
+            return MINUTES_PER_DAY + (int) ((timestamp - day.fallBack) / MINUTE);
+        }
+        long local = timestamp + timeZone.getOffset(timestamp) - day.localStart;
+        return (int) Math.max(0, Math.min(MINUTES_PER_DAY - 1, floorDiv(local, MINUTE)));
+    }
+
+    /**
+     * @param timestamp   any time of the day
+     * @param minuteOfDay 0-1499
+     * @return start of a minute of the day of the timestamp
+     */
+    public long minuteStart(long timestamp, int minuteOfDay) {
+        Day day = day(timestamp);
+        if (day.offset != null) {
+            return day.start + minuteOfDay * MINUTE;
+        }
+        return minuteOfDay >= MINUTES_PER_DAY ? day.fallBack + (minuteOfDay - MINUTES_PER_DAY) * MINUTE
+                : toInstant(day.localStart + minuteOfDay * MINUTE);
+    }
+
+    /**
+     * @param timestamp any time of the day
+     * @return minutes of the day: 1440, or 1500 with the repeated hour of a DST fall-back
+     */
+    public int minutesOfDay(long timestamp) {
+        return day(timestamp).repeatedMinutes > 0 ? MAX_MINUTES_PER_DAY : MINUTES_PER_DAY;
+    }
+
+    /**
+     * @param timestamp any time of the day
+     * @param date
+     * @return number of wall-clock minutes of the day, 0-1439, starting before a date
+     */
+    public int wallClockMinutesBefore(long timestamp, long date) {
+        Day day = day(timestamp);
+        if (date <= day.start) {
+            return 0;
+        } else if (date >= day.end) {
+            return MINUTES_PER_DAY;
+        }
+        // else
+        int minute = minuteOfDay(date);
+        if (minute >= MINUTES_PER_DAY) {
+            // the first occurrence of the repeated minutes is over
+            return minuteOfDay(day.fallBack - 1) + 1;
+        }
+        return minute + (date > minuteStart(date, minute) ? 1 : 0);
+    }
+
+    /**
+     * @param timestamp any time of the day
+     * @param date
+     * @return 1440 plus the number of repeated minutes of the day, 1440-1499, starting before a date
+     */
+    public int repeatedMinutesBefore(long timestamp, long date) {
+        Day day = day(timestamp);
+        if (date <= day.fallBack) {
+            return MINUTES_PER_DAY;
+        }
+        return MINUTES_PER_DAY + (int) Math.min(day.repeatedMinutes, (date - day.fallBack + MINUTE - 1) / MINUTE);
+    }
+
+    /**
+     * @param timestamp any time of the day
+     * @param hour      0-24
+     * @return start of an hour of the day of the timestamp
+     */
+    public long hourStart(long timestamp, int hour) {
+        return minuteStart(timestamp, hour * 60);
+    }
+
+    /**
+     * @param timestamp
+     * @return local date of the start of its day: yyyyMMdd
+     */
+    public String dayLabel(long timestamp) {
+        return day(timestamp).label;
+    }
+
+    /**
+     * @param label yyyyMMdd, as returned by {@link #dayLabel(long)}
+     * @return start of the day
+     * @throws IllegalArgumentException if the label is malformed
+     */
+    public long parseDayLabel(String label) {
+        if (label.length() != 8) {
+            throw new IllegalArgumentException("Expected yyyyMMdd: " + label);
+        }
+        int year = Integer.parseInt(label.substring(0, 4));
+        int month = Integer.parseInt(label.substring(4, 6));
+        int dayOfMonth = Integer.parseInt(label.substring(6, 8));
+        return localDay(daysFromCivil(year, month, dayOfMonth)).start;
+    }
+
+    /**
+     * Id of a day document: serverName/yyyyMMdd. The last id of every server is cached.
+     *
+     * @param serverName
+     * @param timestamp  any time of the day
+     * @return
+     */
+    public String formatId(String serverName, long timestamp) {
+        Day day = day(timestamp);
+        CachedId cached = ids.get(serverName);
+        if (cached != null && cached.localDay == day.localDay) {
+            return cached.id;
+        }
+        // else
+        String id = serverName + "/" + day.label;
+        if (ids.size() >= MAX_CACHED_IDS) {
+            ids.clear();
+        }
+        ids.put(serverName, new CachedId(day.localDay, id));
+        return id;
+    }
+
+    /**
+     * @param hour 0-24
+     * @return 2-digit key of the hour in the "data" sub-document
+     */
+    public static String hourKey(int hour) {
+        return HOUR_KEYS[hour];
+    }
+
+    /**
+     * @param minute 0-59
+     * @return 2-digit key of the minute in an hour sub-document
+     */
+    public static String minuteKey(int minute) {
+        return MINUTE_KEYS[minute];
+    }
+
+    /**
+     * @param minuteOfDay 0-1499
+     * @param metric
+     * @return dotted path of a value inside a day document: data.HH.MM.metric
+     */
+    public static String fieldPath(int minuteOfDay, String metric) {
+        String[] paths = FIELD_PATHS.get(metric);
+        if (paths == null) {
+            if (FIELD_PATHS.size() >= MAX_CACHED_METRICS) {
+                return buildFieldPath(minuteOfDay, metric);
+            }
+            FIELD_PATHS.putIfAbsent(metric, new String[MAX_MINUTES_PER_DAY]);
+            paths = FIELD_PATHS.get(metric);
+        }
+
+        String path = paths[minuteOfDay];
+        if (path == null) {
+            // strings are immutable: a racy publication only costs a duplicate
+            path = buildFieldPath(minuteOfDay, metric);
+            paths[minuteOfDay] = path;
+        }
+        return path;
+    }
+
+    private static String buildFieldPath(int minuteOfDay, String metric) {
+        return "data." + HOUR_KEYS[minuteOfDay / 60] + "." + MINUTE_KEYS[minuteOfDay % 60] + "." + metric;
+    }
+
+    private Day day(long timestamp) {
+        // the local day is at most a few hours away from the one of the raw offset
+        long estimate = floorDiv(timestamp + timeZone.getRawOffset() - dayStartMillis, DAY);
+        for (long localDay = estimate - 1; localDay <= estimate + 1; localDay++) {
+            Day day = days[(int) (localDay & (days.length - 1))];
+            if (day != null && day.contains(timestamp)) {
+                return day;
+            }
+        }
+
+        Day day = localDay(floorDiv(timestamp + timeZone.getOffset(timestamp) - dayStartMillis, DAY));
+        // the start of a day may be shifted by a DST transition
+        while (timestamp < day.start) {
+            day = localDay(day.localDay - 1);
+        }
+        while (timestamp >= day.end) {
+            day = localDay(day.localDay + 1);
+        }
+        return day;
+    }
+
+    private Day localDay(long localDay) {
+        int slot = (int) (localDay & (days.length - 1));
+        Day day = days[slot];
+        if (day != null && day.localDay == localDay) {
+            return day;
+        }
+        // else
+        long localStart = localDay * DAY + dayStartMillis;
+        long start = toInstant(localStart);
+        long end = toInstant(localStart + DAY);
+        int offset = timeZone.getOffset(start);
+        boolean constant = end - start == DAY && timeZone.getOffset(end - 1) == offset;
+
+        // a single transition per day: find the first instant with the offset of the end
+        long fallBack = end;
+        int repeatedMinutes = 0;
+        int endOffset = timeZone.getOffset(end - 1);
+        if (!constant && endOffset < offset) {
+            long low = start;
+            long high = end - 1;
+            while (high - low > 1) {
+                long middle = low + (high - low) / 2;
+                if (timeZone.getOffset(middle) == offset) {
+                    low = middle;
+                } else {
+                    high = middle;
+                }
+            }
+            fallBack = high;
+            repeatedMinutes = (int) Math.min(60, (offset - endOffset) / MINUTE);
+        }
+
+        day = new Day(localDay, localStart, start, end, constant ? Integer.valueOf(offset) : null, fallBack,
+                repeatedMinutes, formatLabel(localDay));
+        days[slot] = day;
+        return day;
+    }
+
+    /**
+     * @param local local wall-clock time, as if it were UTC
+     * @return first instant with this local time; times skipped by DST are shifted forward
+     */
+    private long toInstant(long local) {
+        int before = timeZone.getOffset(local - timeZone.getRawOffset() - 6 * HOUR);
+        int after = timeZone.getOffset(local - timeZone.getRawOffset() + 6 * HOUR);
+        boolean beforeValid = timeZone.getOffset(local - before) == before;
+        boolean afterValid = timeZone.getOffset(local - after) == after;
+
+        if (beforeValid && afterValid) {
+            return Math.min(local - before, local - after);
+        } else if (afterValid) {
+            return local - after;
+        }
+        // else: valid before the transition, or in a gap
+        return local - before;
+    }
+
+    private static String formatLabel(long epochDay) {
+        // civil from days, proleptic Gregorian calendar
+        long z = epochDay + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        long dayOfMonth = dayOfYear - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        char[] label = new char[8];
+        for (int i = 3; i >= 0; i--) {
+            label[i] = (char) ('0' + year % 10);
+            year /= 10;
+        }
+        label[4] = (char) ('0' + month / 10);
+        label[5] = (char) ('0' + month % 10);
+        label[6] = (char) ('0' + dayOfMonth / 10);
+        label[7] = (char) ('0' + dayOfMonth % 10);
+        return new String(label);
+    }
+
+    private static long daysFromCivil(int year, int month, int dayOfMonth) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + dayOfMonth - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x ^ y) < 0) ? q - 1 : q;
+    }
+
+    private static String[] twoDigitKeys(int count) {
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = String.format("%02d", i);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,75 @@
+package monitoring.alert;
+
+import java.util.Date;
+
+/**
+ * Change of state of an {@link AlertRule} for one series: raised when the rule starts being breached,
+ * resolved when it stops.
+ */
+public class Alert {
+
+    public enum State {
+        FIRING, RESOLVED
+    }
+
+    private final String serverName;
+    private final String metric;
+    private final AlertRule rule;
+    private final State state;
+    private final long timestamp;
+    private final double value;
+    private final double observed;
+
+    public Alert(String serverName, String metric, AlertRule rule, State state, long timestamp, double value,
+                 double observed) {
+        this.serverName = serverName;
+        this.metric = metric;
+        this.rule = rule;
+        this.state = state;
+        this.timestamp = timestamp;
+        this.value = value;
+        this.observed = observed;
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public AlertRule getRule() {
+        return rule;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return timestamp of the sample causing the change
+     */
+    public Date getTimestamp() {
+        return new Date(timestamp);
+    }
+
+    /**
+     * @return value of the sample causing the change
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * @return value compared by the rule: sample value, moving average or z-score
+     */
+    public double getObserved() {
+        return observed;
+    }
+
+    @Override
+    public String toString() {
+        return state + " " + serverName + " " + rule + " (" + metric + " = " + value + ", observed " + observed + ")";
+    }
+}
@@ -0,0 +1,129 @@
+package monitoring.alert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Condition on the samples of one metric (or "*" for all), in one of three forms:
+ * <ul>
+ * <li>THRESHOLD "cpu &gt; 0.9": the raw value</li>
+ * <li>EWMA "ewma(cpu, 0.2) &gt; 0.8": the exponentially weighted moving average of smoothing factor 0.2,
+ * which ignores isolated spikes</li>
+ * <li>ZSCORE "zscore(cpu, 60) &gt; 3": the z-score of the value against the previous 60 samples of the
+ * series, "&lt; -3" for drops; undefined until the window is full</li>
+ * </ul>
+ * Immutable.
+ */
+public class AlertRule {
+
+    public enum Type {
+        THRESHOLD, EWMA, ZSCORE
+    }
+
+    private static final Pattern RULE = Pattern.compile(
+            "\\s*(?:(ewma|zscore)\\(\\s*([^,\\s]+)\\s*,\\s*([^)\\s]+)\\s*\\)|([^<>()\\s]+))\\s*([<>])\\s*(\\S+)\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    private final String text;
+    private final String metric;
+    private final Type type;
+    private final boolean above;
+    private final double limit;
+    private final double alpha;
+    private final int window;
+
+    private AlertRule(String text, String metric, Type type, boolean above, double limit, double alpha, int window) {
+        this.text = text;
+        this.metric = metric;
+        this.type = type;
+        this.above = above;
+        this.limit = limit;
+        this.alpha = alpha;
+        this.window = window;
+    }
+
+    /**
+     * @param rule e.g. "cpu &gt; 0.9", "ewma(mem, 0.1) &gt; 0.95", "zscore(*, 60) &gt; 4"
+     * @return
+     */
+    public static AlertRule parse(String rule) {
+        Matcher matcher = RULE.matcher(rule);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid alert rule: " + rule);
+        }
+
+        boolean above = ">".equals(matcher.group(5));
+        double limit = Double.parseDouble(matcher.group(6));
+        String text = rule.trim();
+        if (matcher.group(1) == null) {
+            return new AlertRule(text, matcher.group(4), Type.THRESHOLD, above, limit, 0, 0);
+        }
+
+        String metric = matcher.group(2);
+        if ("ewma".equalsIgnoreCase(matcher.group(1))) {
+            double alpha = Double.parseDouble(matcher.group(3));
+            if (!(alpha > 0 && alpha <= 1)) {
+                throw new IllegalArgumentException("EWMA smoothing factor must be in ]0, 1]: " + rule);
+            }
+            return new AlertRule(text, metric, Type.EWMA, above, limit, alpha, 0);
+        }
+        int window = Integer.parseInt(matcher.group(3));
+        if (window < 2) {
+            throw new IllegalArgumentException("Z-score window must be at least 2 samples: " + rule);
+        }
+        return new AlertRule(text, metric, Type.ZSCORE, above, limit, 0, window);
+    }
+
+    /**
+     * @param rules rules separated by ';', may be empty
+     * @return
+     */
+    public static List<AlertRule> parseAll(String rules) {
+        List<AlertRule> result = new ArrayList<>();
+        for (String rule : rules.split(";")) {
+            if (!rule.trim().isEmpty()) {
+                result.add(parse(rule));
+            }
+        }
+        return result;
+    }
+
+    public boolean appliesTo(String metric) {
+        return "*".equals(this.metric) || this.metric.equals(metric);
+    }
+
+    /**
+     * @param observed value, moving average or z-score, depending on the type
+     * @return true if the observed value breaches the limit; false if NaN
+     */
+    public boolean isBreached(double observed) {
+        return above ? observed > limit : observed < limit;
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public double getLimit() {
+        return limit;
+    }
+
+    public double getAlpha() {
+        return alpha;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,10 @@
+package monitoring.alert;
+
+/**
+ * Receiver of the alerts of the {@link AnomalyDetector}: every Spring bean implementing it is notified.
+ * Called on the ingestion threads, so implementations should hand slow work off.
+ */
+public interface AlertSink {
+
+    void onAlert(Alert alert);
+}
@@ -0,0 +1,392 @@
+package monitoring.alert;
+
+import monitoring.metrics.Instrumentation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * Evaluates the {@link AlertRule}s of monitoring.alerts.rules on every sample as it is ingested, and notifies
+ * the {@link AlertSink}s when a rule starts or stops being breached for a series (server and metric).
+ * <p>
+ * The state of a series is a few primitive arrays allocated with the series: the moving averages, and a ring
+ * buffer with a running mean and sum of squared deviations (Welford) per z-score rule, so that a sample costs O(1) whatever the window. Series are kept
+ * in open-addressing tables spread over monitoring.alerts.stripes locks, looked up by the server and metric
+ * strings without building a key: observing a sample of a known series allocates nothing, only state changes
+ * create an {@link Alert}. Sinks are called outside the locks.
+ * <p>
+ * Samples of metrics without rules are skipped after one hash lookup; with no rules, the detector is disabled.
+ * At most monitoring.alerts.maxSeries series are tracked, samples of further series are ignored.
+ * Thread-safe.
+ */
+@Component
+public class AnomalyDetector {
+
+    private static final AlertRule[] NO_RULES = new AlertRule[0];
+
+    /** State of the rules of a series, rules[i] using the slots i of the arrays. */
+    private static final class Series {
+        final String serverName;
+        final String metric;
+        final int hash;
+        final AlertRule[] rules;
+        final boolean[] firing;
+        final double[] ewma;
+        final double[][] windows;
+        final int[] counts;
+        final int[] positions;
+        final double[] means;
+        final double[] m2s;
+
+        Series(String serverName, String metric, int hash, AlertRule[] rules) {
+            this.serverName = serverName;
+            this.metric = metric;
+            this.hash = hash;
+            this.rules = rules;
+            firing = new boolean[rules.length];
+            ewma = new double[rules.length];
+            Arrays.fill(ewma, Double.NaN);
+            windows = new double[rules.length][];
+            for (int i = 0; i < rules.length; i++) {
+                if (rules[i].getType() == AlertRule.Type.ZSCORE) {
+                    windows[i] = new double[rules[i].getWindow()];
+                }
+            }
+            counts = new int[rules.length];
+            positions = new int[rules.length];
+            means = new double[rules.length];
+            m2s = new double[rules.length];
+        }
+    }
+
+    private static final class Stripe {
+        Series[] table = new Series[16];
+        int size;
+    }
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+    private List<AlertSink> sinks = Collections.emptyList();
+
+    private String rules = "";
+    private int stripesCount = 64;
+    private int maxSeries = 1_000_000;
+
+    private Map<String, AlertRule[]> rulesByMetric = Collections.emptyMap();
+    private AlertRule[] wildcardRules = NO_RULES;
+    private boolean enabled;
+    private Stripe[] stripes;
+    private int maxSeriesPerStripe;
+
+    public AnomalyDetector() {
+        init();
+    }
+
+    @Autowired(required = false)
+    public void setSinks(List<AlertSink> sinks) {
+        this.sinks = sinks;
+    }
+
+    /**
+     * @param rules alert rules separated by ';', see {@link AlertRule}; empty to disable the detection
+     */
+    @Value("${monitoring.alerts.rules:}")
+    public void setRules(String rules) {
+        this.rules = rules;
+        init();
+    }
+
+    /**
+     * @param stripes number of locks over the series, rounded up to a power of 2
+     */
+    @Value("${monitoring.alerts.stripes:64}")
+    public void setStripes(int stripes) {
+        this.stripesCount = stripes;
+        init();
+    }
+
+    @Value("${monitoring.alerts.maxSeries:1000000}")
+    public void setMaxSeries(int maxSeries) {
+        this.maxSeries = maxSeries;
+        init();
+    }
+
+    /**
+     * Parse the rules and forget the state of all series.
+     */
+    private synchronized void init() {
+        Map<String, List<AlertRule>> byMetric = new HashMap<>();
+        List<AlertRule> wildcard = new ArrayList<>();
+        for (AlertRule rule : AlertRule.parseAll(rules)) {
+            if ("*".equals(rule.getMetric())) {
+                wildcard.add(rule);
+            } else {
+                List<AlertRule> metricRules = byMetric.get(rule.getMetric());
+                if (metricRules == null) {
+                    metricRules = new ArrayList<>();
+                    byMetric.put(rule.getMetric(), metricRules);
+                }
+                metricRules.add(rule);
+            }
+        }
+
+        Map<String, AlertRule[]> rulesByMetric = new HashMap<>();
+        for (Map.Entry<String, List<AlertRule>> entry : byMetric.entrySet()) {
+            List<AlertRule> metricRules = entry.getValue();
+            metricRules.addAll(wildcard);
+            rulesByMetric.put(entry.getKey(), metricRules.toArray(new AlertRule[metricRules.size()]));
+        }
+
+        int count = Integer.highestOneBit(Math.max(1, stripesCount - 1)) << 1;
+        Stripe[] stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+
+        this.rulesByMetric = rulesByMetric;
+        this.wildcardRules = wildcard.toArray(new AlertRule[wildcard.size()]);
+        this.maxSeriesPerStripe = Math.max(1, maxSeries / count);
+        this.stripes = stripes;
+        this.enabled = !rulesByMetric.isEmpty() || !wildcard.isEmpty();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Evaluate the rules on the samples of a measurement.
+     *
+     * @param serverName
+     * @param timestamp
+     * @param samples    name =&gt; value, null values are skipped
+     */
+    public void observe(String serverName, long timestamp, Map<String, Double> samples) {
+        if (!enabled) {
+            return;
+        }
+        for (Map.Entry<String, Double> sample : samples.entrySet()) {
+            if (sample.getValue() != null) {
+                observe(serverName, timestamp, sample.getKey(), sample.getValue());
+            }
+        }
+    }
+
+    /**
+     * Evaluate the rules on a sample.
+     *
+     * @param serverName
+     * @param timestamp
+     * @param metric
+     * @param value      NaN is skipped
+     */
+    public void observe(String serverName, long timestamp, String metric, double value) {
+        if (!enabled || Double.isNaN(value)) {
+            return;
+        }
+        AlertRule[] metricRules = rulesByMetric.get(metric);
+        if (metricRules == null) {
+            if (wildcardRules.length == 0) {
+                return;
+            }
+            metricRules = wildcardRules;
+        }
+
+        int hash = mix(serverName.hashCode() * 31 + metric.hashCode());
+        Stripe[] stripes = this.stripes;
+        Stripe stripe = stripes[(hash >>> 16) & (stripes.length - 1)];
+        List<Alert> alerts = null;
+        synchronized (stripe) {
+            Series series = lookup(stripe, serverName, metric, hash, metricRules);
+            if (series == null) {
+                return;
+            }
+            for (int i = 0; i < series.rules.length; i++) {
+                AlertRule rule = series.rules[i];
+                double observed = update(series, i, rule, value);
+                boolean breached = rule.isBreached(observed);
+                if (breached != series.firing[i]) {
+                    series.firing[i] = breached;
+                    if (alerts == null) {
+                        alerts = new ArrayList<>(2);
+                    }
+                    alerts.add(new Alert(serverName, metric, rule,
+                            breached ? Alert.State.FIRING : Alert.State.RESOLVED, timestamp, value, observed));
+                }
+            }
+        }
+
+        if (alerts != null) {
+            dispatch(alerts);
+        }
+    }
+
+    /**
+     * @return value compared by the rule, NaN while undefined
+     */
+    private static double update(Series series, int i, AlertRule rule, double value) {
+        switch (rule.getType()) {
+            case EWMA:
+                double average = series.ewma[i];
+                series.ewma[i] = Double.isNaN(average) ? value : average + rule.getAlpha() * (value - average);
+                return series.ewma[i];
+            case ZSCORE:
+                return updateWindow(series, i, value);
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Z-score of the value against the previous samples, then push it into the window. A value off a window
+     * without variance scores +/-Infinity.
+     */
+    private static double updateWindow(Series series, int i, double value) {
+        double[] window = series.windows[i];
+        int n = series.counts[i];
+        int position = series.positions[i];
+        double mean = series.means[i];
+        double zscore = Double.NaN;
+        if (n == window.length) {
+            // deviations from the mean rather than sumSquares/n - mean^2, which cancels out for large values
+            double variance = Math.max(0, series.m2s[i] / n);
+            double deviation = Math.sqrt(variance);
+            zscore = deviation > 0 ? (value - mean) / deviation
+                    : value == mean ? 0 : value > mean ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+
+            // replace the oldest value
+            double oldest = window[position];
+            double newMean = mean + (value - oldest) / n;
+            series.m2s[i] += (value - oldest) * (value - newMean + oldest - mean);
+            series.means[i] = newMean;
+        } else {
+            n++;
+            series.counts[i] = n;
+            double newMean = mean + (value - mean) / n;
+            series.m2s[i] += (value - mean) * (value - newMean);
+            series.means[i] = newMean;
+        }
+
+        window[position] = value;
+        position++;
+        if (position == window.length) {
+            position = 0;
+            if (n == window.length) {
+                // recompute once per window, so that rounding errors of the running values do not accumulate
+                double sum = 0;
+                for (double v : window) {
+                    sum += v;
+                }
+                double newMean = sum / n;
+                double m2 = 0;
+                for (double v : window) {
+                    m2 += (v - newMean) * (v - newMean);
+                }
+                series.means[i] = newMean;
+                series.m2s[i] = m2;
+            }
+        }
+        series.positions[i] = position;
+        return zscore;
+    }
+
+    private Series lookup(Stripe stripe, String serverName, String metric, int hash, AlertRule[] metricRules) {
+        Series[] table = stripe.table;
+        int mask = table.length - 1;
+        int index = hash & mask;
+        for (Series series = table[index]; series != null; series = table[index]) {
+            if (series.hash == hash && series.serverName.equals(serverName) && series.metric.equals(metric)) {
+                return series;
+            }
+            index = (index + 1) & mask;
+        }
+
+        if (stripe.size >= maxSeriesPerStripe) {
+            return null;
+        }
+        Series series = new Series(serverName, metric, hash, metricRules);
+        table[index] = series;
+        stripe.size++;
+        if (stripe.size * 4 > table.length * 3) {
+            stripe.table = resize(table);
+        }
+        return series;
+    }
+
+    private static Series[] resize(Series[] table) {
+        Series[] resized = new Series[table.length * 2];
+        int mask = resized.length - 1;
+        for (Series series : table) {
+            if (series != null) {
+                int index = series.hash & mask;
+                while (resized[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                resized[index] = series;
+            }
+        }
+        return resized;
+    }
+
+    private void dispatch(List<Alert> alerts) {
+        for (Alert alert : alerts) {
+            Instrumentation.ALERTS.increment();
+            for (AlertSink sink : sinks) {
+                try {
+                    sink.onAlert(alert);
+                } catch (RuntimeException e) {
+                    log.error("Error notifying alert " + alert, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of series tracked
+     */
+    public int getSeriesCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.size;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param serverName
+     * @param metric
+     * @return rules currently breached by the series
+     */
+    public List<AlertRule> getFiringRules(String serverName, String metric) {
+        int hash = mix(serverName.hashCode() * 31 + metric.hashCode());
+        Stripe[] stripes = this.stripes;
+        Stripe stripe = stripes[(hash >>> 16) & (stripes.length - 1)];
+        List<AlertRule> firing = new ArrayList<>();
+        synchronized (stripe) {
+            Series[] table = stripe.table;
+            int mask = table.length - 1;
+            for (int index = hash & mask; table[index] != null; index = (index + 1) & mask) {
+                Series series = table[index];
+                if (series.hash == hash && series.serverName.equals(serverName) && series.metric.equals(metric)) {
+                    for (int i = 0; i < series.rules.length; i++) {
+                        if (series.firing[i]) {
+                            firing.add(series.rules[i]);
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+        return firing;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 15);
+    }
+}
@@ -0,0 +1,23 @@
+package monitoring.alert;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Logs alerts: raised ones as warnings, resolved ones as information.
+ */
+@Component
+public class LoggingAlertSink implements AlertSink {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Override
+    public void onAlert(Alert alert) {
+        if (alert.getState() == Alert.State.FIRING) {
+            log.warn(alert.toString());
+        } else {
+            log.info(alert.toString());
+        }
+    }
+}
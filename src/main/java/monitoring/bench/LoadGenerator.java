@@ -0,0 +1,393 @@
+package monitoring.bench;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import monitoring.DateFormatUtils;
+import monitoring.RawBsonDBObject;
+import monitoring.service.MonitoringService;
+import monitoring.service.QuantileSketch;
+import monitoring.service.SampleBatch;
+import org.apache.commons.lang3.time.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+import util.concurrent.NamedThreadFactory;
+import util.concurrent.RateLimiter;
+import util.data.FleetSimulator;
+import util.data.ServerLoadSimulator;
+
+import java.io.PrintStream;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end load generator of the BENCH command: simulated servers are ingested through
+ * {@link MonitoringService#writeBatch(SampleBatch)} at a target rate (or flat-out) while reader threads
+ * run dashboard-style queries (one day per hour) on random servers with data.
+ * <p>
+ * Each writer thread generates the servers it writes a batch at a time, into primitive arrays, from a
+ * {@link FleetSimulator}: the data only depends on the seed option, and memory does not grow with days.
+ * <p>
+ * Data goes to the configured collection with server names "bench-NNNN"; documents of previous runs are
+ * removed first, from every retention tier, and cached results are dropped. Meant for a local or dedicated
+ * mongod. Failed operations are counted, only the first one is logged.
+ */
+@Component
+public class LoadGenerator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadGenerator.class);
+
+    public static final String SERVER_PREFIX = "bench-";
+
+    /** BENCH options, as key=value arguments */
+    public static class Config {
+        int servers = 10;
+        int metrics = 2;
+        int days = 1;
+        int intervalMinutes = 1;
+        /** samples per second, one sample = all metrics of a server at a timestamp; 0 = flat-out */
+        double rate = 0;
+        int writers = 4;
+        int readers = 2;
+        /** samples per write */
+        int batch = 60;
+        /** seed of the simulated data */
+        long seed = 1;
+        Date startDate;
+
+        public static Config parse(String... args) throws ParseException {
+            Config config = new Config();
+            config.startDate = DateFormatUtils.dayFormat.parse("20140101");
+
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException("Expected key=value: " + arg);
+                }
+                String key = arg.substring(0, eq);
+                String value = arg.substring(eq + 1);
+
+                if ("servers".equals(key)) {
+                    config.servers = Integer.parseInt(value);
+                } else if ("metrics".equals(key)) {
+                    config.metrics = Integer.parseInt(value);
+                } else if ("days".equals(key)) {
+                    config.days = Integer.parseInt(value);
+                } else if ("interval".equals(key)) {
+                    config.intervalMinutes = Integer.parseInt(value);
+                } else if ("rate".equals(key)) {
+                    config.rate = Double.parseDouble(value);
+                } else if ("writers".equals(key)) {
+                    config.writers = Integer.parseInt(value);
+                } else if ("readers".equals(key)) {
+                    config.readers = Integer.parseInt(value);
+                } else if ("batch".equals(key)) {
+                    config.batch = Integer.parseInt(value);
+                } else if ("seed".equals(key)) {
+                    config.seed = Long.parseLong(value);
+                } else if ("start".equals(key)) {
+                    config.startDate = DateFormatUtils.dayFormat.parse(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + key);
+                }
+            }
+            return config;
+        }
+
+        DBObject toDBObject() {
+            return new BasicDBObject("servers", servers)
+                    .append("metrics", metrics)
+                    .append("days", days)
+                    .append("intervalMinutes", intervalMinutes)
+                    .append("rate", rate)
+                    .append("writers", writers)
+                    .append("readers", readers)
+                    .append("batch", batch)
+                    .append("seed", seed)
+                    .append("start", DateFormatUtils.dayFormat.format(startDate));
+        }
+    }
+
+    /** latencies and counters of one thread, merged at the end */
+    static class OperationStats {
+        final QuantileSketch latencies = new QuantileSketch();
+        long operations;
+        long samples;
+        long errors;
+
+        void record(long startNanos, int samples) {
+            latencies.add((System.nanoTime() - startNanos) / 1e6);
+            operations++;
+            this.samples += samples;
+        }
+
+        void merge(OperationStats other) {
+            latencies.merge(other.latencies);
+            operations += other.operations;
+            samples += other.samples;
+            errors += other.errors;
+        }
+
+        DBObject toDBObject(double seconds) {
+            return new BasicDBObject("operations", operations)
+                    .append("samples", samples)
+                    .append("errors", errors)
+                    .append("opsPerSecond", operations / seconds)
+                    .append("samplesPerSecond", samples / seconds)
+                    .append("p50Millis", quantile(0.50))
+                    .append("p99Millis", quantile(0.99))
+                    .append("p999Millis", quantile(0.999));
+        }
+
+        /** null without operations, so that JSON stays valid */
+        private Double quantile(double q) {
+            return operations == 0 ? null : latencies.quantile(q);
+        }
+    }
+
+    private MonitoringService monitoringService;
+    private MongoTemplate mongoTemplate;
+    private final AtomicBoolean errorLogged = new AtomicBoolean();
+
+    @Autowired
+    public void setMonitoringService(MonitoringService monitoringService) {
+        this.monitoringService = monitoringService;
+    }
+
+    @Autowired
+    public void setMongoTemplate(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * Run the benchmark and print its results as a table, then as a single line of JSON.
+     *
+     * @param config
+     * @param out
+     * @return results, as printed in JSON
+     * @throws InterruptedException
+     */
+    public DBObject run(final Config config, PrintStream out) throws InterruptedException {
+        DBCollection collection = mongoTemplate.getCollection(monitoringService.getCollectionName());
+        removePreviousRuns();
+        errorLogged.set(false);
+
+        final FleetSimulator fleet = fleet(config);
+        final RateLimiter rateLimiter = new RateLimiter(config.rate);
+        final AtomicInteger nextServer = new AtomicInteger();
+        final AtomicInteger serversWritten = new AtomicInteger();
+        final CountDownLatch writersDone = new CountDownLatch(config.writers);
+        final List<OperationStats> writeStats = new CopyOnWriteArrayList<>();
+        final List<OperationStats> readStats = new CopyOnWriteArrayList<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(config.writers + config.readers,
+                new NamedThreadFactory("bench"));
+        long start = System.nanoTime();
+
+        for (int i = 0; i < config.writers; i++) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    OperationStats stats = new OperationStats();
+                    writeStats.add(stats);
+                    try {
+                        int server;
+                        while ((server = nextServer.getAndIncrement()) < config.servers) {
+                            writeServer(config, fleet, server, rateLimiter, stats);
+                            serversWritten.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            });
+        }
+
+        for (int i = 0; i < config.readers; i++) {
+            final long seed = i;
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    OperationStats stats = new OperationStats();
+                    readStats.add(stats);
+                    Random random = new Random(seed);
+                    try {
+                        // until the first server is written
+                        while (serversWritten.get() == 0 && !writersDone.await(10, TimeUnit.MILLISECONDS)) {
+                        }
+                        while (writersDone.getCount() > 0) {
+                            readDay(config, serverName(random.nextInt(serversWritten.get())),
+                                    random.nextInt(config.days), stats);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        writersDone.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        OperationStats writes = new OperationStats();
+        for (OperationStats stats : writeStats) {
+            writes.merge(stats);
+        }
+        OperationStats reads = new OperationStats();
+        for (OperationStats stats : readStats) {
+            reads.merge(stats);
+        }
+
+        DBObject result = new BasicDBObject("config", config.toDBObject())
+                .append("seconds", seconds)
+                .append("writes", writes.toDBObject(seconds))
+                .append("reads", reads.toDBObject(seconds))
+                .append("documents", documentSizes(collection));
+        print(result, out);
+        return result;
+    }
+
+    /**
+     * Remove the documents of previous runs from raw, hourly and daily collections, and their cached results.
+     */
+    private void removePreviousRuns() {
+        DBObject query = new BasicDBObject("_id", new BasicDBObject("$regex", "^" + SERVER_PREFIX));
+        for (String name : Arrays.asList(monitoringService.getCollectionName(),
+                monitoringService.getHourlyCollectionName(), monitoringService.getDailyCollectionName())) {
+            mongoTemplate.getCollection(name).remove(query);
+        }
+        if (monitoringService.getCache() != null) {
+            monitoringService.getCache().clear();
+        }
+        monitoringService.markPastDataModified();
+    }
+
+    private static String serverName(int server) {
+        return String.format(SERVER_PREFIX + "%04d", server);
+    }
+
+    /**
+     * @return simulator of the metrics, with different levels
+     */
+    static FleetSimulator fleet(Config config) {
+        ServerLoadSimulator[] metrics = new ServerLoadSimulator[config.metrics];
+        for (int m = 0; m < config.metrics; m++) {
+            double mean = 0.1 + 0.8 * m / Math.max(1, config.metrics);
+            metrics[m] = new ServerLoadSimulator(config.intervalMinutes, mean, 0.05);
+        }
+        return new FleetSimulator(config.seed, metrics);
+    }
+
+    private void writeServer(Config config, FleetSimulator fleet, int server, RateLimiter rateLimiter,
+                             OperationStats stats) throws InterruptedException {
+        String serverName = serverName(server);
+        long startTime = config.startDate.getTime();
+        long interval = config.intervalMinutes * 60000L;
+        long samplesCount = (DateUtils.addDays(config.startDate, config.days).getTime() - startTime + interval - 1)
+                / interval;
+
+        String[] metrics = new String[config.metrics];
+        ServerLoadSimulator.Series[] series = new ServerLoadSimulator.Series[config.metrics];
+        for (int m = 0; m < config.metrics; m++) {
+            metrics[m] = "metric" + m;
+            series[m] = fleet.newSeries(server, m);
+        }
+
+        double[] values = new double[config.batch];
+        for (long first = 0; first < samplesCount; first += config.batch) {
+            int count = (int) Math.min(config.batch, samplesCount - first);
+            SampleBatch batch = new SampleBatch();
+            for (int m = 0; m < metrics.length; m++) {
+                series[m].fill(values, 0, count);
+                for (int i = 0; i < count; i++) {
+                    batch.add(serverName, startTime + (first + i) * interval, metrics[m], values[i]);
+                }
+            }
+            write(batch, count, rateLimiter, stats);
+        }
+    }
+
+    private void write(SampleBatch batch, int samples, RateLimiter rateLimiter, OperationStats stats)
+            throws InterruptedException {
+        rateLimiter.acquire(samples);
+        long start = System.nanoTime();
+        try {
+            monitoringService.writeBatch(batch);
+            stats.record(start, samples);
+        } catch (RuntimeException e) {
+            error(stats, "write", e);
+        }
+    }
+
+    private void readDay(Config config, String serverName, int day, OperationStats stats) {
+        Date startDate = DateUtils.addDays(config.startDate, day);
+        long start = System.nanoTime();
+        try {
+            monitoringService.aggregatedValuesByHour(serverName, startDate, DateUtils.addDays(startDate, 1));
+            stats.record(start, 0);
+        } catch (RuntimeException e) {
+            error(stats, "read", e);
+        }
+    }
+
+    private void error(OperationStats stats, String operation, RuntimeException e) {
+        stats.errors++;
+        if (errorLogged.compareAndSet(false, true)) {
+            LOGGER.warn("Benchmark " + operation + " failed, further errors are only counted", e);
+        }
+    }
+
+    /**
+     * @return count, average and max BSON size of the benchmark documents
+     */
+    private static DBObject documentSizes(DBCollection collection) {
+        DBCursor cursor = collection.find(new BasicDBObject("_id", new BasicDBObject("$regex", "^" + SERVER_PREFIX)));
+        cursor.setDecoderFactory(RawBsonDBObject.FACTORY);
+
+        long count = 0;
+        long total = 0;
+        long max = 0;
+        try {
+            while (cursor.hasNext()) {
+                int size = ((RawBsonDBObject) cursor.next()).toByteArray().length;
+                count++;
+                total += size;
+                max = Math.max(max, size);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return new BasicDBObject("count", count)
+                .append("avgBytes", count == 0 ? 0 : total / count)
+                .append("maxBytes", max);
+    }
+
+    static void print(DBObject result, PrintStream out) {
+        out.println("BENCH " + result.get("config"));
+        out.println(String.format("%-8s %10s %10s %12s %10s %10s %10s %7s",
+                "", "ops", "ops/s", "samples/s", "p50 ms", "p99 ms", "p999 ms", "errors"));
+        for (String name : new String[]{"writes", "reads"}) {
+            DBObject stats = (DBObject) result.get(name);
+            out.println(String.format("%-8s %10d %10.1f %12.1f %10.2f %10.2f %10.2f %7d", name,
+                    stats.get("operations"), stats.get("opsPerSecond"), stats.get("samplesPerSecond"),
+                    stats.get("p50Millis"), stats.get("p99Millis"), stats.get("p999Millis"), stats.get("errors")));
+        }
+        DBObject documents = (DBObject) result.get("documents");
+        out.println(String.format("documents: %d, avg %d bytes, max %d bytes",
+                documents.get("count"), documents.get("avgBytes"), documents.get("maxBytes")));
+        out.println(JSON.serialize(result));
+    }
+}
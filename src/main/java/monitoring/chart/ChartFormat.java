@@ -0,0 +1,32 @@
+package monitoring.chart;
+
+/**
+ * Image formats of {@link ChartService}.
+ */
+public enum ChartFormat {
+    PNG("image/png"),
+    SVG("image/svg+xml; charset=utf-8");
+
+    private final String contentType;
+
+    ChartFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @param value "png" or "svg", any case
+     * @return
+     */
+    public static ChartFormat parse(String value) {
+        for (ChartFormat format : values()) {
+            if (format.name().equalsIgnoreCase(value)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown chart format: " + value);
+    }
+}
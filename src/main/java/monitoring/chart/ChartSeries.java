@@ -0,0 +1,74 @@
+package monitoring.chart;
+
+import java.util.Arrays;
+
+/**
+ * Points of a metric to plot, in growable primitive arrays. Not thread-safe.
+ */
+public class ChartSeries {
+
+    private final String name;
+    private long[] timestamps;
+    private double[] values;
+    private int size;
+
+    /**
+     * @param name
+     * @param capacity initial capacity, grown as points are added
+     */
+    public ChartSeries(String name, int capacity) {
+        this.name = name;
+        this.timestamps = new long[Math.max(capacity, 16)];
+        this.values = new double[timestamps.length];
+    }
+
+    private ChartSeries(String name, long[] timestamps, double[] values, int size) {
+        this.name = name;
+        this.timestamps = timestamps;
+        this.values = values;
+        this.size = size;
+    }
+
+    /**
+     * Add a point, after the previous ones.
+     *
+     * @param timestamp
+     * @param value
+     */
+    public void add(long timestamp, double value) {
+        if (size == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        timestamps[size] = timestamp;
+        values[size++] = value;
+    }
+
+    /**
+     * @param threshold max number of points, e.g. the pixel width of the plot
+     * @return series of at most threshold points, see {@link Lttb}
+     */
+    public ChartSeries downsample(int threshold) {
+        int length = Math.min(size, threshold);
+        long[] sampledTimestamps = new long[length];
+        double[] sampledValues = new double[length];
+        int count = Lttb.downsample(timestamps, values, size, threshold, sampledTimestamps, sampledValues);
+        return new ChartSeries(name, sampledTimestamps, sampledValues, count);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+}
@@ -0,0 +1,258 @@
+package monitoring.chart;
+
+import monitoring.TimeBuckets;
+import monitoring.service.AggregatedPoint;
+import monitoring.service.BucketWidth;
+import monitoring.service.MonitoringService;
+import monitoring.service.PointIterator;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartUtilities;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.DateAxis;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.data.xy.DefaultXYDataset;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless rendering of the minute values of a server as PNG or SVG line charts.
+ * <p>
+ * Values are streamed from MongoDB ({@link MonitoringService#streamValues}) into primitive arrays, then
+ * downsampled with {@link Lttb} to the pixel width: whatever the range, the chart library only receives about
+ * width points per metric, e.g. 800 instead of 43200 for 30 days of minute data.
+ * <p>
+ * Rendered images are kept in a size-bounded LRU cache (monitoring.chart.cacheMaxEntries) keyed by the query.
+ * Charts of past days are valid until {@link MonitoringService#getPastDataModified()} changes, charts including
+ * today expire after monitoring.chart.todayTtlSeconds. Ranges are limited to monitoring.chart.maxDays. Thread-safe.
+ */
+@Component
+public class ChartService {
+
+    public static final int MAX_SIZE = 4000;
+
+    private static class CachedChart {
+        final byte[] image;
+        final long pastDataModified;
+        final long expiresAt;
+
+        CachedChart(byte[] image, long pastDataModified, long expiresAt) {
+            this.image = image;
+            this.pastDataModified = pastDataModified;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private MonitoringService monitoringService;
+    private int cacheMaxEntries = 256;
+    private long todayTtlSeconds = 60;
+    private int maxDays = 366;
+
+    private final LinkedHashMap<String, CachedChart> cache = new LinkedHashMap<String, CachedChart>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedChart> eldest) {
+            return size() > cacheMaxEntries;
+        }
+    };
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Autowired
+    public void setMonitoringService(MonitoringService monitoringService) {
+        this.monitoringService = monitoringService;
+    }
+
+    /**
+     * @param cacheMaxEntries max number of rendered images kept, 0 to disable the cache
+     */
+    @Value("${monitoring.chart.cacheMaxEntries:256}")
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        this.cacheMaxEntries = cacheMaxEntries;
+    }
+
+    /**
+     * @param todayTtlSeconds time charts including today are reused
+     */
+    @Value("${monitoring.chart.todayTtlSeconds:60}")
+    public void setTodayTtlSeconds(long todayTtlSeconds) {
+        this.todayTtlSeconds = todayTtlSeconds;
+    }
+
+    /**
+     * @param maxDays max range of a chart, in days
+     */
+    @Value("${monitoring.chart.maxDays:366}")
+    public void setMaxDays(int maxDays) {
+        this.maxDays = maxDays;
+    }
+
+    /**
+     * Render a chart of the minute values of a server, or take it from the cache.
+     *
+     * @param serverName
+     * @param startDate  inclusive
+     * @param endDate    exclusive
+     * @param metrics    metrics to plot, null for all
+     * @param width      pixels
+     * @param height     pixels
+     * @param format
+     * @return image
+     * @throws IOException
+     */
+    public byte[] render(String serverName, Date startDate, Date endDate, Set<String> metrics, int width, int height,
+                         ChartFormat format) throws IOException {
+        if (width < 50 || height < 50 || width > MAX_SIZE || height > MAX_SIZE) {
+            throw new IllegalArgumentException("Chart size must be between 50 and " + MAX_SIZE + " pixels: "
+                    + width + "x" + height);
+        }
+        if (endDate.getTime() - startDate.getTime() > maxDays * 86400000L) {
+            throw new IllegalArgumentException("Chart range must not exceed " + maxDays + " days");
+        }
+
+        String key = serverName + "|" + startDate.getTime() + "|" + endDate.getTime() + "|" + metrics + "|"
+                + width + "x" + height + "|" + format;
+        long now = System.currentTimeMillis();
+        boolean past = endDate.getTime() <= TimeBuckets.get().dayStart(now);
+        long pastDataModified = monitoringService.getPastDataModified().getTime();
+
+        synchronized (cache) {
+            CachedChart cached = cache.get(key);
+            if (cached != null && (past ? cached.pastDataModified == pastDataModified : now < cached.expiresAt)) {
+                hits.incrementAndGet();
+                return cached.image;
+            }
+        }
+        misses.incrementAndGet();
+
+        List<ChartSeries> series = load(serverName, startDate, endDate, metrics);
+        List<ChartSeries> sampled = new ArrayList<>(series.size());
+        for (ChartSeries s : series) {
+            sampled.add(s.downsample(Math.max(3, width)));
+        }
+        byte[] image = render(serverName, sampled, width, height, format);
+
+        if (cacheMaxEntries > 0) {
+            synchronized (cache) {
+                cache.put(key, new CachedChart(image, pastDataModified, now + todayTtlSeconds * 1000));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * @return series of the non-null minute values of each metric
+     */
+    private List<ChartSeries> load(String serverName, Date startDate, Date endDate, Set<String> metrics) {
+        // a day at most: series grow with the points actually read, not with the range
+        int capacity = (int) Math.min(TimeBuckets.MINUTES_PER_DAY, (endDate.getTime() - startDate.getTime()) / 60000);
+        Map<String, ChartSeries> series = new LinkedHashMap<>();
+        String[] names = null;
+        ChartSeries[] columns = null;
+
+        PointIterator points = monitoringService.streamValues(serverName, startDate, endDate, BucketWidth.MINUTE,
+                metrics);
+        try {
+            while (points.hasNext()) {
+                AggregatedPoint point = points.next();
+                if (point.getMetrics() != names) {
+                    // metrics of the day, usually the same array for all its points
+                    names = point.getMetrics();
+                    columns = new ChartSeries[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        columns[i] = series.get(names[i]);
+                        if (columns[i] == null) {
+                            columns[i] = new ChartSeries(names[i], capacity);
+                            series.put(names[i], columns[i]);
+                        }
+                    }
+                }
+                for (int i = 0; i < point.size(); i++) {
+                    double value = point.getValue(i);
+                    if (!Double.isNaN(value)) {
+                        columns[i].add(point.getTimestamp(), value);
+                    }
+                }
+            }
+        } finally {
+            points.close();
+        }
+
+        List<ChartSeries> result = new ArrayList<>();
+        for (ChartSeries s : series.values()) {
+            if (s.size() > 0) {
+                result.add(s);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Render series as they are, without downsampling.
+     *
+     * @param title
+     * @param series
+     * @param width  pixels
+     * @param height pixels
+     * @param format
+     * @return image
+     * @throws IOException
+     */
+    public static byte[] render(String title, List<ChartSeries> series, int width, int height, ChartFormat format)
+            throws IOException {
+        if (format == ChartFormat.SVG) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+            try (Writer out = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+                new SvgChartWriter(out).write(title, series, width, height);
+            }
+            return bytes.toByteArray();
+        }
+
+        DefaultXYDataset dataset = new DefaultXYDataset();
+        for (ChartSeries s : series) {
+            double[][] data = new double[2][s.size()];
+            for (int i = 0; i < s.size(); i++) {
+                data[0][i] = s.getTimestamp(i);
+                data[1][i] = s.getValue(i);
+            }
+            dataset.addSeries(s.getName(), data);
+        }
+
+        JFreeChart chart = ChartFactory.createTimeSeriesChart(title, null, null, dataset, true, false, false);
+        // flat opaque background, lines without antialiasing: with about one point per pixel smoothing adds
+        // nothing, and the image draws and compresses several times faster
+        chart.setAntiAlias(false);
+        chart.setBackgroundPaint(Color.WHITE);
+        XYPlot plot = chart.getXYPlot();
+        plot.setBackgroundPaint(Color.WHITE);
+        plot.setDomainGridlinePaint(Color.LIGHT_GRAY);
+        plot.setRangeGridlinePaint(Color.LIGHT_GRAY);
+        ((DateAxis) plot.getDomainAxis()).setTimeZone(TimeBuckets.get().getTimeZone());
+        ((NumberAxis) plot.getRangeAxis()).setAutoRangeIncludesZero(false);
+        for (int i = 0; i < series.size(); i++) {
+            plot.getRenderer().setSeriesPaint(i, Color.decode(SvgChartWriter.COLORS[i % SvgChartWriter.COLORS.length]));
+        }
+        return ChartUtilities.encodeAsPNG(chart.createBufferedImage(width, height, BufferedImage.TYPE_INT_RGB, null));
+    }
+
+    public long getCacheHits() {
+        return hits.get();
+    }
+
+    public long getCacheMisses() {
+        return misses.get();
+    }
+}
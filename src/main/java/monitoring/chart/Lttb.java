@@ -0,0 +1,80 @@
+package monitoring.chart;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling (S. Steinarsson, 2013): keeps the first and last points, and in
+ * each of threshold - 2 buckets the point forming the largest triangle with the point kept in the previous
+ * bucket and the average of the next bucket. Peaks and drops survive, unlike with averaging, so a line drawn
+ * through threshold points looks like one drawn through all of them when threshold is about the pixel width.
+ * <p>
+ * O(n) time, on primitive arrays, no allocation.
+ */
+public final class Lttb {
+
+    private Lttb() {
+    }
+
+    /**
+     * @param x         timestamps, ascending
+     * @param y         values
+     * @param length    number of points of x and y
+     * @param threshold number of points to keep, at least 3
+     * @param outX      receives the timestamps kept, at least min(length, threshold) long
+     * @param outY      receives the values kept
+     * @return number of points kept
+     */
+    public static int downsample(long[] x, double[] y, int length, int threshold, long[] outX, double[] outY) {
+        if (threshold < 3) {
+            throw new IllegalArgumentException("Downsampling threshold must be at least 3: " + threshold);
+        }
+        if (length <= threshold) {
+            System.arraycopy(x, 0, outX, 0, length);
+            System.arraycopy(y, 0, outY, 0, length);
+            return length;
+        }
+
+        // timestamps relative to the first one, so that areas do not lose precision
+        long origin = x[0];
+        double every = (double) (length - 2) / (threshold - 2);
+        int a = 0;
+        int count = 0;
+        outX[count] = x[0];
+        outY[count++] = y[0];
+
+        for (int i = 0; i < threshold - 2; i++) {
+            // average of the next bucket
+            int averageStart = (int) ((i + 1) * every) + 1;
+            int averageEnd = Math.min((int) ((i + 2) * every) + 1, length);
+            double averageX = 0;
+            double averageY = 0;
+            for (int j = averageStart; j < averageEnd; j++) {
+                averageX += x[j] - origin;
+                averageY += y[j];
+            }
+            averageX /= averageEnd - averageStart;
+            averageY /= averageEnd - averageStart;
+
+            // point of the current bucket forming the largest triangle
+            int rangeStart = (int) (i * every) + 1;
+            int rangeEnd = (int) ((i + 1) * every) + 1;
+            double ax = x[a] - origin;
+            double ay = y[a];
+            double maxArea = -1;
+            int next = rangeStart;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                double area = Math.abs((ax - averageX) * (y[j] - ay) - (ax - (x[j] - origin)) * (averageY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+
+            outX[count] = x[next];
+            outY[count++] = y[next];
+            a = next;
+        }
+
+        outX[count] = x[length - 1];
+        outY[count++] = y[length - 1];
+        return count;
+    }
+}
@@ -0,0 +1,150 @@
+package monitoring.chart;
+
+import monitoring.TimeBuckets;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Line chart as SVG text: axes with 5 ticks each, one polyline per series and a legend. Series are expected to
+ * be downsampled to about the plot width already.
+ */
+class SvgChartWriter {
+
+    static final String[] COLORS = {"#d62728", "#1f77b4", "#2ca02c", "#ff7f0e", "#9467bd", "#8c564b", "#e377c2",
+            "#7f7f7f"};
+    private static final int TICKS = 5;
+    private static final int LEFT = 60;
+    private static final int RIGHT = 20;
+    private static final int TOP = 30;
+    private static final int BOTTOM = 50;
+
+    private final Writer out;
+
+    SvgChartWriter(Writer out) {
+        this.out = out;
+    }
+
+    void write(String title, List<ChartSeries> series, int width, int height) throws IOException {
+        long minX = Long.MAX_VALUE;
+        long maxX = Long.MIN_VALUE;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (ChartSeries s : series) {
+            for (int i = 0; i < s.size(); i++) {
+                minX = Math.min(minX, s.getTimestamp(i));
+                maxX = Math.max(maxX, s.getTimestamp(i));
+                minY = Math.min(minY, s.getValue(i));
+                maxY = Math.max(maxY, s.getValue(i));
+            }
+        }
+        if (minX > maxX) {
+            minX = 0;
+            maxX = 1;
+            minY = 0;
+            maxY = 1;
+        }
+        if (maxX == minX) {
+            maxX = minX + 1;
+        }
+        if (maxY == minY) {
+            minY -= 1;
+            maxY += 1;
+        }
+
+        double plotWidth = Math.max(1, width - LEFT - RIGHT);
+        double plotHeight = Math.max(1, height - TOP - BOTTOM);
+        double scaleX = plotWidth / (maxX - minX);
+        double scaleY = plotHeight / (maxY - minY);
+
+        out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width + "\" height=\"" + height
+                + "\" viewBox=\"0 0 " + width + " " + height + "\" font-family=\"sans-serif\" font-size=\"11\">\n");
+        out.write("<rect width=\"100%\" height=\"100%\" fill=\"white\"/>\n");
+        out.write("<text x=\"" + (width / 2) + "\" y=\"18\" text-anchor=\"middle\" font-size=\"14\">");
+        escape(title);
+        out.write("</text>\n");
+
+        // axes and ticks
+        out.write("<g stroke=\"#ccc\">\n");
+        for (int i = 0; i <= TICKS; i++) {
+            double y = TOP + plotHeight - i * plotHeight / TICKS;
+            out.write("<line x1=\"" + LEFT + "\" x2=\"" + format(LEFT + plotWidth) + "\" y1=\"" + format(y)
+                    + "\" y2=\"" + format(y) + "\"/>\n");
+        }
+        out.write("</g>\n<g text-anchor=\"end\">\n");
+        for (int i = 0; i <= TICKS; i++) {
+            double y = TOP + plotHeight - i * plotHeight / TICKS;
+            out.write("<text x=\"" + (LEFT - 4) + "\" y=\"" + format(y + 4) + "\">"
+                    + label(minY + i * (maxY - minY) / TICKS) + "</text>\n");
+        }
+        out.write("</g>\n<g text-anchor=\"middle\">\n");
+        SimpleDateFormat dateFormat = new SimpleDateFormat(maxX - minX > 2 * 86400000L ? "yyyy-MM-dd" : "MM-dd HH:mm",
+                Locale.US);
+        dateFormat.setTimeZone(TimeBuckets.get().getTimeZone());
+        for (int i = 0; i <= TICKS; i++) {
+            double x = LEFT + i * plotWidth / TICKS;
+            out.write("<text x=\"" + format(x) + "\" y=\"" + format(TOP + plotHeight + 16) + "\">"
+                    + dateFormat.format(new Date(minX + (long) (i * (maxX - minX) / (double) TICKS))) + "</text>\n");
+        }
+        out.write("</g>\n");
+
+        // series
+        for (int s = 0; s < series.size(); s++) {
+            ChartSeries points = series.get(s);
+            String color = COLORS[s % COLORS.length];
+            out.write("<polyline fill=\"none\" stroke=\"" + color + "\" stroke-width=\"1\" points=\"");
+            for (int i = 0; i < points.size(); i++) {
+                if (i > 0) {
+                    out.write(' ');
+                }
+                out.write(format(LEFT + (points.getTimestamp(i) - minX) * scaleX));
+                out.write(',');
+                out.write(format(TOP + plotHeight - (points.getValue(i) - minY) * scaleY));
+            }
+            out.write("\"/>\n");
+
+            int legendX = LEFT + s * 100;
+            int legendY = height - 12;
+            out.write("<rect x=\"" + legendX + "\" y=\"" + (legendY - 8) + "\" width=\"10\" height=\"10\" fill=\""
+                    + color + "\"/><text x=\"" + (legendX + 14) + "\" y=\"" + (legendY + 1) + "\">");
+            escape(points.getName());
+            out.write("</text>\n");
+        }
+        out.write("</svg>\n");
+    }
+
+    /** coordinates with one decimal */
+    private static String format(double value) {
+        return Double.toString(Math.round(value * 10) / 10.0);
+    }
+
+    private static String label(double value) {
+        return String.format(Locale.US, Math.abs(value) >= 1000 || value == Math.rint(value) ? "%.0f" : "%.3g", value);
+    }
+
+    private void escape(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    out.write("&lt;");
+                    break;
+                case '>':
+                    out.write("&gt;");
+                    break;
+                case '&':
+                    out.write("&amp;");
+                    break;
+                case '"':
+                    out.write("&quot;");
+                    break;
+                default:
+                    out.write(c);
+            }
+        }
+    }
+}
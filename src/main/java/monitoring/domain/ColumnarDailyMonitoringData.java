@@ -0,0 +1,231 @@
+package monitoring.domain;
+
+import monitoring.TimeBuckets;
+
+import java.util.*;
+
+/**
+ * Compact in-memory representation of a {@link DailyMonitoringData}: one <code>double[1500]</code> column
+ * per metric, indexed by minute of day, with {@link Double#NaN} marking missing values. The last 60 minutes
+ * are only used by 25-hour days, see {@link TimeBuckets}.
+ * <p>
+ * Metric columns are indexed in the order of <code>metadata.metrics</code>; metrics found in data but not
+ * declared in metadata are appended.
+ */
+public class ColumnarDailyMonitoringData {
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+    public static final int MAX_MINUTES_PER_DAY = TimeBuckets.MAX_MINUTES_PER_DAY;
+
+    private String id;
+    private String serverName;
+    private Date date;
+    private String[] metrics;
+    /** metric =&gt; column index */
+    private final Map<String, Integer> metricIndex = new HashMap<>();
+    /** column index =&gt; minute of day =&gt; value */
+    private double[][] values;
+
+    public ColumnarDailyMonitoringData() {
+        this.metrics = new String[0];
+        this.values = new double[0][];
+    }
+
+    public ColumnarDailyMonitoringData(String serverName, Date day, String[] metrics) {
+        this();
+        this.serverName = serverName;
+        setDate(day);
+        if (metrics != null) {
+            for (String metric : metrics) {
+                addMetric(metric);
+            }
+        }
+    }
+
+    /**
+     * Convert the map-based representation.
+     *
+     * @param data
+     * @return
+     */
+    public static ColumnarDailyMonitoringData from(DailyMonitoringData data) {
+        ColumnarDailyMonitoringData result = new ColumnarDailyMonitoringData(
+                data.getMetadata().getServerName(), data.getMetadata().getDate(), data.getMetadata().getMetrics());
+
+        for (Map.Entry<String, SortedMap<String, Map<String, Double>>> hhEntry : data.getData().entrySet()) {
+            for (Map.Entry<String, Map<String, Double>> mmEntry : hhEntry.getValue().entrySet()) {
+                int minuteOfDay = minuteOfDay(hhEntry.getKey(), mmEntry.getKey());
+                for (Map.Entry<String, Double> sample : mmEntry.getValue().entrySet()) {
+                    if (sample.getValue() != null) {
+                        result.setValue(sample.getKey(), minuteOfDay, sample.getValue());
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public static int minuteOfDay(int hour, int minute) {
+        return hour * 60 + minute;
+    }
+
+    /**
+     * @param hh 2-digit hour, as in "data" keys
+     * @param mm 2-digit minute, as in "data" keys
+     * @return
+     */
+    public static int minuteOfDay(String hh, String mm) {
+        return minuteOfDay(twoDigits(hh), twoDigits(mm));
+    }
+
+    private static int twoDigits(String s) {
+        if (s.length() != 2) {
+            return Integer.parseInt(s);
+        }
+        return (s.charAt(0) - '0') * 10 + (s.charAt(1) - '0');
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public void setServerName(String serverName) {
+        this.serverName = serverName;
+        this.id = DailyMonitoringData.formatId(serverName, date);
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public void setDate(Date date) {
+        this.date = date == null ? null : new Date(TimeBuckets.get().dayStart(date.getTime()));
+        this.id = DailyMonitoringData.formatId(serverName, date);
+    }
+
+    public String[] getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metric
+     * @return column index of the metric, -1 if unknown
+     */
+    public int metricIndex(String metric) {
+        Integer index = metricIndex.get(metric);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Add a metric column, filled with NaN.
+     *
+     * @param metric
+     * @return column index of the metric
+     */
+    public int addMetric(String metric) {
+        Integer index = metricIndex.get(metric);
+        if (index != null) {
+            return index;
+        }
+
+        int newIndex = metrics.length;
+        metrics = Arrays.copyOf(metrics, newIndex + 1);
+        metrics[newIndex] = metric;
+        values = Arrays.copyOf(values, newIndex + 1);
+        values[newIndex] = new double[MAX_MINUTES_PER_DAY];
+        Arrays.fill(values[newIndex], Double.NaN);
+        metricIndex.put(metric, newIndex);
+        return newIndex;
+    }
+
+    public double getValue(int metricIndex, int minuteOfDay) {
+        return values[metricIndex][minuteOfDay];
+    }
+
+    /**
+     * @param metric
+     * @param minuteOfDay
+     * @return value, or NaN if missing
+     */
+    public double getValue(String metric, int minuteOfDay) {
+        int index = metricIndex(metric);
+        return index < 0 ? Double.NaN : values[index][minuteOfDay];
+    }
+
+    public void setValue(int metricIndex, int minuteOfDay, double value) {
+        values[metricIndex][minuteOfDay] = value;
+    }
+
+    /**
+     * Set a value, adding the metric column if needed
+     *
+     * @param metric
+     * @param minuteOfDay
+     * @param value
+     */
+    public void setValue(String metric, int minuteOfDay, double value) {
+        int index = addMetric(metric);
+        values[index][minuteOfDay] = value;
+    }
+
+    /**
+     * @param metricIndex
+     * @return the whole column of a metric (not a copy)
+     */
+    public double[] getColumn(int metricIndex) {
+        return values[metricIndex];
+    }
+
+    /**
+     * Compatibility view with the map-based API of {@link DailyMonitoringData#getData()}:
+     * minutes without any value are omitted, missing values of a minute are omitted.
+     *
+     * @return 3-levels map: 2-digit hour/2-digit minute/metric =&gt; value
+     */
+    public SortedMap<String, SortedMap<String, Map<String, Double>>> toDataMap() {
+        SortedMap<String, SortedMap<String, Map<String, Double>>> data = new TreeMap<>();
+
+        for (int minuteOfDay = 0; minuteOfDay < MAX_MINUTES_PER_DAY; minuteOfDay++) {
+            Map<String, Double> samples = null;
+
+            for (int i = 0; i < metrics.length; i++) {
+                double value = values[i][minuteOfDay];
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                if (samples == null) {
+                    samples = new HashMap<>();
+                }
+                samples.put(metrics[i], value);
+            }
+
+            if (samples != null) {
+                String hoursKey = TimeBuckets.hourKey(minuteOfDay / 60);
+                SortedMap<String, Map<String, Double>> minutesMap = data.get(hoursKey);
+                if (minutesMap == null) {
+                    minutesMap = new TreeMap<>();
+                    data.put(hoursKey, minutesMap);
+                }
+                minutesMap.put(TimeBuckets.minuteKey(minuteOfDay % 60), samples);
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Convert back to the map-based representation.
+     *
+     * @return
+     */
+    public DailyMonitoringData toDailyMonitoringData() {
+        DailyMonitoringData result = new DailyMonitoringData(serverName, date, metrics.clone());
+        result.setData(toDataMap());
+        return result;
+    }
+}
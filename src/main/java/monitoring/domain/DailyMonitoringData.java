@@ -1,7 +1,6 @@
 package monitoring.domain;
 
-import monitoring.DateFormatUtils;
-import org.apache.commons.lang3.time.DateUtils;
+import monitoring.TimeBuckets;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.annotation.Id;
 import org.springframework.util.Assert;
@@ -39,7 +38,7 @@ public class DailyMonitoringData {
         }
 
         public void setDate(Date date) {
-            this.date = DateUtils.truncate(date, Calendar.DAY_OF_MONTH);
+            this.date = new Date(TimeBuckets.get().dayStart(date.getTime()));
             DailyMonitoringData.this.updateId();
         }
 
@@ -100,24 +99,89 @@ public class DailyMonitoringData {
             return null;
         }
         // else
-        String id = serverName + "/" + DateFormatUtils.dayFormat.format(day);
-        return id;
+        return TimeBuckets.get().formatId(serverName, day.getTime());
+    }
+
+    /**
+     * Extract the day from an id built by {@link #formatId(String, java.util.Date)}
+     *
+     * @param id
+     * @return day, or null if the id is malformed
+     */
+    public static Date parseIdDate(String id) {
+        int slash = id == null ? -1 : id.lastIndexOf('/');
+        if (slash < 0 || id.length() - slash != 9) {
+            return null;
+        }
+        // else
+        return new Date(TimeBuckets.get().parseDayLabel(id.substring(slash + 1)));
+    }
+
+    /**
+     * @param serverName
+     * @return true if the name can be stored: it starts the document ids, which end with "/yyyyMMdd"
+     */
+    public static boolean isValidServerName(String serverName) {
+        return isValidName(serverName);
+    }
+
+    /**
+     * @param metric
+     * @return true if the name can be stored: it is the last field name of "data.HH.MM.metric"
+     */
+    public static boolean isValidMetric(String metric) {
+        return isValidName(metric) && metric.indexOf('.') < 0;
+    }
+
+    private static boolean isValidName(String name) {
+        return name != null && !name.isEmpty() && name.charAt(0) != '$' && name.indexOf('/') < 0
+                && name.indexOf('\0') < 0;
+    }
+
+    /**
+     * Build the dotted path of a single value inside the "data" sub-document: data.HH.MM.metric
+     *
+     * @param cal    timestamp
+     * @param metric metric name
+     * @return
+     */
+    public static String formatFieldPath(Calendar cal, String metric) {
+        return formatFieldPath(cal.getTimeInMillis(), metric);
+    }
+
+    /**
+     * Build the dotted path of a single value inside the "data" sub-document: data.HH.MM.metric
+     *
+     * @param timestamp
+     * @param metric    metric name
+     * @return
+     */
+    public static String formatFieldPath(long timestamp, String metric) {
+        return TimeBuckets.fieldPath(TimeBuckets.get().minuteOfDay(timestamp), metric);
     }
 
     private void updateId() {
         this.id = formatId(metadata.serverName, metadata.date);
     }
 
+    /**
+     * Fill the whole day with null values of every metric of metadata.metrics, so that the document
+     * never grows when samples are written.
+     */
     public void preallocateDay() {
-        Calendar cal = DateUtils.toCalendar(metadata.date);
+        Assert.notNull(metadata.metrics, "metadata.metrics is required to preallocate a day");
 
-        for (int hour = 0; hour < 24; hour++) {
-            cal.set(Calendar.HOUR_OF_DAY, hour);
+        int hours = TimeBuckets.get().minutesOfDay(metadata.date.getTime()) / 60;
+        for (int hour = 0; hour < hours; hour++) {
+            SortedMap<String, Map<String, Double>> minutesMap = new TreeMap<>();
             for (int minute = 0; minute < 60; minute++) {
-                cal.set(Calendar.MINUTE, minute);
-                setValue(cal, "mem", null);
-                setValue(cal, "cpu", null);
+                Map<String, Double> samplesMap = new HashMap<>();
+                for (String metric : metadata.metrics) {
+                    samplesMap.put(metric, null);
+                }
+                minutesMap.put(TimeBuckets.minuteKey(minute), samplesMap);
             }
+            data.put(TimeBuckets.hourKey(hour), minutesMap);
         }
     }
 
@@ -128,10 +192,12 @@ public class DailyMonitoringData {
      * @param value value
      */
     public void setValue(Calendar cal, String metric, Double value) {
-        Assert.isTrue(DateUtils.isSameDay(metadata.date, cal.getTime()));
+        TimeBuckets timeBuckets = TimeBuckets.get();
+        Assert.isTrue(timeBuckets.isSameDay(metadata.date.getTime(), cal.getTimeInMillis()));
 
-        String hoursKey = String.format("%02d", cal.get(Calendar.HOUR_OF_DAY));
-        String minutesKey = String.format("%02d", cal.get(Calendar.MINUTE));
+        int minuteOfDay = timeBuckets.minuteOfDay(cal.getTimeInMillis());
+        String hoursKey = TimeBuckets.hourKey(minuteOfDay / 60);
+        String minutesKey = TimeBuckets.minuteKey(minuteOfDay % 60);
 
         SortedMap<String, Map<String, Double>> minutesMap = data.get(hoursKey);
         if (minutesMap == null) {
@@ -0,0 +1,54 @@
+package monitoring.http;
+
+import monitoring.service.AggregatedPoint;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compact binary encoding of a series, a sequence of tagged records in {@link DataOutputStream} format:
+ * <ul>
+ * <li>'M', short count, count * UTF name: metric names of the following points, sent when they change</li>
+ * <li>'P', long epoch milliseconds, count * double value (NaN when missing)</li>
+ * <li>'E': end of the series</li>
+ * </ul>
+ * About 8 bytes per value, against 15 to 30 in JSON.
+ */
+class BinaryPointWriter implements PointWriter {
+
+    public static final String CONTENT_TYPE = "application/x-monitoring-points";
+
+    private final DataOutputStream out;
+    private String[] metrics;
+
+    BinaryPointWriter(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 8192));
+    }
+
+    @Override
+    public void write(AggregatedPoint point) throws IOException {
+        // points of the same day share their metric array
+        if (point.getMetrics() != metrics) {
+            metrics = point.getMetrics();
+            out.writeByte('M');
+            out.writeShort(metrics.length);
+            for (String metric : metrics) {
+                out.writeUTF(metric);
+            }
+        }
+
+        out.writeByte('P');
+        out.writeLong(point.getTimestamp());
+        for (int i = 0; i < metrics.length; i++) {
+            out.writeDouble(point.getValue(i));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.writeByte('E');
+        out.close();
+    }
+}
@@ -0,0 +1,93 @@
+package monitoring.http;
+
+import monitoring.service.AggregatedPoint;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON encoding of a series:
+ * <pre>
+ * {"server":"ATTILA","width":"1h","points":[{"t":1388534400000,"cpu":0.21,"mem":0.5},...]}
+ * </pre>
+ * Timestamps are epoch milliseconds, missing values are omitted.
+ */
+class JsonPointWriter implements PointWriter {
+
+    private final Writer out;
+    private boolean first = true;
+
+    JsonPointWriter(OutputStream out, String serverName, String width) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192);
+        this.out.write("{\"server\":");
+        quote(this.out, serverName);
+        this.out.write(",\"width\":");
+        quote(this.out, width);
+        this.out.write(",\"points\":[");
+    }
+
+    @Override
+    public void write(AggregatedPoint point) throws IOException {
+        if (!first) {
+            out.write(',');
+        }
+        first = false;
+
+        out.write("{\"t\":");
+        out.write(Long.toString(point.getTimestamp()));
+        for (int i = 0; i < point.size(); i++) {
+            double value = point.getValue(i);
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                out.write(',');
+                quote(out, point.getMetrics()[i]);
+                out.write(':');
+                out.write(Double.toString(value));
+            }
+        }
+        out.write('}');
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.write("]}");
+        out.close();
+    }
+
+    /**
+     * Write a JSON string literal.
+     *
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    static void quote(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,23 @@
+package monitoring.http;
+
+import monitoring.service.AggregatedPoint;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Encodes a series of {@link AggregatedPoint}s on a stream as they are produced: nothing is buffered
+ * beyond the underlying stream buffer.
+ */
+interface PointWriter extends Closeable {
+
+    void write(AggregatedPoint point) throws IOException;
+
+    /**
+     * Terminate the document and close the stream.
+     *
+     * @throws IOException
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,558 @@
+package monitoring.http;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import monitoring.DateFormatUtils;
+import monitoring.TimeBuckets;
+import monitoring.chart.ChartFormat;
+import monitoring.chart.ChartService;
+import monitoring.service.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import util.concurrent.NamedThreadFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP query API, on monitoring.api.httpPort:
+ * <ul>
+ * <li>GET /api/series?server=&amp;start=&amp;end=[&amp;width=1h][&amp;metrics=cpu,mem][&amp;format=json|binary]:
+ * averages per bucket of a server</li>
+ * <li>GET /api/raw?server=&amp;start=&amp;end=[&amp;metrics=][&amp;format=]: minute values of a server</li>
+ * <li>GET /api/fleet?start=&amp;end=[&amp;servers=a,b][&amp;width=1h][&amp;metrics=][&amp;functions=MEAN,P95]:
+ * functions of the values of many servers (all with data in the range by default) together, JSON only</li>
+ * <li>GET /api/chart?server=&amp;start=&amp;end=[&amp;metrics=][&amp;width=800][&amp;height=400][&amp;format=png|svg]:
+ * line chart of the minute values of a server, see {@link ChartService}</li>
+ * <li>GET /api/days?server=&amp;start=&amp;end=: days with minute data of a server, answered from an index
+ * alone, see {@link MonitoringService#listDays}</li>
+ * </ul>
+ * Dates are yyyyMMdd_HHmmss or yyyyMMdd (start of the day) in the configured time zone, or epoch milliseconds;
+ * end is exclusive.
+ * <p>
+ * With retention enabled, minute data before the raw retention cutoff is gone: series of 1h and 1d buckets
+ * starting earlier are read from the retention tiers instead ({@link MonitoringService#aggregatedValuesByHour},
+ * {@link MonitoringService#aggregatedValuesByDay}), narrower series, raw values and charts are answered 400.
+ * <p>
+ * The API has no authentication: it only listens on the loopback interface unless monitoring.api.bindAddress
+ * says otherwise.
+ * <p>
+ * Series are streamed from the cursor, see {@link MonitoringService#streamValues}: the response is chunked,
+ * gzipped when the client accepts it, and written point by point, so memory does not depend on its size.
+ * <p>
+ * Responses about past days only carry an ETag and a Last-Modified date derived from
+ * {@link MonitoringService#getPastDataModified()} and may be cached monitoring.api.maxAgeSeconds: revalidation
+ * with If-None-Match or If-Modified-Since is answered 304 without querying MongoDB.
+ */
+@Component
+public class QueryApiServer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryApiServer.class);
+
+    private MonitoringService monitoringService;
+    private FleetQueryService fleetQueryService;
+    private ChartService chartService;
+    private int httpPort = 0;
+    private String bindAddress = "127.0.0.1";
+    private int threads = 16;
+    private long maxAgeSeconds = 300;
+
+    private HttpServer httpServer;
+    private ExecutorService httpExecutor;
+
+    @Autowired
+    public void setMonitoringService(MonitoringService monitoringService) {
+        this.monitoringService = monitoringService;
+    }
+
+    @Autowired
+    public void setFleetQueryService(FleetQueryService fleetQueryService) {
+        this.fleetQueryService = fleetQueryService;
+    }
+
+    @Autowired
+    public void setChartService(ChartService chartService) {
+        this.chartService = chartService;
+    }
+
+    /**
+     * @param httpPort port of the API, 0 to disable it
+     */
+    @Value("${monitoring.api.httpPort:0}")
+    public void setHttpPort(int httpPort) {
+        this.httpPort = httpPort;
+    }
+
+    /**
+     * @param bindAddress address the API listens on, 0.0.0.0 for all interfaces
+     */
+    @Value("${monitoring.api.bindAddress:127.0.0.1}")
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    @Value("${monitoring.api.threads:16}")
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param maxAgeSeconds time responses about past days may be reused without revalidation
+     */
+    @Value("${monitoring.api.maxAgeSeconds:300}")
+    public void setMaxAgeSeconds(long maxAgeSeconds) {
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (httpPort <= 0) {
+            return;
+        }
+
+        httpServer = HttpServer.create(new InetSocketAddress(bindAddress, httpPort), 0);
+        httpServer.createContext("/api/series", new ApiHandler() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> params) throws IOException, ParseException {
+                writeSeries(exchange, params, BucketWidth.parse(param(params, "width", "1h")));
+            }
+        });
+        httpServer.createContext("/api/raw", new ApiHandler() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> params) throws IOException, ParseException {
+                writeSeries(exchange, params, BucketWidth.MINUTE);
+            }
+        });
+        httpServer.createContext("/api/fleet", new ApiHandler() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> params) throws IOException, ParseException {
+                writeFleet(exchange, params);
+            }
+        });
+        httpServer.createContext("/api/chart", new ApiHandler() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> params) throws IOException, ParseException {
+                writeChart(exchange, params);
+            }
+        });
+        httpServer.createContext("/api/days", new ApiHandler() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> params) throws IOException, ParseException {
+                writeDays(exchange, params);
+            }
+        });
+        httpExecutor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("api-http"));
+        httpServer.setExecutor(httpExecutor);
+        httpServer.start();
+        LOGGER.info("Query API available on http://{}:{}/api/", bindAddress, httpPort);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpExecutor.shutdown();
+            httpServer = null;
+        }
+    }
+
+    /**
+     * Parses the query string, maps errors before the response is started to 400/405/500.
+     */
+    private abstract class ApiHandler implements HttpHandler {
+
+        abstract void handle(HttpExchange exchange, Map<String, String> params) throws IOException, ParseException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String method = exchange.getRequestMethod();
+                if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                    sendError(exchange, 405, "Method not allowed: " + method);
+                    return;
+                }
+                handle(exchange, parseQuery(exchange.getRequestURI().getRawQuery()));
+            } catch (IllegalArgumentException | ParseException e) {
+                sendError(exchange, 400, e.getMessage());
+            } catch (IOException e) {
+                // client gone, or failure after the response started: the chunked body is left incomplete
+                LOGGER.debug("Error writing response of " + exchange.getRequestURI(), e);
+            } catch (RuntimeException e) {
+                LOGGER.error("Error answering " + exchange.getRequestURI(), e);
+                sendError(exchange, 500, "Internal error");
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private void writeSeries(HttpExchange exchange, Map<String, String> params, BucketWidth width)
+            throws IOException, ParseException {
+        String serverName = param(params, "server", null);
+        Date startDate = parseDate(param(params, "start", null));
+        Date endDate = parseDate(param(params, "end", null));
+        Set<String> metrics = parseSet(params.get("metrics"));
+        boolean binary = "binary".equalsIgnoreCase(param(params, "format", "json"));
+        boolean compacted = isCompacted(startDate);
+        if (compacted && width != BucketWidth.HOUR && width != BucketWidth.DAY) {
+            throw rawRetentionError(width.getLabel() + " buckets", "width=1h or width=1d");
+        }
+
+        if (notModified(exchange, endDate, binary ? "binary" : "json")) {
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type",
+                binary ? BinaryPointWriter.CONTENT_TYPE : "application/json; charset=utf-8");
+
+        Iterator<AggregatedPoint> points;
+        if (compacted) {
+            // small: at most one point per hour of the range
+            points = toPoints(width == BucketWidth.HOUR
+                    ? monitoringService.aggregatedValuesByHour(serverName, startDate, endDate, metrics)
+                    : monitoringService.aggregatedValuesByDay(serverName, startDate, endDate, metrics),
+                    startDate, endDate).iterator();
+        } else {
+            points = monitoringService.streamValues(serverName, startDate, endDate, width, metrics);
+        }
+        try {
+            OutputStream body = startResponse(exchange);
+            if (body == null) {
+                return;
+            }
+            try (PointWriter writer = binary ? new BinaryPointWriter(body)
+                    : new JsonPointWriter(body, serverName, width.getLabel())) {
+                while (points.hasNext()) {
+                    writer.write(points.next());
+                }
+            }
+        } finally {
+            if (points instanceof PointIterator) {
+                ((PointIterator) points).close();
+            }
+        }
+    }
+
+    /**
+     * @param startDate start of a range
+     * @return true if the minute data of the range may have been compacted by retention
+     */
+    private boolean isCompacted(Date startDate) {
+        return monitoringService.isRetentionEnabled() && startDate.before(monitoringService.getRawRetentionCutoff());
+    }
+
+    private IllegalArgumentException rawRetentionError(String what, String alternative) {
+        return new IllegalArgumentException("Minute data is only kept from "
+                + DateFormatUtils.dayFormat.format(monitoringService.getRawRetentionCutoff()) + ": no " + what
+                + " before, use /api/series with " + alternative);
+    }
+
+    /**
+     * @param values    date =&gt; metric =&gt; average, as read from the retention tiers
+     * @param startDate inclusive
+     * @param endDate   exclusive
+     * @return points of the range
+     */
+    static List<AggregatedPoint> toPoints(SortedMap<Date, Map<String, Double>> values, Date startDate, Date endDate) {
+        List<AggregatedPoint> points = new ArrayList<>();
+        String[] metrics = null;
+        for (Map.Entry<Date, Map<String, Double>> entry : values.subMap(startDate, endDate).entrySet()) {
+            Map<String, Double> point = entry.getValue();
+            // consecutive points with the same metrics share their array, see BinaryPointWriter
+            if (metrics == null || !Arrays.asList(metrics).equals(new ArrayList<>(point.keySet()))) {
+                metrics = point.keySet().toArray(new String[point.size()]);
+            }
+            double[] pointValues = new double[metrics.length];
+            for (int i = 0; i < metrics.length; i++) {
+                Double value = point.get(metrics[i]);
+                pointValues[i] = value == null ? Double.NaN : value;
+            }
+            points.add(new AggregatedPoint(entry.getKey().getTime(), metrics, pointValues));
+        }
+        return points;
+    }
+
+    private void writeChart(HttpExchange exchange, Map<String, String> params) throws IOException, ParseException {
+        String serverName = param(params, "server", null);
+        Date startDate = parseDate(param(params, "start", null));
+        Date endDate = parseDate(param(params, "end", null));
+        Set<String> metrics = parseSet(params.get("metrics"));
+        int width = Integer.parseInt(param(params, "width", "800"));
+        int height = Integer.parseInt(param(params, "height", "400"));
+        ChartFormat format = ChartFormat.parse(param(params, "format", "png"));
+        if (isCompacted(startDate)) {
+            throw rawRetentionError("chart", "width=1h or width=1d");
+        }
+
+        if (notModified(exchange, endDate, format.name())) {
+            return;
+        }
+        byte[] image = chartService.render(serverName, startDate, endDate, metrics, width, height, format);
+        exchange.getResponseHeaders().set("Content-Type", format.getContentType());
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, image.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(image);
+        }
+    }
+
+    private void writeDays(HttpExchange exchange, Map<String, String> params) throws IOException, ParseException {
+        String serverName = param(params, "server", null);
+        Date startDate = parseDate(param(params, "start", null));
+        Date endDate = parseDate(param(params, "end", null));
+
+        if (notModified(exchange, endDate, "json")) {
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+
+        List<Date> days = monitoringService.listDays(serverName, startDate, endDate);
+
+        OutputStream body = startResponse(exchange);
+        if (body == null) {
+            return;
+        }
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8), 8192)) {
+            out.write("{\"server\":");
+            JsonPointWriter.quote(out, serverName);
+            out.write(",\"days\":[");
+            for (int i = 0; i < days.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write(Long.toString(days.get(i).getTime()));
+            }
+            out.write("]}");
+        }
+    }
+
+    private void writeFleet(HttpExchange exchange, Map<String, String> params) throws IOException, ParseException {
+        Date startDate = parseDate(param(params, "start", null));
+        Date endDate = parseDate(param(params, "end", null));
+        BucketWidth width = BucketWidth.parse(param(params, "width", "1h"));
+        Set<String> metrics = parseSet(params.get("metrics"));
+        Set<String> servers = parseSet(params.get("servers"));
+        Set<String> functionNames = parseSet(param(params, "functions", "MEAN"));
+        AggregateFunction[] functions = new AggregateFunction[functionNames.size()];
+        int i = 0;
+        for (String name : functionNames) {
+            functions[i++] = AggregateFunction.valueOf(name.toUpperCase());
+        }
+
+        if (notModified(exchange, endDate, "json")) {
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+
+        SortedMap<Date, Map<String, Map<AggregateFunction, Double>>> result = fleetQueryService.aggregate(
+                servers != null ? servers : monitoringService.getServerNames(startDate, endDate), startDate, endDate, width, metrics,
+                functions);
+
+        OutputStream body = startResponse(exchange);
+        if (body == null) {
+            return;
+        }
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8), 8192)) {
+            out.write("{\"width\":");
+            JsonPointWriter.quote(out, width.getLabel());
+            out.write(",\"points\":[");
+            boolean first = true;
+            for (Map.Entry<Date, Map<String, Map<AggregateFunction, Double>>> point : result.entrySet()) {
+                out.write(first ? "{\"t\":" : ",{\"t\":");
+                first = false;
+                out.write(Long.toString(point.getKey().getTime()));
+                for (Map.Entry<String, Map<AggregateFunction, Double>> metric : point.getValue().entrySet()) {
+                    out.write(',');
+                    JsonPointWriter.quote(out, metric.getKey());
+                    out.write(":{");
+                    boolean firstFunction = true;
+                    for (Map.Entry<AggregateFunction, Double> value : metric.getValue().entrySet()) {
+                        if (value.getValue() == null || value.getValue().isNaN() || value.getValue().isInfinite()) {
+                            continue;
+                        }
+                        if (!firstFunction) {
+                            out.write(',');
+                        }
+                        firstFunction = false;
+                        JsonPointWriter.quote(out, value.getKey().name());
+                        out.write(':');
+                        out.write(value.getValue().toString());
+                    }
+                    out.write('}');
+                }
+                out.write('}');
+            }
+            out.write("]}");
+        }
+    }
+
+    /**
+     * Set the caching headers and answer 304 when the client copy is still valid.
+     *
+     * @param exchange
+     * @param endDate       end of the range queried
+     * @param variant       representation, part of the ETag
+     * @return true if the response was sent
+     * @throws IOException
+     */
+    private boolean notModified(HttpExchange exchange, Date endDate, String variant) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Vary", "Accept-Encoding");
+        if (endDate.getTime() > TimeBuckets.get().dayStart(System.currentTimeMillis())) {
+            headers.set("Cache-Control", "no-cache");
+            return false;
+        }
+
+        // HTTP dates have a precision of one second
+        long modified = monitoringService.getPastDataModified().getTime() / 1000 * 1000;
+        String etag = etag(exchange.getRequestURI().getPath(), exchange.getRequestURI().getRawQuery(), variant, modified);
+        headers.set("ETag", etag);
+        headers.set("Last-Modified", httpDateFormat().format(new Date(modified)));
+        headers.set("Cache-Control", "max-age=" + maxAgeSeconds);
+
+        Headers request = exchange.getRequestHeaders();
+        String ifNoneMatch = request.getFirst("If-None-Match");
+        boolean notModified;
+        if (ifNoneMatch != null) {
+            notModified = ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*");
+        } else {
+            notModified = isNotModifiedSince(request.getFirst("If-Modified-Since"), modified);
+        }
+
+        if (notModified) {
+            exchange.sendResponseHeaders(304, -1);
+        }
+        return notModified;
+    }
+
+    static String etag(String path, String query, String variant, long modified) {
+        return "W/\"" + Integer.toHexString((path + "?" + query + "#" + variant).hashCode())
+                + "-" + Long.toHexString(modified) + "\"";
+    }
+
+    private static boolean isNotModifiedSince(String ifModifiedSince, long modified) {
+        if (ifModifiedSince == null) {
+            return false;
+        }
+        try {
+            return httpDateFormat().parse(ifModifiedSince).getTime() >= modified;
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    private static SimpleDateFormat httpDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    /**
+     * Send the status line and headers of a chunked 200 response.
+     *
+     * @param exchange
+     * @return the body, gzipped if accepted by the client; null for a HEAD request
+     * @throws IOException
+     */
+    private static OutputStream startResponse(HttpExchange exchange) throws IOException {
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(200, -1);
+            return null;
+        }
+
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, 0);
+        return gzip ? new GZIPOutputStream(exchange.getResponseBody(), 8192) : exchange.getResponseBody();
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) {
+        try {
+            byte[] bytes = (message == null ? "" : message).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } catch (IOException e) {
+            // response already started
+            LOGGER.debug("Cannot send error " + status, e);
+        }
+    }
+
+    static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> result = new HashMap<>();
+        if (rawQuery == null) {
+            return result;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                result.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return result;
+    }
+
+    private static String param(Map<String, String> params, String name, String defaultValue) {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) {
+            if (defaultValue == null) {
+                throw new IllegalArgumentException("Missing parameter: " + name);
+            }
+            return defaultValue;
+        }
+        return value;
+    }
+
+    /**
+     * @param value yyyyMMdd_HHmmss, yyyyMMdd as in the command line, or epoch milliseconds
+     * @return
+     * @throws ParseException
+     */
+    static Date parseDate(String value) throws ParseException {
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return DateFormatUtils.timestampFormat.parse(value);
+            }
+        }
+        if (value.length() == 8) {
+            return DateFormatUtils.dayFormat.parse(value);
+        }
+        return new Date(Long.parseLong(value));
+    }
+
+    private static Set<String> parseSet(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        Set<String> result = new LinkedHashSet<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                result.add(item.trim());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,40 @@
+package monitoring.ingest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of fixed-size heap buffers, so that idle connections hold no buffer and busy ones do not allocate.
+ * Heap buffers let the parser read the backing array directly. Not thread-safe.
+ */
+class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+
+    /**
+     * @param bufferSize
+     * @param maxPooled  buffers beyond this number are left to the garbage collector when released
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buffer = pool.pollFirst();
+        return buffer != null ? buffer : ByteBuffer.allocate(bufferSize);
+    }
+
+    void release(ByteBuffer buffer) {
+        if (pool.size() < maxPooled) {
+            buffer.clear();
+            pool.addFirst(buffer);
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+}
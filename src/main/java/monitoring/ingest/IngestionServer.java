@@ -0,0 +1,412 @@
+package monitoring.ingest;
+
+import monitoring.alert.AnomalyDetector;
+import monitoring.metrics.Instrumentation;
+import monitoring.service.MonitoringService;
+import monitoring.service.SampleBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import util.concurrent.NamedThreadFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.*;
+
+/**
+ * Network ingestion: Graphite plaintext over TCP (monitoring.ingest.graphitePort) and StatsD gauges over UDP
+ * (monitoring.ingest.statsdPort), see {@link LineParser}.
+ * <p>
+ * A single selector thread accepts connections, reads into pooled buffers and parses the lines in place into
+ * a {@link SampleBatch}, handed to monitoring.ingest.writers writer threads every monitoring.ingest.batchSize
+ * samples or monitoring.ingest.flushIntervalMillis. When all writers are busy the selector thread writes the
+ * batch itself, which stops reading: TCP clients are slowed down instead of queuing samples in memory.
+ * A failed batch is retried every monitoring.ingest.retryMillis by its writer, so that a MongoDB outage slows
+ * the clients down the same way instead of dropping samples; only batches failing once stopped are dropped.
+ * <p>
+ * Started with the application when monitoring.ingest.enabled, or by the LISTEN command.
+ */
+@Component
+public class IngestionServer {
+
+    private static class Connection {
+        ByteBuffer buffer;
+        /** the end of an overflowing line is being skipped */
+        boolean discarding;
+    }
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+    private MonitoringService monitoringService;
+
+    private boolean enabled = false;
+    private String bindAddress = "";
+    private int graphitePort = 2003;
+    private int statsdPort = 8125;
+    private int batchSize = 5000;
+    private long flushIntervalMillis = 1000;
+    private int writers = 2;
+    private int bufferSize = 64 * 1024;
+    private long retryMillis = 1000;
+
+    private Selector selector;
+    private ServerSocketChannel graphiteChannel;
+    private DatagramChannel statsdChannel;
+    private Thread selectorThread;
+    private ThreadPoolExecutor writerExecutor;
+    private volatile boolean running;
+
+    private BufferPool bufferPool;
+    private ByteBuffer datagramBuffer;
+    private final LineParser parser = new LineParser();
+    private SampleBatch batch = new SampleBatch();
+    private long nextFlush;
+
+    @Autowired
+    public void setMonitoringService(MonitoringService monitoringService) {
+        this.monitoringService = monitoringService;
+    }
+
+    @Autowired(required = false)
+    public void setAnomalyDetector(AnomalyDetector anomalyDetector) {
+        parser.setAnomalyDetector(anomalyDetector);
+    }
+
+    @Value("${monitoring.ingest.enabled:false}")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param bindAddress address to listen on, empty for all
+     */
+    @Value("${monitoring.ingest.bindAddress:}")
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * @param graphitePort TCP port of the Graphite plaintext listener, 0 to disable it
+     */
+    @Value("${monitoring.ingest.graphitePort:2003}")
+    public void setGraphitePort(int graphitePort) {
+        this.graphitePort = graphitePort;
+    }
+
+    /**
+     * @param statsdPort UDP port of the StatsD listener, 0 to disable it
+     */
+    @Value("${monitoring.ingest.statsdPort:8125}")
+    public void setStatsdPort(int statsdPort) {
+        this.statsdPort = statsdPort;
+    }
+
+    @Value("${monitoring.ingest.batchSize:5000}")
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Value("${monitoring.ingest.flushIntervalMillis:1000}")
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    @Value("${monitoring.ingest.retryMillis:1000}")
+    public void setRetryMillis(long retryMillis) {
+        this.retryMillis = retryMillis;
+    }
+
+    @Value("${monitoring.ingest.writers:2}")
+    public void setWriters(int writers) {
+        this.writers = writers;
+    }
+
+    /**
+     * @param bufferSize size of the receive buffers, also the max length of a line
+     */
+    @Value("${monitoring.ingest.bufferSize:65536}")
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (enabled) {
+            start();
+        }
+    }
+
+    /**
+     * Open the listeners and start the selector thread, if not already running.
+     *
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        selector = Selector.open();
+        if (graphitePort > 0) {
+            graphiteChannel = ServerSocketChannel.open();
+            graphiteChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            graphiteChannel.bind(address(graphitePort), 1024);
+            graphiteChannel.configureBlocking(false);
+            graphiteChannel.register(selector, SelectionKey.OP_ACCEPT);
+            log.info("Graphite plaintext listener on TCP port " + graphitePort);
+        }
+        if (statsdPort > 0) {
+            statsdChannel = DatagramChannel.open();
+            statsdChannel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            statsdChannel.bind(address(statsdPort));
+            statsdChannel.configureBlocking(false);
+            statsdChannel.register(selector, SelectionKey.OP_READ);
+            log.info("StatsD listener on UDP port " + statsdPort);
+        }
+
+        bufferPool = new BufferPool(bufferSize, 256);
+        datagramBuffer = ByteBuffer.allocate(bufferSize);
+        writerExecutor = new ThreadPoolExecutor(writers, writers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(writers), new NamedThreadFactory("ingest-writer"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        running = true;
+        selectorThread = new NamedThreadFactory("ingest").newThread(new Runnable() {
+            @Override
+            public void run() {
+                select();
+            }
+        });
+        selectorThread.start();
+    }
+
+    private InetSocketAddress address(int port) {
+        return bindAddress.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(bindAddress, port);
+    }
+
+    /**
+     * Close the listeners, write the samples received and wait for the writers.
+     *
+     * @throws InterruptedException
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            thread = selectorThread;
+            selector.wakeup();
+        }
+        thread.join();
+        writerExecutor.shutdown();
+        writerExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Wait for the listeners to be stopped.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitTermination() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = selectorThread;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    private void select() {
+        nextFlush = System.currentTimeMillis() + flushIntervalMillis;
+        try {
+            while (running) {
+                long timeout = nextFlush - System.currentTimeMillis();
+                if (timeout > 0) {
+                    selector.select(timeout);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.channel() == statsdChannel) {
+                            receive();
+                        } else {
+                            read(key);
+                        }
+                    } catch (IOException e) {
+                        log.debug("Closing connection: " + e);
+                        close(key);
+                    }
+                }
+
+                if (System.currentTimeMillis() >= nextFlush) {
+                    flush();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Ingestion listener failure", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.warn("Error closing selector", e);
+            }
+            flush();
+            running = false;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = graphiteChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer buffer = connection.buffer != null ? connection.buffer : bufferPool.acquire();
+        connection.buffer = buffer;
+
+        int read = channel.read(buffer);
+        int start = 0;
+        if (connection.discarding) {
+            start = buffer.position();
+            for (int i = 0; i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') {
+                    start = i + 1;
+                    connection.discarding = false;
+                    break;
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        int consumed = parser.parse(buffer.array(), start, buffer.position(), LineParser.Format.GRAPHITE, read < 0,
+                now, batch);
+
+        if (consumed == 0 && !buffer.hasRemaining()) {
+            // line longer than a buffer: dropped, up to its end
+            Instrumentation.INGEST_ERRORS.increment();
+            connection.discarding = true;
+            buffer.clear();
+        } else {
+            // keep the partial last line at the start of the buffer
+            int remaining = buffer.position() - consumed;
+            System.arraycopy(buffer.array(), consumed, buffer.array(), 0, remaining);
+            buffer.position(remaining);
+        }
+
+        if (buffer.position() == 0) {
+            bufferPool.release(buffer);
+            connection.buffer = null;
+        }
+        if (read < 0) {
+            close(key);
+        }
+        flushIfFull();
+    }
+
+    private void receive() throws IOException {
+        long now = System.currentTimeMillis();
+        while (statsdChannel.receive(datagramBuffer) != null) {
+            parser.parse(datagramBuffer.array(), 0, datagramBuffer.position(), LineParser.Format.STATSD, true,
+                    now, batch);
+            datagramBuffer.clear();
+            flushIfFull();
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        Object attachment = key.attachment();
+        if (attachment instanceof Connection && ((Connection) attachment).buffer != null) {
+            bufferPool.release(((Connection) attachment).buffer);
+            ((Connection) attachment).buffer = null;
+        }
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            log.debug("Error closing channel", e);
+        }
+    }
+
+    private void flushIfFull() {
+        if (batch.getSamplesCount() >= batchSize) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        nextFlush = System.currentTimeMillis() + flushIntervalMillis;
+        Instrumentation.INGESTED_SAMPLES.add(parser.drainSamples());
+        Instrumentation.INGEST_ERRORS.add(parser.drainErrors());
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        final SampleBatch full = batch;
+        batch = new SampleBatch();
+        writerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(full);
+            }
+        });
+    }
+
+    /**
+     * Write a batch, retrying every retryMillis until it succeeds or the listeners are stopped.
+     */
+    private void write(SampleBatch batch) {
+        while (true) {
+            try {
+                // retried whole: the documents already written by a failed attempt are rewritten identically
+                monitoringService.writeBatch(batch);
+                return;
+            } catch (RuntimeException e) {
+                if (!running) {
+                    log.error("Error writing " + batch.getSamplesCount() + " received samples, listeners stopped", e);
+                    return;
+                }
+                Instrumentation.INGEST_RETRIES.increment();
+                log.error("Error writing " + batch.getSamplesCount() + " received samples, retrying in "
+                        + retryMillis + " ms", e);
+            }
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("Interrupted, " + batch.getSamplesCount() + " received samples not written");
+                return;
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+}
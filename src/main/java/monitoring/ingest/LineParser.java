@@ -0,0 +1,313 @@
+package monitoring.ingest;
+
+import monitoring.alert.AnomalyDetector;
+import monitoring.domain.DailyMonitoringData;
+import monitoring.service.SampleBatch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parser of the network line protocols, reading lines straight from the receive buffers into a
+ * {@link SampleBatch}:
+ * <ul>
+ * <li>GRAPHITE plaintext: "server.metric value timestamp", timestamp in seconds (-1 for now)</li>
+ * <li>STATSD gauges: "server.metric:value|g", timestamped on reception; other metric types are rejected</li>
+ * </ul>
+ * The server name is the first component of the path, the rest is the metric name, dots replaced by '_'.
+ * Lines with names that cannot be stored (see {@link DailyMonitoringData#isValidServerName(String)} and
+ * {@link DailyMonitoringData#isValidMetric(String)}) or with empty path components are rejected.
+ * <p>
+ * Numbers are parsed from the bytes, names are looked up in a cache by their bytes: a line only allocates
+ * when it contains a new name or an unusual number. Not thread-safe.
+ */
+public class LineParser {
+
+    public enum Format {
+        GRAPHITE, STATSD
+    }
+
+    private static final double[] POW10 = new double[23];
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    /** Direct-mapped cache of names: bytes =&gt; String, null for invalid names. */
+    private static class NameCache {
+        final byte[][] keys;
+        final String[] values;
+        final int mask;
+
+        NameCache(int size) {
+            keys = new byte[size][];
+            values = new String[size];
+            mask = size - 1;
+        }
+
+        String get(byte[] buf, int from, int to, boolean metric) {
+            int hash = 0x811c9dc5;
+            for (int i = from; i < to; i++) {
+                hash = (hash ^ buf[i]) * 0x01000193;
+            }
+            // metric and server names never share entries
+            int index = (metric ? hash ^ 0x5bd1e995 : hash) & mask;
+
+            byte[] key = keys[index];
+            if (key != null && key.length == to - from && rangeEquals(key, buf, from)) {
+                return values[index];
+            }
+
+            key = Arrays.copyOfRange(buf, from, to);
+            String value = new String(key, StandardCharsets.UTF_8);
+            if (metric) {
+                value = value.startsWith(".") || value.contains("..") || value.endsWith(".") ? null : value.replace('.', '_');
+            }
+            if (value != null && !(metric ? DailyMonitoringData.isValidMetric(value)
+                    : DailyMonitoringData.isValidServerName(value))) {
+                value = null;
+            }
+            keys[index] = key;
+            values[index] = value;
+            return value;
+        }
+
+        private static boolean rangeEquals(byte[] key, byte[] buf, int from) {
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buf[from + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final NameCache names = new NameCache(4096);
+
+    /** end of the last token parsed, or -1 if invalid */
+    private int tokenEnd;
+    private long samples;
+    private long errors;
+    private AnomalyDetector anomalyDetector;
+
+    /**
+     * @param anomalyDetector detector observing the samples parsed, may be null
+     */
+    public void setAnomalyDetector(AnomalyDetector anomalyDetector) {
+        this.anomalyDetector = anomalyDetector;
+    }
+
+    /**
+     * Parse the lines of a buffer region.
+     *
+     * @param buf
+     * @param from       first byte
+     * @param to         end of the region, exclusive
+     * @param format
+     * @param endOfInput the region ends with a complete line even without a final '\n', e.g. a datagram
+     * @param now        timestamp of samples received without one
+     * @param batch      batch receiving the samples
+     * @return offset after the last complete line: bytes from there must be parsed again with more input
+     */
+    public int parse(byte[] buf, int from, int to, Format format, boolean endOfInput, long now, SampleBatch batch) {
+        int lineStart = from;
+        for (int i = from; i < to; i++) {
+            if (buf[i] == '\n') {
+                parseLine(buf, lineStart, i, format, now, batch);
+                lineStart = i + 1;
+            }
+        }
+        if (endOfInput && lineStart < to) {
+            parseLine(buf, lineStart, to, format, now, batch);
+            lineStart = to;
+        }
+        return lineStart;
+    }
+
+    private void parseLine(byte[] buf, int from, int to, Format format, long now, SampleBatch batch) {
+        if (to > from && buf[to - 1] == '\r') {
+            to--;
+        }
+        while (from < to && buf[from] == ' ') {
+            from++;
+        }
+        if (from == to) {
+            return;
+        }
+
+        boolean valid = format == Format.GRAPHITE
+                ? parseGraphite(buf, from, to, now, batch)
+                : parseStatsd(buf, from, to, now, batch);
+        if (valid) {
+            samples++;
+        } else {
+            errors++;
+        }
+    }
+
+    private boolean parseGraphite(byte[] buf, int from, int to, long now, SampleBatch batch) {
+        int pathEnd = indexOf(buf, from, to, (byte) ' ');
+        int dot = indexOf(buf, from, pathEnd, (byte) '.');
+        if (dot <= from || dot >= pathEnd - 1) {
+            return false;
+        }
+
+        int valueStart = skipSpaces(buf, pathEnd, to);
+        int valueEnd = indexOf(buf, valueStart, to, (byte) ' ');
+        double value = parseDouble(buf, valueStart, valueEnd);
+        if (tokenEnd < 0) {
+            return false;
+        }
+
+        int timestampStart = skipSpaces(buf, valueEnd, to);
+        long timestamp = now;
+        if (timestampStart < to) {
+            double seconds = parseDouble(buf, timestampStart, to);
+            if (tokenEnd < 0) {
+                return false;
+            }
+            if (seconds >= 0) {
+                timestamp = (long) (seconds * 1000);
+            }
+        }
+
+        return add(batch, names.get(buf, from, dot, false), timestamp, names.get(buf, dot + 1, pathEnd, true), value);
+    }
+
+    private boolean parseStatsd(byte[] buf, int from, int to, long now, SampleBatch batch) {
+        int pathEnd = indexOf(buf, from, to, (byte) ':');
+        int dot = indexOf(buf, from, pathEnd, (byte) '.');
+        if (dot <= from || dot >= pathEnd - 1 || pathEnd >= to) {
+            return false;
+        }
+
+        int valueEnd = indexOf(buf, pathEnd + 1, to, (byte) '|');
+        // "g" only: a signed gauge is a delta, which cannot be stored without reading the previous value
+        if (valueEnd + 2 > to || buf[valueEnd + 1] != 'g' || (valueEnd + 2 < to && buf[valueEnd + 2] != '|')
+                || buf[pathEnd + 1] == '+' || buf[pathEnd + 1] == '-') {
+            return false;
+        }
+        double value = parseDouble(buf, pathEnd + 1, valueEnd);
+        if (tokenEnd < 0) {
+            return false;
+        }
+
+        return add(batch, names.get(buf, from, dot, false), now, names.get(buf, dot + 1, pathEnd, true), value);
+    }
+
+    /**
+     * @return false if a name is invalid
+     */
+    private boolean add(SampleBatch batch, String serverName, long timestamp, String metric, double value) {
+        if (serverName == null || metric == null) {
+            return false;
+        }
+        batch.add(serverName, timestamp, metric, value);
+        if (anomalyDetector != null) {
+            anomalyDetector.observe(serverName, timestamp, metric, value);
+        }
+        return true;
+    }
+
+    /**
+     * Parse a decimal number: directly when the mantissa is below 2^53 and the power of ten is exact,
+     * with {@link Double#parseDouble} otherwise. Sets tokenEnd to -1 if the token is not a number.
+     */
+    double parseDouble(byte[] buf, int from, int to) {
+        tokenEnd = -1;
+        if (from >= to) {
+            return Double.NaN;
+        }
+
+        int i = from;
+        boolean negative = buf[i] == '-';
+        if (negative || buf[i] == '+') {
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        for (; i < to && buf[i] >= '0' && buf[i] <= '9'; i++) {
+            mantissa = mantissa * 10 + (buf[i] - '0');
+            digits++;
+        }
+        if (i < to && buf[i] == '.') {
+            for (i++; i < to && buf[i] >= '0' && buf[i] <= '9'; i++) {
+                mantissa = mantissa * 10 + (buf[i] - '0');
+                digits++;
+                exponent--;
+            }
+        }
+        if (digits > 0 && i < to && (buf[i] == 'e' || buf[i] == 'E')) {
+            int e = 0;
+            boolean negativeExponent = false;
+            i++;
+            if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+                negativeExponent = buf[i++] == '-';
+            }
+            int exponentStart = i;
+            for (; i < to && buf[i] >= '0' && buf[i] <= '9' && e < 10000; i++) {
+                e = e * 10 + (buf[i] - '0');
+            }
+            if (i == exponentStart) {
+                digits = 0;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+
+        if (digits > 0 && digits <= 18 && i == to && mantissa < MAX_EXACT_MANTISSA && Math.abs(exponent) < POW10.length) {
+            tokenEnd = to;
+            // both operands are exact doubles: a single correctly rounded operation
+            double value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+            return negative ? -value : value;
+        }
+
+        // long mantissas, "NaN", "Infinity"...
+        try {
+            double value = Double.parseDouble(new String(buf, from, to - from, StandardCharsets.ISO_8859_1));
+            tokenEnd = to;
+            return value;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static int skipSpaces(byte[] buf, int from, int to) {
+        while (from < to && buf[from] == ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * @return number of valid lines parsed since the last call
+     */
+    public long drainSamples() {
+        long result = samples;
+        samples = 0;
+        return result;
+    }
+
+    /**
+     * @return number of malformed or unsupported lines since the last call
+     */
+    public long drainErrors() {
+        long result = errors;
+        errors = 0;
+        return result;
+    }
+}
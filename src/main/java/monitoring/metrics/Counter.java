@@ -0,0 +1,40 @@
+package monitoring.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic counter, lock-free.
+ */
+public class Counter implements CounterMXBean {
+
+    private final String name;
+    private final String description;
+    private final AtomicLong count = new AtomicLong();
+
+    public Counter(String name, String description) {
+        this.name = name;
+        this.description = description;
+    }
+
+    public void increment() {
+        count.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        count.addAndGet(delta);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+}
@@ -0,0 +1,11 @@
+package monitoring.metrics;
+
+/**
+ * JMX view of a {@link Counter}.
+ */
+public interface CounterMXBean {
+
+    String getDescription();
+
+    long getCount();
+}
@@ -0,0 +1,57 @@
+package monitoring.metrics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Meters of the storage and query hot paths. They are created once, here, so that recording is a static field
+ * access plus atomic increments: no lookup, no lock, no allocation.
+ */
+public final class Instrumentation {
+
+    public static final LatencyHistogram ADD_SAMPLE =
+            new LatencyHistogram("addSample", "MonitoringService.addSample calls, one upsert each");
+    public static final LatencyHistogram WRITE_BATCH =
+            new LatencyHistogram("writeBatch", "Bulk writes of samples to MongoDB");
+    public static final LatencyHistogram HOURLY_QUERY =
+            new LatencyHistogram("hourlyQuery", "MonitoringService.aggregatedValuesByHour calls");
+    public static final LatencyHistogram CONVERT =
+            new LatencyHistogram("convert", "Conversions of day documents by DailyMonitoringDataReadConverter");
+
+    public static final Counter WRITE_ROUND_TRIPS =
+            new Counter("writeRoundTrips", "MongoDB round trips of sample writes");
+    public static final Counter QUERY_ROUND_TRIPS =
+            new Counter("queryRoundTrips", "MongoDB round trips of queries (cursors and map-reduce)");
+    public static final Counter BYTES_READ =
+            new Counter("bytesRead", "BSON bytes of raw day documents decoded");
+    public static final Counter DOCUMENTS_CONVERTED =
+            new Counter("documentsConverted", "Day documents converted or decoded");
+    public static final Counter INGESTED_SAMPLES =
+            new Counter("ingestedSamples", "Samples received by the Graphite and StatsD listeners");
+    public static final Counter INGEST_ERRORS =
+            new Counter("ingestErrors", "Malformed or unsupported lines received by the listeners");
+    public static final Counter INGEST_RETRIES =
+            new Counter("ingestRetries", "Failed writes of samples received by the listeners, retried");
+    public static final Counter LATE_SAMPLES =
+            new Counter("lateSamples", "Samples dropped because their day is past the raw retention");
+    public static final Counter ALERTS =
+            new Counter("alerts", "Alerts raised or resolved by the anomaly detector");
+
+    private static final List<LatencyHistogram> TIMERS =
+            Collections.unmodifiableList(Arrays.asList(ADD_SAMPLE, WRITE_BATCH, HOURLY_QUERY, CONVERT));
+    private static final List<Counter> COUNTERS = Collections.unmodifiableList(
+            Arrays.asList(WRITE_ROUND_TRIPS, QUERY_ROUND_TRIPS, BYTES_READ, DOCUMENTS_CONVERTED,
+                    INGESTED_SAMPLES, INGEST_ERRORS, INGEST_RETRIES, LATE_SAMPLES, ALERTS));
+
+    private Instrumentation() {
+    }
+
+    public static List<LatencyHistogram> timers() {
+        return TIMERS;
+    }
+
+    public static List<Counter> counters() {
+        return COUNTERS;
+    }
+}
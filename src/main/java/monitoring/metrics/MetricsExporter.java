@@ -0,0 +1,235 @@
+package monitoring.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import monitoring.service.AggregationCacheMXBean;
+import monitoring.service.AsyncSampleWriter;
+import monitoring.service.AsyncSampleWriterMXBean;
+import monitoring.service.MonitoringService;
+import monitoring.wal.WalSampleWriter;
+import monitoring.wal.WalSampleWriterMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import util.concurrent.NamedThreadFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Publishes the {@link Instrumentation} meters, the aggregation cache, the async writer queue and the
+ * write-ahead log over JMX
+ * (domain "monitoring") and, when monitoring.metrics.httpPort is set, as plain text on http://host:port/metrics
+ * in the Prometheus exposition format. The endpoint has no authentication: it only listens on the loopback
+ * interface unless monitoring.metrics.bindAddress says otherwise.
+ */
+@Component
+public class MetricsExporter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsExporter.class);
+
+    public static final String DOMAIN = "monitoring";
+
+    private MonitoringService monitoringService;
+    private AsyncSampleWriter asyncSampleWriter;
+    private WalSampleWriter walSampleWriter;
+    private boolean jmxEnabled = true;
+    private int httpPort = 0;
+    private String bindAddress = "127.0.0.1";
+
+    private final List<ObjectName> registered = new ArrayList<>();
+    private HttpServer httpServer;
+    private ExecutorService httpExecutor;
+
+    @Autowired
+    public void setMonitoringService(MonitoringService monitoringService) {
+        this.monitoringService = monitoringService;
+    }
+
+    @Autowired
+    public void setAsyncSampleWriter(AsyncSampleWriter asyncSampleWriter) {
+        this.asyncSampleWriter = asyncSampleWriter;
+    }
+
+    @Autowired
+    public void setWalSampleWriter(WalSampleWriter walSampleWriter) {
+        this.walSampleWriter = walSampleWriter;
+    }
+
+    @Value("${monitoring.metrics.jmx.enabled:true}")
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    /**
+     * @param httpPort port of the /metrics endpoint, 0 to disable it
+     */
+    @Value("${monitoring.metrics.httpPort:0}")
+    public void setHttpPort(int httpPort) {
+        this.httpPort = httpPort;
+    }
+
+    /**
+     * @param bindAddress address the /metrics endpoint listens on, 0.0.0.0 for all interfaces
+     */
+    @Value("${monitoring.metrics.bindAddress:127.0.0.1}")
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    @PostConstruct
+    public void start() throws IOException, JMException {
+        if (jmxEnabled) {
+            for (LatencyHistogram timer : Instrumentation.timers()) {
+                register(timer, "Timer", timer.getName());
+            }
+            for (Counter counter : Instrumentation.counters()) {
+                register(counter, "Counter", counter.getName());
+            }
+            if (monitoringService.getCache() != null) {
+                register(monitoringService.getCache(), "Cache", "aggregation");
+            }
+            register(asyncSampleWriter, "Queue", "asyncSampleWriter");
+            register(walSampleWriter, "Queue", "walSampleWriter");
+        }
+
+        if (httpPort > 0) {
+            httpServer = HttpServer.create(new InetSocketAddress(bindAddress, httpPort), 0);
+            httpServer.createContext("/metrics", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    StringBuilder body = new StringBuilder();
+                    render(body, monitoringService.getCache(), asyncSampleWriter, walSampleWriter);
+                    byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, bytes.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(bytes);
+                    }
+                }
+            });
+            httpExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("metrics-http"));
+            httpServer.setExecutor(httpExecutor);
+            httpServer.start();
+            LOGGER.info("Metrics available on http://{}:{}/metrics", bindAddress, httpPort);
+        }
+    }
+
+    private void register(Object mbean, String type, String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(mbean, objectName);
+        registered.add(objectName);
+    }
+
+    @PreDestroy
+    public void stop() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registered) {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        }
+        registered.clear();
+
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpExecutor.shutdown();
+            httpServer = null;
+        }
+    }
+
+    /**
+     * Write all meters in the Prometheus text format: timers as summaries in seconds, counters as counters.
+     *
+     * @param out
+     * @param cache       aggregation cache, null if disabled
+     * @param asyncWriter
+     * @param walWriter
+     * @throws IOException
+     */
+    public static void render(Appendable out, AggregationCacheMXBean cache, AsyncSampleWriterMXBean asyncWriter,
+                              WalSampleWriterMXBean walWriter) throws IOException {
+        for (LatencyHistogram timer : Instrumentation.timers()) {
+            String name = DOMAIN + "_" + timer.getName() + "_seconds";
+            out.append("# HELP ").append(name).append(' ').append(timer.getDescription()).append('\n');
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for (double q : new double[]{0.5, 0.99, 0.999}) {
+                sample(out, name + "{quantile=\"" + q + "\"}", timer.quantileNanos(q) / 1e9);
+            }
+            sample(out, name + "_sum", timer.getTotalNanos() / 1e9);
+            sample(out, name + "_count", timer.getCount());
+        }
+
+        for (Counter counter : Instrumentation.counters()) {
+            String name = DOMAIN + "_" + counter.getName() + "_total";
+            out.append("# HELP ").append(name).append(' ').append(counter.getDescription()).append('\n');
+            out.append("# TYPE ").append(name).append(" counter\n");
+            sample(out, name, counter.getCount());
+        }
+
+        if (cache != null) {
+            gauge(out, "cache_size", cache.getSize());
+            gauge(out, "cache_hits_total", cache.getHits());
+            gauge(out, "cache_misses_total", cache.getMisses());
+            gauge(out, "cache_evictions_total", cache.getEvictions());
+            gauge(out, "cache_invalidations_total", cache.getInvalidations());
+        }
+
+        if (asyncWriter != null && asyncWriter.isEnabled()) {
+            gauge(out, "async_queue_depth", asyncWriter.getQueueDepth());
+            gauge(out, "async_samples_queued_total", asyncWriter.getSamplesQueued());
+            gauge(out, "async_samples_written_total", asyncWriter.getSamplesWritten());
+            gauge(out, "async_samples_dropped_total", asyncWriter.getSamplesDropped());
+            gauge(out, "async_samples_rejected_total", asyncWriter.getSamplesRejected());
+            gauge(out, "async_samples_failed_total", asyncWriter.getSamplesFailed());
+            gauge(out, "async_write_retries_total", asyncWriter.getWriteRetries());
+            gauge(out, "async_flushes_total", asyncWriter.getFlushCount());
+        }
+
+        if (walWriter != null && walWriter.isEnabled()) {
+            gauge(out, "wal_pending_bytes", walWriter.getPendingBytes());
+            gauge(out, "wal_segments", walWriter.getSegmentsCount());
+            gauge(out, "wal_samples_appended_total", walWriter.getSamplesAppended());
+            gauge(out, "wal_samples_replayed_total", walWriter.getSamplesReplayed());
+            gauge(out, "wal_samples_dropped_total", walWriter.getSamplesDropped());
+            gauge(out, "wal_replay_failures_total", walWriter.getReplayFailures());
+        }
+    }
+
+    private static void gauge(Appendable out, String name, double value) throws IOException {
+        String fullName = DOMAIN + "_" + name;
+        out.append("# TYPE ").append(fullName).append(name.endsWith("_total") ? " counter\n" : " gauge\n");
+        sample(out, fullName, value);
+    }
+
+    private static void sample(Appendable out, String name, double value) throws IOException {
+        out.append(name).append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append(Long.toString((long) value));
+        } else {
+            out.append(String.format(Locale.ROOT, "%.9g", value));
+        }
+        out.append('\n');
+    }
+}
@@ -0,0 +1,21 @@
+package monitoring.metrics;
+
+/**
+ * JMX view of a {@link LatencyHistogram}.
+ */
+public interface TimerMXBean {
+
+    String getDescription();
+
+    long getCount();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getP50Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+}
@@ -0,0 +1,81 @@
+package monitoring.service;
+
+/**
+ * Aggregate functions of {@link MonitoringService#aggregate}, computed from a {@link MetricAccumulator}.
+ */
+public enum AggregateFunction {
+    MIN {
+        @Override
+        public double apply(MetricAccumulator acc) {
+            return acc.getMin();
+        }
+    },
+    MAX {
+        @Override
+        public double apply(MetricAccumulator acc) {
+            return acc.getMax();
+        }
+    },
+    SUM {
+        @Override
+        public double apply(MetricAccumulator acc) {
+            return acc.getSum();
+        }
+    },
+    COUNT {
+        @Override
+        public double apply(MetricAccumulator acc) {
+            return acc.getCount();
+        }
+    },
+    MEAN {
+        @Override
+        public double apply(MetricAccumulator acc) {
+            return acc.getMean();
+        }
+    },
+    STDDEV {
+        @Override
+        public double apply(MetricAccumulator acc) {
+            return acc.getStddev();
+        }
+    },
+    P50(0.50),
+    P95(0.95),
+    P99(0.99);
+
+    /** quantile of percentile functions, NaN otherwise */
+    private final double quantile;
+
+    AggregateFunction() {
+        this(Double.NaN);
+    }
+
+    AggregateFunction(double quantile) {
+        this.quantile = quantile;
+    }
+
+    /**
+     * @return true if this function needs a {@link QuantileSketch}
+     */
+    public boolean isPercentile() {
+        return !Double.isNaN(quantile);
+    }
+
+    public double apply(MetricAccumulator acc) {
+        return acc.getQuantile(quantile);
+    }
+
+    /**
+     * @param functions
+     * @return true if any of the functions needs a {@link QuantileSketch}
+     */
+    public static boolean anyPercentile(AggregateFunction... functions) {
+        for (AggregateFunction function : functions) {
+            if (function.isPercentile()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
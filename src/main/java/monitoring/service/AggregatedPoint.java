@@ -0,0 +1,58 @@
+package monitoring.service;
+
+import java.util.Date;
+
+/**
+ * Averages of all metrics of a server over one bucket, backed by a primitive array; metrics without
+ * samples in the bucket are NaN. See {@link PointIterator}.
+ */
+public class AggregatedPoint {
+
+    private final long timestamp;
+    private final String[] metrics;
+    private final double[] values;
+
+    /**
+     * @param timestamp start of the bucket
+     * @param metrics   metric names, shared by all points of a day
+     * @param values    one value per metric, not copied
+     */
+    public AggregatedPoint(long timestamp, String[] metrics, double[] values) {
+        this.timestamp = timestamp;
+        this.metrics = metrics;
+        this.values = values;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Date getDate() {
+        return new Date(timestamp);
+    }
+
+    public String[] getMetrics() {
+        return metrics;
+    }
+
+    public int size() {
+        return metrics.length;
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @param metric
+     * @return value of the metric, NaN if missing
+     */
+    public double getValue(String metric) {
+        for (int i = 0; i < metrics.length; i++) {
+            if (metrics[i].equals(metric)) {
+                return values[i];
+            }
+        }
+        return Double.NaN;
+    }
+}
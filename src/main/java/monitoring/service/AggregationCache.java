@@ -0,0 +1,243 @@
+package monitoring.service;
+
+import monitoring.TimeBuckets;
+import monitoring.domain.DailyMonitoringData;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache of per-day aggregation results, keyed by day document id and resolution.
+ * <p>
+ * Past days almost never change, so their entries live until evicted or invalidated by a write of
+ * this process into that day; entries of today (or later) expire after a short TTL, which also bounds
+ * staleness caused by other writers.
+ * <p>
+ * Results computed while their day is written must not be cached: callers take the {@link #generation()}
+ * before querying, and {@link #put} ignores results of days invalidated since then. Invalidations are
+ * tracked per id, in hash stripes: a collision only costs a cache miss.
+ * <p>
+ * Thread-safe.
+ */
+public class AggregationCache implements AggregationCacheMXBean {
+
+    public enum Resolution {
+        HOUR,
+        DAY
+    }
+
+    private static class Key {
+        final String id;
+        final Resolution resolution;
+
+        Key(String id, Resolution resolution) {
+            this.id = id;
+            this.resolution = resolution;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return id.equals(other.id) && resolution == other.resolution;
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode() * 31 + resolution.hashCode();
+        }
+    }
+
+    private static class CachedDay {
+        final SortedMap<Date, Map<String, Double>> values;
+        final long expiresAt;
+
+        CachedDay(SortedMap<Date, Map<String, Double>> values, long expiresAt) {
+            this.values = values;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long todayTtlMillis;
+    private final LinkedHashMap<Key, CachedDay> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private static final int STRIPES = 4096;
+    private final AtomicLong generation = new AtomicLong();
+    /** generation of the last invalidation, per stripe of ids */
+    private final long[] invalidated = new long[STRIPES];
+    private long cleared;
+
+    public AggregationCache(int maxEntries, long todayTtlMillis) {
+        this.maxEntries = maxEntries;
+        this.todayTtlMillis = todayTtlMillis;
+        this.entries = new LinkedHashMap<Key, CachedDay>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedDay> eldest) {
+                if (size() > AggregationCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param id         day document id
+     * @param resolution
+     * @return a copy of the cached results of that day, null if not cached
+     */
+    public SortedMap<Date, Map<String, Double>> get(String id, Resolution resolution) {
+        CachedDay entry;
+        synchronized (entries) {
+            Key key = new Key(id, resolution);
+            entry = entries.get(key);
+            if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        // else
+        hits.incrementAndGet();
+        return copy(entry.values);
+    }
+
+    /**
+     * @return current generation, to take before computing results to cache
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Cache the results of a day; an empty map records that the day has no data.
+     *
+     * @param id         day document id
+     * @param resolution
+     * @param values     date =&gt; metric =&gt; value, copied
+     * @param generation {@link #generation()} taken before computing the results: they are ignored if the day
+     *                   was invalidated since then
+     */
+    public void put(String id, Resolution resolution, SortedMap<Date, Map<String, Double>> values, long generation) {
+        Date day = DailyMonitoringData.parseIdDate(id);
+        long now = System.currentTimeMillis();
+        boolean pastDay = day != null
+                && day.getTime() < TimeBuckets.get().dayStart(now);
+        CachedDay entry = new CachedDay(copy(values), pastDay ? Long.MAX_VALUE : now + todayTtlMillis);
+
+        synchronized (entries) {
+            if (cleared <= generation && invalidated[stripe(id)] <= generation) {
+                entries.put(new Key(id, resolution), entry);
+            }
+        }
+    }
+
+    /**
+     * Cache the results of many days, computed together.
+     *
+     * @param serverName
+     * @param ids        ids of all the days queried, including those without results
+     * @param resolution
+     * @param values     date =&gt; metric =&gt; value
+     * @param generation {@link #generation()} taken before computing the results
+     */
+    public void putAll(String serverName, List<String> ids, Resolution resolution, SortedMap<Date, Map<String, Double>> values,
+                       long generation) {
+        Map<String, SortedMap<Date, Map<String, Double>>> days = new HashMap<>();
+        for (String id : ids) {
+            days.put(id, new TreeMap<Date, Map<String, Double>>());
+        }
+        for (Map.Entry<Date, Map<String, Double>> entry : values.entrySet()) {
+            SortedMap<Date, Map<String, Double>> day = days.get(DailyMonitoringData.formatId(serverName, entry.getKey()));
+            if (day != null) {
+                day.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, SortedMap<Date, Map<String, Double>>> day : days.entrySet()) {
+            put(day.getKey(), resolution, day.getValue(), generation);
+        }
+    }
+
+    /**
+     * Drop all cached results of a day, e.g. because it has just been written.
+     *
+     * @param id day document id
+     */
+    public void invalidate(String id) {
+        synchronized (entries) {
+            invalidated[stripe(id)] = generation.incrementAndGet();
+            for (Resolution resolution : Resolution.values()) {
+                if (entries.remove(new Key(id, resolution)) != null) {
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            cleared = generation.incrementAndGet();
+            entries.clear();
+        }
+    }
+
+    private static int stripe(String id) {
+        return id.hashCode() & (STRIPES - 1);
+    }
+
+    private static SortedMap<Date, Map<String, Double>> copy(SortedMap<Date, Map<String, Double>> values) {
+        SortedMap<Date, Map<String, Double>> result = new TreeMap<>();
+        for (Map.Entry<Date, Map<String, Double>> entry : values.entrySet()) {
+            result.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+}
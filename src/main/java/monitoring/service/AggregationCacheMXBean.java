@@ -0,0 +1,19 @@
+package monitoring.service;
+
+/**
+ * JMX view of the {@link AggregationCache}.
+ */
+public interface AggregationCacheMXBean {
+
+    int getSize();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getInvalidations();
+
+    double getHitRatio();
+}
@@ -0,0 +1,14 @@
+package monitoring.service;
+
+/**
+ * Where {@link MonitoringService#aggregatedValuesByHour(String, java.util.Date, java.util.Date)} computes
+ * its results.
+ */
+public enum AggregationMode {
+    /** fetch whole day documents and aggregate them in the application */
+    CLIENT,
+    /** aggregate inside MongoDB with map-reduce, fetch only per-hour results */
+    SERVER,
+    /** read pre-computed {@link Rollups}, requires monitoring.rollups.enabled (or a rollups rebuild) */
+    ROLLUP
+}
@@ -0,0 +1,344 @@
+package monitoring.service;
+
+import monitoring.alert.AnomalyDetector;
+import monitoring.domain.DailyMonitoringData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import util.concurrent.NamedThreadFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous ingestion: producers enqueue samples and return immediately, a pool of background writers
+ * drains the queue, merges everything pending for the same document (and the same minute) into a
+ * {@link SampleBatch} and writes it with {@link MonitoringService#writeBatch(SampleBatch)}.
+ * <p>
+ * The queue is split in one bounded partition per writer and samples are routed by document id, so that
+ * samples of the same document are always written in order by the same writer.
+ * <p>
+ * A failed batch is retried every monitoring.async.retryMillis, holding its partition back so that
+ * monitoring.async.fullPolicy applies while MongoDB is down; batches still failing when the writer is stopped
+ * are counted as failed. Samples are rejected once the writer is stopped.
+ * <p>
+ * When disabled (monitoring.async.enabled=false) samples are written synchronously.
+ */
+@Component
+public class AsyncSampleWriter implements AsyncSampleWriterMXBean {
+
+    static class PendingSample {
+        final String serverName;
+        final Date timestamp;
+        final Map<String, Double> samples;
+
+        PendingSample(String serverName, Date timestamp, Map<String, Double> samples) {
+            this.serverName = serverName;
+            this.timestamp = timestamp;
+            this.samples = samples;
+        }
+    }
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+    private MonitoringService monitoringService;
+    private AnomalyDetector anomalyDetector;
+
+    private boolean enabled = false;
+    private int queueCapacity = 10000;
+    private int writers = 2;
+    private QueueFullPolicy fullPolicy = QueueFullPolicy.BLOCK;
+    private long retryMillis = 1000;
+
+    private List<BlockingQueue<PendingSample>> partitions;
+    private ExecutorService executor;
+    private volatile boolean running;
+
+    private final AtomicLong samplesQueued = new AtomicLong();
+    private final AtomicLong samplesWritten = new AtomicLong();
+    private final AtomicLong samplesDropped = new AtomicLong();
+    private final AtomicLong samplesRejected = new AtomicLong();
+    private final AtomicLong samplesFailed = new AtomicLong();
+    private final AtomicLong writeRetries = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushNanosTotal = new AtomicLong();
+    private volatile long lastFlushNanos;
+
+    @Autowired
+    public void setMonitoringService(MonitoringService monitoringService) {
+        this.monitoringService = monitoringService;
+    }
+
+    @Autowired(required = false)
+    public void setAnomalyDetector(AnomalyDetector anomalyDetector) {
+        this.anomalyDetector = anomalyDetector;
+    }
+
+    @Value("${monitoring.async.enabled:false}")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Value("${monitoring.async.queueCapacity:10000}")
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Value("${monitoring.async.writers:2}")
+    public void setWriters(int writers) {
+        this.writers = writers;
+    }
+
+    @Value("${monitoring.async.fullPolicy:BLOCK}")
+    public void setFullPolicy(QueueFullPolicy fullPolicy) {
+        this.fullPolicy = fullPolicy;
+    }
+
+    @Value("${monitoring.async.retryMillis:1000}")
+    public void setRetryMillis(long retryMillis) {
+        this.retryMillis = retryMillis;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+
+        int partitionCapacity = Math.max(1, queueCapacity / writers);
+        partitions = new ArrayList<>(writers);
+        executor = Executors.newFixedThreadPool(writers, new NamedThreadFactory("sample-writer"));
+        running = true;
+
+        for (int i = 0; i < writers; i++) {
+            final BlockingQueue<PendingSample> partition = new ArrayBlockingQueue<>(partitionCapacity);
+            partitions.add(partition);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(partition);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop accepting samples and wait for the writers to flush the queue.
+     *
+     * @throws InterruptedException
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        running = false;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Queue a sample measurement, Map of: name =&gt; value
+     *
+     * @param serverName
+     * @param timestamp
+     * @param samples    samples to store: name =&gt; value
+     * @throws RejectedExecutionException queue is full and policy is {@link QueueFullPolicy#REJECT},
+     *                                    or the writer is stopped
+     */
+    public void addSample(String serverName, Date timestamp, Map<String, Double> samples) {
+        if (!enabled) {
+            monitoringService.addSample(serverName, timestamp, samples);
+            return;
+        }
+        if (!running) {
+            throw new RejectedExecutionException("Writer is stopped");
+        }
+
+        PendingSample pending = new PendingSample(serverName, timestamp, samples);
+        String id = DailyMonitoringData.formatId(serverName, timestamp);
+        BlockingQueue<PendingSample> partition = partitions.get((id.hashCode() & Integer.MAX_VALUE) % partitions.size());
+
+        switch (fullPolicy) {
+            case BLOCK:
+                try {
+                    // the writers may be stopped while waiting: nothing would ever make room
+                    while (!partition.offer(pending, 100, TimeUnit.MILLISECONDS)) {
+                        if (!running) {
+                            throw new RejectedExecutionException("Writer is stopped");
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while waiting for queue space", e);
+                }
+                break;
+
+            case DROP_OLDEST:
+                while (!partition.offer(pending)) {
+                    if (partition.poll() != null) {
+                        samplesDropped.incrementAndGet();
+                    }
+                }
+                break;
+
+            case REJECT:
+                if (!partition.offer(pending)) {
+                    samplesRejected.incrementAndGet();
+                    throw new RejectedExecutionException("Sample queue is full");
+                }
+                break;
+        }
+        if (!running && partition.remove(pending)) {
+            // queued after the writers drained their partition for the last time
+            throw new RejectedExecutionException("Writer is stopped");
+        }
+
+        samplesQueued.incrementAndGet();
+        if (anomalyDetector != null) {
+            anomalyDetector.observe(serverName, timestamp.getTime(), samples);
+        }
+    }
+
+    private void drain(BlockingQueue<PendingSample> partition) {
+        List<PendingSample> drained = new ArrayList<>();
+
+        while (running || !partition.isEmpty()) {
+            PendingSample first;
+            try {
+                first = partition.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (first == null) {
+                continue;
+            }
+
+            drained.add(first);
+            partition.drainTo(drained);
+
+            SampleBatch batch = new SampleBatch();
+            for (PendingSample pending : drained) {
+                batch.add(pending.serverName, pending.timestamp, pending.samples);
+            }
+
+            boolean interrupted = !write(batch, drained.size());
+            drained.clear();
+            if (interrupted) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write a batch, retrying every retryMillis until it succeeds or the writer is stopped.
+     *
+     * @return false if interrupted
+     */
+    private boolean write(SampleBatch batch, int samples) {
+        while (true) {
+            long start = System.nanoTime();
+            try {
+                // retried whole: the documents already written by a failed attempt are rewritten identically
+                monitoringService.writeBatch(batch);
+                samplesWritten.addAndGet(samples);
+                return true;
+            } catch (RuntimeException e) {
+                if (!running) {
+                    samplesFailed.addAndGet(samples);
+                    log.error("Error writing " + samples + " samples, writer stopped", e);
+                    return true;
+                }
+                writeRetries.incrementAndGet();
+                log.error("Error writing " + samples + " samples, retrying in " + retryMillis + " ms", e);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                lastFlushNanos = elapsed;
+                flushNanosTotal.addAndGet(elapsed);
+                flushCount.incrementAndGet();
+            }
+
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                samplesFailed.addAndGet(samples);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return number of samples waiting to be written
+     */
+    @Override
+    public int getQueueDepth() {
+        if (partitions == null) {
+            return 0;
+        }
+        int depth = 0;
+        for (BlockingQueue<PendingSample> partition : partitions) {
+            depth += partition.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public long getSamplesQueued() {
+        return samplesQueued.get();
+    }
+
+    @Override
+    public long getSamplesWritten() {
+        return samplesWritten.get();
+    }
+
+    @Override
+    public long getSamplesDropped() {
+        return samplesDropped.get();
+    }
+
+    @Override
+    public long getSamplesRejected() {
+        return samplesRejected.get();
+    }
+
+    @Override
+    public long getSamplesFailed() {
+        return samplesFailed.get();
+    }
+
+    @Override
+    public long getWriteRetries() {
+        return writeRetries.get();
+    }
+
+    @Override
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    @Override
+    public double getLastFlushLatencyMillis() {
+        return lastFlushNanos / 1e6;
+    }
+
+    @Override
+    public double getAverageFlushLatencyMillis() {
+        long count = flushCount.get();
+        return count == 0 ? 0.0 : flushNanosTotal.get() / 1e6 / count;
+    }
+}
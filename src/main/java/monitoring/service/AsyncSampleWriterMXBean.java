@@ -0,0 +1,29 @@
+package monitoring.service;
+
+/**
+ * JMX view of the {@link AsyncSampleWriter} queue and flushes.
+ */
+public interface AsyncSampleWriterMXBean {
+
+    boolean isEnabled();
+
+    int getQueueDepth();
+
+    long getSamplesQueued();
+
+    long getSamplesWritten();
+
+    long getSamplesDropped();
+
+    long getSamplesRejected();
+
+    long getSamplesFailed();
+
+    long getWriteRetries();
+
+    long getFlushCount();
+
+    double getLastFlushLatencyMillis();
+
+    double getAverageFlushLatencyMillis();
+}
@@ -0,0 +1,142 @@
+package monitoring.service;
+
+import monitoring.alert.AnomalyDetector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import util.concurrent.NamedThreadFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers samples reported in bursts and writes them through {@link MonitoringService#writeBatch(SampleBatch)}
+ * as soon as {@link MonitoringService#getBatchSize()} documents are pending, or every flush interval,
+ * whichever comes first.
+ * <p>
+ * Flushes are serialized. A batch that fails to be written is merged back into the pending samples, newer
+ * values winning, and retried by the next scheduled flush; size-triggered flushes wait for that retry.
+ */
+@Component
+public class BatchingSampleWriter {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+    private MonitoringService monitoringService;
+    private AnomalyDetector anomalyDetector;
+    private long flushIntervalMillis = 1000;
+
+    private final Object lock = new Object();
+    private final Object flushLock = new Object();
+    private SampleBatch pending = new SampleBatch();
+    private volatile boolean failing;
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public void setMonitoringService(MonitoringService monitoringService) {
+        this.monitoringService = monitoringService;
+    }
+
+    @Autowired(required = false)
+    public void setAnomalyDetector(AnomalyDetector anomalyDetector) {
+        this.anomalyDetector = anomalyDetector;
+    }
+
+    @Value("${monitoring.batch.flushIntervalMillis:1000}")
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("sample-flush"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    log.error("Error flushing samples, retrying in " + flushIntervalMillis + " ms", e);
+                }
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Error flushing samples, " + getPendingDocuments() + " documents not written", e);
+        }
+    }
+
+    /**
+     * Buffer a sample measurement, Map of: name =&gt; value
+     *
+     * @param serverName
+     * @param timestamp
+     * @param samples    samples to store: name =&gt; value
+     */
+    public void addSample(String serverName, Date timestamp, Map<String, Double> samples) {
+        boolean full;
+        synchronized (lock) {
+            pending.add(serverName, timestamp, samples);
+            full = pending.getDocumentsCount() >= monitoringService.getBatchSize();
+        }
+        if (anomalyDetector != null) {
+            anomalyDetector.observe(serverName, timestamp.getTime(), samples);
+        }
+        if (full && !failing) {
+            flush();
+        }
+    }
+
+    /**
+     * Write all buffered samples now. On failure they stay buffered.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            SampleBatch batch;
+            synchronized (lock) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new SampleBatch();
+            }
+            try {
+                monitoringService.writeBatch(batch);
+                failing = false;
+            } catch (RuntimeException e) {
+                failing = true;
+                synchronized (lock) {
+                    batch.addAll(pending);
+                    pending = batch;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return number of buffered documents
+     */
+    public int getPendingDocuments() {
+        synchronized (lock) {
+            return pending.getDocumentsCount();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package monitoring.service;
+
+import monitoring.TimeBuckets;
+
+/**
+ * Width of the time buckets of {@link MonitoringService#aggregate}. All widths divide a day evenly,
+ * so buckets never span two day documents. The extra hour of a 25-hour day has buckets of its own,
+ * except for {@link #DAY}, whose single bucket covers the whole day.
+ */
+public enum BucketWidth {
+    MINUTE("1m", 1),
+    FIVE_MINUTES("5m", 5),
+    FIFTEEN_MINUTES("15m", 15),
+    HOUR("1h", 60),
+    DAY("1d", 1440);
+
+    private final String label;
+    private final int minutes;
+
+    BucketWidth(String label, int minutes) {
+        this.label = label;
+        this.minutes = minutes;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public int getMinutes() {
+        return minutes;
+    }
+
+    /**
+     * @param minuteOfDay
+     * @return index of the bucket containing a minute of the day
+     */
+    public int bucketOf(int minuteOfDay) {
+        return Math.min(minuteOfDay / minutes, bucketsPerDay() - 1);
+    }
+
+    /**
+     * @return number of buckets in the longest day
+     */
+    public int bucketsPerDay() {
+        return this == DAY ? 1 : TimeBuckets.MAX_MINUTES_PER_DAY / minutes;
+    }
+
+    /**
+     * Parse a label ("1m", "5m", "15m", "1h", "1d") or an enum name.
+     *
+     * @param value
+     * @return
+     */
+    public static BucketWidth parse(String value) {
+        for (BucketWidth width : values()) {
+            if (width.label.equalsIgnoreCase(value) || width.name().equalsIgnoreCase(value)) {
+                return width;
+            }
+        }
+        throw new IllegalArgumentException("Unknown bucket width: " + value);
+    }
+}
@@ -0,0 +1,252 @@
+package monitoring.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import util.concurrent.NamedThreadFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Queries over many servers: per-server queries of {@link MonitoringService} fan out on a bounded pool of
+ * monitoring.query.fleetThreads threads, and results are merged by the caller as soon as each server
+ * completes, so memory holds the merged result plus the results not yet merged only.
+ */
+@Component
+public class FleetQueryService {
+
+    private MonitoringService monitoringService;
+    private int fleetThreads = 8;
+    private ExecutorService executor;
+
+    /** query of a single server */
+    private interface ServerQuery<T> {
+        T query(String serverName);
+    }
+
+    /** incremental merge of per-server results, called on the caller thread only */
+    private interface Merger<T> {
+        void merge(String serverName, T result);
+    }
+
+    @Autowired
+    public void setMonitoringService(MonitoringService monitoringService) {
+        this.monitoringService = monitoringService;
+    }
+
+    /**
+     * Max number of servers queried concurrently
+     *
+     * @param fleetThreads
+     */
+    @Value("${monitoring.query.fleetThreads:8}")
+    public void setFleetThreads(int fleetThreads) {
+        this.fleetThreads = fleetThreads;
+    }
+
+    @PostConstruct
+    public void start() {
+        executor = Executors.newFixedThreadPool(fleetThreads, new NamedThreadFactory("fleet-query"));
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Query many servers and aggregate results per hour, see
+     * {@link MonitoringService#aggregatedValuesByHour(String, Date, Date, Set)}.
+     *
+     * @param serverNames
+     * @param startDate
+     * @param endDate
+     * @param metrics     metrics to aggregate, null for all
+     * @return serverName =&gt; hour =&gt; metric =&gt; average; servers without data are omitted
+     */
+    public SortedMap<String, SortedMap<Date, Map<String, Double>>> aggregatedValuesByHour(Collection<String> serverNames,
+                                                                                        final Date startDate, final Date endDate,
+                                                                                        final Set<String> metrics) {
+        final SortedMap<String, SortedMap<Date, Map<String, Double>>> result = new TreeMap<>();
+
+        fanOut(serverNames, new ServerQuery<SortedMap<Date, Map<String, Double>>>() {
+            @Override
+            public SortedMap<Date, Map<String, Double>> query(String serverName) {
+                return monitoringService.aggregatedValuesByHour(serverName, startDate, endDate, metrics);
+            }
+        }, new Merger<SortedMap<Date, Map<String, Double>>>() {
+            @Override
+            public void merge(String serverName, SortedMap<Date, Map<String, Double>> values) {
+                if (!values.isEmpty()) {
+                    result.put(serverName, values);
+                }
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Aggregate the values of many servers together, e.g. the fleet-wide mean per hour.
+     *
+     * @param serverNames
+     * @param startDate   inclusive
+     * @param endDate     exclusive
+     * @param width       bucket width
+     * @param metrics     metrics to aggregate, null for all
+     * @param functions   functions to compute
+     * @return bucket start =&gt; metric =&gt; function =&gt; value over all servers
+     */
+    public SortedMap<Date, Map<String, Map<AggregateFunction, Double>>> aggregate(Collection<String> serverNames,
+                                                                                final Date startDate, final Date endDate,
+                                                                                final BucketWidth width, final Set<String> metrics,
+                                                                                AggregateFunction... functions) {
+        final boolean withSketches = AggregateFunction.anyPercentile(functions);
+        final SortedMap<Date, Map<String, MetricAccumulator>> fleet = new TreeMap<>();
+
+        fanOut(serverNames, new ServerQuery<SortedMap<Date, Map<String, MetricAccumulator>>>() {
+            @Override
+            public SortedMap<Date, Map<String, MetricAccumulator>> query(String serverName) {
+                return monitoringService.accumulate(serverName, startDate, endDate, width, metrics, withSketches);
+            }
+        }, new Merger<SortedMap<Date, Map<String, MetricAccumulator>>>() {
+            @Override
+            public void merge(String serverName, SortedMap<Date, Map<String, MetricAccumulator>> accumulators) {
+                mergeInto(fleet, accumulators);
+            }
+        });
+
+        return MonitoringService.evaluate(fleet, functions);
+    }
+
+    /**
+     * Rank servers by a function of a metric over a whole period, e.g. top 20 servers by p95 of "mem"
+     * over the last 24 hours. Only the best n servers are kept while merging, in a bounded heap.
+     *
+     * @param serverNames
+     * @param startDate   inclusive
+     * @param endDate     exclusive
+     * @param metric      metric to rank by
+     * @param function    function of the metric to rank by
+     * @param n           number of servers to return
+     * @return at most n servers, highest value first; servers without data are omitted
+     */
+    public List<RankedServer> topServers(Collection<String> serverNames, final Date startDate, final Date endDate,
+                                         String metric, final AggregateFunction function, final int n) {
+        final Set<String> metrics = Collections.singleton(metric);
+        final PriorityQueue<RankedServer> heap = new PriorityQueue<>(Math.max(1, n + 1));
+
+        fanOut(serverNames, new ServerQuery<Double>() {
+            @Override
+            public Double query(String serverName) {
+                // one accumulator per day, merged into one for the whole period
+                MetricAccumulator total = new MetricAccumulator(function.isPercentile());
+                for (Map<String, MetricAccumulator> day : monitoringService.accumulate(serverName, startDate, endDate,
+                        BucketWidth.DAY, metrics, function.isPercentile()).values()) {
+                    for (MetricAccumulator acc : day.values()) {
+                        total.merge(acc);
+                    }
+                }
+                return total.getCount() == 0 ? Double.NaN : function.apply(total);
+            }
+        }, new Merger<Double>() {
+            @Override
+            public void merge(String serverName, Double value) {
+                if (!value.isNaN()) {
+                    offer(heap, n, new RankedServer(serverName, value));
+                }
+            }
+        });
+
+        List<RankedServer> result = new ArrayList<>(heap);
+        Collections.sort(result, Collections.reverseOrder());
+        return result;
+    }
+
+    /**
+     * Add a candidate to a min-heap holding the best n elements seen so far.
+     *
+     * @param heap
+     * @param n
+     * @param candidate
+     */
+    static <T extends Comparable<T>> void offer(PriorityQueue<T> heap, int n, T candidate) {
+        if (n <= 0) {
+            return;
+        }
+        if (heap.size() < n) {
+            heap.add(candidate);
+        } else if (candidate.compareTo(heap.peek()) > 0) {
+            heap.poll();
+            heap.add(candidate);
+        }
+    }
+
+    /**
+     * Merge per-bucket accumulators into others, reusing the source accumulators where possible.
+     *
+     * @param target bucket start =&gt; metric =&gt; accumulator, to update
+     * @param source bucket start =&gt; metric =&gt; accumulator
+     */
+    static void mergeInto(SortedMap<Date, Map<String, MetricAccumulator>> target,
+                          SortedMap<Date, Map<String, MetricAccumulator>> source) {
+        for (Map.Entry<Date, Map<String, MetricAccumulator>> entry : source.entrySet()) {
+            Map<String, MetricAccumulator> targetEntry = target.get(entry.getKey());
+            if (targetEntry == null) {
+                target.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+            for (Map.Entry<String, MetricAccumulator> metric : entry.getValue().entrySet()) {
+                MetricAccumulator acc = targetEntry.get(metric.getKey());
+                if (acc == null) {
+                    targetEntry.put(metric.getKey(), metric.getValue());
+                } else {
+                    acc.merge(metric.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a query for each server on the pool and merge results in completion order.
+     * The first failure cancels the queries still pending.
+     */
+    private <T> void fanOut(Collection<String> serverNames, final ServerQuery<T> query, Merger<T> merger) {
+        CompletionService<Map.Entry<String, T>> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Map.Entry<String, T>>> futures = new ArrayList<>(serverNames.size());
+
+        for (final String serverName : serverNames) {
+            futures.add(completion.submit(new Callable<Map.Entry<String, T>>() {
+                @Override
+                public Map.Entry<String, T> call() {
+                    return new AbstractMap.SimpleImmutableEntry<>(serverName, query.query(serverName));
+                }
+            }));
+        }
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Map.Entry<String, T> done = completion.take().get();
+                merger.merge(done.getKey(), done.getValue());
+            }
+        } catch (InterruptedException e) {
+            cancel(futures);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying servers", e);
+        } catch (ExecutionException e) {
+            cancel(futures);
+            throw new IllegalStateException("Error querying servers", e.getCause());
+        }
+    }
+
+    private static void cancel(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package monitoring.service;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import monitoring.TimeBuckets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Date;
+
+/**
+ * Secondary indexes of the day documents, created at startup in the raw collection and the retention tiers,
+ * and the query shapes they serve:
+ * <ul>
+ * <li>{@link #SERVER_DATE} (metadata.serverName, metadata.date): days of a server in a range
+ * ({@link #serverDaysQuery}), covered by {@link #LISTING_FIELDS}</li>
+ * <li>{@link #DATE_SERVER} (metadata.date, metadata.serverName): all documents of a day or before a date, e.g.
+ * preallocation and retention, and servers with data in a range ({@link #datesQuery})</li>
+ * <li>{@link #SERVER_HASHED}, when monitoring.indexes.hashed: a hashed serverName index, ready to shard on</li>
+ * </ul>
+ * Documents by id use the _id index. Index creation is idempotent; when monitoring.indexes.enabled=false
+ * or MongoDB is unreachable at startup nothing is created.
+ */
+@Component
+public class IndexService {
+
+    public static final String SERVER_DATE = "serverName_date";
+    public static final String DATE_SERVER = "date_serverName";
+    public static final String SERVER_HASHED = "serverName_hashed";
+
+    /** projection of listing queries: only fields of the indexes, so that documents are never fetched */
+    public static final DBObject LISTING_FIELDS =
+            new BasicDBObject("_id", 0).append("metadata.serverName", 1).append("metadata.date", 1);
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+    private MonitoringService monitoringService;
+    private MongoTemplate mongoTemplate;
+
+    private boolean enabled = true;
+    private boolean hashed = false;
+
+    @Autowired
+    public void setMonitoringService(MonitoringService monitoringService) {
+        this.monitoringService = monitoringService;
+    }
+
+    @Autowired
+    public void setMongoTemplate(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Value("${monitoring.indexes.enabled:true}")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Value("${monitoring.indexes.hashed:false}")
+    public void setHashed(boolean hashed) {
+        this.hashed = hashed;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            ensureIndexes();
+        } catch (MongoException e) {
+            log.warn("Indexes not verified, MongoDB unavailable: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Create the missing indexes of all collections.
+     */
+    public void ensureIndexes() {
+        for (String name : new String[]{monitoringService.getCollectionName(),
+                monitoringService.getHourlyCollectionName(), monitoringService.getDailyCollectionName()}) {
+            ensureIndexes(mongoTemplate.getCollection(name), hashed);
+        }
+    }
+
+    /**
+     * @param collection
+     * @param hashed     also create the hashed serverName index
+     */
+    public static void ensureIndexes(DBCollection collection, boolean hashed) {
+        collection.createIndex(new BasicDBObject("metadata.serverName", 1).append("metadata.date", 1),
+                new BasicDBObject("name", SERVER_DATE).append("background", true));
+        collection.createIndex(new BasicDBObject("metadata.date", 1).append("metadata.serverName", 1),
+                new BasicDBObject("name", DATE_SERVER).append("background", true));
+        if (hashed) {
+            collection.createIndex(new BasicDBObject("metadata.serverName", "hashed"),
+                    new BasicDBObject("name", SERVER_HASHED).append("background", true));
+        }
+    }
+
+    /**
+     * @param serverName
+     * @param startDate  inclusive, any time of the first day
+     * @param endDate    exclusive
+     * @return query of the day documents of a server in a range
+     */
+    public static DBObject serverDaysQuery(String serverName, Date startDate, Date endDate) {
+        return new BasicDBObject("metadata.serverName", serverName).append("metadata.date", dateRange(startDate, endDate));
+    }
+
+    /**
+     * @param startDate inclusive, any time of the first day
+     * @param endDate   exclusive
+     * @return query of the day documents of all servers in a range
+     */
+    public static DBObject datesQuery(Date startDate, Date endDate) {
+        return new BasicDBObject("metadata.date", dateRange(startDate, endDate));
+    }
+
+    private static DBObject dateRange(Date startDate, Date endDate) {
+        return new BasicDBObject("$gte", new Date(TimeBuckets.get().dayStart(startDate.getTime())))
+                .append("$lt", endDate);
+    }
+}
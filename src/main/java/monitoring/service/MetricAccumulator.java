@@ -0,0 +1,96 @@
+package monitoring.service;
+
+/**
+ * Mergeable summary of the values of one metric in one bucket: count, sum, min, max, running mean and
+ * variance (Welford, merged with Chan's formula) and, only if percentiles are requested, a
+ * {@link QuantileSketch}. No raw values are kept.
+ * <p>
+ * Not thread-safe.
+ */
+public class MetricAccumulator {
+
+    private long count;
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double mean;
+    private double m2;
+    private final QuantileSketch sketch;
+
+    /**
+     * @param withSketch track percentiles
+     */
+    public MetricAccumulator(boolean withSketch) {
+        this.sketch = withSketch ? new QuantileSketch() : null;
+    }
+
+    public void add(double value) {
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        if (sketch != null) {
+            sketch.add(value);
+        }
+    }
+
+    /**
+     * Add all values summarized by another accumulator, e.g. of another day or server.
+     *
+     * @param other
+     */
+    public void merge(MetricAccumulator other) {
+        if (other.count == 0) {
+            return;
+        }
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        m2 += other.m2 + delta * delta * count * other.count / total;
+        mean += delta * other.count / total;
+        count = total;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        if (sketch != null && other.sketch != null) {
+            sketch.merge(other.sketch);
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    public double getMean() {
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    /**
+     * @return population standard deviation
+     */
+    public double getStddev() {
+        return count == 0 ? Double.NaN : Math.sqrt(m2 / count);
+    }
+
+    /**
+     * @param q quantile, between 0 and 1
+     * @return estimated value, NaN if empty or created without sketch
+     */
+    public double getQuantile(double q) {
+        return sketch == null ? Double.NaN : sketch.quantile(q);
+    }
+}
@@ -1,29 +1,73 @@
 package monitoring.service;
 
-import com.mongodb.DBObject;
-import com.mongodb.Mongo;
-import monitoring.DailyMonitoringDataReadConverter;
+import com.mongodb.*;
+import monitoring.RawBsonDBObject;
+import monitoring.StorageCodec;
+import monitoring.StreamingDailyMonitoringDataDecoder;
+import monitoring.TimeBuckets;
+import monitoring.alert.AnomalyDetector;
+import monitoring.domain.ColumnarDailyMonitoringData;
 import monitoring.domain.DailyMonitoringData;
-import org.apache.commons.lang3.time.DateUtils;
+import monitoring.metrics.Instrumentation;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.mongo.MongoProperties;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+import util.concurrent.NamedThreadFactory;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
 
 @Service
 public class MonitoringService {
 
+    private static final String HOURLY_AVERAGE_MAP = loadScript("mongo/hourlyAverage.map.js");
+    private static final String HOURLY_AVERAGE_REDUCE = loadScript("mongo/hourlyAverage.reduce.js");
+    private static final String HOURLY_AVERAGE_FINALIZE = loadScript("mongo/hourlyAverage.finalize.js");
+    /** day documents per round trip of streaming queries */
+    private static final int STREAM_BATCH_SIZE = 4;
+    /** documents per round trip of other queries, small enough for batches to stay under the 4 MB getMore limit */
+    private static final int QUERY_BATCH_SIZE = 32;
+    /** incremented by every sample write of a day document, so that other writers can detect concurrent changes */
+    public static final String VERSION = "version";
+    private static final int DUPLICATE_KEY = 11000;
+    /** attempts of a merged write before giving up, when other writers keep changing the document */
+    private static final int MAX_MERGE_ATTEMPTS = 10;
+
     @Autowired
     private MongoProperties mongoProperties;
     private Mongo mongo;
     private MongoTemplate mongoTemplate;
     private String collectionName;
+    private TimeZone timeZone = TimeZone.getDefault();
+    private int dayStartMinutes = 0;
+    private int batchSize = 500;
+    private AggregationMode aggregationMode = AggregationMode.CLIENT;
+    private int conversionThreads = 0;
+    private boolean rollupsEnabled = false;
+    private boolean retentionEnabled = false;
+    private int retentionMinuteDays = 14;
+    private int retentionHourlyDays = 365;
+    private StorageCodec storageCodec = StorageCodec.NESTED;
+    private boolean cacheEnabled = false;
+    private int cacheMaxEntries = 10000;
+    private long cacheTodayTtlSeconds = 60;
+    private ExecutorService conversionExecutor;
+    private AggregationCache cache;
+    private AnomalyDetector anomalyDetector;
+    /** last write of this process into another day than today, or start of the process */
+    private volatile long pastDataModified = System.currentTimeMillis();
 
     @Autowired
     public void setMongoProperties(MongoProperties mongoProperties) {
@@ -40,6 +84,11 @@ public class MonitoringService {
         this.mongoTemplate = mongoTemplate;
     }
 
+    @Autowired(required = false)
+    public void setAnomalyDetector(AnomalyDetector anomalyDetector) {
+        this.anomalyDetector = anomalyDetector;
+    }
+
     @Value("${monitoring.collectionName}")
     public void setCollectionName(String collectionName) {
         this.collectionName = collectionName;
@@ -50,7 +99,211 @@ public class MonitoringService {
     }
 
     /**
-     * Query database and aggregate results per hour.
+     * Time zone of the day documents, see {@link TimeBuckets}
+     *
+     * @param timeZone time zone id, empty for the JVM default
+     */
+    @Value("${monitoring.time.zone:}")
+    public void setTimeZone(String timeZone) {
+        this.timeZone = timeZone.isEmpty() ? TimeZone.getDefault() : TimeZone.getTimeZone(timeZone);
+    }
+
+    /**
+     * @param dayStartMinutes start of the day documents, in minutes after local midnight
+     */
+    @Value("${monitoring.time.dayStartMinutes:0}")
+    public void setDayStartMinutes(int dayStartMinutes) {
+        this.dayStartMinutes = dayStartMinutes;
+    }
+
+    /**
+     * Max number of documents sent in a single bulk write
+     *
+     * @param batchSize
+     */
+    @Value("${monitoring.batch.size:500}")
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Value("${monitoring.aggregation.mode:CLIENT}")
+    public void setAggregationMode(AggregationMode aggregationMode) {
+        this.aggregationMode = aggregationMode;
+    }
+
+    public AggregationMode getAggregationMode() {
+        return aggregationMode;
+    }
+
+    /**
+     * Number of threads converting and aggregating day documents of range queries; 0 = caller thread
+     *
+     * @param conversionThreads
+     */
+    @Value("${monitoring.query.conversionThreads:0}")
+    public void setConversionThreads(int conversionThreads) {
+        this.conversionThreads = conversionThreads;
+    }
+
+    /**
+     * Maintain per-hour and per-day {@link Rollups} on every write
+     *
+     * @param rollupsEnabled
+     */
+    @Value("${monitoring.rollups.enabled:false}")
+    public void setRollupsEnabled(boolean rollupsEnabled) {
+        this.rollupsEnabled = rollupsEnabled;
+    }
+
+    public boolean isRollupsEnabled() {
+        return rollupsEnabled;
+    }
+
+    /**
+     * Read compacted days from the retention tiers, see {@link RetentionService}
+     *
+     * @param retentionEnabled
+     */
+    @Value("${monitoring.retention.enabled:false}")
+    public void setRetentionEnabled(boolean retentionEnabled) {
+        this.retentionEnabled = retentionEnabled;
+    }
+
+    public boolean isRetentionEnabled() {
+        return retentionEnabled;
+    }
+
+    /**
+     * Days of minute resolution data to keep
+     *
+     * @param retentionMinuteDays
+     */
+    @Value("${monitoring.retention.minuteDays:14}")
+    public void setRetentionMinuteDays(int retentionMinuteDays) {
+        this.retentionMinuteDays = retentionMinuteDays;
+    }
+
+    /**
+     * Days of hourly resolution data to keep; older data is kept at daily resolution forever
+     *
+     * @param retentionHourlyDays
+     */
+    @Value("${monitoring.retention.hourlyDays:365}")
+    public void setRetentionHourlyDays(int retentionHourlyDays) {
+        this.retentionHourlyDays = retentionHourlyDays;
+    }
+
+    /**
+     * Format of minute values written from now on, see {@link StorageCodec}; documents of any format are read
+     *
+     * @param storageCodec
+     */
+    @Value("${monitoring.storage.codec:NESTED}")
+    public void setStorageCodec(StorageCodec storageCodec) {
+        this.storageCodec = storageCodec;
+    }
+
+    public StorageCodec getStorageCodec() {
+        return storageCodec;
+    }
+
+    /**
+     * Cache per-day aggregation results, see {@link AggregationCache}
+     *
+     * @param cacheEnabled
+     */
+    @Value("${monitoring.cache.enabled:false}")
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    /**
+     * Max number of cached results, all days and resolutions together
+     *
+     * @param cacheMaxEntries
+     */
+    @Value("${monitoring.cache.maxEntries:10000}")
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        this.cacheMaxEntries = cacheMaxEntries;
+    }
+
+    /**
+     * Expiration of cached results of the current day, which is still being written
+     *
+     * @param cacheTodayTtlSeconds
+     */
+    @Value("${monitoring.cache.todayTtlSeconds:60}")
+    public void setCacheTodayTtlSeconds(long cacheTodayTtlSeconds) {
+        this.cacheTodayTtlSeconds = cacheTodayTtlSeconds;
+    }
+
+    /**
+     * @return the aggregation cache, null if disabled
+     */
+    public AggregationCache getCache() {
+        return cache;
+    }
+
+    public String getHourlyCollectionName() {
+        return collectionName + "_hourly";
+    }
+
+    public String getDailyCollectionName() {
+        return collectionName + "_daily";
+    }
+
+    /**
+     * @return days before this date are no longer kept at minute resolution
+     */
+    public Date getRawRetentionCutoff() {
+        return new Date(TimeBuckets.get().addDays(System.currentTimeMillis(), -retentionMinuteDays));
+    }
+
+    /**
+     * @param id     id of a day document
+     * @param cutoff retention cutoff
+     * @return true if the day starts before the cutoff
+     */
+    static boolean isBefore(String id, Date cutoff) {
+        Date day = DailyMonitoringData.parseIdDate(id);
+        return day != null && day.before(cutoff);
+    }
+
+    /**
+     * @return days before this date are no longer kept at hourly resolution
+     */
+    public Date getHourlyRetentionCutoff() {
+        return new Date(TimeBuckets.get().addDays(System.currentTimeMillis(), -retentionHourlyDays));
+    }
+
+    @PostConstruct
+    public void start() {
+        TimeBuckets.configure(new TimeBuckets(timeZone, dayStartMinutes));
+        if (storageCodec.isPacked() && aggregationMode == AggregationMode.SERVER) {
+            throw new IllegalStateException("Aggregation mode " + aggregationMode
+                    + " cannot read packed values, use storage codec " + StorageCodec.NESTED);
+        }
+        if (conversionThreads > 0) {
+            conversionExecutor = Executors.newFixedThreadPool(conversionThreads, new NamedThreadFactory("day-conversion"));
+        }
+        if (cacheEnabled) {
+            cache = new AggregationCache(cacheMaxEntries, TimeUnit.SECONDS.toMillis(cacheTodayTtlSeconds));
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (conversionExecutor != null) {
+            conversionExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Query database and aggregate results per hour, according to the configured {@link AggregationMode}.
      *
      * @param serverName
      * @param startDate
@@ -58,105 +311,1373 @@ public class MonitoringService {
      * @return
      */
     public SortedMap<Date, Map<String, Double>> aggregatedValuesByHour(String serverName, Date startDate, Date endDate) {
+        return aggregatedValuesByHour(serverName, startDate, endDate, null);
+    }
+
+    /**
+     * Query database and aggregate results per hour, only for some metrics.
+     * <p>
+     * With retention enabled, days no longer available at minute resolution are read from the hourly tier,
+     * then from the daily tier (one entry per day, at the beginning of the day).
+     * <p>
+     * With the cache enabled, days already aggregated are not queried again.
+     *
+     * @param serverName
+     * @param startDate
+     * @param endDate
+     * @param metrics    metrics to aggregate, null for all
+     * @return
+     */
+    public SortedMap<Date, Map<String, Double>> aggregatedValuesByHour(String serverName, Date startDate, Date endDate,
+                                                                     Set<String> metrics) {
+        long start = Instrumentation.HOURLY_QUERY.start();
+        try {
+            return cachedValues(serverName, dayIds(serverName, startDate, endDate), AggregationCache.Resolution.HOUR, metrics);
+        } finally {
+            Instrumentation.HOURLY_QUERY.stop(start);
+        }
+    }
+
+    /**
+     * Query database and aggregate results per day.
+     * With {@link AggregationMode#ROLLUP} only pre-computed daily rollups are read, otherwise raw data is
+     * aggregated in the application. With retention enabled, compacted days are read from the hourly
+     * and daily tiers.
+     *
+     * @param serverName
+     * @param startDate
+     * @param endDate
+     * @param metrics    metrics to aggregate, null for all
+     * @return day =&gt; metric =&gt; average
+     */
+    public SortedMap<Date, Map<String, Double>> aggregatedValuesByDay(String serverName, Date startDate, Date endDate,
+                                                                    Set<String> metrics) {
+        return cachedValues(serverName, dayIds(serverName, startDate, endDate), AggregationCache.Resolution.DAY, metrics);
+    }
+
+    /**
+     * Stream per-hour averages, see {@link #streamValues(String, Date, Date, BucketWidth, Set)}.
+     *
+     * @param serverName
+     * @param startDate
+     * @param endDate
+     * @param metrics    metrics to aggregate, null for all
+     * @return
+     */
+    public PointIterator streamValuesByHour(String serverName, Date startDate, Date endDate, Set<String> metrics) {
+        return streamValues(serverName, startDate, endDate, BucketWidth.HOUR, metrics);
+    }
+
+    /**
+     * Stream averages per bucket, in chronological order: day documents are read from a cursor a few at a time
+     * and aggregated on demand, so memory stays constant whatever the length of the range and the first points
+     * are available as soon as the first documents arrive.
+     * <p>
+     * Raw minute data only: neither the cache nor the retention tiers are read. The iterator must be consumed
+     * or closed to release the cursor.
+     *
+     * @param serverName
+     * @param startDate  inclusive
+     * @param endDate    exclusive
+     * @param width
+     * @param metrics    metrics to aggregate, null for all
+     * @return
+     */
+    public PointIterator streamValues(String serverName, Date startDate, Date endDate, BucketWidth width,
+                                      final Set<String> metrics) {
+        final DBCursor cursor = mongo.getDB(mongoProperties.getDatabase()).getCollection(collectionName)
+                .find(new BasicDBObject("_id", new BasicDBObject("$in", dayIds(serverName, startDate, endDate))))
+                .sort(new BasicDBObject("_id", 1))
+                .batchSize(STREAM_BATCH_SIZE);
+        cursor.setDecoderFactory(RawBsonDBObject.FACTORY);
+
+        final StreamingDailyMonitoringDataDecoder decoder = new StreamingDailyMonitoringDataDecoder();
+        Iterator<ColumnarDailyMonitoringData> days = new Iterator<ColumnarDailyMonitoringData>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public ColumnarDailyMonitoringData next() {
+                return decoder.decode(((RawBsonDBObject) cursor.next()).toByteArray(), metrics);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        return new PointIterator(days, new Closeable() {
+            @Override
+            public void close() {
+                countRoundTrips(cursor, STREAM_BATCH_SIZE);
+                cursor.close();
+            }
+        }, width, startDate, endDate);
+    }
+
+    private SortedMap<Date, Map<String, Double>> cachedValues(String serverName, List<String> ids,
+                                                              AggregationCache.Resolution resolution, Set<String> metrics) {
+        if (cache == null) {
+            return resolution == AggregationCache.Resolution.HOUR
+                    ? hourlyValues(serverName, ids, metrics) : dailyValues(serverName, ids, metrics);
+        }
 
         SortedMap<Date, Map<String, Double>> result = new TreeMap<>();
+        List<String> missing = new ArrayList<>();
 
-        Calendar cal = DateUtils.toCalendar(startDate);
+        for (String id : ids) {
+            SortedMap<Date, Map<String, Double>> day = cache.get(id, resolution);
+            if (day == null) {
+                missing.add(id);
+            } else {
+                putFiltered(result, day, metrics);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            // cache all metrics, filter afterwards
+            long generation = cache.generation();
+            SortedMap<Date, Map<String, Double>> computed = resolution == AggregationCache.Resolution.HOUR
+                    ? hourlyValues(serverName, missing, null) : dailyValues(serverName, missing, null);
+            cache.putAll(serverName, missing, resolution, computed, generation);
+            putFiltered(result, computed, metrics);
+        }
 
-        // for each day...
-        while (cal.getTime().before(endDate)) {
+        return result;
+    }
 
-            // build key
-            String key = DailyMonitoringData.formatId(serverName, cal.getTime());
-            // find data
+    /** initial query plus getMores, once the cursor is consumed */
+    private static void countRoundTrips(DBCursor cursor, int batchSize) {
+        Instrumentation.QUERY_ROUND_TRIPS.add(roundTrips(cursor.numSeen(), batchSize));
+    }
 
-            // FIXME configure custom converters!
-            /*
-            DailyMonitoringData data = mongoTemplate.findById(
-                    new Query(Criteria.where("_id").is(key)),
-                    DailyMonitoringData.class);
-            */
-            DBObject doc = mongo.getDB(mongoProperties.getDatabase()).getCollection(collectionName).findOne(key);
-            DailyMonitoringData data = new DailyMonitoringDataReadConverter().convert(doc);
+    /**
+     * @param documents documents read from a cursor
+     * @param batchSize documents per batch of the cursor
+     * @return batches needed to read them: at least the initial query
+     */
+    static int roundTrips(int documents, int batchSize) {
+        return 1 + Math.max(0, documents - 1) / batchSize;
+    }
 
-            // not found?
-            if (data == null) {
-                continue;
+    private static void putFiltered(SortedMap<Date, Map<String, Double>> result, SortedMap<Date, Map<String, Double>> values,
+                                    Set<String> metrics) {
+        for (Map.Entry<Date, Map<String, Double>> entry : values.entrySet()) {
+            Map<String, Double> resultEntry = entry.getValue();
+            if (metrics != null) {
+                resultEntry.keySet().retainAll(metrics);
+                if (resultEntry.isEmpty()) {
+                    continue;
+                }
             }
+            result.put(entry.getKey(), resultEntry);
+        }
+    }
 
-            // for each hour...
-            for (String hh : data.getData().keySet()) {
-                Map<String, Integer> samplesCount = new HashMap<>();
-                Map<String, Double> samplesTotals = new HashMap<>();
+    private SortedMap<Date, Map<String, Double>> hourlyValues(String serverName, List<String> ids, Set<String> metrics) {
+        SortedMap<Date, Map<String, Double>> result;
 
-                SortedMap<String, Map<String, Double>> minutes = data.getData().get(hh);
+        if (aggregationMode == AggregationMode.ROLLUP) {
+            result = new TreeMap<>();
+            readRollups(collectionName, ids, true, metrics, result);
+        } else if (aggregationMode == AggregationMode.SERVER) {
+            result = hourlyValuesOnServer(ids);
+            if (metrics != null) {
+                for (Map<String, Double> entry : result.values()) {
+                    entry.keySet().retainAll(metrics);
+                }
+            }
+        } else {
+            result = hourlyValuesOnClient(serverName, ids, metrics);
+        }
 
-                // for each minute...
-                for (String mm : minutes.keySet()) {
-                    Map<String, Double> sample = minutes.get(mm);
-                    // for each sample...
-                    for (String metric : sample.keySet()) {
-                        // update count
-                        if (samplesCount.containsKey(metric)) {
-                            samplesCount.put(metric, samplesCount.get(metric) + 1);
-                        } else {
-                            samplesCount.put(metric, 1);
-                        }
+        if (isRetentionNeeded(ids)) {
+            List<String> missing = missingDayIds(serverName, ids, result);
+            missing.removeAll(readRollups(getHourlyCollectionName(), missing, true, metrics, result));
+            readRollups(getDailyCollectionName(), missing, false, metrics, result);
+        }
 
-                        // update total
-                        if (samplesTotals.containsKey(metric)) {
-                            samplesTotals.put(metric, samplesTotals.get(metric) + sample.get(metric));
-                        } else {
-                            samplesTotals.put(metric, sample.get(metric));
-                        }
-                    } // for each sample...
-                } // for each minute...
+        return result;
+    }
+
+    private SortedMap<Date, Map<String, Double>> dailyValues(String serverName, List<String> ids, Set<String> metrics) {
+        SortedMap<Date, Map<String, Double>> result = new TreeMap<>();
 
-                // build result entry for this hour
-                Map<String, Double> resultEntry = new HashMap<>();
+        if (aggregationMode == AggregationMode.ROLLUP) {
+            readRollups(collectionName, ids, false, metrics, result);
+        } else {
+            DBCursor cursor = mongo.getDB(mongoProperties.getDatabase()).getCollection(collectionName)
+                    .find(new BasicDBObject("_id", new BasicDBObject("$in", ids)))
+                    .batchSize(QUERY_BATCH_SIZE);
+            cursor.setDecoderFactory(RawBsonDBObject.FACTORY);
 
-                for (String metric : samplesTotals.keySet()) {
-                    Double avg = samplesTotals.get(metric) / samplesCount.get(metric);
-                    resultEntry.put(metric, avg);
+            try {
+                StreamingDailyMonitoringDataDecoder decoder = new StreamingDailyMonitoringDataDecoder();
+                while (cursor.hasNext()) {
+                    ColumnarDailyMonitoringData data = decoder.decode(((RawBsonDBObject) cursor.next()).toByteArray(), metrics);
+                    Map<String, Double> averages = averageByDay(data);
+                    if (!averages.isEmpty()) {
+                        result.put(data.getDate(), averages);
+                    }
                 }
+            } finally {
+                countRoundTrips(cursor, QUERY_BATCH_SIZE);
+                cursor.close();
+            }
+        }
+
+        if (isRetentionNeeded(ids)) {
+            List<String> missing = missingDayIds(serverName, ids, result);
+            missing.removeAll(readRollups(getHourlyCollectionName(), missing, false, metrics, result));
+            readRollups(getDailyCollectionName(), missing, false, metrics, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param ids sorted ids of day documents
+     * @return true if some of the days may have been moved to the retention tiers
+     */
+    private boolean isRetentionNeeded(List<String> ids) {
+        if (!retentionEnabled || ids.isEmpty()) {
+            return false;
+        }
+        // else
+        Date first = DailyMonitoringData.parseIdDate(ids.get(0));
+        return first != null && first.before(getRawRetentionCutoff());
+    }
+
+    /**
+     * Read per-hour averages from pre-computed {@link Rollups}: only "rollups.hours" is transferred.
+     *
+     * @param serverName
+     * @param startDate
+     * @param endDate
+     * @param metrics    metrics to aggregate, null for all
+     * @return
+     */
+    public SortedMap<Date, Map<String, Double>> aggregatedValuesByHourFromRollups(String serverName, Date startDate, Date endDate,
+                                                                                Set<String> metrics) {
+        SortedMap<Date, Map<String, Double>> result = new TreeMap<>();
+        readRollups(collectionName, dayIds(serverName, startDate, endDate), true, metrics, result);
+        return result;
+    }
+
+    /**
+     * Read averages from the {@link Rollups} of some day documents.
+     *
+     * @param collection collection to read: raw data or a retention tier
+     * @param ids        ids of day documents
+     * @param hourly     read "rollups.hours" if true, "rollups.day" otherwise
+     * @param metrics    metrics to read, null for all
+     * @param result     date =&gt; metric =&gt; average, to fill
+     * @return ids of the documents found
+     */
+    Set<String> readRollups(String collection, List<String> ids, boolean hourly, Set<String> metrics,
+                            SortedMap<Date, Map<String, Double>> result) {
+        Set<String> found = new HashSet<>();
+        if (ids.isEmpty()) {
+            return found;
+        }
 
-                Calendar calEntry = DateUtils.truncate(cal, Calendar.DAY_OF_MONTH);
-                calEntry.add(Calendar.HOUR_OF_DAY, Integer.valueOf(hh));
-                result.put(calEntry.getTime(), resultEntry);
+        DBObject fields = new BasicDBObject("metadata.date", 1).append(hourly ? Rollups.HOURS : Rollups.DAY, 1);
+        DBCursor cursor = mongo.getDB(mongoProperties.getDatabase()).getCollection(collection)
+                .find(new BasicDBObject("_id", new BasicDBObject("$in", ids)), fields)
+                .batchSize(QUERY_BATCH_SIZE);
+
+        try {
+            while (cursor.hasNext()) {
+                DBObject doc = cursor.next();
+                found.add((String) doc.get("_id"));
+                addRollups(doc, hourly, metrics, result);
+            }
+        } finally {
+            countRoundTrips(cursor, QUERY_BATCH_SIZE);
+            cursor.close();
+        }
+
+        return found;
+    }
+
+    /**
+     * Read averages from the {@link Rollups} of a day document.
+     *
+     * @param doc     day document with "metadata.date" and "rollups"
+     * @param hourly  read "rollups.hours" if true, "rollups.day" otherwise
+     * @param metrics metrics to read, null for all
+     * @param result  date =&gt; metric =&gt; average, to fill
+     */
+    static void addRollups(DBObject doc, boolean hourly, Set<String> metrics, SortedMap<Date, Map<String, Double>> result) {
+        DBObject rollups = (DBObject) doc.get(Rollups.FIELD);
 
-            } // for each hour...
+        if (hourly) {
+            result.putAll(Rollups.hourlyAverages(documentDay(doc),
+                    rollups == null ? null : (DBObject) rollups.get("hours"), metrics));
+        } else {
+            Map<String, Double> averages = Rollups.averages(
+                    rollups == null ? null : (DBObject) rollups.get("day"), metrics);
+            if (!averages.isEmpty()) {
+                result.put(documentDay(doc), averages);
+            }
+        }
+    }
 
-            cal.add(Calendar.DAY_OF_MONTH, 1);
+    /**
+     * @return ids without any entry in result
+     */
+    private static List<String> missingDayIds(String serverName, List<String> ids,
+                                              SortedMap<Date, Map<String, Double>> result) {
+        List<String> missing = new ArrayList<>(ids);
+        Set<String> covered = new HashSet<>();
+        for (Date date : result.keySet()) {
+            covered.add(DailyMonitoringData.formatId(serverName, date));
+        }
+        missing.removeAll(covered);
+        return missing;
+    }
 
-        } // // for each day...
+    /**
+     * @return names of all servers with raw minute data
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> getServerNames() {
+        List<String> result = new ArrayList<>(mongo.getDB(mongoProperties.getDatabase()).getCollection(collectionName)
+                .distinct("metadata.serverName"));
+        Collections.sort(result);
+        return result;
+    }
 
+    /**
+     * @param startDate inclusive
+     * @param endDate   exclusive
+     * @return names of the servers with raw minute data in a range, read from the {@link IndexService#DATE_SERVER}
+     * index
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> getServerNames(Date startDate, Date endDate) {
+        List<String> result = new ArrayList<>(mongo.getDB(mongoProperties.getDatabase()).getCollection(collectionName)
+                .distinct("metadata.serverName", IndexService.datesQuery(startDate, endDate)));
+        Collections.sort(result);
         return result;
     }
 
     /**
-     * Store a sample measurement, Map of: name =&gt; value
+     * Days with raw minute data of a server, answered from the {@link IndexService#SERVER_DATE} index alone.
      *
      * @param serverName
-     * @param timestamp
-     * @param samples     samples to store: name =&gt; value
+     * @param startDate  inclusive
+     * @param endDate    exclusive
+     * @return start of the days, in order
      */
-    public void addSample(String serverName, Date timestamp, Map<String, Double> samples) {
-        String id = DailyMonitoringData.formatId(serverName, timestamp);
-        Calendar cal = DateUtils.toCalendar(timestamp);
-        Update update = new Update();
+    public List<Date> listDays(String serverName, Date startDate, Date endDate) {
+        DBCursor cursor = mongo.getDB(mongoProperties.getDatabase()).getCollection(collectionName)
+                .find(IndexService.serverDaysQuery(serverName, startDate, endDate), IndexService.LISTING_FIELDS)
+                .sort(new BasicDBObject("metadata.date", 1))
+                .batchSize(QUERY_BATCH_SIZE);
+
+        List<Date> result = new ArrayList<>();
+        try {
+            while (cursor.hasNext()) {
+                result.add((Date) ((DBObject) cursor.next().get("metadata")).get("date"));
+            }
+        } finally {
+            countRoundTrips(cursor, QUERY_BATCH_SIZE);
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Recompute {@link Rollups} from raw minute data, e.g. for documents written before rollups were enabled.
+     *
+     * @param serverName server to rebuild, null for all
+     * @return number of documents updated
+     */
+    public int rebuildRollups(String serverName) {
+        DBCollection collection = mongo.getDB(mongoProperties.getDatabase()).getCollection(collectionName);
+        DBObject query = serverName == null ? new BasicDBObject()
+                : new BasicDBObject("_id", new BasicDBObject("$regex", "^" + Pattern.quote(serverName) + "/"));
+
+        DBCursor cursor = collection.find(query, new BasicDBObject(Rollups.FIELD, 0));
+        cursor.setDecoderFactory(RawBsonDBObject.FACTORY);
+
+        StreamingDailyMonitoringDataDecoder decoder = new StreamingDailyMonitoringDataDecoder();
+        BulkWriteOperation bulk = null;
+        int pending = 0;
+        int updated = 0;
+
+        try {
+            while (cursor.hasNext()) {
+                RawBsonDBObject doc = (RawBsonDBObject) cursor.next();
+                DBObject rollups = Rollups.compute(decoder.decode(doc.toByteArray(), null));
+
+                if (bulk == null) {
+                    bulk = collection.initializeUnorderedBulkOperation();
+                }
+                bulk.find(new BasicDBObject("_id", doc.get("_id")))
+                        .updateOne(new BasicDBObject("$set", new BasicDBObject(Rollups.FIELD, rollups)));
+                pending++;
+                updated++;
 
-        for (Map.Entry<String, Double> sample : samples.entrySet()) {
-            String hoursKey = String.format("%02d", cal.get(Calendar.HOUR_OF_DAY));
-            String minutesKey = String.format("%02d", cal.get(Calendar.MINUTE));
-            String key = "data." + hoursKey + "." + minutesKey + "." + sample.getKey();
-            update.set(key, sample.getValue());
+                if (pending >= batchSize) {
+                    bulk.execute();
+                    bulk = null;
+                    pending = 0;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (bulk != null) {
+            bulk.execute();
+        }
+
+        return updated;
+    }
+
+    private static Date documentDay(DBObject doc) {
+        DBObject metadata = (DBObject) doc.get("metadata");
+        if (metadata != null && metadata.get("date") != null) {
+            return (Date) metadata.get("date");
         }
+        // upserted without metadata
+        return DailyMonitoringData.parseIdDate((String) doc.get("_id"));
+    }
 
-        mongoTemplate.upsert(
-                new Query(Criteria.where("_id").is(id)),
-                update,
-                collectionName
-        );
+    /**
+     * Aggregate results per hour inside MongoDB with map-reduce: only the per-hour averages are transferred.
+     *
+     * @param serverName
+     * @param startDate
+     * @param endDate
+     * @return
+     */
+    public SortedMap<Date, Map<String, Double>> aggregatedValuesByHourOnServer(String serverName, Date startDate, Date endDate) {
+        return hourlyValuesOnServer(dayIds(serverName, startDate, endDate));
     }
 
+    private SortedMap<Date, Map<String, Double>> hourlyValuesOnServer(List<String> ids) {
+
+        SortedMap<Date, Map<String, Double>> result = new TreeMap<>();
+
+        DBCollection collection = mongo.getDB(mongoProperties.getDatabase()).getCollection(collectionName);
+        MapReduceCommand command = new MapReduceCommand(
+                collection,
+                HOURLY_AVERAGE_MAP,
+                HOURLY_AVERAGE_REDUCE,
+                null,
+                MapReduceCommand.OutputType.INLINE,
+                new BasicDBObject("_id", new BasicDBObject("$in", ids)));
+        command.setFinalize(HOURLY_AVERAGE_FINALIZE);
+
+        MapReduceOutput output = collection.mapReduce(command);
+        Instrumentation.QUERY_ROUND_TRIPS.increment();
+
+        // key: {d: yyyyMMdd, h: hour}, value: {metric: average}
+        TimeBuckets timeBuckets = TimeBuckets.get();
+        for (DBObject doc : output.results()) {
+            DBObject key = (DBObject) doc.get("_id");
+            DBObject value = (DBObject) doc.get("value");
+
+            Date hour = new Date(timeBuckets.hourStart(timeBuckets.parseDayLabel((String) key.get("d")),
+                    ((Number) key.get("h")).intValue()));
+
+            Map<String, Double> resultEntry = new HashMap<>();
+            for (String metric : value.keySet()) {
+                resultEntry.put(metric, ((Number) value.get(metric)).doubleValue());
+            }
+            result.put(hour, resultEntry);
+        }
+
+        return result;
+    }
+
+    /**
+     * Query database and aggregate results per hour in the application.
+     *
+     * @param serverName
+     * @param startDate
+     * @param endDate
+     * @return
+     */
+    public SortedMap<Date, Map<String, Double>> aggregatedValuesByHourOnClient(String serverName, Date startDate, Date endDate) {
+        return aggregatedValuesByHourOnClient(serverName, startDate, endDate, null);
+    }
+
+    /**
+     * Query database and aggregate results per hour in the application.
+     * All days of the range are fetched with a single query and aggregated as they stream in;
+     * missing days are skipped. Raw documents are decoded in a single streaming pass, skipping
+     * unwanted metrics.
+     *
+     * @param serverName
+     * @param startDate
+     * @param endDate
+     * @param metrics    metrics to aggregate, null for all
+     * @return
+     */
+    public SortedMap<Date, Map<String, Double>> aggregatedValuesByHourOnClient(String serverName, Date startDate, Date endDate,
+                                                                             Set<String> metrics) {
+        return hourlyValuesOnClient(serverName, dayIds(serverName, startDate, endDate), metrics);
+    }
+
+    private SortedMap<Date, Map<String, Double>> hourlyValuesOnClient(String serverName, List<String> ids,
+                                                                    final Set<String> metrics) {
+
+        SortedMap<Date, Map<String, Double>> result = new TreeMap<>();
+
+        DBCursor cursor = mongo.getDB(mongoProperties.getDatabase()).getCollection(collectionName)
+                .find(new BasicDBObject("_id", new BasicDBObject("$in", ids)))
+                .batchSize(QUERY_BATCH_SIZE);
+        cursor.setDecoderFactory(RawBsonDBObject.FACTORY);
+
+        try {
+            if (conversionExecutor == null) {
+                StreamingDailyMonitoringDataDecoder decoder = new StreamingDailyMonitoringDataDecoder();
+                // for each day...
+                while (cursor.hasNext()) {
+                    byte[] bson = ((RawBsonDBObject) cursor.next()).toByteArray();
+                    result.putAll(averageByHour(decoder.decode(bson, metrics)));
+                }
+            } else {
+                // convert and aggregate days in parallel while the cursor is still streaming
+                List<Future<SortedMap<Date, Map<String, Double>>>> days = new ArrayList<>();
+                while (cursor.hasNext()) {
+                    final byte[] bson = ((RawBsonDBObject) cursor.next()).toByteArray();
+                    days.add(conversionExecutor.submit(new Callable<SortedMap<Date, Map<String, Double>>>() {
+                        @Override
+                        public SortedMap<Date, Map<String, Double>> call() {
+                            return averageByHour(new StreamingDailyMonitoringDataDecoder().decode(bson, metrics));
+                        }
+                    }));
+                }
+                for (Future<SortedMap<Date, Map<String, Double>>> day : days) {
+                    result.putAll(day.get());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while aggregating " + serverName, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error aggregating " + serverName, e.getCause());
+        } finally {
+            countRoundTrips(cursor, QUERY_BATCH_SIZE);
+            cursor.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Average the values of a single day, per hour.
+     *
+     * @param data day document
+     * @return hour =&gt; metric =&gt; average
+     */
+    public static SortedMap<Date, Map<String, Double>> averageByHour(DailyMonitoringData data) {
+
+        SortedMap<Date, Map<String, Double>> result = new TreeMap<>();
+
+        // for each hour...
+        for (String hh : data.getData().keySet()) {
+            Map<String, Integer> samplesCount = new HashMap<>();
+            Map<String, Double> samplesTotals = new HashMap<>();
+
+            SortedMap<String, Map<String, Double>> minutes = data.getData().get(hh);
+
+            // for each minute...
+            for (String mm : minutes.keySet()) {
+                Map<String, Double> sample = minutes.get(mm);
+                // for each sample...
+                for (String metric : sample.keySet()) {
+                    Double value = sample.get(metric);
+                    // preallocated, never written
+                    if (value == null) {
+                        continue;
+                    }
+
+                    // update count
+                    if (samplesCount.containsKey(metric)) {
+                        samplesCount.put(metric, samplesCount.get(metric) + 1);
+                    } else {
+                        samplesCount.put(metric, 1);
+                    }
+
+                    // update total
+                    if (samplesTotals.containsKey(metric)) {
+                        samplesTotals.put(metric, samplesTotals.get(metric) + value);
+                    } else {
+                        samplesTotals.put(metric, value);
+                    }
+                } // for each sample...
+            } // for each minute...
+
+            if (samplesTotals.isEmpty()) {
+                continue;
+            }
+
+            // build result entry for this hour
+            Map<String, Double> resultEntry = new HashMap<>();
+
+            for (String metric : samplesTotals.keySet()) {
+                Double avg = samplesTotals.get(metric) / samplesCount.get(metric);
+                resultEntry.put(metric, avg);
+            }
+
+            result.put(new Date(TimeBuckets.get().hourStart(data.getMetadata().getDate().getTime(), Integer.parseInt(hh))),
+                    resultEntry);
+
+        } // for each hour...
+
+        return result;
+    }
+
+    /**
+     * Average the values of a single day, per hour.
+     *
+     * @param data day document, columnar representation
+     * @return hour =&gt; metric =&gt; average
+     */
+    public static SortedMap<Date, Map<String, Double>> averageByHour(ColumnarDailyMonitoringData data) {
+
+        SortedMap<Date, Map<String, Double>> result = new TreeMap<>();
+        String[] metrics = data.getMetrics();
+
+        for (int hour = 0; hour < ColumnarDailyMonitoringData.MAX_MINUTES_PER_DAY / 60; hour++) {
+            Map<String, Double> resultEntry = null;
+
+            for (int i = 0; i < metrics.length; i++) {
+                double[] column = data.getColumn(i);
+                double total = 0.0;
+                int count = 0;
+
+                for (int minuteOfDay = hour * 60; minuteOfDay < hour * 60 + 60; minuteOfDay++) {
+                    double value = column[minuteOfDay];
+                    if (!Double.isNaN(value)) {
+                        total += value;
+                        count++;
+                    }
+                }
+
+                if (count > 0) {
+                    if (resultEntry == null) {
+                        resultEntry = new HashMap<>();
+                    }
+                    resultEntry.put(metrics[i], total / count);
+                }
+            }
+
+            if (resultEntry != null) {
+                result.put(new Date(TimeBuckets.get().hourStart(data.getDate().getTime(), hour)), resultEntry);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Average the values of a single day.
+     *
+     * @param data day document, columnar representation
+     * @return metric =&gt; average
+     */
+    public static Map<String, Double> averageByDay(ColumnarDailyMonitoringData data) {
+        Map<String, Double> result = new HashMap<>();
+        String[] metrics = data.getMetrics();
+
+        for (int i = 0; i < metrics.length; i++) {
+            double total = 0.0;
+            int count = 0;
+            for (double value : data.getColumn(i)) {
+                if (!Double.isNaN(value)) {
+                    total += value;
+                    count++;
+                }
+            }
+            if (count > 0) {
+                result.put(metrics[i], total / count);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Query raw minute data and compute aggregate functions over buckets of any width.
+     * Days already compacted by retention have no minute data and are not included.
+     *
+     * @param serverName
+     * @param startDate  inclusive
+     * @param endDate    exclusive
+     * @param width      bucket width
+     * @param metrics    metrics to aggregate, null for all
+     * @param functions  functions to compute
+     * @return bucket start =&gt; metric =&gt; function =&gt; value
+     */
+    public SortedMap<Date, Map<String, Map<AggregateFunction, Double>>> aggregate(String serverName, Date startDate, Date endDate,
+                                                                                BucketWidth width, Set<String> metrics,
+                                                                                AggregateFunction... functions) {
+        return evaluate(accumulate(serverName, startDate, endDate, width, metrics,
+                AggregateFunction.anyPercentile(functions)), functions);
+    }
+
+    /**
+     * Query raw minute data and summarize it per bucket, without evaluating any function: accumulators
+     * of different servers can still be merged.
+     *
+     * @param serverName
+     * @param startDate    inclusive
+     * @param endDate      exclusive
+     * @param width        bucket width
+     * @param metrics      metrics to aggregate, null for all
+     * @param withSketches track percentiles
+     * @return bucket start =&gt; metric =&gt; accumulator
+     */
+    public SortedMap<Date, Map<String, MetricAccumulator>> accumulate(String serverName, Date startDate, Date endDate,
+                                                                      BucketWidth width, Set<String> metrics,
+                                                                      boolean withSketches) {
+        SortedMap<Date, Map<String, MetricAccumulator>> result = new TreeMap<>();
+
+        DBCursor cursor = mongo.getDB(mongoProperties.getDatabase()).getCollection(collectionName)
+                .find(new BasicDBObject("_id", new BasicDBObject("$in", dayIds(serverName, startDate, endDate))))
+                .batchSize(QUERY_BATCH_SIZE);
+        cursor.setDecoderFactory(RawBsonDBObject.FACTORY);
+
+        try {
+            StreamingDailyMonitoringDataDecoder decoder = new StreamingDailyMonitoringDataDecoder();
+            while (cursor.hasNext()) {
+                ColumnarDailyMonitoringData data = decoder.decode(((RawBsonDBObject) cursor.next()).toByteArray(), metrics);
+                accumulateDay(data, width, startDate, endDate, withSketches, result);
+            }
+        } finally {
+            countRoundTrips(cursor, QUERY_BATCH_SIZE);
+            cursor.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Summarize the values of a single day per bucket, merging them into existing accumulators.
+     *
+     * @param data         day document
+     * @param width        bucket width
+     * @param startDate    inclusive
+     * @param endDate      exclusive
+     * @param withSketches track percentiles
+     * @param result       bucket start =&gt; metric =&gt; accumulator, to fill
+     */
+    public static void accumulateDay(ColumnarDailyMonitoringData data, BucketWidth width, Date startDate, Date endDate,
+                                     boolean withSketches, SortedMap<Date, Map<String, MetricAccumulator>> result) {
+        int[] ranges = minuteRanges(data.getDate(), startDate, endDate);
+        if (ranges[0] >= ranges[1] && ranges[2] >= ranges[3]) {
+            return;
+        }
+
+        String[] metrics = data.getMetrics();
+        Date[] bucketDates = new Date[width.bucketsPerDay()];
+
+        for (int i = 0; i < metrics.length; i++) {
+            double[] column = data.getColumn(i);
+            MetricAccumulator[] buckets = new MetricAccumulator[bucketDates.length];
+
+            for (int range = 0; range < ranges.length; range += 2) {
+                for (int minuteOfDay = ranges[range]; minuteOfDay < ranges[range + 1]; minuteOfDay++) {
+                    double value = column[minuteOfDay];
+                    if (!Double.isNaN(value)) {
+                        int bucket = width.bucketOf(minuteOfDay);
+                        if (buckets[bucket] == null) {
+                            buckets[bucket] = new MetricAccumulator(withSketches);
+                        }
+                        buckets[bucket].add(value);
+                    }
+                }
+            }
+
+            for (int bucket = 0; bucket < buckets.length; bucket++) {
+                if (buckets[bucket] == null) {
+                    continue;
+                }
+                if (bucketDates[bucket] == null) {
+                    bucketDates[bucket] = new Date(TimeBuckets.get().minuteStart(data.getDate().getTime(),
+                            bucket * width.getMinutes()));
+                }
+
+                Map<String, MetricAccumulator> resultEntry = result.get(bucketDates[bucket]);
+                if (resultEntry == null) {
+                    resultEntry = new HashMap<>();
+                    result.put(bucketDates[bucket], resultEntry);
+                }
+                MetricAccumulator acc = resultEntry.get(metrics[i]);
+                if (acc == null) {
+                    resultEntry.put(metrics[i], buckets[bucket]);
+                } else {
+                    acc.merge(buckets[bucket]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return minute ranges of a day within [startDate, endDate): wall-clock minutes [0], [1] and repeated
+     *         fall-back minutes [2], [3], end exclusive
+     */
+    static int[] minuteRanges(Date day, Date startDate, Date endDate) {
+        TimeBuckets timeBuckets = TimeBuckets.get();
+        long timestamp = day.getTime();
+        return new int[] { timeBuckets.wallClockMinutesBefore(timestamp, startDate.getTime()),
+                timeBuckets.wallClockMinutesBefore(timestamp, endDate.getTime()),
+                timeBuckets.repeatedMinutesBefore(timestamp, startDate.getTime()),
+                timeBuckets.repeatedMinutesBefore(timestamp, endDate.getTime()) };
+    }
+
+    /**
+     * Compute aggregate functions from per-bucket accumulators.
+     *
+     * @param accumulators bucket start =&gt; metric =&gt; accumulator
+     * @param functions    functions to compute
+     * @return bucket start =&gt; metric =&gt; function =&gt; value
+     */
+    public static SortedMap<Date, Map<String, Map<AggregateFunction, Double>>> evaluate(
+            SortedMap<Date, Map<String, MetricAccumulator>> accumulators, AggregateFunction... functions) {
+        SortedMap<Date, Map<String, Map<AggregateFunction, Double>>> result = new TreeMap<>();
+
+        for (Map.Entry<Date, Map<String, MetricAccumulator>> entry : accumulators.entrySet()) {
+            Map<String, Map<AggregateFunction, Double>> resultEntry = new HashMap<>();
+            for (Map.Entry<String, MetricAccumulator> metric : entry.getValue().entrySet()) {
+                Map<AggregateFunction, Double> values = new EnumMap<>(AggregateFunction.class);
+                for (AggregateFunction function : functions) {
+                    values.put(function, function.apply(metric.getValue()));
+                }
+                resultEntry.put(metric.getKey(), values);
+            }
+            result.put(entry.getKey(), resultEntry);
+        }
+
+        return result;
+    }
+
+    /**
+     * Build the ids of all day documents between two dates.
+     *
+     * @param serverName
+     * @param startDate  inclusive
+     * @param endDate    exclusive
+     * @return
+     */
+    public static List<String> dayIds(String serverName, Date startDate, Date endDate) {
+        TimeBuckets timeBuckets = TimeBuckets.get();
+        List<String> ids = new ArrayList<>();
+        for (long day = timeBuckets.dayStart(startDate.getTime()); day < endDate.getTime(); day = timeBuckets.addDays(day, 1)) {
+            ids.add(serverName + "/" + timeBuckets.dayLabel(day));
+        }
+        return ids;
+    }
+
+    /**
+     * Store a sample measurement, Map of: name =&gt; value
+     *
+     * @param serverName
+     * @param timestamp
+     * @param samples     samples to store: name =&gt; value
+     */
+    public void addSample(String serverName, Date timestamp, Map<String, Double> samples) {
+        long start = Instrumentation.ADD_SAMPLE.start();
+        try {
+            String id = DailyMonitoringData.formatId(serverName, timestamp);
+            if (retentionEnabled && isBefore(id, getRawRetentionCutoff())) {
+                Instrumentation.LATE_SAMPLES.add(samples.size());
+                return;
+            }
+            int minuteOfDay = TimeBuckets.get().minuteOfDay(timestamp.getTime());
+            Map<String, Object> fields = new LinkedHashMap<>();
+
+            for (Map.Entry<String, Double> sample : samples.entrySet()) {
+                fields.put(TimeBuckets.fieldPath(minuteOfDay, sample.getKey()), sample.getValue());
+            }
+
+            DBCollection collection = mongoTemplate.getCollection(collectionName);
+            try {
+                collection.update(writeQuery(id, fields, storageCodec, rollupsEnabled), buildUpdate(id, fields), true, false);
+            } catch (DuplicateKeyException e) {
+                mergeWrite(collection, id, fields);
+            }
+            Instrumentation.WRITE_ROUND_TRIPS.increment();
+            invalidate(id);
+        } finally {
+            Instrumentation.ADD_SAMPLE.stop(start);
+        }
+        if (anomalyDetector != null) {
+            anomalyDetector.observe(serverName, timestamp.getTime(), samples);
+        }
+    }
+
+    /**
+     * Store a series of sample measurements of the same server.
+     * Samples are merged into one update per day document, then sent as bulk writes.
+     *
+     * @param serverName
+     * @param samples    timestamp =&gt; samples to store: name =&gt; value
+     */
+    public void addSamples(String serverName, SortedMap<Date, Map<String, Double>> samples) {
+        SampleBatch batch = new SampleBatch();
+        batch.addAll(serverName, samples);
+        writeBatch(batch);
+        observe(serverName, samples);
+    }
+
+    /**
+     * Store sample measurements of many servers at once.
+     *
+     * @param samples serverName =&gt; timestamp =&gt; samples to store: name =&gt; value
+     */
+    public void addSamples(Map<String, SortedMap<Date, Map<String, Double>>> samples) {
+        SampleBatch batch = new SampleBatch();
+        for (Map.Entry<String, SortedMap<Date, Map<String, Double>>> entry : samples.entrySet()) {
+            batch.addAll(entry.getKey(), entry.getValue());
+        }
+        writeBatch(batch);
+        for (Map.Entry<String, SortedMap<Date, Map<String, Double>>> entry : samples.entrySet()) {
+            observe(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void observe(String serverName, SortedMap<Date, Map<String, Double>> samples) {
+        if (anomalyDetector == null || !anomalyDetector.isEnabled()) {
+            return;
+        }
+        for (Map.Entry<Date, Map<String, Double>> entry : samples.entrySet()) {
+            anomalyDetector.observe(serverName, entry.getKey().getTime(), entry.getValue());
+        }
+    }
+
+    /**
+     * Write a batch of merged samples: one upsert per document, at most {@link #getBatchSize()}
+     * upserts per bulk write. Writing a batch again, e.g. a retry after a partial failure, changes nothing:
+     * see {@link #writeQuery(String, Map, StorageCodec, boolean)}.
+     * <p>
+     * With retention enabled, samples of days before the raw retention cutoff are dropped: those days may
+     * already be compacted, and a recreated raw document would replace their compacted rollups.
+     *
+     * @param batch
+     */
+    public void writeBatch(SampleBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long start = Instrumentation.WRITE_BATCH.start();
+        try {
+            Date cutoff = retentionEnabled ? getRawRetentionCutoff() : null;
+            BulkWriteOperation bulk = null;
+            List<String> pending = new ArrayList<>();
+
+            for (Map.Entry<String, Map<String, Object>> entry : batch.getUpdates().entrySet()) {
+                if (cutoff != null && isBefore(entry.getKey(), cutoff)) {
+                    Instrumentation.LATE_SAMPLES.add(entry.getValue().size());
+                    continue;
+                }
+                if (bulk == null) {
+                    bulk = mongoTemplate.getCollection(collectionName).initializeUnorderedBulkOperation();
+                }
+
+                bulk.find(writeQuery(entry.getKey(), entry.getValue(), storageCodec, rollupsEnabled))
+                        .upsert()
+                        .updateOne(buildUpdate(entry.getKey(), entry.getValue()));
+                pending.add(entry.getKey());
+
+                if (pending.size() >= batchSize) {
+                    execute(bulk, pending, batch);
+                    Instrumentation.WRITE_ROUND_TRIPS.increment();
+                    invalidate(pending);
+                    bulk = null;
+                    pending.clear();
+                }
+            }
+
+            if (bulk != null) {
+                execute(bulk, pending, batch);
+                Instrumentation.WRITE_ROUND_TRIPS.increment();
+                invalidate(pending);
+            }
+        } finally {
+            Instrumentation.WRITE_BATCH.stop(start);
+        }
+    }
+
+    /**
+     * Execute the upserts of a batch; upserts rejected because they overwrite existing minutes are merged.
+     *
+     * @param bulk  upserts of the documents
+     * @param ids   ids of the documents, in the order of the upserts
+     * @param batch batch being written
+     */
+    private void execute(BulkWriteOperation bulk, List<String> ids, SampleBatch batch) {
+        try {
+            bulk.execute();
+        } catch (BulkWriteException e) {
+            if (e.getWriteConcernError() != null) {
+                throw e;
+            }
+            List<String> conflicts = new ArrayList<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    throw e;
+                }
+                conflicts.add(ids.get(error.getIndex()));
+            }
+
+            DBCollection collection = mongoTemplate.getCollection(collectionName);
+            for (String id : conflicts) {
+                mergeWrite(collection, id, batch.getUpdates().get(id));
+            }
+        }
+    }
+
+    /**
+     * Query of the upsert of a day document. With rollups enabled it only matches while all the written minutes
+     * are empty (missing or preallocated), so that rollups only count new minutes: an overwrite finds no document,
+     * fails to insert a duplicate id, and is merged by {@link #mergeWrite(DBCollection, String, Map)} instead.
+     * With a packed codec the written minutes are inside blocks, so it only matches writes after the last minute
+     * written to each hour: writing minutes in order, e.g. one per call, always takes the upsert alone.
+     *
+     * @param id      document id
+     * @param fields  field path "data.HH.MM.metric" =&gt; value
+     * @param codec   codec of the write
+     * @param rollups rollups are enabled
+     * @return
+     */
+    static DBObject writeQuery(String id, Map<String, Object> fields, StorageCodec codec, boolean rollups) {
+        DBObject query = new BasicDBObject("_id", id);
+        if (!rollups) {
+            return query;
+        }
+        if (!codec.isPacked()) {
+            for (String path : fields.keySet()) {
+                query.put(path, null);
+            }
+            return query;
+        }
+        // else: before the first minute written to each hour; not an equality, which the upsert would copy
+        Map<String, Integer> firstMinutes = new LinkedHashMap<>();
+        for (String path : fields.keySet()) {
+            int minute = Integer.parseInt(path.substring(8, 10));
+            Integer first = firstMinutes.get(lastPath(path));
+            firstMinutes.put(lastPath(path), first == null ? minute : Math.min(first, minute));
+        }
+        for (Map.Entry<String, Integer> first : firstMinutes.entrySet()) {
+            query.put(first.getKey(), new BasicDBObject("$not", new BasicDBObject("$gte", first.getValue())));
+        }
+        return query;
+    }
+
+    /**
+     * @param path field path "data.HH.MM.metric"
+     * @return path of the blocks of the hour: "packed.metric.HH"
+     */
+    private static String packedPath(String path) {
+        return StorageCodec.FIELD + "." + path.substring(11) + "." + path.substring(5, 7);
+    }
+
+    /** last minute with a value of an hour, -1 if none */
+    private static int lastMinute(double[] values) {
+        int minute = values.length - 1;
+        while (minute >= 0 && Double.isNaN(values[minute])) {
+            minute--;
+        }
+        return minute;
+    }
+
+    /** "data.HH.MM.metric" =&gt; "packedLast.metric.HH" */
+    private static String lastPath(String path) {
+        return StorageCodec.LAST_FIELD + "." + path.substring(11) + "." + path.substring(5, 7);
+    }
+
+    /**
+     * Slow path of writes overwriting existing minutes: read the document, apply the write, and recompute its
+     * rollups, provided the document did not change since it was read (see {@link #VERSION}).
+     *
+     * @param collection raw data collection
+     * @param id         document id
+     * @param fields     field path =&gt; value
+     */
+    private void mergeWrite(DBCollection collection, String id, Map<String, Object> fields) {
+        StreamingDailyMonitoringDataDecoder decoder = new StreamingDailyMonitoringDataDecoder();
+
+        for (int attempt = 0; attempt < MAX_MERGE_ATTEMPTS; attempt++) {
+            DBCursor cursor = collection.find(new BasicDBObject("_id", id), new BasicDBObject(Rollups.FIELD, 0));
+            cursor.setDecoderFactory(RawBsonDBObject.FACTORY);
+            RawBsonDBObject doc;
+            try {
+                doc = cursor.hasNext() ? (RawBsonDBObject) cursor.next() : null;
+            } finally {
+                cursor.close();
+            }
+
+            try {
+                if (doc == null) {
+                    // removed in between
+                    collection.update(writeQuery(id, fields, storageCodec, rollupsEnabled), buildUpdate(id, fields), true, false);
+                    return;
+                }
+                ColumnarDailyMonitoringData data = decoder.decode(doc.toByteArray(), null);
+                WriteResult result = collection.update(new BasicDBObject("_id", id).append(VERSION, doc.get(VERSION)),
+                        mergeUpdate(data, fields, storageCodec, rollupsEnabled));
+                if (result.getN() > 0) {
+                    return;
+                }
+            } catch (DuplicateKeyException e) {
+                // written in between
+            }
+        }
+        throw new IllegalStateException("Too many concurrent writes of " + id);
+    }
+
+    /**
+     * Build the update of a write merged into the current content of a document. With a packed codec,
+     * the written hours are repacked into a single block each.
+     *
+     * @param data    current content of the document, modified
+     * @param fields  field path "data.HH.MM.metric" =&gt; value
+     * @param codec   codec of the write
+     * @param rollups recompute the {@link Rollups} of the document
+     * @return
+     */
+    static DBObject mergeUpdate(ColumnarDailyMonitoringData data, Map<String, Object> fields, StorageCodec codec,
+                                boolean rollups) {
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            String path = field.getKey();
+            double value = field.getValue() instanceof Number ? ((Number) field.getValue()).doubleValue() : Double.NaN;
+            data.setValue(path.substring(11), ColumnarDailyMonitoringData.minuteOfDay(path.substring(5, 7),
+                    path.substring(8, 10)), value);
+        }
+
+        DBObject update = new BasicDBObject();
+        DBObject set = new BasicDBObject();
+        if (codec.isPacked()) {
+            DBObject unset = new BasicDBObject();
+            double[] values = new double[60];
+            for (String path : fields.keySet()) {
+                // minutes of the nested format are now in the block
+                unset.put(path, "");
+                String packedPath = packedPath(path);
+                if (set.containsField(packedPath) || unset.containsField(packedPath)) {
+                    continue;
+                }
+                int hour = Integer.parseInt(path.substring(5, 7));
+                System.arraycopy(data.getColumn(data.metricIndex(path.substring(11))), hour * 60, values, 0, 60);
+                byte[] block = codec.encodeHour(values);
+                if (block == null) {
+                    unset.put(packedPath, "");
+                    unset.put(lastPath(path), "");
+                } else {
+                    set.put(packedPath, Collections.singletonList(block));
+                    set.put(lastPath(path), lastMinute(values));
+                }
+            }
+            update.put("$unset", unset);
+        } else {
+            set.putAll(fields);
+        }
+
+        if (rollups) {
+            set.put(Rollups.FIELD, Rollups.compute(data));
+        }
+        if (!set.keySet().isEmpty()) {
+            update.put("$set", set);
+        }
+        update.put("$addToSet", addMetrics(fields));
+        update.put("$inc", new BasicDBObject(VERSION, 1));
+        return update;
+    }
+
+    /**
+     * @param fields field path "data.HH.MM.metric" =&gt; value
+     * @return "$addToSet" of the written metrics to metadata.metrics
+     */
+    private static DBObject addMetrics(Map<String, Object> fields) {
+        Set<String> metrics = new LinkedHashSet<>();
+        for (String path : fields.keySet()) {
+            metrics.add(path.substring(11));
+        }
+        return new BasicDBObject("metadata.metrics", new BasicDBObject("$each", new ArrayList<>(metrics)));
+    }
+
+    private void invalidate(String id) {
+        if (cache != null) {
+            cache.invalidate(id);
+        }
+        long now = System.currentTimeMillis();
+        if (!id.endsWith(TimeBuckets.get().dayLabel(now))) {
+            pastDataModified = now;
+        }
+    }
+
+    /**
+     * Like the cache, assumes past days are only written by this process: this is the time of its last write
+     * into another day than today, or of its start.
+     *
+     * @return upper bound of the last modification of data before today
+     */
+    public Date getPastDataModified() {
+        return new Date(pastDataModified);
+    }
+
+    /**
+     * Record a change of past data made outside of the sample writes, e.g. by retention or a migration.
+     */
+    public void markPastDataModified() {
+        pastDataModified = System.currentTimeMillis();
+    }
+
+    private void invalidate(List<String> ids) {
+        for (String id : ids) {
+            invalidate(id);
+        }
+    }
+
+    private static String loadScript(String path) {
+        try (InputStream in = new ClassPathResource(path).getInputStream()) {
+            return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot load script " + path, e);
+        }
+    }
+
+    /**
+     * Build the update of a day document: "$set" of minute values, or "$push" of packed blocks with a
+     * packed {@link StorageCodec}, plus {@link Rollups} if enabled. The {@link #VERSION} is incremented.
+     * Documents created by the upsert also get their metadata; metadata.metrics gets the written metrics on
+     * every write, so that it lists all metrics of the day.
+     *
+     * @param id     document id
+     * @param fields field path =&gt; value
+     * @return
+     */
+    DBObject buildUpdate(String id, Map<String, Object> fields) {
+        DBObject update = new BasicDBObject();
+        if (storageCodec.isPacked()) {
+            update.put("$push", packedBlocks(storageCodec, fields));
+            DBObject last = new BasicDBObject();
+            for (String path : fields.keySet()) {
+                int minute = Integer.parseInt(path.substring(8, 10));
+                Integer previous = (Integer) last.get(lastPath(path));
+                last.put(lastPath(path), previous == null ? minute : Math.max(previous, minute));
+            }
+            update.put("$max", last);
+        } else {
+            update.put("$set", new BasicDBObject(fields));
+        }
+
+        DBObject setOnInsert = new BasicDBObject();
+        setOnInsert.put("metadata.serverName", id.substring(0, id.lastIndexOf('/')));
+        setOnInsert.put("metadata.date", DailyMonitoringData.parseIdDate(id));
+        update.put("$setOnInsert", setOnInsert);
+        update.put("$addToSet", addMetrics(fields));
+        update.put("$inc", new BasicDBObject(VERSION, 1));
+
+        if (rollupsEnabled) {
+            Rollups.addTo(update, fields);
+        }
+        return update;
+    }
+
+    /**
+     * Pack minute values into one block per metric and hour.
+     *
+     * @param codec  packed codec
+     * @param fields field path "data.HH.MM.metric" =&gt; value
+     * @return "packed.metric.HH" =&gt; block
+     */
+    static DBObject packedBlocks(StorageCodec codec, Map<String, Object> fields) {
+        Map<String, double[]> hours = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (!(field.getValue() instanceof Number)) {
+                continue;
+            }
+            String path = field.getKey();
+            String key = StorageCodec.FIELD + "." + path.substring(11) + "." + path.substring(5, 7);
+            double[] values = hours.get(key);
+            if (values == null) {
+                values = new double[60];
+                Arrays.fill(values, Double.NaN);
+                hours.put(key, values);
+            }
+            values[Integer.parseInt(path.substring(8, 10))] = ((Number) field.getValue()).doubleValue();
+        }
+
+        DBObject result = new BasicDBObject();
+        for (Map.Entry<String, double[]> hour : hours.entrySet()) {
+            result.put(hour.getKey(), codec.encodeHour(hour.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Rewrite all raw day documents with a storage codec, keeping their metadata and rollups.
+     * Documents already stored with that codec are repacked: one block per metric and hour.
+     * A document is only rewritten if it was not written since it was read; otherwise it is left in its
+     * current format, still readable, and rewritten by the next migration.
+     *
+     * @param codec
+     * @return number of documents rewritten
+     */
+    public int migrateStorage(StorageCodec codec) {
+        DBCollection collection = mongo.getDB(mongoProperties.getDatabase()).getCollection(collectionName);
+        DBCursor cursor = collection.find(new BasicDBObject(), new BasicDBObject(Rollups.FIELD, 0));
+        cursor.setDecoderFactory(RawBsonDBObject.FACTORY);
+
+        StreamingDailyMonitoringDataDecoder decoder = new StreamingDailyMonitoringDataDecoder();
+        BulkWriteOperation bulk = null;
+        int pending = 0;
+        int updated = 0;
+
+        try {
+            while (cursor.hasNext()) {
+                RawBsonDBObject doc = (RawBsonDBObject) cursor.next();
+                ColumnarDailyMonitoringData data = decoder.decode(doc.toByteArray(), null);
+
+                DBObject update;
+                if (codec.isPacked()) {
+                    update = new BasicDBObject("$set", new BasicDBObject(StorageCodec.FIELD, codec.encodeDay(data))
+                            .append(StorageCodec.LAST_FIELD, StorageCodec.lastMinutes(data)))
+                            .append("$unset", new BasicDBObject("data", ""));
+                } else {
+                    update = new BasicDBObject("$set", new BasicDBObject("data", data.toDataMap()))
+                            .append("$unset", new BasicDBObject(StorageCodec.FIELD, "").append(StorageCodec.LAST_FIELD, ""));
+                }
+                update.put("$inc", new BasicDBObject(VERSION, 1));
+
+                if (bulk == null) {
+                    bulk = collection.initializeUnorderedBulkOperation();
+                }
+                bulk.find(new BasicDBObject("_id", doc.get("_id")).append(VERSION, doc.get(VERSION))).updateOne(update);
+                pending++;
+
+                if (pending >= batchSize) {
+                    updated += bulk.execute().getMatchedCount();
+                    bulk = null;
+                    pending = 0;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (bulk != null) {
+            updated += bulk.execute().getMatchedCount();
+        }
+        if (cache != null) {
+            // FLOAT32 changes values slightly
+            cache.clear();
+        }
+        markPastDataModified();
+
+        return updated;
+    }
 }
@@ -0,0 +1,171 @@
+package monitoring.service;
+
+import monitoring.TimeBuckets;
+import monitoring.domain.ColumnarDailyMonitoringData;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily evaluated averages per bucket: day documents are pulled from their source only when all points of
+ * the previous day have been consumed, and released right after, so memory does not depend on the length
+ * of the range. Buckets without any sample are skipped.
+ * <p>
+ * The source (typically a cursor) is closed when the iteration is over; close the iterator to stop earlier.
+ * Not thread-safe.
+ */
+public class PointIterator implements Iterator<AggregatedPoint>, Closeable {
+
+    private final Iterator<ColumnarDailyMonitoringData> days;
+    private final Closeable source;
+    private final BucketWidth width;
+    private final Date startDate;
+    private final Date endDate;
+
+    private ColumnarDailyMonitoringData day;
+    private int[] ranges;
+    private int[] buckets;
+    private int position;
+    private AggregatedPoint next;
+    private boolean closed;
+
+    /**
+     * @param days      day documents, in chronological order
+     * @param source    closed at the end of the iteration, may be null
+     * @param width
+     * @param startDate inclusive
+     * @param endDate   exclusive
+     */
+    public PointIterator(Iterator<ColumnarDailyMonitoringData> days, Closeable source, BucketWidth width,
+                         Date startDate, Date endDate) {
+        this.days = days;
+        this.source = source;
+        this.width = width;
+        this.startDate = startDate;
+        this.endDate = endDate;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && !closed) {
+            if (day != null && position < buckets.length) {
+                next = computeBucket(buckets[position++]);
+            } else if (days.hasNext()) {
+                nextDay(days.next());
+            } else {
+                close();
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public AggregatedPoint next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        AggregatedPoint result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void nextDay(ColumnarDailyMonitoringData data) {
+        day = data;
+        ranges = MonitoringService.minuteRanges(data.getDate(), startDate, endDate);
+        if (ranges[0] >= ranges[1] && ranges[2] >= ranges[3]) {
+            buckets = new int[0];
+            return;
+        }
+        // else
+        int first = width.bucketOf(ranges[0] < ranges[1] ? ranges[0] : ranges[2]);
+        int last = width.bucketOf(ranges[2] < ranges[3] ? ranges[3] - 1 : ranges[1] - 1);
+        buckets = new int[last - first + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = first + i;
+        }
+        if (ranges[2] < ranges[3]) {
+            sortChronologically(buckets);
+        }
+        position = 0;
+    }
+
+    /**
+     * Move the buckets of the repeated hour of a DST fall-back between the wall-clock buckets around it.
+     */
+    private void sortChronologically(int[] buckets) {
+        TimeBuckets timeBuckets = TimeBuckets.get();
+        long dayStart = day.getDate().getTime();
+        for (int i = 1; i < buckets.length; i++) {
+            int bucket = buckets[i];
+            long start = timeBuckets.minuteStart(dayStart, bucket * width.getMinutes());
+            int j = i - 1;
+            while (j >= 0 && timeBuckets.minuteStart(dayStart, buckets[j] * width.getMinutes()) > start) {
+                buckets[j + 1] = buckets[j];
+                j--;
+            }
+            buckets[j + 1] = bucket;
+        }
+    }
+
+    /**
+     * @return averages of a bucket of the current day, null if it has no samples
+     */
+    private AggregatedPoint computeBucket(int bucket) {
+        int bucketStart = bucket * width.getMinutes();
+        int bucketEnd = bucket == width.bucketsPerDay() - 1 ? TimeBuckets.MAX_MINUTES_PER_DAY
+                : (bucket + 1) * width.getMinutes();
+        String[] metrics = day.getMetrics();
+        double[] values = null;
+
+        for (int i = 0; i < metrics.length; i++) {
+            double[] column = day.getColumn(i);
+            double total = 0.0;
+            int count = 0;
+            for (int range = 0; range < ranges.length; range += 2) {
+                int to = Math.min(ranges[range + 1], bucketEnd);
+                for (int minuteOfDay = Math.max(ranges[range], bucketStart); minuteOfDay < to; minuteOfDay++) {
+                    if (!Double.isNaN(column[minuteOfDay])) {
+                        total += column[minuteOfDay];
+                        count++;
+                    }
+                }
+            }
+
+            if (count > 0) {
+                if (values == null) {
+                    values = new double[metrics.length];
+                    Arrays.fill(values, Double.NaN);
+                }
+                values[i] = total / count;
+            }
+        }
+
+        return values == null ? null : new AggregatedPoint(
+                TimeBuckets.get().minuteStart(day.getDate().getTime(), bucket * width.getMinutes()), metrics, values);
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        day = null;
+        if (source != null) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                throw new IllegalStateException("Error closing " + source, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package monitoring.service;
+
+import com.mongodb.*;
+import monitoring.TimeBuckets;
+import monitoring.domain.DailyMonitoringData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+import util.concurrent.NamedThreadFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Preallocation of day documents: every minute of the day is filled with null values of the server metrics,
+ * so that documents never grow (and move) when samples are written.
+ * <p>
+ * The "data" sub-document only depends on the metric list: it is built once per list and shared by all the
+ * documents inserted, servers are spread over monitoring.preallocation.threads threads inserting bulk batches
+ * of monitoring.preallocation.batchSize documents. Existing documents are left untouched.
+ * <p>
+ * When monitoring.preallocation.enabled, a daily job preallocates the documents of tomorrow for every server
+ * with data today, monitoring.preallocation.leadMinutes before the day starts.
+ * <p>
+ * Packed storage codecs write small documents growing in blocks: nothing is preallocated.
+ */
+@Component
+public class PreallocationService {
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+    private MonitoringService monitoringService;
+    private MongoTemplate mongoTemplate;
+
+    private boolean enabled = false;
+    private int threads = 4;
+    private int batchSize = 50;
+    private long leadMinutes = 60;
+
+    private final ConcurrentMap<List<String>, DBObject> templates = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public void setMonitoringService(MonitoringService monitoringService) {
+        this.monitoringService = monitoringService;
+    }
+
+    @Autowired
+    public void setMongoTemplate(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Value("${monitoring.preallocation.enabled:false}")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Value("${monitoring.preallocation.threads:4}")
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    @Value("${monitoring.preallocation.batchSize:50}")
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Value("${monitoring.preallocation.leadMinutes:60}")
+    public void setLeadMinutes(long leadMinutes) {
+        this.leadMinutes = leadMinutes;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("preallocation"));
+        scheduleNext();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Schedule the next run leadMinutes before the next day start; days are not all 24 hours long, so every
+     * run schedules the following one.
+     */
+    private void scheduleNext() {
+        long delay = nextRun(new Date(), leadMinutes).getTime() - System.currentTimeMillis();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    preallocateTomorrow();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("Error preallocating monitoring data", e);
+                }
+                scheduleNext();
+            }
+        }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param now
+     * @param leadMinutes
+     * @return leadMinutes before the first day start after now for which this is still in the future
+     */
+    static Date nextRun(Date now, long leadMinutes) {
+        TimeBuckets timeBuckets = TimeBuckets.get();
+        long dayStart = timeBuckets.addDays(now.getTime(), 1);
+        long run = dayStart - TimeUnit.MINUTES.toMillis(leadMinutes);
+        while (run <= now.getTime()) {
+            dayStart = timeBuckets.addDays(dayStart, 1);
+            run = dayStart - TimeUnit.MINUTES.toMillis(leadMinutes);
+        }
+        return new Date(run);
+    }
+
+    /**
+     * Preallocate the documents of tomorrow for every server with data today, with the metrics of today.
+     *
+     * @return number of documents inserted
+     * @throws InterruptedException
+     */
+    public int preallocateTomorrow() throws InterruptedException {
+        TimeBuckets timeBuckets = TimeBuckets.get();
+        long now = System.currentTimeMillis();
+        Map<String, String[]> servers = serversOf(new Date(timeBuckets.dayStart(now)));
+        int inserted = preallocate(servers, new Date(timeBuckets.addDays(now, 1)), new Date(timeBuckets.addDays(now, 2)));
+        log.info("Preallocation: " + inserted + " documents inserted for " + servers.size() + " servers");
+        return inserted;
+    }
+
+    /**
+     * @param day
+     * @return serverName =&gt; metrics, of all documents of the day
+     */
+    public Map<String, String[]> serversOf(Date day) {
+        DBCollection collection = mongoTemplate.getCollection(monitoringService.getCollectionName());
+        DBCursor cursor = collection.find(new BasicDBObject("metadata.date", day),
+                new BasicDBObject("metadata", 1));
+
+        Map<String, String[]> result = new TreeMap<>();
+        try {
+            while (cursor.hasNext()) {
+                DBObject metadata = (DBObject) cursor.next().get("metadata");
+                List<?> metrics = (List<?>) metadata.get("metrics");
+                if (metrics != null && !metrics.isEmpty()) {
+                    result.put((String) metadata.get("serverName"), metrics.toArray(new String[metrics.size()]));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Insert preallocated documents for all servers and days of a range, in parallel.
+     *
+     * @param servers   serverName =&gt; metrics
+     * @param startDate first day
+     * @param endDate   end of the range, exclusive
+     * @return number of documents inserted, documents already present are skipped
+     * @throws InterruptedException
+     */
+    public int preallocate(Map<String, String[]> servers, Date startDate, Date endDate) throws InterruptedException {
+        if (monitoringService.getStorageCodec().isPacked() || servers.isEmpty()) {
+            return 0;
+        }
+
+        final List<Date> days = new ArrayList<>();
+        TimeBuckets timeBuckets = TimeBuckets.get();
+        for (long day = timeBuckets.dayStart(startDate.getTime()); day < endDate.getTime(); day = timeBuckets.addDays(day, 1)) {
+            days.add(new Date(day));
+        }
+
+        final DBCollection collection = mongoTemplate.getCollection(monitoringService.getCollectionName());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, servers.size()),
+                new NamedThreadFactory("preallocation-insert"));
+        List<Future<Integer>> results = new ArrayList<>();
+
+        try {
+            for (final Map.Entry<String, String[]> server : servers.entrySet()) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return insert(collection, server.getKey(), server.getValue(), days);
+                    }
+                }));
+            }
+
+            int inserted = 0;
+            for (Future<Integer> result : results) {
+                inserted += result.get();
+            }
+            return inserted;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error preallocating day documents", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int insert(DBCollection collection, String serverName, String[] metrics, List<Date> days) {
+        TimeBuckets timeBuckets = TimeBuckets.get();
+        int inserted = 0;
+
+        for (int from = 0; from < days.size(); from += batchSize) {
+            BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+            int count = Math.min(batchSize, days.size() - from);
+            for (int i = from; i < from + count; i++) {
+                Date day = days.get(i);
+                DBObject template = template(metrics, timeBuckets.minutesOfDay(day.getTime()) / 60);
+                bulk.insert(buildDocument(serverName, day, metrics, template));
+            }
+
+            try {
+                inserted += bulk.execute().getInsertedCount();
+            } catch (BulkWriteException e) {
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    if (error.getCode() != DUPLICATE_KEY) {
+                        throw e;
+                    }
+                }
+                inserted += e.getWriteResult().getInsertedCount();
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * @param metrics
+     * @param hours   hour keys of the day: 24, or 25 with the repeated hour of a DST fall-back
+     * @return shared, read-only "data" sub-document of a preallocated day: HH =&gt; MM =&gt; metric =&gt; null
+     */
+    DBObject template(String[] metrics, int hours) {
+        List<String> key = new ArrayList<>(metrics.length + 1);
+        key.add(String.valueOf(hours));
+        key.addAll(Arrays.asList(metrics));
+        DBObject template = templates.get(key);
+        if (template == null) {
+            template = buildTemplate(metrics, hours);
+            templates.putIfAbsent(key, template);
+        }
+        return template;
+    }
+
+    static DBObject buildTemplate(String[] metrics, int hours) {
+        BasicDBObject minute = new BasicDBObject();
+        for (String metric : metrics) {
+            minute.put(metric, null);
+        }
+
+        // minutes and hours are immutable once built: all keys share the same values
+        BasicDBObject hour = new BasicDBObject();
+        for (int m = 0; m < 60; m++) {
+            hour.put(TimeBuckets.minuteKey(m), minute);
+        }
+        BasicDBObject day = new BasicDBObject();
+        for (int h = 0; h < hours; h++) {
+            day.put(TimeBuckets.hourKey(h), hour);
+        }
+        return day;
+    }
+
+    static DBObject buildDocument(String serverName, Date day, String[] metrics, DBObject template) {
+        return new BasicDBObject("_id", DailyMonitoringData.formatId(serverName, day))
+                .append("metadata", new BasicDBObject("serverName", serverName)
+                        .append("date", day)
+                        .append("metrics", Arrays.asList(metrics)))
+                .append("data", template);
+    }
+}
@@ -0,0 +1,160 @@
+package monitoring.service;
+
+/**
+ * Mergeable streaming quantile sketch with relative error guarantees (DDSketch-like): values are counted
+ * in logarithmic bins, so any quantile is estimated within the configured relative accuracy, memory
+ * grows with the logarithm of the value range only, and sketches of different buckets, days or servers
+ * are combined by adding their bins.
+ * <p>
+ * Not thread-safe.
+ */
+public class QuantileSketch {
+
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+    /** values closer to zero than this are counted as zero */
+    private static final double MIN_INDEXABLE = 1e-9;
+
+    /** counts of contiguous bin indexes, allocated on demand */
+    private static class Bins {
+        long[] counts;
+        int offset;
+
+        void add(int index, long count) {
+            if (counts == null) {
+                counts = new long[16];
+                offset = index - 8;
+            } else if (index < offset || index >= offset + counts.length) {
+                int min = Math.min(offset, index);
+                int max = Math.max(offset + counts.length - 1, index);
+                // grow with some slack on both sides
+                int slack = (max - min + 1) / 2;
+                long[] grown = new long[max - min + 1 + 2 * slack];
+                System.arraycopy(counts, 0, grown, offset - min + slack, counts.length);
+                counts = grown;
+                offset = min - slack;
+            }
+            counts[index - offset] += count;
+        }
+
+        void addAll(Bins other) {
+            if (other.counts == null) {
+                return;
+            }
+            for (int i = 0; i < other.counts.length; i++) {
+                if (other.counts[i] != 0) {
+                    add(other.offset + i, other.counts[i]);
+                }
+            }
+        }
+    }
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+    private final Bins positive = new Bins();
+    private final Bins negative = new Bins();
+    private long zeroCount;
+    private long count;
+
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    /**
+     * @param relativeAccuracy max relative error of quantiles, between 0 and 1
+     */
+    public QuantileSketch(double relativeAccuracy) {
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+            throw new IllegalArgumentException("Relative accuracy must be between 0 and 1: " + relativeAccuracy);
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    public void add(double value) {
+        if (value > MIN_INDEXABLE) {
+            positive.add(index(value), 1);
+        } else if (value < -MIN_INDEXABLE) {
+            negative.add(index(-value), 1);
+        } else {
+            zeroCount++;
+        }
+        count++;
+    }
+
+    /**
+     * Add all values counted by another sketch.
+     *
+     * @param other sketch with the same relative accuracy
+     */
+    public void merge(QuantileSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Cannot merge sketches with different relative accuracy");
+        }
+        positive.addAll(other.positive);
+        negative.addAll(other.negative);
+        zeroCount += other.zeroCount;
+        count += other.count;
+    }
+
+    /**
+     * Estimate a quantile with the nearest-rank method: the smallest value with at least q of all
+     * values less than or equal to it.
+     *
+     * @param q quantile, between 0 and 1
+     * @return estimated value, NaN if empty
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + q);
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        long rank = Math.max(0, (long) Math.ceil(q * count) - 1);
+        long seen = 0;
+
+        // most negative values first
+        if (negative.counts != null) {
+            for (int i = negative.counts.length - 1; i >= 0; i--) {
+                seen += negative.counts[i];
+                if (seen > rank) {
+                    return -value(negative.offset + i);
+                }
+            }
+        }
+
+        seen += zeroCount;
+        if (seen > rank) {
+            return 0.0;
+        }
+
+        for (int i = 0; i < positive.counts.length; i++) {
+            seen += positive.counts[i];
+            if (seen > rank) {
+                return value(positive.offset + i);
+            }
+        }
+        // unreachable: all values have been counted
+        throw new IllegalStateException("Inconsistent sketch counts");
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    private int index(double value) {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    private double value(int index) {
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+}
@@ -0,0 +1,13 @@
+package monitoring.service;
+
+/**
+ * What {@link AsyncSampleWriter} does when a producer adds a sample to a full queue.
+ */
+public enum QueueFullPolicy {
+    /** wait until a writer makes room */
+    BLOCK,
+    /** discard the oldest queued sample */
+    DROP_OLDEST,
+    /** throw {@link java.util.concurrent.RejectedExecutionException} */
+    REJECT
+}
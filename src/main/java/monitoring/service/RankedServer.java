@@ -0,0 +1,37 @@
+package monitoring.service;
+
+/**
+ * A server and the value it is ranked by, see {@link FleetQueryService#topServers}.
+ */
+public class RankedServer implements Comparable<RankedServer> {
+
+    private final String serverName;
+    private final double value;
+
+    public RankedServer(String serverName, double value) {
+        this.serverName = serverName;
+        this.value = value;
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Ascending by value, then descending by name: the first element is always the lowest ranked.
+     */
+    @Override
+    public int compareTo(RankedServer other) {
+        int result = Double.compare(value, other.value);
+        return result != 0 ? result : other.serverName.compareTo(serverName);
+    }
+
+    @Override
+    public String toString() {
+        return serverName + "=" + value;
+    }
+}
@@ -0,0 +1,264 @@
+package monitoring.service;
+
+import com.mongodb.*;
+import monitoring.RawBsonDBObject;
+import monitoring.StreamingDailyMonitoringDataDecoder;
+import monitoring.TimeBuckets;
+import monitoring.domain.ColumnarDailyMonitoringData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+import util.concurrent.NamedThreadFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-resolution retention: a background job moves old day documents to coarser tiers.
+ * <ul>
+ * <li>raw minute data, for monitoring.retention.minuteDays</li>
+ * <li>hourly tier ("_hourly" collection): metadata and {@link Rollups}, for monitoring.retention.hourlyDays</li>
+ * <li>daily tier ("_daily" collection): metadata and daily rollups only, forever</li>
+ * </ul>
+ * Documents are moved in batches of monitoring.retention.batchSize, pausing monitoring.retention.throttleMillis
+ * between batches to limit the load on the cluster. Queries of {@link MonitoringService} read the tiers
+ * transparently.
+ * <p>
+ * Raw documents are selected by "metadata.date": documents upserted without metadata before metadata
+ * was set on insert are never compacted.
+ * <p>
+ * Writes of days before the raw retention cutoff are dropped by {@link MonitoringService}, and raw documents
+ * are only compacted one day after that cutoff, so a compacted day is never recreated and its tier documents
+ * can be replaced. A document is removed only if its {@link MonitoringService#VERSION} did not change since
+ * it was read: otherwise it is compacted again by the next batch.
+ */
+@Component
+public class RetentionService {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+    private MonitoringService monitoringService;
+    private MongoTemplate mongoTemplate;
+
+    private long intervalMinutes = 60;
+    private int batchSize = 100;
+    private long throttleMillis = 100;
+
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public void setMonitoringService(MonitoringService monitoringService) {
+        this.monitoringService = monitoringService;
+    }
+
+    @Autowired
+    public void setMongoTemplate(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Value("${monitoring.retention.intervalMinutes:60}")
+    public void setIntervalMinutes(long intervalMinutes) {
+        this.intervalMinutes = intervalMinutes;
+    }
+
+    @Value("${monitoring.retention.batchSize:100}")
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Value("${monitoring.retention.throttleMillis:100}")
+    public void setThrottleMillis(long throttleMillis) {
+        this.throttleMillis = throttleMillis;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!monitoringService.isRetentionEnabled()) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("retention"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    log.error("Error compacting monitoring data", e);
+                }
+            }
+        }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Move all expired documents to the next tier.
+     *
+     * @return number of documents moved
+     * @throws InterruptedException
+     */
+    public int compact() throws InterruptedException {
+        int raw = compactRawDays();
+        int hourly = compactHourlyDays();
+        log.info("Retention: compacted " + raw + " raw day documents, " + hourly + " hourly day documents");
+        return raw + hourly;
+    }
+
+    /**
+     * Downsample raw day documents older than the minute retention into the hourly tier.
+     *
+     * @return number of documents moved
+     * @throws InterruptedException
+     */
+    public int compactRawDays() throws InterruptedException {
+        DBCollection raw = mongoTemplate.getCollection(monitoringService.getCollectionName());
+        DBCollection hourly = mongoTemplate.getCollection(monitoringService.getHourlyCollectionName());
+        DBObject query = new BasicDBObject("metadata.date", new BasicDBObject("$lt", compactionCutoff()));
+
+        StreamingDailyMonitoringDataDecoder decoder = new StreamingDailyMonitoringDataDecoder();
+        int moved = 0;
+
+        while (true) {
+            DBCursor cursor = raw.find(query, new BasicDBObject(Rollups.FIELD, 0)).limit(batchSize);
+            cursor.setDecoderFactory(RawBsonDBObject.FACTORY);
+
+            int read = 0;
+            BulkWriteOperation bulk = hourly.initializeUnorderedBulkOperation();
+            BulkWriteOperation remove = raw.initializeUnorderedBulkOperation();
+            try {
+                while (cursor.hasNext()) {
+                    RawBsonDBObject doc = (RawBsonDBObject) cursor.next();
+                    ColumnarDailyMonitoringData data = decoder.decode(doc.toByteArray(), null);
+                    Object version = doc.get(MonitoringService.VERSION);
+
+                    bulk.find(new BasicDBObject("_id", data.getId())).upsert().replaceOne(hourlyDocument(data, version));
+                    remove.find(unchanged(data.getId(), version)).removeOne();
+                    read++;
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (read == 0) {
+                return moved;
+            }
+
+            // write the compacted documents first, so that a failure never loses data
+            bulk.execute();
+            int removed = remove.execute().getRemovedCount();
+            monitoringService.markPastDataModified();
+            moved += removed;
+            if (removed == 0) {
+                // all documents changed since they were read: retry on the next run
+                return moved;
+            }
+
+            Thread.sleep(throttleMillis);
+        }
+    }
+
+    /**
+     * Move hourly tier documents older than the hourly retention into the daily tier.
+     *
+     * @return number of documents moved
+     * @throws InterruptedException
+     */
+    public int compactHourlyDays() throws InterruptedException {
+        DBCollection hourly = mongoTemplate.getCollection(monitoringService.getHourlyCollectionName());
+        DBCollection daily = mongoTemplate.getCollection(monitoringService.getDailyCollectionName());
+        DBObject query = new BasicDBObject("metadata.date",
+                new BasicDBObject("$lt", monitoringService.getHourlyRetentionCutoff()));
+        DBObject fields = new BasicDBObject("metadata", 1).append(Rollups.DAY, 1).append(MonitoringService.VERSION, 1);
+
+        int moved = 0;
+
+        while (true) {
+            DBCursor cursor = hourly.find(query, fields).limit(batchSize);
+
+            int read = 0;
+            BulkWriteOperation bulk = daily.initializeUnorderedBulkOperation();
+            BulkWriteOperation remove = hourly.initializeUnorderedBulkOperation();
+            try {
+                while (cursor.hasNext()) {
+                    DBObject doc = cursor.next();
+                    Object version = doc.removeField(MonitoringService.VERSION);
+                    bulk.find(new BasicDBObject("_id", doc.get("_id"))).upsert().replaceOne(doc);
+                    remove.find(unchanged(doc.get("_id"), version)).removeOne();
+                    read++;
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (read == 0) {
+                return moved;
+            }
+
+            bulk.execute();
+            int removed = remove.execute().getRemovedCount();
+            moved += removed;
+            if (removed == 0) {
+                return moved;
+            }
+
+            Thread.sleep(throttleMillis);
+        }
+    }
+
+    /**
+     * @return raw documents before this date are compacted: one day after the raw retention cutoff, so that
+     * no write of these days is still in flight
+     */
+    Date compactionCutoff() {
+        return new Date(TimeBuckets.get().addDays(monitoringService.getRawRetentionCutoff().getTime(), -1));
+    }
+
+    /**
+     * Build the hourly tier document of a raw day document.
+     *
+     * @param data    decoded raw document
+     * @param version version of the raw document, null if none
+     * @return
+     */
+    static DBObject hourlyDocument(ColumnarDailyMonitoringData data, Object version) {
+        DBObject doc = new BasicDBObject("_id", data.getId());
+        doc.put("metadata", metadata(data.getServerName(), data.getDate(), data.getMetrics()));
+        doc.put(Rollups.FIELD, Rollups.compute(data));
+        if (version != null) {
+            doc.put(MonitoringService.VERSION, version);
+        }
+        return doc;
+    }
+
+    /**
+     * @param id      document id
+     * @param version version read, null if none
+     * @return query matching the document only if it was not written since it was read
+     */
+    static DBObject unchanged(Object id, Object version) {
+        // null also matches a missing field
+        return new BasicDBObject("_id", id).append(MonitoringService.VERSION, version);
+    }
+
+    private static DBObject metadata(String serverName, Date date, String[] metrics) {
+        DBObject metadata = new BasicDBObject();
+        metadata.put("serverName", serverName);
+        metadata.put("date", date);
+        metadata.put("metrics", metrics);
+        return metadata;
+    }
+}
@@ -0,0 +1,212 @@
+package monitoring.service;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import monitoring.TimeBuckets;
+import monitoring.domain.ColumnarDailyMonitoringData;
+
+import java.util.*;
+
+/**
+ * Running per-hour and per-day rollups stored next to raw minute data, in the "rollups" sub-document:
+ * <pre>
+ * rollups: {
+ *     hours: { HH: { metric: {sum, count, min, max} } },
+ *     day: { metric: {sum, count, min, max} }
+ * }
+ * </pre>
+ * Rollups are maintained with "$inc" (sum, count) and "$min"/"$max" (MongoDB 2.6+) in the same update
+ * as the minute "$set", which only applies while the written minutes are empty. Writes overwriting minutes
+ * recompute the rollups of their document with {@link #compute(ColumnarDailyMonitoringData)} instead. Use
+ * {@link MonitoringService#rebuildRollups(String)} to recompute them for documents written without rollups.
+ */
+public class Rollups {
+
+    public static final String FIELD = "rollups";
+    public static final String HOURS = FIELD + ".hours";
+    public static final String DAY = FIELD + ".day";
+
+    /** sum, count, min, max of a single metric */
+    static class Accumulator {
+        double sum;
+        long count;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        void add(double value) {
+            sum += value;
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        DBObject toDBObject() {
+            BasicDBObject result = new BasicDBObject();
+            result.put("sum", sum);
+            result.put("count", count);
+            result.put("min", min);
+            result.put("max", max);
+            return result;
+        }
+    }
+
+    private Rollups() {
+    }
+
+    /**
+     * Add rollup operators ("$inc", "$min", "$max") for the minute values set by an update.
+     *
+     * @param update update to complete
+     * @param fields field path "data.HH.MM.metric" =&gt; value
+     */
+    public static void addTo(DBObject update, Map<String, Object> fields) {
+        // rollup path without the last ".sum" etc. =&gt; accumulator
+        Map<String, Accumulator> accumulators = new LinkedHashMap<>();
+
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (!(field.getValue() instanceof Number)) {
+                continue;
+            }
+            String path = field.getKey();
+            if (!path.startsWith("data.") || path.length() < 12) {
+                continue;
+            }
+            String hour = path.substring(5, 7);
+            String metric = path.substring(11);
+            double value = ((Number) field.getValue()).doubleValue();
+
+            accumulator(accumulators, HOURS + "." + hour + "." + metric).add(value);
+            accumulator(accumulators, DAY + "." + metric).add(value);
+        }
+
+        if (accumulators.isEmpty()) {
+            return;
+        }
+
+        DBObject inc = operator(update, "$inc");
+        DBObject min = operator(update, "$min");
+        DBObject max = operator(update, "$max");
+        for (Map.Entry<String, Accumulator> entry : accumulators.entrySet()) {
+            Accumulator acc = entry.getValue();
+            inc.put(entry.getKey() + ".sum", acc.sum);
+            inc.put(entry.getKey() + ".count", acc.count);
+            min.put(entry.getKey() + ".min", acc.min);
+            max.put(entry.getKey() + ".max", acc.max);
+        }
+    }
+
+    private static Accumulator accumulator(Map<String, Accumulator> accumulators, String path) {
+        Accumulator acc = accumulators.get(path);
+        if (acc == null) {
+            acc = new Accumulator();
+            accumulators.put(path, acc);
+        }
+        return acc;
+    }
+
+    private static DBObject operator(DBObject update, String name) {
+        DBObject operator = (DBObject) update.get(name);
+        if (operator == null) {
+            operator = new BasicDBObject();
+            update.put(name, operator);
+        }
+        return operator;
+    }
+
+    /**
+     * Compute the whole "rollups" sub-document from raw minute data.
+     *
+     * @param data
+     * @return
+     */
+    public static DBObject compute(ColumnarDailyMonitoringData data) {
+        String[] metrics = data.getMetrics();
+        DBObject hours = new BasicDBObject();
+        DBObject day = new BasicDBObject();
+
+        for (int i = 0; i < metrics.length; i++) {
+            double[] column = data.getColumn(i);
+            Accumulator dayAcc = new Accumulator();
+
+            for (int hour = 0; hour < column.length / 60; hour++) {
+                Accumulator hourAcc = new Accumulator();
+                for (int minuteOfDay = hour * 60; minuteOfDay < hour * 60 + 60; minuteOfDay++) {
+                    if (!Double.isNaN(column[minuteOfDay])) {
+                        hourAcc.add(column[minuteOfDay]);
+                        dayAcc.add(column[minuteOfDay]);
+                    }
+                }
+
+                if (hourAcc.count > 0) {
+                    String hh = TimeBuckets.hourKey(hour);
+                    DBObject hourDoc = (DBObject) hours.get(hh);
+                    if (hourDoc == null) {
+                        hourDoc = new BasicDBObject();
+                        hours.put(hh, hourDoc);
+                    }
+                    hourDoc.put(metrics[i], hourAcc.toDBObject());
+                }
+            }
+
+            if (dayAcc.count > 0) {
+                day.put(metrics[i], dayAcc.toDBObject());
+            }
+        }
+
+        BasicDBObject result = new BasicDBObject();
+        result.put("hours", hours);
+        result.put("day", day);
+        return result;
+    }
+
+    /**
+     * Read per-hour averages from the "rollups.hours" sub-document.
+     *
+     * @param day     day of the document
+     * @param hours   "rollups.hours" sub-document, may be null
+     * @param metrics metrics to read, null for all
+     * @return hour =&gt; metric =&gt; average
+     */
+    public static SortedMap<Date, Map<String, Double>> hourlyAverages(Date day, DBObject hours, Set<String> metrics) {
+        SortedMap<Date, Map<String, Double>> result = new TreeMap<>();
+        if (hours == null) {
+            return result;
+        }
+
+        for (String hh : hours.keySet()) {
+            Map<String, Double> resultEntry = averages((DBObject) hours.get(hh), metrics);
+            if (!resultEntry.isEmpty()) {
+                result.put(new Date(TimeBuckets.get().hourStart(day.getTime(), Integer.parseInt(hh))), resultEntry);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Read averages of a "rollups.day" or "rollups.hours.HH" sub-document.
+     *
+     * @param rollup  metric =&gt; {sum, count, min, max}
+     * @param metrics metrics to read, null for all
+     * @return metric =&gt; average
+     */
+    public static Map<String, Double> averages(DBObject rollup, Set<String> metrics) {
+        Map<String, Double> result = new HashMap<>();
+        if (rollup == null) {
+            return result;
+        }
+
+        for (String metric : rollup.keySet()) {
+            if (metrics != null && !metrics.contains(metric)) {
+                continue;
+            }
+            DBObject acc = (DBObject) rollup.get(metric);
+            double count = ((Number) acc.get("count")).doubleValue();
+            if (count > 0) {
+                result.put(metric, ((Number) acc.get("sum")).doubleValue() / count);
+            }
+        }
+
+        return result;
+    }
+}
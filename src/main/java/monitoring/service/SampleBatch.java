@@ -0,0 +1,109 @@
+package monitoring.service;
+
+import monitoring.TimeBuckets;
+import monitoring.domain.DailyMonitoringData;
+
+import java.util.*;
+
+/**
+ * Group of samples waiting to be written, merged by {@link monitoring.domain.DailyMonitoringData} id:
+ * every document receives a single "$set" update, regardless of how many samples it contains.
+ * <p>
+ * Samples for the same minute and metric overwrite each other (last one wins), exactly as separate
+ * upserts would.
+ * <p>
+ * Not thread-safe.
+ */
+public class SampleBatch {
+
+    /** document id =&gt; field path =&gt; value */
+    private final Map<String, Map<String, Object>> updates = new LinkedHashMap<>();
+    private int samplesCount;
+
+    /**
+     * Add a sample measurement, Map of: name =&gt; value
+     *
+     * @param serverName
+     * @param timestamp
+     * @param samples    samples to store: name =&gt; value
+     */
+    public void add(String serverName, Date timestamp, Map<String, Double> samples) {
+        Map<String, Object> fields = documentFields(DailyMonitoringData.formatId(serverName, timestamp));
+        int minuteOfDay = TimeBuckets.get().minuteOfDay(timestamp.getTime());
+
+        for (Map.Entry<String, Double> sample : samples.entrySet()) {
+            fields.put(TimeBuckets.fieldPath(minuteOfDay, sample.getKey()), sample.getValue());
+            samplesCount++;
+        }
+    }
+
+    /**
+     * Add a single sample measurement, without the map.
+     *
+     * @param serverName
+     * @param timestamp
+     * @param metric
+     * @param value
+     */
+    public void add(String serverName, long timestamp, String metric, Double value) {
+        TimeBuckets timeBuckets = TimeBuckets.get();
+        documentFields(timeBuckets.formatId(serverName, timestamp))
+                .put(TimeBuckets.fieldPath(timeBuckets.minuteOfDay(timestamp), metric), value);
+        samplesCount++;
+    }
+
+    /**
+     * Add a series of sample measurements of the same server.
+     *
+     * @param serverName
+     * @param samples    timestamp =&gt; samples
+     */
+    public void addAll(String serverName, SortedMap<Date, Map<String, Double>> samples) {
+        for (Map.Entry<Date, Map<String, Double>> entry : samples.entrySet()) {
+            add(serverName, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Merge another batch into this one; values of the other batch win.
+     *
+     * @param other
+     */
+    public void addAll(SampleBatch other) {
+        for (Map.Entry<String, Map<String, Object>> entry : other.updates.entrySet()) {
+            documentFields(entry.getKey()).putAll(entry.getValue());
+        }
+        samplesCount += other.samplesCount;
+    }
+
+    private Map<String, Object> documentFields(String id) {
+        Map<String, Object> fields = updates.get(id);
+        if (fields == null) {
+            fields = new LinkedHashMap<>();
+            updates.put(id, fields);
+        }
+        return fields;
+    }
+
+    /**
+     * @return document id =&gt; field path =&gt; value
+     */
+    public Map<String, Map<String, Object>> getUpdates() {
+        return updates;
+    }
+
+    public int getDocumentsCount() {
+        return updates.size();
+    }
+
+    /**
+     * @return number of samples added, including the ones overwritten by later samples
+     */
+    public int getSamplesCount() {
+        return samplesCount;
+    }
+
+    public boolean isEmpty() {
+        return updates.isEmpty();
+    }
+}
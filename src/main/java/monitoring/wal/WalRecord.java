@@ -0,0 +1,50 @@
+package monitoring.wal;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * A sample read back from the {@link WriteAheadLog}.
+ */
+public class WalRecord {
+
+    private final long position;
+    private final long nextPosition;
+    private final String serverName;
+    private final long timestamp;
+    private final Map<String, Double> samples;
+
+    public WalRecord(long position, long nextPosition, String serverName, long timestamp, Map<String, Double> samples) {
+        this.position = position;
+        this.nextPosition = nextPosition;
+        this.serverName = serverName;
+        this.timestamp = timestamp;
+        this.samples = samples;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return position of the following record, to checkpoint once this one is replayed
+     */
+    public long getNextPosition() {
+        return nextPosition;
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public Date getTimestamp() {
+        return new Date(timestamp);
+    }
+
+    /**
+     * @return name =&gt; value
+     */
+    public Map<String, Double> getSamples() {
+        return samples;
+    }
+}
@@ -0,0 +1,276 @@
+package monitoring.wal;
+
+import monitoring.alert.AnomalyDetector;
+import monitoring.service.MonitoringService;
+import monitoring.service.QueueFullPolicy;
+import monitoring.service.SampleBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import util.concurrent.NamedThreadFactory;
+import util.concurrent.RateLimiter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable ingestion: samples are appended to a local {@link WriteAheadLog} and acknowledged at once, a
+ * background replayer drains the log to MongoDB in {@link SampleBatch}es of monitoring.wal.replayBatchSize
+ * samples, at most monitoring.wal.replayRate samples per second, and checkpoints after each successful write.
+ * <p>
+ * While MongoDB is slow or down the log grows on disk up to monitoring.wal.maxSizeMB, then
+ * monitoring.wal.fullPolicy applies; failed batches are retried every monitoring.wal.retryMillis. After a
+ * crash or a restart, replay resumes from the last checkpoint: only the batch being written at the time of
+ * the crash can be written twice. Writing a batch again is idempotent: minute values are set, rollups only
+ * count new minutes and packed hours are merged (see {@link MonitoringService#writeBatch(SampleBatch)}).
+ * <p>
+ * When disabled (monitoring.wal.enabled=false) samples are written synchronously.
+ */
+@Component
+public class WalSampleWriter implements WalSampleWriterMXBean {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass());
+    private MonitoringService monitoringService;
+    private AnomalyDetector anomalyDetector;
+
+    private boolean enabled = false;
+    private String directory = "wal";
+    private int segmentSizeMB = 64;
+    private long maxSizeMB = 1024;
+    private QueueFullPolicy fullPolicy = QueueFullPolicy.BLOCK;
+    private int replayBatchSize = 1000;
+    private double replayRate = 0;
+    private long retryMillis = 1000;
+    private long forceIntervalMillis = 1000;
+
+    private WriteAheadLog wal;
+    private ScheduledExecutorService executor;
+    private volatile boolean running;
+
+    private final AtomicLong samplesAppended = new AtomicLong();
+    private final AtomicLong samplesReplayed = new AtomicLong();
+    private final AtomicLong replayFailures = new AtomicLong();
+
+    @Autowired
+    public void setMonitoringService(MonitoringService monitoringService) {
+        this.monitoringService = monitoringService;
+    }
+
+    @Autowired(required = false)
+    public void setAnomalyDetector(AnomalyDetector anomalyDetector) {
+        this.anomalyDetector = anomalyDetector;
+    }
+
+    @Value("${monitoring.wal.enabled:false}")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Value("${monitoring.wal.directory:wal}")
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    @Value("${monitoring.wal.segmentSizeMB:64}")
+    public void setSegmentSizeMB(int segmentSizeMB) {
+        this.segmentSizeMB = segmentSizeMB;
+    }
+
+    @Value("${monitoring.wal.maxSizeMB:1024}")
+    public void setMaxSizeMB(long maxSizeMB) {
+        this.maxSizeMB = maxSizeMB;
+    }
+
+    @Value("${monitoring.wal.fullPolicy:BLOCK}")
+    public void setFullPolicy(QueueFullPolicy fullPolicy) {
+        this.fullPolicy = fullPolicy;
+    }
+
+    @Value("${monitoring.wal.replayBatchSize:1000}")
+    public void setReplayBatchSize(int replayBatchSize) {
+        this.replayBatchSize = replayBatchSize;
+    }
+
+    /**
+     * @param replayRate max samples replayed per second, 0 for no limit
+     */
+    @Value("${monitoring.wal.replayRate:0}")
+    public void setReplayRate(double replayRate) {
+        this.replayRate = replayRate;
+    }
+
+    @Value("${monitoring.wal.retryMillis:1000}")
+    public void setRetryMillis(long retryMillis) {
+        this.retryMillis = retryMillis;
+    }
+
+    @Value("${monitoring.wal.forceIntervalMillis:1000}")
+    public void setForceIntervalMillis(long forceIntervalMillis) {
+        this.forceIntervalMillis = forceIntervalMillis;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+
+        wal = new WriteAheadLog(new File(directory), segmentSizeMB << 20, maxSizeMB << 20, fullPolicy);
+        if (wal.getPendingBytes() > 0) {
+            log.info("Write-ahead log: replaying " + wal.getPendingBytes() + " bytes left by the previous run");
+        }
+
+        executor = Executors.newScheduledThreadPool(2, new NamedThreadFactory("wal"));
+        running = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                wal.force();
+            }
+        }, forceIntervalMillis, forceIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop accepting samples and give the replayer some time to drain the log; what is left is replayed on
+     * the next start.
+     *
+     * @throws InterruptedException
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        running = false;
+        wal.close();
+        executor.shutdown();
+        if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Log a sample measurement, Map of: name =&gt; value
+     *
+     * @param serverName
+     * @param timestamp
+     * @param samples    samples to store: name =&gt; value
+     * @throws RejectedExecutionException log is full and policy is {@link QueueFullPolicy#REJECT},
+     *                                    or the writer is stopped
+     */
+    public void addSample(String serverName, Date timestamp, Map<String, Double> samples) {
+        if (!enabled) {
+            monitoringService.addSample(serverName, timestamp, samples);
+            return;
+        }
+        if (!running) {
+            throw new RejectedExecutionException("Writer is stopped");
+        }
+
+        wal.append(serverName, timestamp.getTime(), samples);
+        samplesAppended.incrementAndGet();
+        if (anomalyDetector != null) {
+            anomalyDetector.observe(serverName, timestamp.getTime(), samples);
+        }
+    }
+
+    private void replay() {
+        RateLimiter rateLimiter = new RateLimiter(replayRate);
+        long position = wal.getCheckpoint();
+
+        while (!Thread.currentThread().isInterrupted()) {
+            // records deleted unreplayed by DROP_OLDEST are skipped
+            position = Math.max(position, wal.getCheckpoint());
+            List<WalRecord> records = wal.read(position, replayBatchSize);
+            try {
+                if (records.isEmpty()) {
+                    if (!running) {
+                        return;
+                    }
+                    Thread.sleep(50);
+                    continue;
+                }
+
+                SampleBatch batch = new SampleBatch();
+                int samples = 0;
+                for (WalRecord record : records) {
+                    batch.add(record.getServerName(), record.getTimestamp(), record.getSamples());
+                    samples += record.getSamples().size();
+                }
+                rateLimiter.acquire(samples);
+
+                try {
+                    // retried whole: the documents already written by a failed attempt are rewritten identically
+                    monitoringService.writeBatch(batch);
+                } catch (RuntimeException e) {
+                    replayFailures.incrementAndGet();
+                    log.error("Error replaying " + records.size() + " samples, retrying in " + retryMillis + " ms", e);
+                    if (!running) {
+                        return;
+                    }
+                    Thread.sleep(retryMillis);
+                    continue;
+                }
+
+                position = records.get(records.size() - 1).getNextPosition();
+                wal.checkpoint(position);
+                samplesReplayed.addAndGet(records.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return bytes of samples not replayed yet
+     */
+    @Override
+    public long getPendingBytes() {
+        return wal == null ? 0 : wal.getPendingBytes();
+    }
+
+    @Override
+    public int getSegmentsCount() {
+        return wal == null ? 0 : wal.getSegmentsCount();
+    }
+
+    @Override
+    public long getSamplesAppended() {
+        return samplesAppended.get();
+    }
+
+    @Override
+    public long getSamplesReplayed() {
+        return samplesReplayed.get();
+    }
+
+    @Override
+    public long getSamplesDropped() {
+        return wal == null ? 0 : wal.getRecordsDropped();
+    }
+
+    @Override
+    public long getReplayFailures() {
+        return replayFailures.get();
+    }
+}
@@ -0,0 +1,21 @@
+package monitoring.wal;
+
+/**
+ * JMX view of the {@link WalSampleWriter} log and replay.
+ */
+public interface WalSampleWriterMXBean {
+
+    boolean isEnabled();
+
+    long getPendingBytes();
+
+    int getSegmentsCount();
+
+    long getSamplesAppended();
+
+    long getSamplesReplayed();
+
+    long getSamplesDropped();
+
+    long getReplayFailures();
+}
@@ -0,0 +1,463 @@
+package monitoring.wal;
+
+import monitoring.service.QueueFullPolicy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead log of samples: records are appended to memory-mapped segment files and read back by a
+ * replayer, which then moves the checkpoint forward; segments entirely before the checkpoint are deleted.
+ * <p>
+ * Positions are global byte offsets: a segment file is named after the position of its first byte. Record
+ * format, big-endian:
+ * <pre>
+ * int payload length, int CRC32 of the payload,
+ * payload: short+UTF-8 server name, long timestamp, short count, count * (short+UTF-8 metric, double value)
+ * </pre>
+ * A length of 0 ends the records of a segment. Null values are written as NaN. On open, the end of the last
+ * segment is found by scanning records until an empty or corrupt one (a write torn by a crash).
+ * <p>
+ * Appends survive a crash of the process as soon as they return, a crash of the OS once {@link #force()}ed.
+ * Thread-safe.
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".wal";
+    static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int HEADER_SIZE = 8;
+    private static final long CHECKPOINT_MAGIC = 0x5741_4c43_4b50_5421L;
+
+    private static class Segment {
+        final long base;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        Segment(long base, File file, MappedByteBuffer buffer) {
+            this.base = base;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final QueueFullPolicy fullPolicy;
+
+    /** base =&gt; segment, guarded by this */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment current;
+    private volatile long writePosition;
+    private volatile long checkpoint;
+    private long recordsDropped;
+    private boolean closed;
+
+    /**
+     * Open a log, recovering the records left by a previous process.
+     *
+     * @param directory   directory of the segment files, created if needed
+     * @param segmentSize size of a segment file, in bytes
+     * @param maxBytes    max disk usage of the segments, at least 2 segments
+     * @param fullPolicy  what {@link #append} does when the log is full
+     * @throws IOException
+     */
+    public WriteAheadLog(File directory, int segmentSize, long maxBytes, QueueFullPolicy fullPolicy) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentSize);
+        this.fullPolicy = fullPolicy;
+
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.endsWith(SEGMENT_SUFFIX)) {
+                long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(base, new Segment(base, file, map(file)));
+            }
+        }
+
+        checkpoint = readCheckpoint();
+        if (segments.isEmpty()) {
+            current = createSegment(checkpoint);
+            writePosition = checkpoint;
+        } else {
+            current = segments.lastEntry().getValue();
+            writePosition = recover(current);
+            checkpoint = Math.max(checkpoint, segments.firstKey());
+            deleteSegmentsBefore(checkpoint);
+        }
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param serverName
+     * @param timestamp
+     * @param samples    name =&gt; value
+     * @return position after the record
+     * @throws RejectedExecutionException the log is full and the policy is {@link QueueFullPolicy#REJECT},
+     *                                    or interrupted while waiting for space
+     */
+    public long append(String serverName, long timestamp, Map<String, Double> samples) {
+        byte[] payload = encode(serverName, timestamp, samples);
+        if (HEADER_SIZE + payload.length + 4 > segmentSize) {
+            throw new IllegalArgumentException("Record larger than a segment: " + payload.length + " bytes");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        synchronized (this) {
+            if (closed) {
+                throw new RejectedExecutionException("Write-ahead log is closed");
+            }
+            int offset = (int) (writePosition - current.base);
+            // keep room for the end marker
+            if (offset + HEADER_SIZE + payload.length + 4 > segmentSize) {
+                roll();
+                offset = 0;
+            }
+
+            ByteBuffer buffer = current.buffer;
+            buffer.putInt(offset + 4, (int) crc.getValue());
+            int position = offset + HEADER_SIZE;
+            for (byte b : payload) {
+                buffer.put(position++, b);
+            }
+            // length last: a record is never visible before it is complete
+            buffer.putInt(offset, payload.length);
+
+            writePosition = current.base + position;
+            return writePosition;
+        }
+    }
+
+    private void roll() {
+        while (segments.size() >= maxSegments) {
+            switch (fullPolicy) {
+                case BLOCK:
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for log space", e);
+                    }
+                    if (closed) {
+                        throw new RejectedExecutionException("Write-ahead log is closed");
+                    }
+                    break;
+
+                case DROP_OLDEST:
+                    Map.Entry<Long, Segment> oldest = segments.firstEntry();
+                    Long next = segments.higherKey(oldest.getKey());
+                    recordsDropped += countRecords(oldest.getValue(), checkpoint);
+                    checkpoint = next;
+                    writeCheckpoint(checkpoint);
+                    deleteSegmentsBefore(checkpoint);
+                    break;
+
+                case REJECT:
+                    throw new RejectedExecutionException("Write-ahead log is full");
+            }
+        }
+
+        current.buffer.putInt((int) (writePosition - current.base), 0);
+        current.buffer.force();
+        try {
+            current = createSegment(writePosition);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot create segment in " + directory, e);
+        }
+    }
+
+    /**
+     * Read the records following a position.
+     *
+     * @param position   position of the first record, e.g. the checkpoint
+     * @param maxSamples stop after the record reaching this number of samples
+     * @return records in order, empty if none was appended since the position
+     */
+    public List<WalRecord> read(long position, int maxSamples) {
+        List<WalRecord> result = new ArrayList<>();
+        int samples = 0;
+
+        while (samples < maxSamples && position < writePosition) {
+            Segment segment;
+            synchronized (this) {
+                Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+                if (entry == null) {
+                    throw new IllegalArgumentException("Position before the first segment: " + position);
+                }
+                segment = entry.getValue();
+            }
+
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int offset = (int) (position - segment.base);
+            int length = offset + HEADER_SIZE <= segmentSize ? buffer.getInt(offset) : 0;
+            if (length == 0) {
+                // end of a segment
+                Long next;
+                synchronized (this) {
+                    next = segments.higherKey(segment.base);
+                }
+                if (next == null) {
+                    break;
+                }
+                position = next;
+                continue;
+            }
+
+            byte[] payload = new byte[length];
+            buffer.position(offset + HEADER_SIZE);
+            buffer.get(payload);
+            long nextPosition = position + HEADER_SIZE + length;
+            WalRecord record = decode(payload, position, nextPosition);
+            result.add(record);
+            samples += record.getSamples().size();
+            position = nextPosition;
+        }
+        return result;
+    }
+
+    /**
+     * Record that everything before a position was replayed, and delete the segments no longer needed.
+     *
+     * @param position
+     */
+    public synchronized void checkpoint(long position) {
+        if (position <= checkpoint) {
+            return;
+        }
+        checkpoint = position;
+        writeCheckpoint(position);
+        deleteSegmentsBefore(position);
+        notifyAll();
+    }
+
+    /**
+     * Flush appended records to disk.
+     */
+    public void force() {
+        Segment segment;
+        synchronized (this) {
+            segment = current;
+        }
+        segment.buffer.force();
+    }
+
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    public long getWritePosition() {
+        return writePosition;
+    }
+
+    /**
+     * @return bytes appended but not replayed yet
+     */
+    public long getPendingBytes() {
+        return writePosition - checkpoint;
+    }
+
+    public synchronized int getSegmentsCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return records deleted unreplayed by {@link QueueFullPolicy#DROP_OLDEST}
+     */
+    public synchronized long getRecordsDropped() {
+        return recordsDropped;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        current.buffer.force();
+        notifyAll();
+    }
+
+    private Segment createSegment(long base) throws IOException {
+        File file = new File(directory, String.format("%020d", base) + SEGMENT_SUFFIX);
+        Segment segment = new Segment(base, file, map(file));
+        segments.put(base, segment);
+        return segment;
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // the mapping remains valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * @return position after the last valid record of the segment; anything after it is cleared
+     */
+    private long recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        int length = 0;
+        while (offset + HEADER_SIZE <= segmentSize) {
+            length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_SIZE + length > segmentSize) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + HEADER_SIZE);
+            view.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+            offset += HEADER_SIZE + length;
+        }
+
+        // clear a torn record, so that none of it can be mistaken for a record once overwritten
+        long end = Math.min(segmentSize, offset + HEADER_SIZE + Math.max(0L, length));
+        for (int i = offset; i < end; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        return segment.base + offset;
+    }
+
+    private int countRecords(Segment segment, long from) {
+        ByteBuffer buffer = segment.buffer;
+        int count = 0;
+        int offset = (int) Math.max(0, from - segment.base);
+        int length;
+        while (offset + HEADER_SIZE <= segmentSize && (length = buffer.getInt(offset)) > 0) {
+            offset += HEADER_SIZE + length;
+            count++;
+        }
+        return count;
+    }
+
+    private void deleteSegmentsBefore(long position) {
+        // a segment is no longer needed once the next one starts at or before the position
+        Iterator<Map.Entry<Long, Segment>> it = segments.entrySet().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next().getValue();
+            Long next = segments.higherKey(segment.base);
+            if (segment == current || next == null || next > position) {
+                break;
+            }
+            it.remove();
+            // the file disappears once unmapped, on Unix-like systems
+            if (!segment.file.delete()) {
+                segment.file.deleteOnExit();
+            }
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        File file = new File(directory, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return segments.isEmpty() ? 0 : segments.firstKey();
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < 16 || buffer.getLong(8) != (buffer.getLong(0) ^ CHECKPOINT_MAGIC)) {
+            // torn write: replay everything left, replaying is idempotent
+            return segments.isEmpty() ? 0 : segments.firstKey();
+        }
+        return buffer.getLong(0);
+    }
+
+    private void writeCheckpoint(long position) {
+        File file = new File(directory, CHECKPOINT_FILE);
+        File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(position).putLong(position ^ CHECKPOINT_MAGIC);
+        buffer.flip();
+        try {
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write checkpoint in " + directory, e);
+        }
+        forceDirectory();
+    }
+
+    /**
+     * Make the rename of the checkpoint durable, where directories can be synced (not on Windows).
+     */
+    private void forceDirectory() {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported: the rename is durable once the file system commits it
+        }
+    }
+
+    static byte[] encode(String serverName, long timestamp, Map<String, Double> samples) {
+        byte[] server = serverName.getBytes(StandardCharsets.UTF_8);
+        byte[][] metrics = new byte[samples.size()][];
+        int size = 2 + server.length + 8 + 2;
+        int i = 0;
+        for (String metric : samples.keySet()) {
+            metrics[i] = metric.getBytes(StandardCharsets.UTF_8);
+            size += 2 + metrics[i].length + 8;
+            i++;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putShort((short) server.length).put(server);
+        buffer.putLong(timestamp);
+        buffer.putShort((short) samples.size());
+        i = 0;
+        for (Double value : samples.values()) {
+            buffer.putShort((short) metrics[i].length).put(metrics[i]);
+            buffer.putDouble(value == null ? Double.NaN : value);
+            i++;
+        }
+        return buffer.array();
+    }
+
+    static WalRecord decode(byte[] payload, long position, long nextPosition) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        String serverName = readString(buffer);
+        long timestamp = buffer.getLong();
+        int count = buffer.getShort() & 0xFFFF;
+        Map<String, Double> samples = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String metric = readString(buffer);
+            double value = buffer.getDouble();
+            samples.put(metric, Double.isNaN(value) ? null : value);
+        }
+        return new WalRecord(position, nextPosition, serverName, timestamp, samples);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
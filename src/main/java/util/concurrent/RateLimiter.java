@@ -0,0 +1,46 @@
+package util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads permits evenly over time, shared by any number of threads: each acquisition reserves the next
+ * free time slot and sleeps until it comes. A rate of 0 or less never waits.
+ */
+public class RateLimiter {
+
+    private final long nanosPerPermit;
+    private long nextFreeNanos;
+
+    /**
+     * @param permitsPerSecond
+     */
+    public RateLimiter(double permitsPerSecond) {
+        this.nanosPerPermit = permitsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond) : 0;
+        this.nextFreeNanos = System.nanoTime();
+    }
+
+    /**
+     * Wait until some permits are available.
+     *
+     * @param permits
+     * @throws InterruptedException
+     */
+    public void acquire(int permits) throws InterruptedException {
+        if (nanosPerPermit == 0) {
+            return;
+        }
+
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // never accumulate more than one second of unused permits
+            nextFreeNanos = Math.max(nextFreeNanos, now - TimeUnit.SECONDS.toNanos(1));
+            waitNanos = nextFreeNanos - now;
+            nextFreeNanos += permits * nanosPerPermit;
+        }
+
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
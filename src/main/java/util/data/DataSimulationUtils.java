@@ -1,10 +1,5 @@
 package util.data;
 
-import org.apache.commons.math3.distribution.NormalDistribution;
-import org.codehaus.groovy.runtime.DateGroovyMethods;
-
-import java.math.BigDecimal;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -27,41 +22,32 @@ public class DataSimulationUtils {
      * @return
      */
     public static SortedMap<Date, Double> simulateServerLoad(Date startDate, Date endDate, int intervalMinutes, double mean, double stdDev) {
+        return simulateServerLoad(startDate, endDate, intervalMinutes, mean, stdDev, System.nanoTime());
+    }
 
-        double variability = 0.005;
-
+    /**
+     * Emulate typical server load with a 24h cycle and peak hours, reproducibly.
+     * Large simulations should rather use {@link ServerLoadSimulator} or {@link FleetSimulator} directly.
+     *
+     * @param startDate       beginning of measurements
+     * @param endDate         end of measurements
+     * @param intervalMinutes interval between measurements
+     * @param mean            mean value of generated data
+     * @param stdDev          standard deviation of generated data
+     * @param seed            same seed, same values
+     * @return
+     */
+    public static SortedMap<Date, Double> simulateServerLoad(Date startDate, Date endDate, int intervalMinutes, double mean, double stdDev,
+                                                             long seed) {
         TreeMap<Date, Double> result = new TreeMap<Date, Double>();
+        ServerLoadSimulator.Series series = new ServerLoadSimulator(intervalMinutes, mean, stdDev)
+                .newSeries(new SplitMix64(seed));
 
-        // normal distribution
-        NormalDistribution valDistrib = new NormalDistribution(mean, stdDev);
-        NormalDistribution perturbationDist = new NormalDistribution(0.0, variability);
-
-        // def phase = - Math.PI * 3 / 4
-        Double phase = -Math.PI / 2;
-        // calculate phase increment for a 24 hours cycle
-        double numIncrements = 1440 / intervalMinutes;
-        double phaseIncr = Math.PI * 2.0 / numIncrements;
-        double perturbation = 0.0;
-
-        Calendar cal = DateGroovyMethods.toCalendar(startDate);
-
-        while (cal.getTime().before(endDate)) {
-            Double val = (Math.sin(phase) + (Math.sin(phase) + Math.sin((double) phase * 3.0) / 3.0) + Math.sin((double) phase * 5.0) / 5.0 + Math.sin((double) phase * 7.0) / 7.0 + Math.sin((double) phase * 9.0) / 9.0 + Math.sin((double) phase * 11.0) / 11.0) / 6.0 / 2.0;
-
-            val += Math.sin(perturbation) / 2;
-            val += valDistrib.sample();
-
-            val = Math.min(1.0, val);
-            val = Math.max(0.0, val);
-
-            result.put(cal.getTime(), val);
-            cal.add(Calendar.MINUTE, intervalMinutes);
-            phase = phase + phaseIncr;
-            perturbation += perturbationDist.sample();
+        long interval = intervalMinutes * 60000L;
+        for (long timestamp = startDate.getTime(); timestamp < endDate.getTime(); timestamp += interval) {
+            result.put(new Date(timestamp), series.next());
         }
-
-
-        return ((SortedMap<Date, Double>) (result));
+        return result;
     }
 
 }
@@ -0,0 +1,35 @@
+package util.data;
+
+/**
+ * Reproducible simulation of many servers: the series of a server and metric only depends on the seed and
+ * on their indexes, through {@link SplitMix64#stream(long, long)}, so servers can be generated by any number
+ * of threads, in any order, and chunk by chunk, always giving the same dataset. Thread-safe; the series
+ * returned are not.
+ */
+public class FleetSimulator {
+
+    private final long seed;
+    private final ServerLoadSimulator[] metrics;
+
+    /**
+     * @param seed    seed of the dataset
+     * @param metrics simulator of each metric
+     */
+    public FleetSimulator(long seed, ServerLoadSimulator... metrics) {
+        this.seed = seed;
+        this.metrics = metrics.clone();
+    }
+
+    /**
+     * @param server index of the server, from 0
+     * @param metric index of the metric
+     * @return series of values, from the beginning of the simulation
+     */
+    public ServerLoadSimulator.Series newSeries(int server, int metric) {
+        return metrics[metric].newSeries(SplitMix64.stream(seed, (long) server * metrics.length + metric));
+    }
+
+    public int getMetricsCount() {
+        return metrics.length;
+    }
+}
@@ -0,0 +1,81 @@
+package util.data;
+
+/**
+ * Primitive version of {@link DataSimulationUtils#simulateServerLoad}: same model (24h cycle with peak hours,
+ * slow random perturbation, normal noise, clamped to [0, 1]), generated into double arrays by seeded
+ * {@link Series}.
+ * <p>
+ * The cycle is periodic in the sample index, so its six sines are computed once per sample of a day, in
+ * the constructor; a sample then costs a table lookup, one sine and two normal draws. Immutable.
+ */
+public class ServerLoadSimulator {
+
+    private static final double VARIABILITY = 0.005;
+
+    private final double mean;
+    private final double stdDev;
+    private final double[] cycle;
+
+    /**
+     * @param intervalMinutes interval between measurements
+     * @param mean            mean value of generated data
+     * @param stdDev          standard deviation of generated data
+     */
+    public ServerLoadSimulator(int intervalMinutes, double mean, double stdDev) {
+        this.mean = mean;
+        this.stdDev = stdDev;
+
+        int period = Math.max(1, 1440 / intervalMinutes);
+        double phaseIncrement = Math.PI * 2.0 / period;
+        cycle = new double[period];
+        for (int i = 0; i < period; i++) {
+            double phase = -Math.PI / 2 + i * phaseIncrement;
+            cycle[i] = (Math.sin(phase) + (Math.sin(phase) + Math.sin(phase * 3.0) / 3.0) + Math.sin(phase * 5.0) / 5.0
+                    + Math.sin(phase * 7.0) / 7.0 + Math.sin(phase * 9.0) / 9.0 + Math.sin(phase * 11.0) / 11.0)
+                    / 6.0 / 2.0;
+        }
+    }
+
+    /**
+     * @param random generator of the series, e.g. from {@link SplitMix64#stream(long, long)}
+     * @return series starting at the beginning of the cycle
+     */
+    public Series newSeries(SplitMix64 random) {
+        return new Series(random);
+    }
+
+    /**
+     * Values of one simulated metric, generated in order. Not thread-safe.
+     */
+    public class Series {
+        private final SplitMix64 random;
+        private int position;
+        private double perturbation;
+
+        private Series(SplitMix64 random) {
+            this.random = random;
+        }
+
+        public double next() {
+            double value = cycle[position] + Math.sin(perturbation) / 2 + mean + stdDev * random.nextGaussian();
+            if (++position == cycle.length) {
+                position = 0;
+            }
+            perturbation += VARIABILITY * random.nextGaussian();
+            return Math.max(0.0, Math.min(1.0, value));
+        }
+
+        /**
+         * Generate the next values.
+         *
+         * @param values receives the values
+         * @param offset first index written
+         * @param count  number of values
+         */
+        public void fill(double[] values, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                values[i] = next();
+            }
+        }
+    }
+}
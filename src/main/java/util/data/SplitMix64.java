@@ -0,0 +1,99 @@
+package util.data;
+
+/**
+ * SplitMix64 pseudo-random generator (Steele, Lea, Flood 2014, the algorithm of java.util.SplittableRandom):
+ * a 64-bit counter incremented by an odd gamma and hashed. Fast, seeded, and splittable: {@link #split()}
+ * derives a statistically independent generator, and {@link #stream(long, long)} the generator of any split
+ * without computing the previous ones, so that parallel simulations give the same data whatever the thread
+ * scheduling.
+ * <p>
+ * Not thread-safe: one generator per thread or per simulated series.
+ */
+public class SplitMix64 {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+    private long seed;
+    private final long gamma;
+    private double nextGaussian;
+    private boolean haveNextGaussian;
+
+    public SplitMix64(long seed) {
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    private SplitMix64(long seed, long gamma) {
+        this.seed = seed;
+        this.gamma = gamma;
+    }
+
+    /**
+     * @param seed  seed of the root generator
+     * @param index index of the split, from 0
+     * @return the same generator as the (index + 1)th call of {@link #split()} on new SplitMix64(seed)
+     */
+    public static SplitMix64 stream(long seed, long index) {
+        long position = seed + 2 * index * GOLDEN_GAMMA;
+        return new SplitMix64(mix64(position + GOLDEN_GAMMA), mixGamma(position + 2 * GOLDEN_GAMMA));
+    }
+
+    /**
+     * @return new generator, independent of this one, which advances
+     */
+    public SplitMix64 split() {
+        return new SplitMix64(nextLong(), mixGamma(nextSeed()));
+    }
+
+    public long nextLong() {
+        return mix64(nextSeed());
+    }
+
+    /**
+     * @return uniform in [0, 1)
+     */
+    public double nextDouble() {
+        return (nextLong() >>> 11) * DOUBLE_UNIT;
+    }
+
+    /**
+     * @return standard normal, by the polar method: values are generated in pairs
+     */
+    public double nextGaussian() {
+        if (haveNextGaussian) {
+            haveNextGaussian = false;
+            return nextGaussian;
+        }
+        double v1;
+        double v2;
+        double s;
+        do {
+            v1 = 2 * nextDouble() - 1;
+            v2 = 2 * nextDouble() - 1;
+            s = v1 * v1 + v2 * v2;
+        } while (s >= 1 || s == 0);
+        double multiplier = Math.sqrt(-2 * Math.log(s) / s);
+        nextGaussian = v2 * multiplier;
+        haveNextGaussian = true;
+        return v1 * multiplier;
+    }
+
+    private long nextSeed() {
+        return seed += gamma;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /** odd gamma with enough bit transitions */
+    private static long mixGamma(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        int transitions = Long.bitCount(z ^ (z >>> 1));
+        return transitions < 24 ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+}
@@ -0,0 +1,8 @@
+function (key, value) {
+    // {metric: {sum, count}} => {metric: average}
+    var result = {};
+    for (var metric in value) {
+        result[metric] = value[metric].sum / value[metric].count;
+    }
+    return result;
+}
@@ -0,0 +1,34 @@
+function () {
+    // emits, for each hour of a DailyMonitoringData document: {d: yyyyMMdd, h: hour} => {metric: {sum, count}}
+    // the day comes from the id (serverName/yyyyMMdd): upserted documents may have no metadata
+    var id = String(this._id);
+    var day = id.substring(id.lastIndexOf('/') + 1);
+    if (!/^[0-9]{8}$/.test(day)) {
+        return;
+    }
+    for (var hh in this.data) {
+        var minutes = this.data[hh];
+        var totals = {};
+        var found = false;
+
+        for (var mm in minutes) {
+            var sample = minutes[mm];
+            for (var metric in sample) {
+                var value = sample[metric];
+                if (value === null || typeof value !== 'number') {
+                    continue;
+                }
+                if (!totals[metric]) {
+                    totals[metric] = {sum: 0, count: 0};
+                }
+                totals[metric].sum += value;
+                totals[metric].count++;
+                found = true;
+            }
+        }
+
+        if (found) {
+            emit({d: day, h: parseInt(hh, 10)}, totals);
+        }
+    }
+}
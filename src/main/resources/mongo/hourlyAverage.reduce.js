@@ -0,0 +1,14 @@
+function (key, values) {
+    // merges partial {metric: {sum, count}} totals of the same hour
+    var result = {};
+    for (var i = 0; i < values.length; i++) {
+        for (var metric in values[i]) {
+            if (!result[metric]) {
+                result[metric] = {sum: 0, count: 0};
+            }
+            result[metric].sum += values[i][metric].sum;
+            result[metric].count += values[i][metric].count;
+        }
+    }
+    return result;
+}
@@ -0,0 +1,124 @@
+package monitoring;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import monitoring.domain.ColumnarDailyMonitoringData;
+import monitoring.domain.DailyMonitoringData;
+import org.bson.BSON;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StorageCodecTest {
+
+    private static double[] hour(Random random) {
+        double[] values = new double[60];
+        for (int minute = 0; minute < 60; minute++) {
+            // some gaps, some repeated values
+            values[minute] = minute % 7 == 3 ? Double.NaN
+                    : minute % 5 == 0 ? 0.5 : Math.round(random.nextDouble() * 1000) / 1000.0;
+        }
+        return values;
+    }
+
+    @Test
+    public void testGorillaIsLossless() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            double[] values = hour(random);
+            byte[] block = StorageCodec.GORILLA.encodeHour(values);
+
+            double[] decoded = new double[60];
+            Arrays.fill(decoded, -1);
+            long present = StorageCodec.decodeHour(block, decoded);
+
+            for (int minute = 0; minute < 60; minute++) {
+                if (Double.isNaN(values[minute])) {
+                    assertEquals(0, present & (1L << minute));
+                    assertEquals(-1, decoded[minute], 0.0);
+                } else {
+                    assertEquals(values[minute], decoded[minute], 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFloat32() {
+        double[] values = hour(new Random(1));
+        byte[] block = StorageCodec.FLOAT32.encodeHour(values);
+        // header + 4 bytes per present value
+        int present = 0;
+        for (double value : values) {
+            present += Double.isNaN(value) ? 0 : 1;
+        }
+        assertEquals(9 + present * 4, block.length);
+
+        double[] decoded = new double[60];
+        StorageCodec.decodeHour(block, decoded);
+        for (int minute = 0; minute < 60; minute++) {
+            if (!Double.isNaN(values[minute])) {
+                assertEquals((float) values[minute], decoded[minute], 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testGorillaCompressesSteadyValues() {
+        double[] values = new double[60];
+        Arrays.fill(values, 0.25);
+        values[30] = 0.5;
+        // 64 bits for the first value, about one bit for each repeated one
+        assertTrue(StorageCodec.GORILLA.encodeHour(values).length < 9 + 8 + 8 + 4);
+
+        double[] empty = new double[60];
+        Arrays.fill(empty, Double.NaN);
+        assertNull(StorageCodec.GORILLA.encodeHour(empty));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testNestedIsNotPacked() {
+        StorageCodec.NESTED.encodeHour(new double[60]);
+    }
+
+    @Test
+    public void testDecodePackedDocument() throws Exception {
+        ColumnarDailyMonitoringData day = new ColumnarDailyMonitoringData("server-1",
+                DateFormatUtils.timestampFormat.parse("20140101_000000"), new String[]{"cpu"});
+        day.setValue("cpu", 601, 0.25);
+        day.setValue("cpu", 602, 0.5);
+
+        DBObject doc = new BasicDBObject("_id", "server-1/20140101");
+        DBObject packed = StorageCodec.GORILLA.encodeDay(day);
+        // a later block overrides minute 10:02
+        double[] update = new double[60];
+        Arrays.fill(update, Double.NaN);
+        update[2] = 0.75;
+        ((BasicDBList) ((DBObject) packed.get("cpu")).get("10")).add(StorageCodec.FLOAT32.encodeHour(update));
+        doc.put(StorageCodec.FIELD, packed);
+
+        ColumnarDailyMonitoringData result = new StreamingDailyMonitoringDataDecoder().decode(BSON.encode(doc), null);
+        assertEquals("server-1", result.getServerName());
+        assertEquals(0.25, result.getValue("cpu", 601), 0.0);
+        assertEquals(0.75, result.getValue("cpu", 602), 0.0);
+        assertTrue(Double.isNaN(result.getValue("cpu", 603)));
+
+        // tree-based converters
+        DBObject metadata = new BasicDBObject("serverName", "server-1")
+                .append("date", DateFormatUtils.timestampFormat.parse("20140101_000000"))
+                .append("metrics", new BasicDBList());
+        doc.put("metadata", metadata);
+        DailyMonitoringDataReadConverter converter = new DailyMonitoringDataReadConverter();
+
+        ColumnarDailyMonitoringData columnar = converter.convertColumnar(doc);
+        assertEquals(0.75, columnar.getValue("cpu", 602), 0.0);
+
+        DailyMonitoringData data = converter.convert(doc);
+        assertEquals(0.25, data.getData().get("10").get("01").get("cpu"), 0.0);
+        assertEquals(0.75, data.getData().get("10").get("02").get("cpu"), 0.0);
+    }
+}
@@ -0,0 +1,97 @@
+package monitoring;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import monitoring.domain.ColumnarDailyMonitoringData;
+import org.bson.BSON;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class StreamingDailyMonitoringDataDecoderTest {
+
+    private static DBObject dayDocument(boolean withMetadata) throws Exception {
+        DBObject doc = new BasicDBObject("_id", "server-1/20140101");
+
+        if (withMetadata) {
+            DBObject metadata = new BasicDBObject();
+            metadata.put("serverName", "server-1");
+            metadata.put("date", DateFormatUtils.timestampFormat.parse("20140101_000000"));
+            BasicDBList metrics = new BasicDBList();
+            metrics.add("mem");
+            metrics.add("cpu");
+            metadata.put("metrics", metrics);
+            doc.put("metadata", metadata);
+        }
+
+        DBObject data = new BasicDBObject();
+        for (int hh = 0; hh < 24; hh++) {
+            DBObject hhDoc = new BasicDBObject();
+            for (int mm = 0; mm < 60; mm++) {
+                DBObject mmDoc = new BasicDBObject();
+                mmDoc.put("mem", hh == 0 ? null : 0.5);
+                mmDoc.put("cpu", hh * 60 + mm);
+                hhDoc.put(String.format("%02d", mm), mmDoc);
+            }
+            data.put(String.format("%02d", hh), hhDoc);
+        }
+        doc.put("data", data);
+
+        return doc;
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        byte[] bson = BSON.encode(dayDocument(true));
+
+        ColumnarDailyMonitoringData result = new StreamingDailyMonitoringDataDecoder().decode(bson, null);
+        assertEquals("server-1/20140101", result.getId());
+        assertEquals("server-1", result.getServerName());
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140101_000000"), result.getDate());
+        assertArrayEquals(new String[]{"mem", "cpu"}, result.getMetrics());
+
+        for (int minuteOfDay = 0; minuteOfDay < ColumnarDailyMonitoringData.MINUTES_PER_DAY; minuteOfDay++) {
+            if (minuteOfDay < 60) {
+                assertTrue(Double.isNaN(result.getValue("mem", minuteOfDay)));
+            } else {
+                assertEquals(0.5, result.getValue("mem", minuteOfDay), 0.0);
+            }
+            assertEquals(minuteOfDay, result.getValue("cpu", minuteOfDay), 0.0);
+        }
+    }
+
+    @Test
+    public void testDecodeFilterAndMissingMetadata() throws Exception {
+        byte[] bson = BSON.encode(dayDocument(false));
+
+        StreamingDailyMonitoringDataDecoder decoder = new StreamingDailyMonitoringDataDecoder();
+        ColumnarDailyMonitoringData result = decoder.decode(bson, Collections.singleton("cpu"));
+        assertEquals("server-1", result.getServerName());
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140101_000000"), result.getDate());
+        assertArrayEquals(new String[]{"cpu"}, result.getMetrics());
+        assertEquals(601, result.getValue("cpu", 601), 0.0);
+
+        // decoder can be reused
+        result = decoder.decode(BSON.encode(dayDocument(true)), null);
+        assertArrayEquals(new String[]{"mem", "cpu"}, result.getMetrics());
+    }
+
+    @Test
+    public void testRawBsonDBObject() throws Exception {
+        DBObject doc = dayDocument(true);
+        byte[] bson = BSON.encode(doc);
+
+        DBObject raw = RawBsonDBObject.FACTORY.create().decode(new ByteArrayInputStream(bson), (DBCollection) null);
+        assertTrue(raw instanceof RawBsonDBObject);
+        assertArrayEquals(bson, ((RawBsonDBObject) raw).toByteArray());
+        assertEquals("server-1/20140101", raw.get("_id"));
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140101_000000"),
+                (Date) ((DBObject) raw.get("metadata")).get("date"));
+    }
+}
@@ -0,0 +1,131 @@
+package monitoring;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class TimeBucketsTest {
+
+    private static final TimeZone PARIS = TimeZone.getTimeZone("Europe/Paris");
+
+    private static long parse(String timestamp, TimeZone zone) throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd_HHmmss");
+        format.setTimeZone(zone);
+        return format.parse(timestamp).getTime();
+    }
+
+    @Test
+    public void testUtc() throws Exception {
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        TimeBuckets timeBuckets = new TimeBuckets(utc, 0);
+        long t = parse("20140101_103421", utc);
+
+        assertEquals(parse("20140101_000000", utc), timeBuckets.dayStart(t));
+        assertEquals(10 * 60 + 34, timeBuckets.minuteOfDay(t));
+        assertEquals(parse("20140101_103400", utc), timeBuckets.minuteStart(t, 10 * 60 + 34));
+        assertEquals("20140101", timeBuckets.dayLabel(t));
+        assertEquals(parse("20140101_000000", utc), timeBuckets.parseDayLabel("20140101"));
+        assertEquals(parse("20131230_000000", utc), timeBuckets.addDays(t, -2));
+        assertEquals("server-1/20140101", timeBuckets.formatId("server-1", t));
+        assertSame(timeBuckets.formatId("server-1", t), timeBuckets.formatId("server-1", t + 1000));
+        assertEquals("20000229", timeBuckets.dayLabel(parse("20000229_235959", utc)));
+        assertEquals("19691231", timeBuckets.dayLabel(-1));
+    }
+
+    @Test
+    public void testDaylightSavingTime() throws Exception {
+        TimeBuckets timeBuckets = new TimeBuckets(PARIS, 0);
+
+        // 23-hour day: 02:00 CET => 03:00 CEST
+        long spring = parse("20140330_120000", PARIS);
+        assertEquals(23 * 3600 * 1000L,
+                timeBuckets.addDays(spring, 1) - timeBuckets.dayStart(spring));
+        // wall-clock minutes: 03:30 stays the 210th minute, 02:00-02:59 never happen
+        long afterGap = parse("20140330_033000", PARIS);
+        assertEquals(3 * 60 + 30, timeBuckets.minuteOfDay(afterGap));
+        assertEquals(afterGap, timeBuckets.minuteStart(spring, 3 * 60 + 30));
+        assertEquals(parse("20140330_010000", PARIS), timeBuckets.hourStart(spring, 1));
+        assertEquals("20140330", timeBuckets.dayLabel(parse("20140330_235959", PARIS)));
+        assertEquals(TimeBuckets.MINUTES_PER_DAY, timeBuckets.minutesOfDay(spring));
+        assertEquals(3 * 60 + 30, timeBuckets.wallClockMinutesBefore(spring, afterGap));
+        assertEquals(3 * 60 + 31, timeBuckets.wallClockMinutesBefore(spring, afterGap + 1));
+        assertEquals(TimeBuckets.MINUTES_PER_DAY, timeBuckets.repeatedMinutesBefore(spring, afterGap));
+
+        // 25-hour day: 03:00 CEST => 02:00 CET, the second 02:00-02:59 go to the extra hour "24"
+        long autumn = parse("20141026_120000", PARIS);
+        assertEquals(25 * 3600 * 1000L,
+                timeBuckets.addDays(autumn, 1) - timeBuckets.dayStart(autumn));
+        assertEquals(TimeBuckets.MAX_MINUTES_PER_DAY, timeBuckets.minutesOfDay(autumn));
+        long firstTwoThirty = parse("20141026_003000", TimeZone.getTimeZone("UTC"));
+        long secondTwoThirty = firstTwoThirty + 3600 * 1000L;
+        assertEquals(2 * 60 + 30, timeBuckets.minuteOfDay(firstTwoThirty));
+        assertEquals(24 * 60 + 30, timeBuckets.minuteOfDay(secondTwoThirty));
+        assertEquals(firstTwoThirty, timeBuckets.minuteStart(autumn, 2 * 60 + 30));
+        assertEquals(secondTwoThirty, timeBuckets.minuteStart(autumn, 24 * 60 + 30));
+        assertEquals(firstTwoThirty - 30 * 60 * 1000L, timeBuckets.hourStart(autumn, 2));
+        assertEquals(secondTwoThirty - 30 * 60 * 1000L, timeBuckets.hourStart(autumn, 24));
+        assertEquals(parse("20141026_230000", PARIS), timeBuckets.hourStart(autumn, 23));
+        assertEquals("24", TimeBuckets.hourKey(timeBuckets.minuteOfDay(secondTwoThirty) / 60));
+        long lastMinute = parse("20141026_235900", PARIS);
+        assertEquals(23 * 60 + 59, timeBuckets.minuteOfDay(lastMinute));
+        // during the repeated hour, every wall-clock minute up to 02:59 is over
+        assertEquals(3 * 60, timeBuckets.wallClockMinutesBefore(autumn, secondTwoThirty));
+        assertEquals(24 * 60 + 30, timeBuckets.repeatedMinutesBefore(autumn, secondTwoThirty));
+        assertEquals(2 * 60 + 30, timeBuckets.wallClockMinutesBefore(autumn, firstTwoThirty));
+        assertEquals(TimeBuckets.MINUTES_PER_DAY, timeBuckets.repeatedMinutesBefore(autumn, firstTwoThirty));
+        assertEquals(TimeBuckets.MAX_MINUTES_PER_DAY, timeBuckets.repeatedMinutesBefore(autumn, lastMinute));
+    }
+
+    @Test
+    public void testDayStartMinutes() throws Exception {
+        // days from 06:00 to 06:00
+        TimeBuckets timeBuckets = new TimeBuckets(PARIS, 6 * 60);
+        long t = parse("20140102_051500", PARIS);
+
+        assertEquals(parse("20140101_060000", PARIS), timeBuckets.dayStart(t));
+        assertEquals("20140101", timeBuckets.dayLabel(t));
+        assertEquals(23 * 60 + 15, timeBuckets.minuteOfDay(t));
+        assertEquals(parse("20140101_060000", PARIS), timeBuckets.parseDayLabel("20140101"));
+        assertEquals(parse("20140102_060000", PARIS), timeBuckets.dayStart(parse("20140102_060000", PARIS)));
+    }
+
+    @Test
+    public void testFieldPath() throws Exception {
+        assertEquals("data.00.00.cpu", TimeBuckets.fieldPath(0, "cpu"));
+        assertEquals("data.23.59.cpu", TimeBuckets.fieldPath(1439, "cpu"));
+        assertSame(TimeBuckets.fieldPath(10 * 60 + 1, "cpu"), TimeBuckets.fieldPath(10 * 60 + 1, "cpu"));
+    }
+
+    @Test
+    public void testConcurrentDateFormat() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final int day = i + 1;
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    String timestamp = "2014010" + day + "_10000" + day;
+                    for (int n = 0; n < 2000; n++) {
+                        Date date = DateFormatUtils.timestampFormat.parse(timestamp);
+                        if (!timestamp.equals(DateFormatUtils.timestampFormat.format(date))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        executor.shutdown();
+    }
+}
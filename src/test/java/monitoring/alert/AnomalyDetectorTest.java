@@ -0,0 +1,183 @@
+package monitoring.alert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class AnomalyDetectorTest {
+
+    private final List<Alert> alerts = new ArrayList<>();
+    private AnomalyDetector detector;
+
+    @Before
+    public void setUp() {
+        detector = new AnomalyDetector();
+        detector.setStripes(4);
+        detector.setSinks(Collections.<AlertSink>singletonList(new AlertSink() {
+            @Override
+            public void onAlert(Alert alert) {
+                alerts.add(alert);
+            }
+        }));
+    }
+
+    @Test
+    public void testParse() {
+        List<AlertRule> rules = AlertRule.parseAll(" cpu > 0.9 ; ewma(mem, 0.2)<0.1;zscore(*,60)>3;; ");
+        assertEquals(3, rules.size());
+        assertEquals(AlertRule.Type.THRESHOLD, rules.get(0).getType());
+        assertEquals("cpu", rules.get(0).getMetric());
+        assertEquals(0.9, rules.get(0).getLimit(), 0);
+        assertTrue(rules.get(0).isBreached(0.95));
+        assertEquals(AlertRule.Type.EWMA, rules.get(1).getType());
+        assertEquals(0.2, rules.get(1).getAlpha(), 0);
+        assertTrue(rules.get(1).isBreached(0.05));
+        assertFalse(rules.get(1).isBreached(Double.NaN));
+        assertEquals(AlertRule.Type.ZSCORE, rules.get(2).getType());
+        assertEquals(60, rules.get(2).getWindow());
+        assertTrue(rules.get(2).appliesTo("anything"));
+        assertTrue(AlertRule.parseAll("").isEmpty());
+
+        for (String invalid : new String[]{"cpu", "cpu >", "ewma(cpu,2)>1", "zscore(cpu,1)>3", "avg(cpu,3)>1"}) {
+            try {
+                AlertRule.parse(invalid);
+                fail(invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testThreshold() {
+        detector.setRules("cpu>0.9");
+        assertTrue(detector.isEnabled());
+
+        Map<String, Double> samples = new HashMap<>();
+        samples.put("cpu", 0.95);
+        samples.put("mem", 0.99);
+        samples.put("disk", null);
+        detector.observe("server-1", 1000, samples);
+        detector.observe("server-1", 2000, "cpu", 0.97);
+        detector.observe("server-2", 2000, "cpu", 0.5);
+        detector.observe("server-1", 3000, "cpu", 0.2);
+
+        // edge-triggered: one alert when breached, one when back to normal
+        assertEquals(2, alerts.size());
+        assertEquals(Alert.State.FIRING, alerts.get(0).getState());
+        assertEquals("server-1", alerts.get(0).getServerName());
+        assertEquals("cpu", alerts.get(0).getMetric());
+        assertEquals(1000, alerts.get(0).getTimestamp().getTime());
+        assertEquals(0.95, alerts.get(0).getValue(), 0);
+        assertEquals(Alert.State.RESOLVED, alerts.get(1).getState());
+        assertEquals(3000, alerts.get(1).getTimestamp().getTime());
+        assertEquals(2, detector.getSeriesCount());
+        assertTrue(detector.getFiringRules("server-1", "cpu").isEmpty());
+    }
+
+    @Test
+    public void testEwma() {
+        detector.setRules("ewma(cpu,0.5)>0.8");
+
+        // an isolated spike is smoothed out
+        detector.observe("server-1", 0, "cpu", 0.1);
+        detector.observe("server-1", 1, "cpu", 1.0);
+        detector.observe("server-1", 2, "cpu", 0.1);
+        assertTrue(alerts.isEmpty());
+
+        // a sustained one is not: about 0.1, 0.55, 0.775, 0.8875
+        for (int i = 3; i < 20; i++) {
+            detector.observe("server-1", i, "cpu", 0.1);
+        }
+        detector.observe("server-1", 20, "cpu", 1.0);
+        detector.observe("server-1", 21, "cpu", 1.0);
+        assertTrue(alerts.isEmpty());
+        detector.observe("server-1", 22, "cpu", 1.0);
+        assertEquals(1, alerts.size());
+        assertEquals(0.8875, alerts.get(0).getObserved(), 1e-3);
+        assertEquals(1, detector.getFiringRules("server-1", "cpu").size());
+    }
+
+    @Test
+    public void testZscore() {
+        detector.setRules("zscore(*,100)>6;zscore(*,100)<-6");
+        Random random = new Random(42);
+
+        // no score until the window is full, then normal noise stays within 6 deviations
+        for (int i = 0; i < 1000; i++) {
+            detector.observe("server-1", i, "requests", 100 + random.nextGaussian());
+            detector.observe("server-2", i, "requests", 100 + random.nextGaussian());
+        }
+        assertTrue(alerts.toString(), alerts.isEmpty());
+
+        detector.observe("server-1", 1000, "requests", 150);
+        assertEquals(1, alerts.size());
+        assertEquals(Alert.State.FIRING, alerts.get(0).getState());
+        assertEquals("zscore(*,100)>6", alerts.get(0).getRule().toString());
+        assertTrue(alerts.get(0).getObserved() > 6);
+
+        detector.observe("server-1", 1001, "requests", 100);
+        assertEquals(2, alerts.size());
+        assertEquals(Alert.State.RESOLVED, alerts.get(1).getState());
+
+        detector.observe("server-2", 1001, "requests", 50);
+        assertEquals(3, alerts.size());
+        assertEquals("server-2", alerts.get(2).getServerName());
+        assertTrue(alerts.get(2).getObserved() < -6);
+    }
+
+    @Test
+    public void testZscoreWithoutVariance() {
+        detector.setRules("zscore(*,10)>3;zscore(*,10)<-3");
+
+        // a flat series: equal values score 0, any change is infinitely far off
+        for (int i = 0; i < 20; i++) {
+            detector.observe("server-1", i, "sessions", 5);
+            detector.observe("server-2", i, "sessions", 5);
+        }
+        assertTrue(alerts.toString(), alerts.isEmpty());
+
+        detector.observe("server-1", 20, "sessions", 6);
+        assertEquals(1, alerts.size());
+        assertEquals(Double.POSITIVE_INFINITY, alerts.get(0).getObserved(), 0.0);
+        detector.observe("server-2", 20, "sessions", 4);
+        assertEquals(2, alerts.size());
+        assertEquals(Double.NEGATIVE_INFINITY, alerts.get(1).getObserved(), 0.0);
+    }
+
+    @Test
+    public void testZscoreLargeValues() {
+        detector.setRules("zscore(*,100)>6");
+        Random random = new Random(42);
+
+        // unit noise around 1e9: the sums of squares (1e20) would lose the variance to rounding
+        for (int i = 0; i < 1000; i++) {
+            detector.observe("server-1", i, "bytes", 1e9 + random.nextGaussian());
+        }
+        assertTrue(alerts.toString(), alerts.isEmpty());
+
+        detector.observe("server-1", 1000, "bytes", 1e9 + 10);
+        assertEquals(1, alerts.size());
+        assertEquals(10, alerts.get(0).getObserved(), 2);
+    }
+
+    @Test
+    public void testManySeries() {
+        detector.setRules("cpu>0.5");
+        detector.setMaxSeries(4000);
+        for (int i = 0; i < 10000; i++) {
+            detector.observe("server-" + i, 0, "cpu", 0.1);
+            detector.observe("server-" + i, 0, "mem", 0.9);
+        }
+        // bounded: each of the 4 stripes holds at most 1000 series
+        assertEquals(4000, detector.getSeriesCount());
+
+        detector.observe("server-1", 1, "cpu", 0.9);
+        assertEquals(1, alerts.size());
+        assertEquals(0, new AnomalyDetector().getSeriesCount());
+        assertFalse(new AnomalyDetector().isEnabled());
+    }
+}
@@ -0,0 +1,58 @@
+package monitoring.bench;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import monitoring.DateFormatUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.*;
+
+public class LoadGeneratorTest {
+
+    @Test
+    public void testParseConfig() throws Exception {
+        LoadGenerator.Config config = LoadGenerator.Config.parse("servers=500", "metrics=8", "rate=2000.5", "start=20150301",
+                "seed=7");
+        assertEquals(500, config.servers);
+        assertEquals(8, config.metrics);
+        assertEquals(2000.5, config.rate, 0.0);
+        assertEquals(DateFormatUtils.dayFormat.parse("20150301"), config.startDate);
+        assertEquals(7, config.seed);
+        // defaults
+        assertEquals(4, config.writers);
+        assertEquals(60, config.batch);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseUnknownOption() throws Exception {
+        LoadGenerator.Config.parse("server=5");
+    }
+
+    @Test
+    public void testPrint() throws Exception {
+        LoadGenerator.OperationStats writes = new LoadGenerator.OperationStats();
+        for (int i = 0; i < 100; i++) {
+            writes.record(System.nanoTime(), 60);
+        }
+        DBObject result = new BasicDBObject("config", LoadGenerator.Config.parse().toDBObject())
+                .append("seconds", 2.0)
+                .append("writes", writes.toDBObject(2.0))
+                .append("reads", new LoadGenerator.OperationStats().toDBObject(2.0))
+                .append("documents", new BasicDBObject("count", 10L).append("avgBytes", 1000L).append("maxBytes", 2000L));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LoadGenerator.print(result, new PrintStream(bytes, true));
+        String[] lines = bytes.toString().trim().split("\n");
+
+        assertTrue(lines[2].startsWith("writes"));
+        assertTrue(lines[2].contains("3000.0"));
+        // last line is machine-readable
+        DBObject json = (DBObject) JSON.parse(lines[lines.length - 1]);
+        assertEquals(100L, ((Number) ((DBObject) json.get("writes")).get("operations")).longValue());
+        assertNull(((DBObject) json.get("reads")).get("p99Millis"));
+    }
+}
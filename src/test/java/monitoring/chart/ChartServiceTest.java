@@ -0,0 +1,140 @@
+package monitoring.chart;
+
+import monitoring.DateFormatUtils;
+import monitoring.domain.ColumnarDailyMonitoringData;
+import monitoring.service.BucketWidth;
+import monitoring.service.MonitoringService;
+import monitoring.service.PointIterator;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ChartServiceTest {
+
+    /** Streams days of minute values of "cpu", with a spike at 12:00 on the 10th day. */
+    static class InMemoryMonitoringService extends MonitoringService {
+        int queries;
+
+        @Override
+        public PointIterator streamValues(String serverName, Date startDate, Date endDate, BucketWidth width,
+                                          Set<String> metrics) {
+            queries++;
+            List<ColumnarDailyMonitoringData> days = new ArrayList<>();
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(startDate);
+            for (int day = 0; calendar.getTime().before(endDate); day++) {
+                ColumnarDailyMonitoringData data = new ColumnarDailyMonitoringData(serverName, calendar.getTime(),
+                        new String[]{"cpu"});
+                for (int minute = 0; minute < 1440; minute++) {
+                    data.setValue("cpu", minute, 0.5 + 0.1 * Math.sin(minute * Math.PI / 720));
+                }
+                if (day == 9) {
+                    data.setValue("cpu", 720, 5.0);
+                }
+                days.add(data);
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+            }
+            return new PointIterator(days.iterator(), new Closeable() {
+                @Override
+                public void close() {
+                }
+            }, width, startDate, endDate);
+        }
+    }
+
+    @Test
+    public void testLttb() {
+        int length = 43200;
+        long[] x = new long[length];
+        double[] y = new double[length];
+        for (int i = 0; i < length; i++) {
+            x[i] = 1388534400000L + i * 60000L;
+            y[i] = Math.sin(i / 100.0);
+        }
+        y[12345] = 10;
+        y[23456] = -10;
+
+        long[] outX = new long[800];
+        double[] outY = new double[800];
+        assertEquals(800, Lttb.downsample(x, y, length, 800, outX, outY));
+        assertEquals(x[0], outX[0]);
+        assertEquals(x[length - 1], outX[799]);
+        double max = Double.NEGATIVE_INFINITY;
+        double min = Double.POSITIVE_INFINITY;
+        for (int i = 1; i < 800; i++) {
+            assertTrue(outX[i] > outX[i - 1]);
+            max = Math.max(max, outY[i]);
+            min = Math.min(min, outY[i]);
+        }
+        // extremes are kept
+        assertEquals(10, max, 0);
+        assertEquals(-10, min, 0);
+
+        // short series are copied
+        assertEquals(3, Lttb.downsample(x, y, 3, 800, outX, outY));
+        assertEquals(x[2], outX[2]);
+        try {
+            Lttb.downsample(x, y, length, 2, outX, outY);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRender() throws Exception {
+        InMemoryMonitoringService service = new InMemoryMonitoringService();
+        ChartService chartService = new ChartService();
+        chartService.setMonitoringService(service);
+        Date start = DateFormatUtils.timestampFormat.parse("20140101_000000");
+        Date end = DateFormatUtils.timestampFormat.parse("20140131_000000");
+
+        String svg = new String(chartService.render("ATTILA", start, end, null, 800, 400, ChartFormat.SVG),
+                StandardCharsets.UTF_8);
+        assertTrue(svg, svg.startsWith("<svg") && svg.endsWith("</svg>\n"));
+        // 43200 minutes downsampled to 800 points, spike included
+        String points = svg.substring(svg.indexOf("points=\"") + 8);
+        points = points.substring(0, points.indexOf('"'));
+        assertEquals(800, points.split(" ").length);
+        assertTrue(svg, svg.contains(">5</text>"));
+
+        byte[] png = chartService.render("ATTILA", start, end, null, 800, 400, ChartFormat.PNG);
+        assertEquals((byte) 0x89, png[0]);
+        assertEquals('P', png[1]);
+        assertEquals(2, service.queries);
+        assertEquals(0, chartService.getCacheHits());
+
+        // past range: cached until past data changes
+        assertSame(png, chartService.render("ATTILA", start, end, null, 800, 400, ChartFormat.PNG));
+        assertEquals(1, chartService.getCacheHits());
+        assertEquals(2, service.queries);
+        Thread.sleep(5);
+        service.markPastDataModified();
+        assertNotSame(png, chartService.render("ATTILA", start, end, null, 800, 400, ChartFormat.PNG));
+        assertEquals(3, service.queries);
+
+        // bounded
+        chartService = new ChartService();
+        chartService.setMonitoringService(service);
+        chartService.setCacheMaxEntries(1);
+        chartService.render("ATTILA", start, end, null, 800, 400, ChartFormat.PNG);
+        chartService.render("ATTILA", start, end, null, 400, 200, ChartFormat.PNG);
+        chartService.render("ATTILA", start, end, null, 800, 400, ChartFormat.PNG);
+        assertEquals(6, service.queries);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSize() throws Exception {
+        new ChartService().render("ATTILA", new Date(0), new Date(1), null, 10, 400, ChartFormat.PNG);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRange() throws Exception {
+        // rejected before anything is read or allocated
+        new ChartService().render("ATTILA", new Date(0), new Date(Long.MAX_VALUE / 2), null, 800, 400, ChartFormat.PNG);
+    }
+}
@@ -0,0 +1,71 @@
+package monitoring.domain;
+
+import monitoring.DateFormatUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+import static org.junit.Assert.*;
+
+public class ColumnarDailyMonitoringDataTest {
+
+    @Test
+    public void testMinuteOfDay() throws Exception {
+        assertEquals(0, ColumnarDailyMonitoringData.minuteOfDay("00", "00"));
+        assertEquals(601, ColumnarDailyMonitoringData.minuteOfDay("10", "01"));
+        assertEquals(1439, ColumnarDailyMonitoringData.minuteOfDay(23, 59));
+    }
+
+    @Test
+    public void testSetValue() throws Exception {
+        String[] metrics = {"cpu", "mem"};
+        ColumnarDailyMonitoringData data = new ColumnarDailyMonitoringData("server-1",
+                DateFormatUtils.timestampFormat.parse("20140101_103421"), metrics);
+
+        assertEquals("server-1/20140101", data.getId());
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140101_000000"), data.getDate());
+        assertEquals(0, data.metricIndex("cpu"));
+        assertEquals(1, data.metricIndex("mem"));
+        assertEquals(-1, data.metricIndex("disk"));
+        assertTrue(Double.isNaN(data.getValue("cpu", 601)));
+
+        data.setValue("cpu", 601, 0.1234);
+        assertEquals(0.1234, data.getValue(0, 601), 0.0);
+
+        // unknown metrics are appended
+        data.setValue("disk", 0, 0.5);
+        assertEquals(2, data.metricIndex("disk"));
+        assertArrayEquals(new String[]{"cpu", "mem", "disk"}, data.getMetrics());
+        assertEquals(0.5, data.getValue("disk", 0), 0.0);
+        assertTrue(Double.isNaN(data.getValue("disk", 1)));
+    }
+
+    @Test
+    public void testMapCompatibility() throws Exception {
+        String[] metrics = {"cpu", "mem"};
+        DailyMonitoringData data = new DailyMonitoringData("server-1",
+                DateFormatUtils.timestampFormat.parse("20140101_000000"), metrics);
+        data.preallocateDay();
+        data.setValue(DateUtils.toCalendar(DateFormatUtils.timestampFormat.parse("20140101_100100")), "cpu", 0.1);
+        data.setValue(DateUtils.toCalendar(DateFormatUtils.timestampFormat.parse("20140101_113400")), "mem", 0.2);
+
+        ColumnarDailyMonitoringData columnar = ColumnarDailyMonitoringData.from(data);
+        assertEquals(0.1, columnar.getValue("cpu", ColumnarDailyMonitoringData.minuteOfDay(10, 1)), 0.0);
+        assertEquals(0.2, columnar.getValue("mem", ColumnarDailyMonitoringData.minuteOfDay(11, 34)), 0.0);
+        assertTrue(Double.isNaN(columnar.getValue("mem", ColumnarDailyMonitoringData.minuteOfDay(10, 1))));
+
+        SortedMap<String, SortedMap<String, Map<String, Double>>> view = columnar.toDataMap();
+        assertEquals(2, view.size());
+        assertEquals(1, view.get("10").size());
+        assertEquals(1, view.get("10").get("01").size());
+        assertEquals(0.1, view.get("10").get("01").get("cpu"), 0.0);
+        assertEquals(0.2, view.get("11").get("34").get("mem"), 0.0);
+
+        DailyMonitoringData back = columnar.toDailyMonitoringData();
+        assertEquals("server-1/20140101", back.getId());
+        assertArrayEquals(metrics, back.getMetadata().getMetrics());
+        assertEquals(view, back.getData());
+    }
+}
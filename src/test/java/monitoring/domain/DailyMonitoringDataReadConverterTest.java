@@ -13,6 +13,7 @@ import java.util.Date;
 import java.util.Map;
 import java.util.SortedMap;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -81,4 +82,46 @@ public class DailyMonitoringDataReadConverterTest {
             }
         }
     }
+
+    @Test
+    public void testConvertColumnar() throws Exception {
+        DBObject doc = new BasicDBObject();
+
+        DBObject metadata = new BasicDBObject();
+        Date dt = DateUtils.truncate(new Date(), Calendar.DAY_OF_MONTH);
+        metadata.put("serverName", "server-1");
+        metadata.put("date", dt);
+        BasicDBList metrics = new BasicDBList();
+        metrics.add(0, "mem");
+        metrics.add(1, "cpu");
+        metadata.put("metrics", metrics);
+        doc.put("metadata", metadata);
+
+        DBObject data = new BasicDBObject();
+        for (int hh = 0; hh < 24; hh++) {
+            DBObject hhDoc = new BasicDBObject();
+            for (int mm = 0; mm < 60; mm++) {
+                DBObject mmDoc = new BasicDBObject();
+                mmDoc.put("mem", hh == 0 ? null : 0.5);
+                mmDoc.put("cpu", 0.6);
+                hhDoc.put(String.format("%02d", mm), mmDoc);
+            }
+            data.put(String.format("%02d", hh), hhDoc);
+        }
+        doc.put("data", data);
+
+        ColumnarDailyMonitoringData result = new DailyMonitoringDataReadConverter().convertColumnar(doc);
+        assertEquals("server-1", result.getServerName());
+        assertEquals(dt, result.getDate());
+        assertArrayEquals(new String[]{"mem", "cpu"}, result.getMetrics());
+
+        for (int minuteOfDay = 0; minuteOfDay < ColumnarDailyMonitoringData.MINUTES_PER_DAY; minuteOfDay++) {
+            if (minuteOfDay < 60) {
+                assertTrue(Double.isNaN(result.getValue("mem", minuteOfDay)));
+            } else {
+                assertEquals(0.5, result.getValue("mem", minuteOfDay), 0.0);
+            }
+            assertEquals(0.6, result.getValue("cpu", minuteOfDay), 0.0);
+        }
+    }
 }
\ No newline at end of file
@@ -42,6 +42,20 @@ public class DailyMonitoringDataTest {
         }
     }
 
+    @Test
+    public void testPreallocateDayMetrics() throws Exception {
+        String[] metrics = {"cpu", "mem", "disk"};
+        DailyMonitoringData data = new DailyMonitoringData("server-1",
+                DateFormatUtils.timestampFormat.parse("20140101_000000"), metrics);
+        data.preallocateDay();
+
+        assertEquals(24, data.getData().size());
+        assertEquals(60, data.getData().get("23").size());
+        assertEquals(3, data.getData().get("23").get("59").size());
+        assertTrue(data.getData().get("00").get("00").containsKey("disk"));
+        assertNull(data.getData().get("00").get("00").get("disk"));
+    }
+
     @Test
     public void testSetValue() throws Exception {
         String[] metrics = {"cpu", "mem"};
@@ -0,0 +1,267 @@
+package monitoring.http;
+
+import monitoring.DateFormatUtils;
+import monitoring.chart.ChartService;
+import monitoring.domain.ColumnarDailyMonitoringData;
+import monitoring.service.BucketWidth;
+import monitoring.service.MonitoringService;
+import monitoring.service.PointIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.StreamUtils;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class QueryApiServerTest {
+
+    /** Streams two in-memory days. */
+    static class InMemoryMonitoringService extends MonitoringService {
+        int queries;
+
+        @Override
+        public List<Date> listDays(String serverName, Date startDate, Date endDate) {
+            queries++;
+            List<Date> days = new ArrayList<>();
+            try {
+                for (String day : new String[]{"20140101", "20140102"}) {
+                    Date date = DateFormatUtils.dayFormat.parse(day);
+                    if (!date.before(startDate) && date.before(endDate)) {
+                        days.add(date);
+                    }
+                }
+            } catch (ParseException e) {
+                throw new IllegalStateException(e);
+            }
+            return days;
+        }
+
+        @Override
+        public PointIterator streamValues(String serverName, Date startDate, Date endDate, BucketWidth width,
+                                          Set<String> metrics) {
+            queries++;
+            List<ColumnarDailyMonitoringData> days = new ArrayList<>();
+            try {
+                for (String day : new String[]{"20140101", "20140102"}) {
+                    ColumnarDailyMonitoringData data = new ColumnarDailyMonitoringData(serverName,
+                            DateFormatUtils.dayFormat.parse(day), new String[]{"cpu", "mem"});
+                    data.setValue("cpu", 600, 0.25);
+                    data.setValue("mem", 601, 0.5);
+                    days.add(data);
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            return new PointIterator(days.iterator(), new Closeable() {
+                @Override
+                public void close() {
+                }
+            }, width, startDate, endDate);
+        }
+
+        /** the hourly tier: 10:00 of the first day */
+        @Override
+        public SortedMap<Date, Map<String, Double>> aggregatedValuesByHour(String serverName, Date startDate,
+                                                                         Date endDate, Set<String> metrics) {
+            queries++;
+            SortedMap<Date, Map<String, Double>> result = new TreeMap<>();
+            try {
+                result.put(DateFormatUtils.timestampFormat.parse("20140101_100000"),
+                        Collections.singletonMap("cpu", 0.25));
+            } catch (ParseException e) {
+                throw new IllegalStateException(e);
+            }
+            return result;
+        }
+    }
+
+    private InMemoryMonitoringService service;
+    private QueryApiServer server;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        service = new InMemoryMonitoringService();
+        server = new QueryApiServer();
+        server.setMonitoringService(service);
+        ChartService chartService = new ChartService();
+        chartService.setMonitoringService(service);
+        server.setChartService(chartService);
+        server.setHttpPort(port);
+        server.setThreads(2);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private HttpURLConnection get(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            return StreamUtils.copyToString(input, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testSeries() throws Exception {
+        HttpURLConnection connection = get("/api/series?server=ATTILA&start=20140101_000000&end=20140103_000000");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("application/json; charset=utf-8", connection.getContentType());
+        long t1 = DateFormatUtils.timestampFormat.parse("20140101_100000").getTime();
+        long t2 = DateFormatUtils.timestampFormat.parse("20140102_100000").getTime();
+        assertEquals("{\"server\":\"ATTILA\",\"width\":\"1h\",\"points\":["
+                        + "{\"t\":" + t1 + ",\"cpu\":0.25,\"mem\":0.5},{\"t\":" + t2 + ",\"cpu\":0.25,\"mem\":0.5}]}",
+                read(connection.getInputStream()));
+
+        // gzip, minutes
+        connection = get("/api/raw?server=ATTILA&start=20140101_000000&end=20140102_000000");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        assertEquals("{\"server\":\"ATTILA\",\"width\":\"1m\",\"points\":["
+                        + "{\"t\":" + t1 + ",\"cpu\":0.25},{\"t\":" + (t1 + 60000) + ",\"mem\":0.5}]}",
+                read(new GZIPInputStream(connection.getInputStream())));
+    }
+
+    @Test
+    public void testRetention() throws Exception {
+        service.setRetentionEnabled(true);
+
+        // older than the raw retention: hourly series from the tiers
+        HttpURLConnection connection = get("/api/series?server=ATTILA&start=20140101_000000&end=20140103_000000");
+        assertEquals(200, connection.getResponseCode());
+        long t1 = DateFormatUtils.timestampFormat.parse("20140101_100000").getTime();
+        assertEquals("{\"server\":\"ATTILA\",\"width\":\"1h\",\"points\":[{\"t\":" + t1 + ",\"cpu\":0.25}]}",
+                read(connection.getInputStream()));
+
+        // minute data is gone
+        assertEquals(400, get("/api/raw?server=ATTILA&start=20140101_000000&end=20140102_000000").getResponseCode());
+        assertEquals(400, get("/api/series?server=ATTILA&start=20140101_000000&end=20140102_000000&width=15m")
+                .getResponseCode());
+        assertEquals(400, get("/api/chart?server=ATTILA&start=20140101_000000&end=20140102_000000")
+                .getResponseCode());
+    }
+
+    @Test
+    public void testDays() throws Exception {
+        HttpURLConnection connection = get("/api/days?server=ATTILA&start=20140101_120000&end=20140110_000000");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("{\"server\":\"ATTILA\",\"days\":["
+                        + DateFormatUtils.dayFormat.parse("20140102").getTime() + "]}",
+                read(connection.getInputStream()));
+        assertEquals(1, service.queries);
+    }
+
+    @Test
+    public void testParseDate() throws Exception {
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140102_103000"), QueryApiServer.parseDate("20140102_103000"));
+        // 8 digits are a day, not epoch milliseconds of 1970
+        assertEquals(DateFormatUtils.dayFormat.parse("20140102"), QueryApiServer.parseDate("20140102"));
+        assertEquals(new Date(1388620800000L), QueryApiServer.parseDate("1388620800000"));
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        HttpURLConnection connection = get("/api/series?server=ATTILA&start=20140101_000000&end=20140102_000000"
+                + "&width=1d&format=binary");
+        assertEquals(BinaryPointWriter.CONTENT_TYPE, connection.getContentType());
+        try (DataInputStream in = new DataInputStream(connection.getInputStream())) {
+            assertEquals('M', in.readByte());
+            assertEquals(2, in.readShort());
+            assertEquals("cpu", in.readUTF());
+            assertEquals("mem", in.readUTF());
+            assertEquals('P', in.readByte());
+            assertEquals(DateFormatUtils.dayFormat.parse("20140101").getTime(), in.readLong());
+            assertEquals(0.25, in.readDouble(), 0.0);
+            assertEquals(0.5, in.readDouble(), 0.0);
+            assertEquals('E', in.readByte());
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testConditional() throws Exception {
+        String path = "/api/series?server=ATTILA&start=20140101_000000&end=20140103_000000";
+        HttpURLConnection connection = get(path);
+        assertEquals(200, connection.getResponseCode());
+        read(connection.getInputStream());
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        assertNotNull(etag);
+        assertNotNull(lastModified);
+        assertEquals("max-age=300", connection.getHeaderField("Cache-Control"));
+        assertEquals(1, service.queries);
+
+        connection = get(path);
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, connection.getResponseCode());
+        connection = get(path);
+        connection.setRequestProperty("If-Modified-Since", lastModified);
+        assertEquals(304, connection.getResponseCode());
+        assertEquals(1, service.queries);
+
+        // past data changed
+        Thread.sleep(1000);
+        service.markPastDataModified();
+        connection = get(path);
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(200, connection.getResponseCode());
+        read(connection.getInputStream());
+        assertNotEquals(etag, connection.getHeaderField("ETag"));
+
+        // today is never validated
+        long now = System.currentTimeMillis();
+        connection = get("/api/series?server=ATTILA&start=" + (now - 3600000) + "&end=" + now);
+        assertEquals(200, connection.getResponseCode());
+        read(connection.getInputStream());
+        assertNull(connection.getHeaderField("ETag"));
+        assertEquals("no-cache", connection.getHeaderField("Cache-Control"));
+    }
+
+    @Test
+    public void testChart() throws Exception {
+        String path = "/api/chart?server=ATTILA&start=20140101_000000&end=20140103_000000&width=400&height=200";
+        HttpURLConnection connection = get(path);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("image/png", connection.getContentType());
+        try (DataInputStream in = new DataInputStream(connection.getInputStream())) {
+            assertEquals(0x89504e47, in.readInt());
+        }
+        assertNotNull(connection.getHeaderField("ETag"));
+
+        connection = get(path + "&format=svg&metrics=cpu");
+        assertEquals("image/svg+xml; charset=utf-8", connection.getContentType());
+        String svg = read(connection.getInputStream());
+        assertTrue(svg, svg.startsWith("<svg") && svg.contains("<polyline") && svg.contains(">cpu<"));
+
+        assertEquals(400, get(path + "&format=gif").getResponseCode());
+        assertEquals(400, get(path.replace("width=400", "width=40000")).getResponseCode());
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        assertEquals(400, get("/api/series?server=ATTILA&start=20140101_000000").getResponseCode());
+        assertEquals(400, get("/api/series?server=ATTILA&start=x&end=20140101_000000").getResponseCode());
+        assertEquals(400, get("/api/series?server=ATTILA&start=20140101_000000&end=20140102_000000&width=2h")
+                .getResponseCode());
+        HttpURLConnection connection = get("/api/series");
+        connection.setRequestMethod("DELETE");
+        assertEquals(405, connection.getResponseCode());
+    }
+}
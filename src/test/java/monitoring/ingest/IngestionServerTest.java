@@ -0,0 +1,183 @@
+package monitoring.ingest;
+
+import monitoring.DateFormatUtils;
+import monitoring.domain.DailyMonitoringData;
+import monitoring.service.MonitoringService;
+import monitoring.service.SampleBatch;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class IngestionServerTest {
+
+    static class RecordingMonitoringService extends MonitoringService {
+        final SampleBatch received = new SampleBatch();
+
+        @Override
+        public void writeBatch(SampleBatch batch) {
+            synchronized (received) {
+                received.addAll(batch);
+            }
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testGraphiteAndStatsd() throws Exception {
+        RecordingMonitoringService service = new RecordingMonitoringService();
+        IngestionServer server = new IngestionServer();
+        server.setMonitoringService(service);
+        server.setBindAddress("127.0.0.1");
+        int graphitePort = freePort();
+        int statsdPort = freePort();
+        server.setGraphitePort(graphitePort);
+        server.setStatsdPort(statsdPort);
+        server.setBatchSize(100);
+        server.setBufferSize(256);
+        server.start();
+
+        Date dt = DateFormatUtils.timestampFormat.parse("20140101_100000");
+        long seconds = dt.getTime() / 1000;
+        try {
+            // lines span many reads of the small buffers
+            StringBuilder lines = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                lines.append("server-").append(i % 10).append(".cpu ").append(i).append(' ')
+                        .append(seconds + (i / 10) * 60).append('\n');
+            }
+            try (Socket socket = new Socket("127.0.0.1", graphitePort); OutputStream out = socket.getOutputStream()) {
+                out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            }
+
+            byte[] datagram = "server-1.mem:0.5|g\nserver-2.mem:0.25|g".getBytes(StandardCharsets.UTF_8);
+            try (DatagramSocket socket = new DatagramSocket()) {
+                socket.send(new DatagramPacket(datagram, datagram.length,
+                        new InetSocketAddress("127.0.0.1", statsdPort)));
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline) {
+                synchronized (service.received) {
+                    if (service.received.getSamplesCount() >= 1002) {
+                        break;
+                    }
+                }
+                Thread.sleep(10);
+            }
+        } finally {
+            server.stop();
+        }
+
+        assertEquals(1002, service.received.getSamplesCount());
+        Map<String, Object> server3 = service.received.getUpdates().get(DailyMonitoringData.formatId("server-3", dt));
+        assertEquals(3.0, server3.get("data.10.00.cpu"));
+        assertEquals(993.0, server3.get("data.11.39.cpu"));
+        Map<String, Object> server2 = service.received.getUpdates().get(
+                DailyMonitoringData.formatId("server-2", new Date()));
+        assertEquals(0.25, server2.values().iterator().next());
+    }
+
+    @Test
+    public void testLineLongerThanBuffer() throws Exception {
+        RecordingMonitoringService service = new RecordingMonitoringService();
+        IngestionServer server = new IngestionServer();
+        server.setMonitoringService(service);
+        server.setBindAddress("127.0.0.1");
+        int graphitePort = freePort();
+        server.setGraphitePort(graphitePort);
+        server.setStatsdPort(0);
+        server.setBatchSize(1);
+        server.setBufferSize(64);
+        server.start();
+
+        Date dt = DateFormatUtils.timestampFormat.parse("20140101_100000");
+        long seconds = dt.getTime() / 1000;
+        try {
+            StringBuilder lines = new StringBuilder("server-1.cpu 1 ").append(seconds).append('\n');
+            // the end of the long line must not be parsed as a line of its own
+            lines.append("server-9.");
+            for (int i = 0; i < 200; i++) {
+                lines.append('x');
+            }
+            lines.append(".cpu 9 ").append(seconds).append('\n');
+            lines.append("server-2.cpu 2 ").append(seconds).append('\n');
+            try (Socket socket = new Socket("127.0.0.1", graphitePort); OutputStream out = socket.getOutputStream()) {
+                out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline) {
+                synchronized (service.received) {
+                    if (service.received.getDocumentsCount() >= 2) {
+                        break;
+                    }
+                }
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+        } finally {
+            server.stop();
+        }
+
+        assertEquals(new HashSet<>(Arrays.asList(DailyMonitoringData.formatId("server-1", dt),
+                DailyMonitoringData.formatId("server-2", dt))), service.received.getUpdates().keySet());
+    }
+
+    @Test
+    public void testRetryFailedWrite() throws Exception {
+        final int[] failures = {2};
+        RecordingMonitoringService service = new RecordingMonitoringService() {
+            @Override
+            public void writeBatch(SampleBatch batch) {
+                synchronized (failures) {
+                    if (failures[0]-- > 0) {
+                        throw new IllegalStateException("MongoDB is down");
+                    }
+                }
+                super.writeBatch(batch);
+            }
+        };
+        IngestionServer server = new IngestionServer();
+        server.setMonitoringService(service);
+        server.setBindAddress("127.0.0.1");
+        int graphitePort = freePort();
+        server.setGraphitePort(graphitePort);
+        server.setStatsdPort(0);
+        server.setBatchSize(1);
+        server.setRetryMillis(10);
+        server.start();
+
+        Date dt = DateFormatUtils.timestampFormat.parse("20140101_100000");
+        try {
+            try (Socket socket = new Socket("127.0.0.1", graphitePort); OutputStream out = socket.getOutputStream()) {
+                out.write(("server-1.cpu 1 " + dt.getTime() / 1000 + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline) {
+                synchronized (service.received) {
+                    if (service.received.getSamplesCount() >= 1) {
+                        break;
+                    }
+                }
+                Thread.sleep(10);
+            }
+        } finally {
+            server.stop();
+        }
+
+        assertEquals(1, service.received.getSamplesCount());
+        assertEquals(1.0, service.received.getUpdates().get(DailyMonitoringData.formatId("server-1", dt))
+                .get("data.10.00.cpu"));
+    }
+}
@@ -0,0 +1,105 @@
+package monitoring.ingest;
+
+import monitoring.DateFormatUtils;
+import monitoring.domain.DailyMonitoringData;
+import monitoring.service.SampleBatch;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LineParserTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testGraphite() throws Exception {
+        Date dt = DateFormatUtils.timestampFormat.parse("20140101_100100");
+        long seconds = dt.getTime() / 1000;
+        byte[] buf = bytes("server-1.cpu 0.5 " + seconds + "\r\nserver-1.disk.sda.util 12 " + seconds
+                + "\nserver-2.cpu 1e-2 -1\nserver-2.mem 0.25 " + seconds + "\nserver-3.cpu 0.");
+
+        LineParser parser = new LineParser();
+        SampleBatch batch = new SampleBatch();
+        int consumed = parser.parse(buf, 0, buf.length, LineParser.Format.GRAPHITE, false, dt.getTime(), batch);
+
+        // the last line is incomplete
+        assertEquals(buf.length - "server-3.cpu 0.".length(), consumed);
+        assertEquals(4, parser.drainSamples());
+        assertEquals(0, parser.drainErrors());
+
+        Map<String, Object> server1 = batch.getUpdates().get(DailyMonitoringData.formatId("server-1", dt));
+        assertEquals(0.5, server1.get("data.10.01.cpu"));
+        assertEquals(12.0, server1.get("data.10.01.disk_sda_util"));
+        Map<String, Object> server2 = batch.getUpdates().get(DailyMonitoringData.formatId("server-2", dt));
+        assertEquals(0.01, server2.get("data.10.01.cpu"));
+        assertEquals(0.25, server2.get("data.10.01.mem"));
+    }
+
+    @Test
+    public void testStatsd() throws Exception {
+        Date dt = DateFormatUtils.timestampFormat.parse("20140101_100100");
+        byte[] buf = bytes("server-1.cpu:0.5|g\nserver-1.requests:1|c\nserver-1.mem:+3|g\nserver-1.load:2.5|g|@0.1");
+
+        LineParser parser = new LineParser();
+        SampleBatch batch = new SampleBatch();
+        assertEquals(buf.length, parser.parse(buf, 0, buf.length, LineParser.Format.STATSD, true, dt.getTime(), batch));
+        assertEquals(2, parser.drainSamples());
+        assertEquals(2, parser.drainErrors());
+
+        Map<String, Object> fields = batch.getUpdates().get(DailyMonitoringData.formatId("server-1", dt));
+        assertEquals(0.5, fields.get("data.10.01.cpu"));
+        assertEquals(2.5, fields.get("data.10.01.load"));
+    }
+
+    @Test
+    public void testMalformed() {
+        byte[] buf = bytes("nodot 1 2\n.cpu 1 2\nserver. 1 2\nserver.cpu abc 2\nserver.cpu\nserver.cpu 1 x\n\n");
+        LineParser parser = new LineParser();
+        SampleBatch batch = new SampleBatch();
+        parser.parse(buf, 0, buf.length, LineParser.Format.GRAPHITE, false, 0, batch);
+        assertEquals(0, parser.drainSamples());
+        assertEquals(6, parser.drainErrors());
+        assertTrue(batch.isEmpty());
+    }
+
+    @Test
+    public void testInvalidNames() {
+        byte[] buf = bytes("server..cpu 1 2\nserver.cpu. 1 2\nserver.disk..util 1 2\n$server.cpu 1 2\n"
+                + "server.$cpu 1 2\nser/ver.cpu 1 2\nserver.cp/u 1 2\nserver.cpu 1 2\n");
+        LineParser parser = new LineParser();
+        SampleBatch batch = new SampleBatch();
+        parser.parse(buf, 0, buf.length, LineParser.Format.GRAPHITE, false, 0, batch);
+        assertEquals(1, parser.drainSamples());
+        assertEquals(7, parser.drainErrors());
+        assertEquals(1, batch.getDocumentsCount());
+
+        // invalid names stay rejected once cached
+        parser.parse(buf, 0, buf.length, LineParser.Format.GRAPHITE, false, 0, batch);
+        assertEquals(7, parser.drainErrors());
+    }
+
+    @Test
+    public void testParseDouble() {
+        LineParser parser = new LineParser();
+        String[] values = {"0", "-0", "1", "-1.5", "+2.25", "0.1", "123456.789", "1e10", "1.5E-7", "3.", ".5",
+                "123456789012345678901234", "0.30000000000000004", "NaN", "Infinity", "-Infinity", "1e400"};
+        for (String value : values) {
+            byte[] buf = bytes(value);
+            assertEquals(value, Double.parseDouble(value), parser.parseDouble(buf, 0, buf.length), 0.0);
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            String value = Double.toString(random.nextDouble() * Math.pow(10, random.nextInt(20) - 10));
+            byte[] buf = bytes(value);
+            assertEquals(value, Double.parseDouble(value), parser.parseDouble(buf, 0, buf.length), 0.0);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package monitoring.metrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() throws Exception {
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            long lower = LatencyHistogram.lowerBound(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(lower));
+            if (bucket > 0) {
+                assertEquals(bucket - 1, LatencyHistogram.bucketOf(lower - 1));
+            }
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testQuantiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram("test", "test");
+        assertEquals(0, histogram.quantileNanos(0.5));
+
+        // 1..1000 microseconds
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMeanMillis() * 1000, 1e-9);
+        assertEquals(1.0, histogram.getMaxMillis(), 0.0);
+        assertEquals(0.5, histogram.getP50Millis(), 0.5 * 0.07);
+        assertEquals(0.99, histogram.getP99Millis(), 0.99 * 0.07);
+        assertTrue(histogram.getP999Millis() <= histogram.getMaxMillis());
+    }
+
+    @Test
+    public void testConcurrentRecord() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram("test", "test");
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(i);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000, histogram.getCount());
+        assertEquals(4L * 9999 * 10000 / 2, histogram.getTotalNanos());
+        assertEquals(9999e-6, histogram.getMaxMillis(), 0.0);
+    }
+}
@@ -0,0 +1,32 @@
+package monitoring.metrics;
+
+import monitoring.service.AggregationCache;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsExporterTest {
+
+    @Test
+    public void testRender() throws Exception {
+        Instrumentation.BYTES_READ.add(100);
+        Instrumentation.CONVERT.record(1000);
+        AggregationCache cache = new AggregationCache(10, 1000);
+        cache.get("server-1-20140101", AggregationCache.Resolution.HOUR);
+
+        StringBuilder out = new StringBuilder();
+        MetricsExporter.render(out, cache, null, null);
+        String text = out.toString();
+
+        assertTrue(text.contains("# TYPE monitoring_convert_seconds summary\n"));
+        assertTrue(text.contains("monitoring_convert_seconds{quantile=\"0.5\"} "));
+        assertTrue(text.contains("monitoring_convert_seconds_count "));
+        assertTrue(text.contains("# TYPE monitoring_bytesRead_total counter\n"));
+        assertTrue(text.contains("monitoring_cache_misses_total 1\n"));
+        assertFalse(text.contains("async_"));
+        // every line is a comment or "name value"
+        for (String line : text.split("\n")) {
+            assertTrue(line, line.startsWith("# ") || line.matches("[a-zA-Z_]+(\\{[^}]*\\})? [0-9.eE+-]+"));
+        }
+    }
+}
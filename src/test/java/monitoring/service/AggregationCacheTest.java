@@ -0,0 +1,120 @@
+package monitoring.service;
+
+import monitoring.DateFormatUtils;
+import monitoring.domain.DailyMonitoringData;
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class AggregationCacheTest {
+
+    private static SortedMap<Date, Map<String, Double>> values(Date date, double value) {
+        SortedMap<Date, Map<String, Double>> result = new TreeMap<>();
+        result.put(date, new HashMap<>(Collections.singletonMap("cpu", value)));
+        return result;
+    }
+
+    @Test
+    public void testGetPutInvalidate() throws Exception {
+        AggregationCache cache = new AggregationCache(10, 60000);
+        Date day = DateFormatUtils.timestampFormat.parse("20140101_000000");
+
+        assertNull(cache.get("server-1/20140101", AggregationCache.Resolution.HOUR));
+        cache.put("server-1/20140101", AggregationCache.Resolution.HOUR, values(day, 1.0), cache.generation());
+        cache.put("server-1/20140101", AggregationCache.Resolution.DAY, values(day, 2.0), cache.generation());
+
+        SortedMap<Date, Map<String, Double>> cached = cache.get("server-1/20140101", AggregationCache.Resolution.HOUR);
+        assertEquals(1.0, cached.get(day).get("cpu"), 0.0);
+
+        // callers get copies
+        cached.get(day).clear();
+        assertEquals(1.0, cache.get("server-1/20140101", AggregationCache.Resolution.HOUR).get(day).get("cpu"), 0.0);
+        assertEquals(2.0, cache.get("server-1/20140101", AggregationCache.Resolution.DAY).get(day).get("cpu"), 0.0);
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.invalidate("server-1/20140101");
+        assertEquals(2, cache.getInvalidations());
+        assertNull(cache.get("server-1/20140101", AggregationCache.Resolution.HOUR));
+        assertNull(cache.get("server-1/20140101", AggregationCache.Resolution.DAY));
+    }
+
+    @Test
+    public void testLruEviction() throws Exception {
+        AggregationCache cache = new AggregationCache(2, 60000);
+        Date day = DateFormatUtils.timestampFormat.parse("20140101_000000");
+
+        cache.put("a/20140101", AggregationCache.Resolution.HOUR, values(day, 1.0), cache.generation());
+        cache.put("b/20140101", AggregationCache.Resolution.HOUR, values(day, 1.0), cache.generation());
+        // "a" becomes the most recently used
+        assertNotNull(cache.get("a/20140101", AggregationCache.Resolution.HOUR));
+        cache.put("c/20140101", AggregationCache.Resolution.HOUR, values(day, 1.0), cache.generation());
+
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.get("a/20140101", AggregationCache.Resolution.HOUR));
+        assertNull(cache.get("b/20140101", AggregationCache.Resolution.HOUR));
+        assertNotNull(cache.get("c/20140101", AggregationCache.Resolution.HOUR));
+    }
+
+    @Test
+    public void testTodayExpires() throws Exception {
+        AggregationCache cache = new AggregationCache(10, 0);
+        Date today = DateUtils.truncate(new Date(), Calendar.DAY_OF_MONTH);
+        Date past = DateFormatUtils.timestampFormat.parse("20140101_000000");
+        String todayId = DailyMonitoringData.formatId("server-1", today);
+
+        cache.put(todayId, AggregationCache.Resolution.HOUR, values(today, 1.0), cache.generation());
+        cache.put("server-1/20140101", AggregationCache.Resolution.HOUR, values(past, 1.0), cache.generation());
+        Thread.sleep(5);
+
+        assertNull(cache.get(todayId, AggregationCache.Resolution.HOUR));
+        assertNotNull(cache.get("server-1/20140101", AggregationCache.Resolution.HOUR));
+    }
+
+    @Test
+    public void testPutAll() throws Exception {
+        AggregationCache cache = new AggregationCache(10, 60000);
+        Date day1 = DateFormatUtils.timestampFormat.parse("20140101_000000");
+        Date day1Hour = DateFormatUtils.timestampFormat.parse("20140101_130000");
+        Date day3 = DateFormatUtils.timestampFormat.parse("20140103_000000");
+
+        SortedMap<Date, Map<String, Double>> computed = values(day1, 1.0);
+        computed.putAll(values(day1Hour, 2.0));
+        computed.putAll(values(day3, 3.0));
+        cache.putAll("server-1", Arrays.asList("server-1/20140101", "server-1/20140102", "server-1/20140103"),
+                AggregationCache.Resolution.HOUR, computed, cache.generation());
+
+        assertEquals(2, cache.get("server-1/20140101", AggregationCache.Resolution.HOUR).size());
+        // days without data are cached too
+        assertTrue(cache.get("server-1/20140102", AggregationCache.Resolution.HOUR).isEmpty());
+        assertEquals(3.0, cache.get("server-1/20140103", AggregationCache.Resolution.HOUR).get(day3).get("cpu"), 0.0);
+    }
+
+    @Test
+    public void testNoStalePut() throws Exception {
+        AggregationCache cache = new AggregationCache(10, 60000);
+        Date day = DateFormatUtils.timestampFormat.parse("20140101_000000");
+
+        // a write lands while the day is being computed: the result may miss it
+        long generation = cache.generation();
+        cache.invalidate("server-1/20140101");
+        cache.put("server-1/20140101", AggregationCache.Resolution.HOUR, values(day, 1.0), generation);
+        assertNull(cache.get("server-1/20140101", AggregationCache.Resolution.HOUR));
+
+        // other days are not affected
+        cache.put("server-2/20140101", AggregationCache.Resolution.HOUR, values(day, 1.0), generation);
+        assertNotNull(cache.get("server-2/20140101", AggregationCache.Resolution.HOUR));
+
+        cache.put("server-1/20140101", AggregationCache.Resolution.HOUR, values(day, 1.0), cache.generation());
+        assertNotNull(cache.get("server-1/20140101", AggregationCache.Resolution.HOUR));
+
+        generation = cache.generation();
+        cache.clear();
+        cache.put("server-2/20140101", AggregationCache.Resolution.HOUR, values(day, 1.0), generation);
+        assertEquals(0, cache.getSize());
+    }
+}
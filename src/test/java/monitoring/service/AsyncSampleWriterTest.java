@@ -0,0 +1,164 @@
+package monitoring.service;
+
+import monitoring.DateFormatUtils;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncSampleWriterTest {
+
+    /** Records batches instead of writing them; the first write waits for {@link #release}. */
+    static class RecordingMonitoringService extends MonitoringService {
+        final List<SampleBatch> batches = Collections.synchronizedList(new ArrayList<SampleBatch>());
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void writeBatch(SampleBatch batch) {
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batches.add(batch);
+        }
+    }
+
+    private static Map<String, Double> sample(String metric, double value) {
+        Map<String, Double> samples = new HashMap<>();
+        samples.put(metric, value);
+        return samples;
+    }
+
+    private static AsyncSampleWriter writer(MonitoringService service, int capacity, QueueFullPolicy policy) {
+        AsyncSampleWriter writer = new AsyncSampleWriter();
+        writer.setMonitoringService(service);
+        writer.setEnabled(true);
+        writer.setWriters(1);
+        writer.setQueueCapacity(capacity);
+        writer.setFullPolicy(policy);
+        writer.start();
+        return writer;
+    }
+
+    @Test
+    public void testCoalesceSameDocument() throws Exception {
+        RecordingMonitoringService service = new RecordingMonitoringService();
+        AsyncSampleWriter writer = writer(service, 100, QueueFullPolicy.BLOCK);
+
+        // first sample keeps the writer busy while the others pile up
+        Date dt = DateFormatUtils.timestampFormat.parse("20140101_100100");
+        writer.addSample("server-1", dt, sample("cpu", 0.1));
+        assertTrue(service.writing.await(5, TimeUnit.SECONDS));
+
+        writer.addSample("server-1", dt, sample("cpu", 0.2));
+        writer.addSample("server-1", dt, sample("mem", 0.3));
+        writer.addSample("server-1", DateFormatUtils.timestampFormat.parse("20140101_100200"), sample("cpu", 0.4));
+        assertEquals(3, writer.getQueueDepth());
+
+        service.release.countDown();
+        writer.stop();
+
+        assertEquals(2, service.batches.size());
+        SampleBatch merged = service.batches.get(1);
+        assertEquals(1, merged.getDocumentsCount());
+        Map<String, Object> fields = merged.getUpdates().get("server-1/20140101");
+        assertEquals(3, fields.size());
+        assertEquals(0.2, (Double) fields.get("data.10.01.cpu"), 0.0);
+        assertEquals(4, writer.getSamplesWritten());
+        assertEquals(2, writer.getFlushCount());
+        assertEquals(0, writer.getQueueDepth());
+    }
+
+    @Test
+    public void testFullQueuePolicies() throws Exception {
+        Date dt = DateFormatUtils.timestampFormat.parse("20140101_100100");
+
+        RecordingMonitoringService service = new RecordingMonitoringService();
+        AsyncSampleWriter writer = writer(service, 2, QueueFullPolicy.REJECT);
+        writer.addSample("server-1", dt, sample("cpu", 0.1));
+        assertTrue(service.writing.await(5, TimeUnit.SECONDS));
+        writer.addSample("server-1", dt, sample("cpu", 0.2));
+        writer.addSample("server-1", dt, sample("cpu", 0.3));
+        try {
+            writer.addSample("server-1", dt, sample("cpu", 0.4));
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, writer.getSamplesRejected());
+        service.release.countDown();
+        writer.stop();
+
+        service = new RecordingMonitoringService();
+        writer = writer(service, 2, QueueFullPolicy.DROP_OLDEST);
+        writer.addSample("server-1", dt, sample("cpu", 0.1));
+        assertTrue(service.writing.await(5, TimeUnit.SECONDS));
+        writer.addSample("server-1", dt, sample("cpu", 0.2));
+        writer.addSample("server-1", dt, sample("mem", 0.3));
+        writer.addSample("server-1", dt, sample("disk", 0.4));
+        assertEquals(1, writer.getSamplesDropped());
+        service.release.countDown();
+        writer.stop();
+
+        Map<String, Object> fields = service.batches.get(1).getUpdates().get("server-1/20140101");
+        assertFalse(fields.containsKey("data.10.01.cpu"));
+        assertTrue(fields.containsKey("data.10.01.mem"));
+        assertTrue(fields.containsKey("data.10.01.disk"));
+    }
+
+    @Test
+    public void testRetryFailedBatch() throws Exception {
+        final CountDownLatch written = new CountDownLatch(1);
+        final List<SampleBatch> batches = Collections.synchronizedList(new ArrayList<SampleBatch>());
+        MonitoringService service = new MonitoringService() {
+            int failures = 2;
+
+            @Override
+            public void writeBatch(SampleBatch batch) {
+                if (failures-- > 0) {
+                    throw new IllegalStateException("MongoDB is down");
+                }
+                batches.add(batch);
+                written.countDown();
+            }
+        };
+        AsyncSampleWriter writer = new AsyncSampleWriter();
+        writer.setMonitoringService(service);
+        writer.setEnabled(true);
+        writer.setWriters(1);
+        writer.setRetryMillis(10);
+        writer.start();
+
+        writer.addSample("server-1", DateFormatUtils.timestampFormat.parse("20140101_100100"), sample("cpu", 0.1));
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        writer.stop();
+
+        assertEquals(1, batches.size());
+        assertEquals(2, writer.getWriteRetries());
+        assertEquals(1, writer.getSamplesWritten());
+        assertEquals(0, writer.getSamplesFailed());
+    }
+
+    @Test
+    public void testRejectAfterStop() throws Exception {
+        RecordingMonitoringService service = new RecordingMonitoringService();
+        service.release.countDown();
+        AsyncSampleWriter writer = writer(service, 100, QueueFullPolicy.BLOCK);
+        writer.stop();
+        try {
+            writer.addSample("server-1", DateFormatUtils.timestampFormat.parse("20140101_100100"),
+                    sample("cpu", 0.1));
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(0, writer.getSamplesQueued());
+    }
+}
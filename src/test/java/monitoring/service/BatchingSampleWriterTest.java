@@ -0,0 +1,64 @@
+package monitoring.service;
+
+import monitoring.DateFormatUtils;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BatchingSampleWriterTest {
+
+    /** Fails the first write, records the next ones. */
+    static class FailingMonitoringService extends MonitoringService {
+        final List<SampleBatch> batches = new ArrayList<>();
+        int failures = 1;
+
+        @Override
+        public void writeBatch(SampleBatch batch) {
+            if (failures > 0) {
+                failures--;
+                throw new IllegalStateException("database down");
+            }
+            batches.add(batch);
+        }
+    }
+
+    private static Map<String, Double> sample(String metric, double value) {
+        Map<String, Double> samples = new HashMap<>();
+        samples.put(metric, value);
+        return samples;
+    }
+
+    @Test
+    public void testFailedFlushKeepsSamples() throws Exception {
+        FailingMonitoringService service = new FailingMonitoringService();
+        service.setBatchSize(100);
+        BatchingSampleWriter writer = new BatchingSampleWriter();
+        writer.setMonitoringService(service);
+
+        Date dt = DateFormatUtils.timestampFormat.parse("20140101_100100");
+        writer.addSample("server-1", dt, sample("cpu", 0.1));
+        writer.addSample("server-1", dt, sample("mem", 0.2));
+        try {
+            writer.flush();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, writer.getPendingDocuments());
+
+        // newer values win over the failed batch
+        writer.addSample("server-1", dt, sample("cpu", 0.3));
+        writer.addSample("server-2", dt, sample("cpu", 0.4));
+        writer.flush();
+
+        assertEquals(0, writer.getPendingDocuments());
+        assertEquals(1, service.batches.size());
+        SampleBatch batch = service.batches.get(0);
+        assertEquals(2, batch.getDocumentsCount());
+        Map<String, Object> fields = batch.getUpdates().get("server-1/20140101");
+        assertEquals(0.3, (Double) fields.get("data.10.01.cpu"), 0.0);
+        assertEquals(0.2, (Double) fields.get("data.10.01.mem"), 0.0);
+    }
+}
@@ -0,0 +1,103 @@
+package monitoring.service;
+
+import monitoring.DateFormatUtils;
+import monitoring.domain.ColumnarDailyMonitoringData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class FleetQueryServiceTest {
+
+    /** Serves a day of constant "cpu" values per server: server-N has value N for N * 10 minutes. */
+    static class FakeMonitoringService extends MonitoringService {
+        @Override
+        public SortedMap<Date, Map<String, MetricAccumulator>> accumulate(String serverName, Date startDate, Date endDate,
+                                                                          BucketWidth width, Set<String> metrics,
+                                                                          boolean withSketches) {
+            if (serverName.equals("broken")) {
+                throw new IllegalArgumentException("broken server");
+            }
+            int n = Integer.parseInt(serverName.substring(serverName.indexOf('-') + 1));
+            ColumnarDailyMonitoringData data = new ColumnarDailyMonitoringData(serverName, startDate, new String[]{"cpu"});
+            for (int m = 0; m < n * 10; m++) {
+                data.setValue("cpu", m, n);
+            }
+            SortedMap<Date, Map<String, MetricAccumulator>> result = new TreeMap<>();
+            accumulateDay(data, width, startDate, endDate, withSketches, result);
+            return result;
+        }
+    }
+
+    private FleetQueryService fleet;
+    private Date start;
+    private Date end;
+
+    @Before
+    public void setUp() throws Exception {
+        fleet = new FleetQueryService();
+        fleet.setMonitoringService(new FakeMonitoringService());
+        fleet.setFleetThreads(4);
+        fleet.start();
+        start = DateFormatUtils.timestampFormat.parse("20140101_000000");
+        end = DateFormatUtils.timestampFormat.parse("20140102_000000");
+    }
+
+    @After
+    public void tearDown() {
+        fleet.stop();
+    }
+
+    private static List<String> servers(int count) {
+        List<String> result = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            result.add("server-" + i);
+        }
+        return result;
+    }
+
+    @Test
+    public void testAggregate() {
+        SortedMap<Date, Map<String, Map<AggregateFunction, Double>>> result = fleet.aggregate(servers(4), start, end,
+                BucketWidth.DAY, null, AggregateFunction.COUNT, AggregateFunction.MIN, AggregateFunction.MAX,
+                AggregateFunction.MEAN);
+
+        assertEquals(1, result.size());
+        Map<AggregateFunction, Double> cpu = result.get(start).get("cpu");
+        assertEquals(100.0, cpu.get(AggregateFunction.COUNT), 0.0);
+        assertEquals(1.0, cpu.get(AggregateFunction.MIN), 0.0);
+        assertEquals(4.0, cpu.get(AggregateFunction.MAX), 0.0);
+        // (1*10 + 2*20 + 3*30 + 4*40) / 100
+        assertEquals(3.0, cpu.get(AggregateFunction.MEAN), 1e-9);
+    }
+
+    @Test
+    public void testTopServers() {
+        List<RankedServer> top = fleet.topServers(servers(50), start, end, "cpu", AggregateFunction.P95, 3);
+
+        assertEquals(3, top.size());
+        assertEquals("server-50", top.get(0).getServerName());
+        assertEquals(50.0, top.get(0).getValue(), 50 * 0.01);
+        assertEquals("server-49", top.get(1).getServerName());
+        assertEquals("server-48", top.get(2).getServerName());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFailure() {
+        fleet.aggregate(Arrays.asList("server-1", "broken"), start, end, BucketWidth.HOUR, null, AggregateFunction.MEAN);
+    }
+
+    @Test
+    public void testOffer() {
+        PriorityQueue<Integer> heap = new PriorityQueue<>();
+        for (int i : new int[]{5, 1, 9, 3, 7, 8}) {
+            FleetQueryService.offer(heap, 3, i);
+        }
+        List<Integer> result = new ArrayList<>(heap);
+        Collections.sort(result);
+        assertEquals(Arrays.asList(7, 8, 9), result);
+    }
+}
@@ -0,0 +1,136 @@
+package monitoring.service;
+
+import com.mongodb.*;
+import monitoring.DateFormatUtils;
+import monitoring.domain.DailyMonitoringData;
+import org.junit.*;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the query plans of the hot query shapes against a local mongod; skipped when none is running.
+ */
+public class IndexServiceTest {
+
+    private static MongoClient client;
+    private DBCollection collection;
+
+    @BeforeClass
+    public static void connect() {
+        try {
+            client = new MongoClient(new ServerAddress("localhost", 27017),
+                    MongoClientOptions.builder().connectTimeout(500).socketTimeout(5000).build());
+            client.getDB("admin").command("ping").throwOnError();
+        } catch (Exception e) {
+            if (client != null) {
+                client.close();
+            }
+            client = null;
+        }
+    }
+
+    @AfterClass
+    public static void disconnect() {
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue("mongod not available on localhost:27017", client != null);
+
+        collection = client.getDB("monitoring_test").getCollection("index_test");
+        collection.drop();
+        IndexService.ensureIndexes(collection, true);
+
+        Date day = DateFormatUtils.dayFormat.parse("20140101");
+        for (int server = 0; server < 50; server++) {
+            for (int d = 0; d < 30; d++) {
+                Date date = new Date(day.getTime() + d * 86400000L);
+                String serverName = "server-" + server;
+                collection.insert(new BasicDBObject("_id", DailyMonitoringData.formatId(serverName, date))
+                        .append("metadata", new BasicDBObject("serverName", serverName).append("date", date)));
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (collection != null) {
+            collection.drop();
+        }
+    }
+
+    @Test
+    public void testRangeQueries() throws Exception {
+        Date start = DateFormatUtils.timestampFormat.parse("20140105_120000");
+        Date end = DateFormatUtils.timestampFormat.parse("20140110_000000");
+
+        // day documents of a server by id
+        DBObject explain = collection.find(new BasicDBObject("_id", new BasicDBObject("$in",
+                MonitoringService.dayIds("server-1", start, end)))).explain();
+        assertIndexScan(explain, "_id_");
+
+        // documents of a server in a range
+        explain = collection.find(IndexService.serverDaysQuery("server-1", start, end)).explain();
+        assertIndexScan(explain, IndexService.SERVER_DATE);
+
+        // retention and preallocation: all servers before or on a date
+        explain = collection.find(new BasicDBObject("metadata.date", new BasicDBObject("$lt", start))).explain();
+        assertIndexScan(explain, IndexService.DATE_SERVER);
+    }
+
+    @Test
+    public void testListingQueries() throws Exception {
+        Date start = DateFormatUtils.timestampFormat.parse("20140105_120000");
+        Date end = DateFormatUtils.timestampFormat.parse("20140110_000000");
+
+        DBCursor cursor = collection.find(IndexService.serverDaysQuery("server-1", start, end),
+                IndexService.LISTING_FIELDS).sort(new BasicDBObject("metadata.date", 1));
+        assertEquals(5, cursor.copy().count());
+        DBObject explain = cursor.explain();
+        assertIndexScan(explain, IndexService.SERVER_DATE);
+        assertTrue("not covered: " + explain, isCovered(explain));
+        assertFalse("in-memory sort: " + explain, Boolean.TRUE.equals(explain.get("scanAndOrder"))
+                || winningPlan(explain).toString().contains("\"stage\" : \"SORT\""));
+    }
+
+    @Test
+    public void testFleetQueries() throws Exception {
+        Date start = DateFormatUtils.timestampFormat.parse("20140105_000000");
+        Date end = DateFormatUtils.timestampFormat.parse("20140106_000000");
+
+        // servers with data in a range: explain of a distinct command needs MongoDB 3.0+
+        CommandResult explain = client.getDB("monitoring_test").command(new BasicDBObject("explain",
+                new BasicDBObject("distinct", collection.getName()).append("key", "metadata.serverName")
+                        .append("query", IndexService.datesQuery(start, end))));
+        Assume.assumeTrue("explain of distinct not supported", explain.ok());
+        assertIndexScan(explain, IndexService.DATE_SERVER);
+        assertEquals(50, collection.distinct("metadata.serverName", IndexService.datesQuery(start, end)).size());
+    }
+
+    /**
+     * Plans of MongoDB 2.x ("cursor": "BtreeCursor name") and 3.x+ (IXSCAN stages with "indexName").
+     */
+    private static void assertIndexScan(DBObject explain, String indexName) {
+        String plan = winningPlan(explain).toString();
+        assertFalse("collection scan: " + plan, plan.contains("COLLSCAN") || plan.contains("BasicCursor"));
+        assertTrue(indexName + " not used: " + plan,
+                plan.contains("\"indexName\" : \"" + indexName + "\"") || plan.contains("BtreeCursor " + indexName));
+    }
+
+    private static boolean isCovered(DBObject explain) {
+        if (explain.containsField("indexOnly")) {
+            return Boolean.TRUE.equals(explain.get("indexOnly"));
+        }
+        return !winningPlan(explain).toString().contains("FETCH");
+    }
+
+    private static Object winningPlan(DBObject explain) {
+        DBObject planner = (DBObject) explain.get("queryPlanner");
+        return planner != null ? planner.get("winningPlan") : explain;
+    }
+}
@@ -0,0 +1,360 @@
+package monitoring.service;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import monitoring.DateFormatUtils;
+import monitoring.StorageCodec;
+import monitoring.TimeBuckets;
+import monitoring.domain.ColumnarDailyMonitoringData;
+import monitoring.domain.DailyMonitoringData;
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class MonitoringServiceTest {
+
+    @Test
+    public void testDayIds() throws Exception {
+        List<String> ids = MonitoringService.dayIds("server-1",
+                DateFormatUtils.timestampFormat.parse("20140130_103421"),
+                DateFormatUtils.timestampFormat.parse("20140202_000000"));
+        assertEquals(Arrays.asList("server-1/20140130", "server-1/20140131", "server-1/20140201"), ids);
+
+        assertTrue(MonitoringService.dayIds("server-1",
+                DateFormatUtils.timestampFormat.parse("20140202_000000"),
+                DateFormatUtils.timestampFormat.parse("20140202_000000")).isEmpty());
+    }
+
+    @Test
+    public void testAverageByHour() throws Exception {
+        String[] metrics = {"cpu", "mem"};
+        DailyMonitoringData data = new DailyMonitoringData("server-1",
+                DateFormatUtils.timestampFormat.parse("20140101_000000"), metrics);
+        data.preallocateDay();
+
+        data.setValue(DateUtils.toCalendar(DateFormatUtils.timestampFormat.parse("20140101_100100")), "cpu", 0.2);
+        data.setValue(DateUtils.toCalendar(DateFormatUtils.timestampFormat.parse("20140101_100200")), "cpu", 0.4);
+        data.setValue(DateUtils.toCalendar(DateFormatUtils.timestampFormat.parse("20140101_100200")), "mem", 0.5);
+        data.setValue(DateUtils.toCalendar(DateFormatUtils.timestampFormat.parse("20140101_230000")), "mem", 0.1);
+
+        SortedMap<Date, Map<String, Double>> result = MonitoringService.averageByHour(data);
+
+        // hours containing only preallocated values are skipped
+        assertEquals(2, result.size());
+
+        Map<String, Double> hour10 = result.get(DateFormatUtils.timestampFormat.parse("20140101_100000"));
+        assertEquals(0.3, hour10.get("cpu"), 1e-9);
+        assertEquals(0.5, hour10.get("mem"), 1e-9);
+
+        Map<String, Double> hour23 = result.get(DateFormatUtils.timestampFormat.parse("20140101_230000"));
+        assertEquals(1, hour23.size());
+        assertEquals(0.1, hour23.get("mem"), 1e-9);
+    }
+
+    @Test
+    public void testAccumulateDay() throws Exception {
+        Date day = DateFormatUtils.timestampFormat.parse("20140101_000000");
+        ColumnarDailyMonitoringData data = new ColumnarDailyMonitoringData("server-1", day, new String[]{"cpu"});
+        // 10:00 - 10:09, values 1..10
+        for (int m = 0; m < 10; m++) {
+            data.setValue("cpu", ColumnarDailyMonitoringData.minuteOfDay(10, m), m + 1);
+        }
+
+        SortedMap<Date, Map<String, MetricAccumulator>> accumulators = new TreeMap<>();
+        MonitoringService.accumulateDay(data, BucketWidth.FIVE_MINUTES, day,
+                DateFormatUtils.timestampFormat.parse("20140102_000000"), true, accumulators);
+        SortedMap<Date, Map<String, Map<AggregateFunction, Double>>> result = MonitoringService.evaluate(accumulators,
+                AggregateFunction.values());
+
+        assertEquals(2, result.size());
+        Map<AggregateFunction, Double> first = result.get(DateFormatUtils.timestampFormat.parse("20140101_100000")).get("cpu");
+        assertEquals(1.0, first.get(AggregateFunction.MIN), 0.0);
+        assertEquals(5.0, first.get(AggregateFunction.MAX), 0.0);
+        assertEquals(15.0, first.get(AggregateFunction.SUM), 0.0);
+        assertEquals(5.0, first.get(AggregateFunction.COUNT), 0.0);
+        assertEquals(3.0, first.get(AggregateFunction.MEAN), 1e-9);
+        assertEquals(Math.sqrt(2.0), first.get(AggregateFunction.STDDEV), 1e-9);
+        assertEquals(3.0, first.get(AggregateFunction.P50), 3.0 * 0.01);
+        assertEquals(5.0, first.get(AggregateFunction.P99), 5.0 * 0.01);
+
+        // days merge into existing accumulators; the range excludes minutes from 10:08
+        ColumnarDailyMonitoringData next = new ColumnarDailyMonitoringData("server-1", day, new String[]{"cpu"});
+        next.setValue("cpu", ColumnarDailyMonitoringData.minuteOfDay(10, 0), 100);
+        next.setValue("cpu", ColumnarDailyMonitoringData.minuteOfDay(10, 8), 100);
+        MonitoringService.accumulateDay(next, BucketWidth.FIVE_MINUTES, day,
+                DateFormatUtils.timestampFormat.parse("20140101_100730"), true, accumulators);
+        result = MonitoringService.evaluate(accumulators, AggregateFunction.COUNT, AggregateFunction.MAX);
+
+        first = result.get(DateFormatUtils.timestampFormat.parse("20140101_100000")).get("cpu");
+        assertEquals(6.0, first.get(AggregateFunction.COUNT), 0.0);
+        assertEquals(100.0, first.get(AggregateFunction.MAX), 0.0);
+        Map<AggregateFunction, Double> second = result.get(DateFormatUtils.timestampFormat.parse("20140101_100500")).get("cpu");
+        assertEquals(10.0, second.get(AggregateFunction.MAX), 0.0);
+    }
+
+    @Test
+    public void testMetricAccumulatorMerge() {
+        MetricAccumulator all = new MetricAccumulator(false);
+        MetricAccumulator first = new MetricAccumulator(false);
+        MetricAccumulator second = new MetricAccumulator(false);
+        for (int i = 0; i < 100; i++) {
+            all.add(i * 0.5);
+            (i < 30 ? first : second).add(i * 0.5);
+        }
+        first.merge(second);
+
+        assertEquals(all.getCount(), first.getCount());
+        assertEquals(all.getMean(), first.getMean(), 1e-9);
+        assertEquals(all.getStddev(), first.getStddev(), 1e-9);
+        assertEquals(0.0, first.getMin(), 0.0);
+        assertEquals(49.5, first.getMax(), 0.0);
+        assertTrue(Double.isNaN(first.getQuantile(0.5)));
+        assertTrue(Double.isNaN(new MetricAccumulator(true).getMean()));
+    }
+
+    @Test
+    public void testRoundTrips() {
+        assertEquals(1, MonitoringService.roundTrips(0, 4));
+        assertEquals(1, MonitoringService.roundTrips(4, 4));
+        assertEquals(2, MonitoringService.roundTrips(5, 4));
+        assertEquals(3, MonitoringService.roundTrips(9, 4));
+    }
+
+    @Test
+    public void testBucketWidth() {
+        assertEquals(BucketWidth.FIFTEEN_MINUTES, BucketWidth.parse("15m"));
+        assertEquals(BucketWidth.DAY, BucketWidth.parse("day"));
+        // up to 25 hours, on a DST fall-back
+        assertEquals(100, BucketWidth.FIFTEEN_MINUTES.bucketsPerDay());
+        assertEquals(23, BucketWidth.HOUR.bucketOf(1439));
+        assertEquals(24, BucketWidth.HOUR.bucketOf(1499));
+        assertEquals(0, BucketWidth.DAY.bucketOf(1499));
+    }
+
+    @Test
+    public void testPackedBlocks() {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("data.10.01.cpu", 0.25);
+        fields.put("data.10.02.cpu", 0.5);
+        fields.put("data.10.02.mem", null);
+        fields.put("data.11.00.cpu", 1.0);
+
+        DBObject blocks = MonitoringService.packedBlocks(StorageCodec.GORILLA, fields);
+        assertEquals(new HashSet<>(Arrays.asList("packed.cpu.10", "packed.cpu.11")), blocks.keySet());
+
+        double[] values = new double[60];
+        long present = StorageCodec.decodeHour((byte[]) blocks.get("packed.cpu.10"), values);
+        assertEquals((1L << 1) | (1L << 2), present);
+        assertEquals(0.5, values[2], 0.0);
+    }
+
+    @Test
+    public void testMergeUpdate() throws Exception {
+        Date day = DateFormatUtils.timestampFormat.parse("20140101_000000");
+        ColumnarDailyMonitoringData data = new ColumnarDailyMonitoringData("server-1", day, new String[]{"cpu"});
+        data.setValue("cpu", ColumnarDailyMonitoringData.minuteOfDay(10, 1), 1.0);
+        data.setValue("cpu", ColumnarDailyMonitoringData.minuteOfDay(10, 2), 2.0);
+
+        // re-sent minute, new minute, new metric
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("data.10.01.cpu", 1.0);
+        fields.put("data.10.03.cpu", 3.0);
+        fields.put("data.10.03.mem", 0.5);
+
+        DBObject update = MonitoringService.mergeUpdate(data, fields, StorageCodec.NESTED, true);
+        DBObject set = (DBObject) update.get("$set");
+        assertEquals(3.0, set.get("data.10.03.cpu"));
+        assertEquals(1, ((DBObject) update.get("$inc")).get(MonitoringService.VERSION));
+
+        // the overwritten minute is counted once
+        Map<String, Double> averages = Rollups.averages((DBObject) ((DBObject) set.get(Rollups.FIELD)).get("day"), null);
+        assertEquals(2.0, averages.get("cpu"), 1e-9);
+        assertEquals(0.5, averages.get("mem"), 1e-9);
+        DBObject cpu = (DBObject) ((DBObject) ((DBObject) set.get(Rollups.FIELD)).get("day")).get("cpu");
+        assertEquals(3L, cpu.get("count"));
+
+        assertFalse(((DBObject) MonitoringService.mergeUpdate(data, fields, StorageCodec.NESTED, false).get("$set")).containsField(Rollups.FIELD));
+    }
+
+    @Test
+    public void testPackedMergeUpdate() throws Exception {
+        Date day = DateFormatUtils.timestampFormat.parse("20140101_000000");
+        ColumnarDailyMonitoringData data = new ColumnarDailyMonitoringData("server-1", day, new String[]{"cpu"});
+        data.setValue("cpu", ColumnarDailyMonitoringData.minuteOfDay(10, 1), 1.0);
+        data.setValue("cpu", ColumnarDailyMonitoringData.minuteOfDay(11, 0), 5.0);
+
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("data.10.02.cpu", 2.0);
+        fields.put("data.11.00.cpu", null);
+
+        DBObject update = MonitoringService.mergeUpdate(data, fields, StorageCodec.GORILLA, false);
+        DBObject set = (DBObject) update.get("$set");
+        DBObject unset = (DBObject) update.get("$unset");
+
+        // the written hour is repacked into a single block with the old and new minutes
+        List<?> blocks = (List<?>) set.get("packed.cpu.10");
+        assertEquals(1, blocks.size());
+        double[] values = new double[60];
+        assertEquals((1L << 1) | (1L << 2), StorageCodec.decodeHour((byte[]) blocks.get(0), values));
+        assertEquals(1.0, values[1], 0.0);
+        assertEquals(2.0, values[2], 0.0);
+        assertEquals(2, set.get("packedLast.cpu.10"));
+
+        // an hour left without values loses its blocks
+        assertFalse(set.containsField("packed.cpu.11"));
+        assertTrue(unset.containsField("packed.cpu.11"));
+        assertTrue(unset.containsField("packedLast.cpu.11"));
+        assertTrue(unset.containsField("data.10.02.cpu"));
+    }
+
+    @Test
+    public void testWriteQuery() {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("data.10.01.cpu", 0.25);
+
+        assertEquals(new BasicDBObject("_id", "server-1/20140101"),
+                MonitoringService.writeQuery("server-1/20140101", fields, StorageCodec.NESTED, false));
+
+        // overwrites do not match, and are merged
+        DBObject query = MonitoringService.writeQuery("server-1/20140101", fields, StorageCodec.NESTED, true);
+        assertTrue(query.containsField("data.10.01.cpu"));
+        assertNull(query.get("data.10.01.cpu"));
+
+        // packed: only writes after the last minute of the hour match
+        fields.put("data.10.00.cpu", 0.5);
+        query = MonitoringService.writeQuery("server-1/20140101", fields, StorageCodec.GORILLA, true);
+        assertEquals(new BasicDBObject("$not", new BasicDBObject("$gte", 0)), query.get("packedLast.cpu.10"));
+        assertFalse(query.containsField("data.10.01.cpu"));
+    }
+
+    @Test
+    public void testPackedMinuteWrites() {
+        String id = "server-1/20140101";
+        MonitoringService service = new MonitoringService();
+        service.setStorageCodec(StorageCodec.GORILLA);
+        service.setRollupsEnabled(true);
+
+        // one write per minute, as addSample does: every upsert matches, none is merged
+        DBObject doc = null;
+        for (int minute = 0; minute < 120; minute++) {
+            Map<String, Object> fields = Collections.<String, Object>singletonMap(
+                    TimeBuckets.fieldPath(minute, "cpu"), (double) minute);
+            DBObject query = MonitoringService.writeQuery(id, fields, StorageCodec.GORILLA, true);
+            assertTrue("minute " + minute + " merged", doc == null || matches(doc, query));
+            doc = apply(doc == null ? new BasicDBObject("_id", id) : doc, service.buildUpdate(id, fields), doc == null);
+        }
+        assertEquals(60, ((List<?>) get(doc, "packed.cpu.01")).size());
+        assertEquals(59, get(doc, "packedLast.cpu.01"));
+        assertEquals(60, ((Number) get(doc, "rollups.hours.01.cpu.count")).intValue());
+
+        // an overwrite does not match, and is merged: rollups count it once
+        Map<String, Object> fields = Collections.<String, Object>singletonMap(TimeBuckets.fieldPath(90, "cpu"), 1.0);
+        assertFalse(matches(doc, MonitoringService.writeQuery(id, fields, StorageCodec.GORILLA, true)));
+    }
+
+    @Test
+    public void testMetricsOfDay() {
+        String id = "server-1/20140101";
+        MonitoringService service = new MonitoringService();
+
+        // metrics first written after the document was created are listed too
+        DBObject doc = apply(new BasicDBObject("_id", id), service.buildUpdate(id,
+                Collections.<String, Object>singletonMap(TimeBuckets.fieldPath(0, "cpu"), 0.1)), true);
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put(TimeBuckets.fieldPath(1, "cpu"), 0.2);
+        fields.put(TimeBuckets.fieldPath(1, "mem"), 0.3);
+        apply(doc, service.buildUpdate(id, fields), false);
+        assertEquals(Arrays.asList("cpu", "mem"), get(doc, "metadata.metrics"));
+        assertEquals("server-1", get(doc, "metadata.serverName"));
+    }
+
+    private static Object get(DBObject doc, String path) {
+        Object value = doc;
+        for (String key : path.split("\\.")) {
+            value = value instanceof DBObject ? ((DBObject) value).get(key) : null;
+        }
+        return value;
+    }
+
+    private static DBObject parent(DBObject doc, String path) {
+        String[] keys = path.split("\\.");
+        DBObject parent = doc;
+        for (int i = 0; i < keys.length - 1; i++) {
+            if (parent.get(keys[i]) == null) {
+                parent.put(keys[i], new BasicDBObject());
+            }
+            parent = (DBObject) parent.get(keys[i]);
+        }
+        return parent;
+    }
+
+    private static String last(String path) {
+        return path.substring(path.lastIndexOf('.') + 1);
+    }
+
+    /** the query operators of writeQuery: null equality and $not $gte */
+    private static boolean matches(DBObject doc, DBObject query) {
+        for (String path : query.keySet()) {
+            Object condition = query.get(path);
+            Object value = get(doc, path);
+            if (condition instanceof DBObject) {
+                Object not = ((DBObject) ((DBObject) condition).get("$not")).get("$gte");
+                if (value != null && ((Number) value).doubleValue() >= ((Number) not).doubleValue()) {
+                    return false;
+                }
+            } else if (condition == null ? value != null : !condition.equals(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** the update operators of buildUpdate */
+    @SuppressWarnings("unchecked")
+    private static DBObject apply(DBObject doc, DBObject update, boolean insert) {
+        for (String operator : update.keySet()) {
+            DBObject fields = (DBObject) update.get(operator);
+            if (operator.equals("$setOnInsert") && !insert) {
+                continue;
+            }
+            for (String path : fields.keySet()) {
+                Object value = fields.get(path);
+                Object current = get(doc, path);
+                DBObject parent = parent(doc, path);
+                switch (operator) {
+                    case "$push":
+                        List<Object> list = current == null ? new ArrayList<>() : (List<Object>) current;
+                        list.add(value);
+                        parent.put(last(path), list);
+                        break;
+                    case "$inc":
+                        parent.put(last(path), current == null ? value
+                                : (Object) (((Number) current).doubleValue() + ((Number) value).doubleValue()));
+                        break;
+                    case "$addToSet":
+                        List<Object> set = current == null ? new ArrayList<>() : (List<Object>) current;
+                        for (Object element : (List<?>) ((DBObject) value).get("$each")) {
+                            if (!set.contains(element)) {
+                                set.add(element);
+                            }
+                        }
+                        parent.put(last(path), set);
+                        break;
+                    case "$max":
+                    case "$min":
+                        double sign = operator.equals("$max") ? 1 : -1;
+                        if (current == null || sign * ((Number) value).doubleValue() > sign * ((Number) current).doubleValue()) {
+                            parent.put(last(path), value);
+                        }
+                        break;
+                    default:
+                        parent.put(last(path), value);
+                }
+            }
+        }
+        return doc;
+    }
+}
@@ -0,0 +1,150 @@
+package monitoring.service;
+
+import monitoring.DateFormatUtils;
+import monitoring.TimeBuckets;
+import monitoring.domain.ColumnarDailyMonitoringData;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class PointIteratorTest {
+
+    private static ColumnarDailyMonitoringData day(String date) throws Exception {
+        ColumnarDailyMonitoringData data = new ColumnarDailyMonitoringData("server-1",
+                DateFormatUtils.dayFormat.parse(date), new String[]{"cpu", "mem"});
+        // 10:00 and 10:01, 23:59
+        data.setValue("cpu", 600, 0.2);
+        data.setValue("cpu", 601, 0.4);
+        data.setValue("mem", 1439, 0.9);
+        return data;
+    }
+
+    @Test
+    public void testHourly() throws Exception {
+        final AtomicBoolean closed = new AtomicBoolean();
+        PointIterator points = new PointIterator(Arrays.asList(day("20140101"), day("20140102")).iterator(),
+                new Closeable() {
+                    @Override
+                    public void close() {
+                        closed.set(true);
+                    }
+                }, BucketWidth.HOUR,
+                DateFormatUtils.timestampFormat.parse("20140101_000000"),
+                DateFormatUtils.timestampFormat.parse("20140103_000000"));
+
+        AggregatedPoint point = points.next();
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140101_100000"), point.getDate());
+        assertEquals(0.3, point.getValue("cpu"), 1e-9);
+        assertTrue(Double.isNaN(point.getValue("mem")));
+        assertTrue(Double.isNaN(point.getValue("disk")));
+
+        point = points.next();
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140101_230000"), point.getDate());
+        assertEquals(0.9, point.getValue(1), 0.0);
+
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140102_100000"), points.next().getDate());
+        assertFalse(closed.get());
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140102_230000"), points.next().getDate());
+        assertFalse(points.hasNext());
+        assertTrue(closed.get());
+    }
+
+    @Test
+    public void testRange() throws Exception {
+        // from 10:01 to 23:00 of the first day only
+        PointIterator points = new PointIterator(Arrays.asList(day("20140101"), day("20140102")).iterator(), null,
+                BucketWidth.MINUTE,
+                DateFormatUtils.timestampFormat.parse("20140101_100100"),
+                DateFormatUtils.timestampFormat.parse("20140101_230000"));
+
+        AggregatedPoint point = points.next();
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140101_100100"), point.getDate());
+        assertEquals(0.4, point.getValue("cpu"), 0.0);
+        assertFalse(points.hasNext());
+    }
+
+    @Test
+    public void testFallBack() throws Exception {
+        TimeBuckets previous = TimeBuckets.get();
+        TimeBuckets timeBuckets = new TimeBuckets(TimeZone.getTimeZone("Europe/Paris"), 0);
+        TimeBuckets.configure(timeBuckets);
+        try {
+            // 01:30, the first and the second 02:30, 03:30
+            long day = timeBuckets.dayStart(DateFormatUtils.dayFormat.parse("20141026").getTime() + 12 * 3600000L);
+            long firstTwoThirty = timeBuckets.minuteStart(day, 150);
+            long[] timestamps = {firstTwoThirty - 3600000L, firstTwoThirty, firstTwoThirty + 3600000L,
+                    firstTwoThirty + 2 * 3600000L};
+            ColumnarDailyMonitoringData data = new ColumnarDailyMonitoringData("server-1", new Date(day),
+                    new String[]{"cpu"});
+            for (int i = 0; i < timestamps.length; i++) {
+                data.setValue("cpu", timeBuckets.minuteOfDay(timestamps[i]), i);
+            }
+            assertEquals(24 * 60 + 30, timeBuckets.minuteOfDay(timestamps[2]));
+
+            // chronological order, the repeated hour between 02:00 and 03:00
+            PointIterator points = new PointIterator(Arrays.asList(data).iterator(), null, BucketWidth.HOUR,
+                    new Date(day), new Date(timeBuckets.addDays(day, 1)));
+            for (int i = 0; i < timestamps.length; i++) {
+                AggregatedPoint point = points.next();
+                assertEquals(timestamps[i] - 30 * 60000L, point.getDate().getTime());
+                assertEquals(i, point.getValue("cpu"), 0.0);
+            }
+            assertFalse(points.hasNext());
+
+            // only the second 02:30
+            points = new PointIterator(Arrays.asList(data).iterator(), null, BucketWidth.MINUTE,
+                    new Date(timestamps[1] + 1), new Date(timestamps[3]));
+            assertEquals(timestamps[2], points.next().getDate().getTime());
+            assertFalse(points.hasNext());
+        } finally {
+            TimeBuckets.configure(previous);
+        }
+    }
+
+    @Test
+    public void testLazy() throws Exception {
+        final Iterator<ColumnarDailyMonitoringData> days = Arrays.asList(day("20140101"), day("20140102")).iterator();
+        final int[] pulled = {0};
+        PointIterator points = new PointIterator(new Iterator<ColumnarDailyMonitoringData>() {
+            @Override
+            public boolean hasNext() {
+                return days.hasNext();
+            }
+
+            @Override
+            public ColumnarDailyMonitoringData next() {
+                pulled[0]++;
+                return days.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }, null, BucketWidth.HOUR, new Date(0), DateFormatUtils.timestampFormat.parse("20140103_000000"));
+
+        assertEquals(0, pulled[0]);
+        points.next();
+        points.next();
+        assertEquals(1, pulled[0]);
+        points.next();
+        assertEquals(2, pulled[0]);
+
+        points.close();
+        assertFalse(points.hasNext());
+        try {
+            points.next();
+            fail();
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package monitoring.service;
+
+import com.mongodb.DBObject;
+import monitoring.DateFormatUtils;
+import monitoring.StreamingDailyMonitoringDataDecoder;
+import monitoring.domain.ColumnarDailyMonitoringData;
+import org.bson.BSON;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class PreallocationServiceTest {
+
+    @Test
+    public void testTemplate() throws Exception {
+        PreallocationService service = new PreallocationService();
+        String[] metrics = {"cpu", "mem", "disk"};
+        DBObject template = service.template(metrics, 24);
+        assertSame(template, service.template(new String[]{"cpu", "mem", "disk"}, 24));
+        assertNotSame(template, service.template(new String[]{"cpu"}, 24));
+
+        // the repeated hour of a DST fall-back
+        DBObject fallBack = service.template(metrics, 25);
+        assertNotSame(template, fallBack);
+        assertEquals(25, fallBack.keySet().size());
+        assertTrue(fallBack.containsField("24"));
+
+        assertEquals(24, template.keySet().size());
+        DBObject hour = (DBObject) template.get("23");
+        assertEquals(60, hour.keySet().size());
+        DBObject minute = (DBObject) hour.get("59");
+        assertEquals(3, minute.keySet().size());
+        assertTrue(minute.containsField("disk"));
+        assertNull(minute.get("disk"));
+    }
+
+    @Test
+    public void testBuildDocument() throws Exception {
+        String[] metrics = {"cpu", "mem"};
+        Date day = DateFormatUtils.dayFormat.parse("20140101");
+        DBObject doc = PreallocationService.buildDocument("server-1", day, metrics,
+                PreallocationService.buildTemplate(metrics, 24));
+        assertEquals("server-1/20140101", doc.get("_id"));
+
+        // readable like any day document, without values
+        ColumnarDailyMonitoringData data = new StreamingDailyMonitoringDataDecoder().decode(BSON.encode(doc), null);
+        assertEquals("server-1", data.getServerName());
+        assertEquals(day, data.getDate());
+        assertArrayEquals(metrics, data.getMetrics());
+        for (int minute = 0; minute < 1440; minute++) {
+            assertTrue(Double.isNaN(data.getValue("cpu", minute)));
+        }
+    }
+
+    @Test
+    public void testNextRun() throws Exception {
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140101_230000"), PreallocationService.nextRun(
+                DateFormatUtils.timestampFormat.parse("20140101_103421"), 60));
+        // too late for tomorrow: the day after
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140102_230000"), PreallocationService.nextRun(
+                DateFormatUtils.timestampFormat.parse("20140101_230000"), 60));
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140102_000000"), PreallocationService.nextRun(
+                DateFormatUtils.timestampFormat.parse("20140101_235959"), 0));
+    }
+}
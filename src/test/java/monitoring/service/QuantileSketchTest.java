@@ -0,0 +1,71 @@
+package monitoring.service;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class QuantileSketchTest {
+
+    @Test
+    public void testRelativeAccuracy() {
+        QuantileSketch sketch = new QuantileSketch();
+        assertTrue(Double.isNaN(sketch.quantile(0.5)));
+
+        for (int i = 1; i <= 10000; i++) {
+            sketch.add(i);
+        }
+
+        assertEquals(10000, sketch.getCount());
+        assertEquals(5000, sketch.quantile(0.50), 5000 * 0.01);
+        assertEquals(9500, sketch.quantile(0.95), 9500 * 0.01);
+        assertEquals(9900, sketch.quantile(0.99), 9900 * 0.01);
+        assertEquals(1, sketch.quantile(0.0), 0.01);
+        assertEquals(10000, sketch.quantile(1.0), 10000 * 0.01);
+    }
+
+    @Test
+    public void testNegativeAndZero() {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(-100);
+        sketch.add(-10);
+        sketch.add(0);
+        sketch.add(10);
+        sketch.add(100);
+
+        assertEquals(-100, sketch.quantile(0.0), 1.0);
+        assertEquals(-10, sketch.quantile(0.25), 0.1);
+        assertEquals(0, sketch.quantile(0.5), 0.0);
+        assertEquals(10, sketch.quantile(0.75), 0.1);
+        assertEquals(100, sketch.quantile(1.0), 1.0);
+    }
+
+    @Test
+    public void testMerge() {
+        Random random = new Random(42);
+        QuantileSketch all = new QuantileSketch();
+        QuantileSketch first = new QuantileSketch();
+        QuantileSketch second = new QuantileSketch();
+
+        for (int i = 0; i < 5000; i++) {
+            double small = random.nextDouble();
+            double large = 1000 + random.nextDouble() * 1000;
+            all.add(small);
+            all.add(large);
+            first.add(small);
+            second.add(large);
+        }
+        first.merge(second);
+
+        assertEquals(all.getCount(), first.getCount());
+        for (double q : new double[]{0.0, 0.25, 0.5, 0.75, 0.95, 0.99, 1.0}) {
+            assertEquals(all.quantile(q), first.quantile(q), 0.0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentAccuracy() {
+        new QuantileSketch(0.01).merge(new QuantileSketch(0.05));
+    }
+}
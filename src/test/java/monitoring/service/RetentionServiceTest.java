@@ -0,0 +1,137 @@
+package monitoring.service;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import monitoring.DateFormatUtils;
+import monitoring.domain.ColumnarDailyMonitoringData;
+import monitoring.metrics.Instrumentation;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RetentionServiceTest {
+
+    /** Reads rollups from in-memory collections: collection name =&gt; id =&gt; document */
+    static class InMemoryMonitoringService extends MonitoringService {
+        final Map<String, Map<String, DBObject>> collections = new HashMap<>();
+
+        void put(String collection, DBObject doc) {
+            Map<String, DBObject> docs = collections.get(collection);
+            if (docs == null) {
+                docs = new HashMap<>();
+                collections.put(collection, docs);
+            }
+            docs.put((String) doc.get("_id"), doc);
+        }
+
+        @Override
+        Set<String> readRollups(String collection, List<String> ids, boolean hourly, Set<String> metrics,
+                                SortedMap<Date, Map<String, Double>> result) {
+            Set<String> found = new HashSet<>();
+            Map<String, DBObject> docs = collections.get(collection);
+            for (String id : ids) {
+                if (docs != null && docs.containsKey(id)) {
+                    found.add(id);
+                    addRollups(docs.get(id), hourly, metrics, result);
+                }
+            }
+            return found;
+        }
+    }
+
+    private static ColumnarDailyMonitoringData day(String label, double cpu) throws Exception {
+        ColumnarDailyMonitoringData data = new ColumnarDailyMonitoringData("server-1",
+                DateFormatUtils.timestampFormat.parse(label + "_000000"), new String[]{"cpu"});
+        // 10:00 - 10:09 and 11:00 - 11:09
+        for (int m = 0; m < 10; m++) {
+            data.setValue("cpu", ColumnarDailyMonitoringData.minuteOfDay(10, m), cpu);
+            data.setValue("cpu", ColumnarDailyMonitoringData.minuteOfDay(11, m), 2 * cpu);
+        }
+        return data;
+    }
+
+    @Test
+    public void testHourlyDocument() throws Exception {
+        DBObject doc = RetentionService.hourlyDocument(day("20140101", 1.0), 7);
+        assertEquals("server-1/20140101", doc.get("_id"));
+        assertEquals(7, doc.get(MonitoringService.VERSION));
+        assertEquals(DateFormatUtils.timestampFormat.parse("20140101_000000"),
+                ((DBObject) doc.get("metadata")).get("date"));
+
+        SortedMap<Date, Map<String, Double>> hours = new TreeMap<>();
+        MonitoringService.addRollups(doc, true, null, hours);
+        assertEquals(2, hours.size());
+        assertEquals(1.0, hours.get(DateFormatUtils.timestampFormat.parse("20140101_100000")).get("cpu"), 1e-9);
+        assertEquals(2.0, hours.get(DateFormatUtils.timestampFormat.parse("20140101_110000")).get("cpu"), 1e-9);
+
+        SortedMap<Date, Map<String, Double>> days = new TreeMap<>();
+        MonitoringService.addRollups(doc, false, null, days);
+        assertEquals(1.5, days.get(DateFormatUtils.timestampFormat.parse("20140101_000000")).get("cpu"), 1e-9);
+
+        assertFalse(RetentionService.hourlyDocument(day("20140101", 1.0), null).containsField(MonitoringService.VERSION));
+    }
+
+    @Test
+    public void testRemoveOnlyUnchanged() {
+        // documents written since they were read keep their new version and are not matched
+        DBObject query = RetentionService.unchanged("server-1/20140101", 3);
+        assertEquals(new BasicDBObject("_id", "server-1/20140101").append(MonitoringService.VERSION, 3), query);
+
+        // documents without version, e.g. preallocated ones, only match while still without version
+        query = RetentionService.unchanged("server-1/20140101", null);
+        assertTrue(query.containsField(MonitoringService.VERSION));
+        assertNull(query.get(MonitoringService.VERSION));
+    }
+
+    @Test
+    public void testLateSamplesDropped() throws Exception {
+        // no MongoTemplate: any write would fail
+        MonitoringService service = new MonitoringService();
+        service.setRetentionEnabled(true);
+        service.setRetentionMinuteDays(14);
+
+        Date old = DateFormatUtils.timestampFormat.parse("20140101_100000");
+        SampleBatch batch = new SampleBatch();
+        batch.add("server-1", old, Collections.singletonMap("cpu", 1.0));
+        batch.add("server-1", old.getTime(), "mem", 2.0);
+
+        long before = Instrumentation.LATE_SAMPLES.getCount();
+        service.writeBatch(batch);
+        service.addSample("server-1", old, Collections.singletonMap("cpu", 1.0));
+        assertEquals(3, Instrumentation.LATE_SAMPLES.getCount() - before);
+
+        assertTrue(MonitoringService.isBefore("server-1/20140101", service.getRawRetentionCutoff()));
+        assertFalse(MonitoringService.isBefore("server-1/" + DateFormatUtils.dayFormat.format(new Date()),
+                service.getRawRetentionCutoff()));
+    }
+
+    @Test
+    public void testFallbackRead() throws Exception {
+        InMemoryMonitoringService service = new InMemoryMonitoringService();
+        service.setCollectionName("monitoring");
+        service.setAggregationMode(AggregationMode.ROLLUP);
+        service.setRetentionEnabled(true);
+
+        // 20140101 compacted to the hourly tier, 20140102 to the daily tier, 20140103 still raw
+        service.put(service.getHourlyCollectionName(), RetentionService.hourlyDocument(day("20140101", 1.0), 1));
+        DBObject daily = RetentionService.hourlyDocument(day("20140102", 3.0), 1);
+        ((DBObject) daily.get(Rollups.FIELD)).removeField("hours");
+        service.put(service.getDailyCollectionName(), daily);
+        DBObject raw = RetentionService.hourlyDocument(day("20140103", 5.0), 1);
+        service.put("monitoring", raw);
+
+        SortedMap<Date, Map<String, Double>> result = service.aggregatedValuesByHour("server-1",
+                DateFormatUtils.timestampFormat.parse("20140101_000000"),
+                DateFormatUtils.timestampFormat.parse("20140104_000000"));
+
+        assertEquals(5, result.size());
+        assertEquals(1.0, result.get(DateFormatUtils.timestampFormat.parse("20140101_100000")).get("cpu"), 1e-9);
+        assertEquals(2.0, result.get(DateFormatUtils.timestampFormat.parse("20140101_110000")).get("cpu"), 1e-9);
+        // daily tier: a single entry at the beginning of the day
+        assertEquals(4.5, result.get(DateFormatUtils.timestampFormat.parse("20140102_000000")).get("cpu"), 1e-9);
+        assertEquals(5.0, result.get(DateFormatUtils.timestampFormat.parse("20140103_100000")).get("cpu"), 1e-9);
+        assertEquals(10.0, result.get(DateFormatUtils.timestampFormat.parse("20140103_110000")).get("cpu"), 1e-9);
+    }
+}
@@ -0,0 +1,73 @@
+package monitoring.service;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import monitoring.DateFormatUtils;
+import monitoring.domain.ColumnarDailyMonitoringData;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RollupsTest {
+
+    @Test
+    public void testAddTo() throws Exception {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("data.10.01.cpu", 0.2);
+        fields.put("data.10.02.cpu", 0.4);
+        fields.put("data.11.00.cpu", 0.6);
+        fields.put("data.11.00.mem", null);
+
+        DBObject update = new BasicDBObject("$set", new BasicDBObject(fields));
+        Rollups.addTo(update, fields);
+
+        DBObject inc = (DBObject) update.get("$inc");
+        DBObject min = (DBObject) update.get("$min");
+        DBObject max = (DBObject) update.get("$max");
+
+        assertEquals(0.6, (Double) inc.get("rollups.hours.10.cpu.sum"), 1e-9);
+        assertEquals(2L, inc.get("rollups.hours.10.cpu.count"));
+        assertEquals(0.2, (Double) min.get("rollups.hours.10.cpu.min"), 0.0);
+        assertEquals(0.4, (Double) max.get("rollups.hours.10.cpu.max"), 0.0);
+        assertEquals(1L, inc.get("rollups.hours.11.cpu.count"));
+
+        assertEquals(1.2, (Double) inc.get("rollups.day.cpu.sum"), 1e-9);
+        assertEquals(3L, inc.get("rollups.day.cpu.count"));
+        assertEquals(0.2, (Double) min.get("rollups.day.cpu.min"), 0.0);
+        assertEquals(0.6, (Double) max.get("rollups.day.cpu.max"), 0.0);
+
+        // null values are not counted
+        assertFalse(inc.containsField("rollups.day.mem.count"));
+    }
+
+    @Test
+    public void testComputeAndRead() throws Exception {
+        Date day = DateFormatUtils.timestampFormat.parse("20140101_000000");
+        ColumnarDailyMonitoringData data = new ColumnarDailyMonitoringData("server-1", day, new String[]{"cpu", "mem"});
+        data.setValue("cpu", ColumnarDailyMonitoringData.minuteOfDay(10, 1), 0.2);
+        data.setValue("cpu", ColumnarDailyMonitoringData.minuteOfDay(10, 2), 0.4);
+        data.setValue("cpu", ColumnarDailyMonitoringData.minuteOfDay(11, 0), 0.9);
+
+        DBObject rollups = Rollups.compute(data);
+        DBObject hours = (DBObject) rollups.get("hours");
+        assertEquals(2, hours.keySet().size());
+        DBObject hour10 = (DBObject) ((DBObject) hours.get("10")).get("cpu");
+        assertEquals(2L, hour10.get("count"));
+        assertEquals(0.2, (Double) hour10.get("min"), 0.0);
+        assertEquals(0.4, (Double) hour10.get("max"), 0.0);
+
+        SortedMap<Date, Map<String, Double>> hourly = Rollups.hourlyAverages(day, hours, null);
+        assertEquals(2, hourly.size());
+        assertEquals(0.3, hourly.get(DateFormatUtils.timestampFormat.parse("20140101_100000")).get("cpu"), 1e-9);
+        assertEquals(0.9, hourly.get(DateFormatUtils.timestampFormat.parse("20140101_110000")).get("cpu"), 1e-9);
+
+        Map<String, Double> daily = Rollups.averages((DBObject) rollups.get("day"), null);
+        assertEquals(1, daily.size());
+        assertEquals(0.5, daily.get("cpu"), 1e-9);
+        assertEquals(MonitoringService.averageByDay(data), daily);
+
+        assertTrue(Rollups.averages((DBObject) rollups.get("day"), Collections.singleton("mem")).isEmpty());
+    }
+}
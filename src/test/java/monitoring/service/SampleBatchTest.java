@@ -0,0 +1,55 @@
+package monitoring.service;
+
+import monitoring.DateFormatUtils;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SampleBatchTest {
+
+    private static Map<String, Double> sample(String metric, double value) {
+        Map<String, Double> samples = new HashMap<>();
+        samples.put(metric, value);
+        return samples;
+    }
+
+    @Test
+    public void testMergeByDocument() throws Exception {
+        SampleBatch batch = new SampleBatch();
+        assertTrue(batch.isEmpty());
+
+        batch.add("server-1", DateFormatUtils.timestampFormat.parse("20140101_100100"), sample("cpu", 0.1));
+        batch.add("server-1", DateFormatUtils.timestampFormat.parse("20140101_100200"), sample("cpu", 0.2));
+        batch.add("server-1", DateFormatUtils.timestampFormat.parse("20140102_000000"), sample("cpu", 0.3));
+        batch.add("server-2", DateFormatUtils.timestampFormat.parse("20140101_100100"), sample("mem", 0.4));
+
+        assertEquals(3, batch.getDocumentsCount());
+        assertEquals(4, batch.getSamplesCount());
+
+        Map<String, Object> fields = batch.getUpdates().get("server-1/20140101");
+        assertEquals(2, fields.size());
+        assertEquals(0.1, (Double) fields.get("data.10.01.cpu"), 0.0);
+        assertEquals(0.2, (Double) fields.get("data.10.02.cpu"), 0.0);
+        assertEquals(0.3, (Double) batch.getUpdates().get("server-1/20140102").get("data.00.00.cpu"), 0.0);
+        assertEquals(0.4, (Double) batch.getUpdates().get("server-2/20140101").get("data.10.01.mem"), 0.0);
+    }
+
+    @Test
+    public void testSameMinuteLastWins() throws Exception {
+        SampleBatch batch = new SampleBatch();
+        batch.add("server-1", DateFormatUtils.timestampFormat.parse("20140101_100100"), sample("cpu", 0.1));
+
+        SampleBatch other = new SampleBatch();
+        other.add("server-1", DateFormatUtils.timestampFormat.parse("20140101_100130"), sample("cpu", 0.9));
+        other.add("server-1", DateFormatUtils.timestampFormat.parse("20140101_100100"), sample("mem", 0.5));
+        batch.addAll(other);
+
+        assertEquals(1, batch.getDocumentsCount());
+        Map<String, Object> fields = batch.getUpdates().get("server-1/20140101");
+        assertEquals(2, fields.size());
+        assertEquals(0.9, (Double) fields.get("data.10.01.cpu"), 0.0);
+        assertEquals(0.5, (Double) fields.get("data.10.01.mem"), 0.0);
+    }
+}
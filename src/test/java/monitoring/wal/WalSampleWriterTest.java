@@ -0,0 +1,99 @@
+package monitoring.wal;
+
+import monitoring.DateFormatUtils;
+import monitoring.service.MonitoringService;
+import monitoring.service.SampleBatch;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WalSampleWriterTest {
+
+    /** Fails the first writes, as if MongoDB was down, then records batches. */
+    static class FlakyMonitoringService extends MonitoringService {
+        final List<SampleBatch> batches = Collections.synchronizedList(new ArrayList<SampleBatch>());
+        final AtomicInteger failures;
+
+        FlakyMonitoringService(int failures) {
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        public void writeBatch(SampleBatch batch) {
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("MongoDB is down");
+            }
+            batches.add(batch);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private WalSampleWriter writer(MonitoringService service) throws Exception {
+        WalSampleWriter writer = new WalSampleWriter();
+        writer.setMonitoringService(service);
+        writer.setEnabled(true);
+        writer.setDirectory(folder.getRoot().getPath());
+        writer.setSegmentSizeMB(1);
+        writer.setRetryMillis(10);
+        writer.start();
+        return writer;
+    }
+
+    @Test
+    public void testReplayAfterFailures() throws Exception {
+        FlakyMonitoringService service = new FlakyMonitoringService(3);
+        WalSampleWriter writer = writer(service);
+
+        Date dt = DateFormatUtils.timestampFormat.parse("20140101_100100");
+        for (int i = 0; i < 10; i++) {
+            writer.addSample("server-" + i, dt, Collections.singletonMap("cpu", (double) i));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writer.getSamplesReplayed() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        writer.stop();
+
+        assertEquals(10, writer.getSamplesAppended());
+        assertEquals(10, writer.getSamplesReplayed());
+        assertEquals(3, writer.getReplayFailures());
+        assertEquals(0, writer.getPendingBytes());
+        int documents = 0;
+        for (SampleBatch batch : service.batches) {
+            documents += batch.getDocumentsCount();
+        }
+        assertEquals(10, documents);
+    }
+
+    @Test
+    public void testResumeAfterRestart() throws Exception {
+        // nothing can be written before the stop: everything is replayed by the next writer
+        FlakyMonitoringService down = new FlakyMonitoringService(Integer.MAX_VALUE);
+        WalSampleWriter writer = writer(down);
+        Date dt = DateFormatUtils.timestampFormat.parse("20140101_100100");
+        writer.addSample("server-1", dt, Collections.singletonMap("cpu", 0.5));
+        writer.addSample("server-2", dt, Collections.singletonMap("cpu", 0.7));
+        writer.stop();
+        assertTrue(down.batches.isEmpty());
+
+        FlakyMonitoringService up = new FlakyMonitoringService(0);
+        writer = writer(up);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writer.getSamplesReplayed() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        writer.stop();
+
+        assertEquals(2, writer.getSamplesReplayed());
+        assertEquals(1, up.batches.size());
+        assertEquals(2, up.batches.get(0).getDocumentsCount());
+    }
+}
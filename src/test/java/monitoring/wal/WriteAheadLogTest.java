@@ -0,0 +1,187 @@
+package monitoring.wal;
+
+import monitoring.service.QueueFullPolicy;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class WriteAheadLogTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Map<String, Double> sample(String metric, Double value) {
+        Map<String, Double> samples = new LinkedHashMap<>();
+        samples.put(metric, value);
+        return samples;
+    }
+
+    private WriteAheadLog open(long maxBytes, QueueFullPolicy policy) throws Exception {
+        return new WriteAheadLog(folder.getRoot(), SEGMENT_SIZE, maxBytes, policy);
+    }
+
+    @Test
+    public void testAppendRead() throws Exception {
+        WriteAheadLog wal = open(1 << 20, QueueFullPolicy.BLOCK);
+        Map<String, Double> samples = sample("cpu", 0.5);
+        samples.put("mémoire", null);
+        wal.append("server-1", 1000L, samples);
+        wal.append("server-2", 2000L, sample("cpu", 0.7));
+
+        List<WalRecord> records = wal.read(wal.getCheckpoint(), 100);
+        assertEquals(2, records.size());
+        assertEquals("server-1", records.get(0).getServerName());
+        assertEquals(new Date(1000L), records.get(0).getTimestamp());
+        assertEquals(samples, records.get(0).getSamples());
+        assertEquals(records.get(0).getNextPosition(), records.get(1).getPosition());
+        assertEquals(wal.getWritePosition(), records.get(1).getNextPosition());
+
+        // stops once maxSamples is reached
+        assertEquals(1, wal.read(0, 2).size());
+        assertTrue(wal.read(wal.getWritePosition(), 100).isEmpty());
+        wal.close();
+    }
+
+    @Test
+    public void testRotationAndCheckpoint() throws Exception {
+        WriteAheadLog wal = open(1 << 20, QueueFullPolicy.BLOCK);
+        for (int i = 0; i < 1000; i++) {
+            wal.append("server-1", i, sample("cpu", (double) i));
+        }
+        assertTrue(wal.getSegmentsCount() > 5);
+
+        // records are read across segments
+        long position = wal.getCheckpoint();
+        int count = 0;
+        List<WalRecord> records;
+        while (!(records = wal.read(position, 64)).isEmpty()) {
+            for (WalRecord record : records) {
+                assertEquals(count++, record.getTimestamp().getTime());
+            }
+            position = records.get(records.size() - 1).getNextPosition();
+            if (count == 500) {
+                wal.checkpoint(position);
+            }
+        }
+        assertEquals(1000, count);
+
+        int segments = wal.getSegmentsCount();
+        wal.checkpoint(position);
+        assertEquals(1, wal.getSegmentsCount());
+        assertTrue(segments > 1);
+        assertEquals(0, wal.getPendingBytes());
+        assertEquals(1, folder.getRoot().listFiles().length - 1);
+        wal.close();
+    }
+
+    @Test
+    public void testTornCheckpoint() throws Exception {
+        WriteAheadLog wal = open(1 << 20, QueueFullPolicy.BLOCK);
+        for (int i = 0; i < 10; i++) {
+            wal.append("server-1", i, sample("cpu", (double) i));
+        }
+        wal.checkpoint(wal.read(0, 5).get(4).getNextPosition());
+        wal.close();
+
+        // a short checkpoint restarts from the first segment
+        File checkpoint = new File(folder.getRoot(), WriteAheadLog.CHECKPOINT_FILE);
+        try (RandomAccessFile file = new RandomAccessFile(checkpoint, "rw")) {
+            file.setLength(5);
+        }
+        wal = open(1 << 20, QueueFullPolicy.BLOCK);
+        assertEquals(10, wal.read(wal.getCheckpoint(), 100).size());
+        wal.close();
+
+        // so does a corrupt one
+        try (RandomAccessFile file = new RandomAccessFile(checkpoint, "rw")) {
+            file.setLength(16);
+        }
+        wal = open(1 << 20, QueueFullPolicy.BLOCK);
+        assertEquals(10, wal.read(wal.getCheckpoint(), 100).size());
+        wal.close();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        WriteAheadLog wal = open(1 << 20, QueueFullPolicy.BLOCK);
+        for (int i = 0; i < 100; i++) {
+            wal.append("server-1", i, sample("cpu", (double) i));
+        }
+        long checkpoint = wal.read(0, 10).get(9).getNextPosition();
+        wal.checkpoint(checkpoint);
+        long end = wal.getWritePosition();
+        wal.close();
+
+        // resumes from the checkpoint, appends after the last record
+        wal = open(1 << 20, QueueFullPolicy.BLOCK);
+        assertEquals(checkpoint, wal.getCheckpoint());
+        assertEquals(end, wal.getWritePosition());
+        List<WalRecord> records = wal.read(wal.getCheckpoint(), 1000);
+        assertEquals(90, records.size());
+        assertEquals(10, records.get(0).getTimestamp().getTime());
+
+        wal.append("server-1", 100, sample("cpu", 100.0));
+        long lastPosition = records.get(records.size() - 1).getNextPosition();
+        wal.close();
+
+        // a torn last record is dropped
+        File[] segments = folder.getRoot().listFiles();
+        Arrays.sort(segments);
+        File last = segments[segments.length - 2];
+        long base = Long.parseLong(last.getName().substring(0, 20));
+        try (RandomAccessFile raf = new RandomAccessFile(last, "rw")) {
+            raf.seek(lastPosition - base + 12);
+            raf.write(new byte[]{1, 2, 3});
+        }
+
+        wal = open(1 << 20, QueueFullPolicy.BLOCK);
+        assertEquals(lastPosition, wal.getWritePosition());
+        assertEquals(90, wal.read(wal.getCheckpoint(), 1000).size());
+        wal.append("server-1", 101, sample("cpu", 101.0));
+        records = wal.read(wal.getCheckpoint(), 1000);
+        assertEquals(91, records.size());
+        assertEquals(101, records.get(90).getTimestamp().getTime());
+        wal.close();
+    }
+
+    @Test
+    public void testFullReject() throws Exception {
+        WriteAheadLog wal = open(2 * SEGMENT_SIZE, QueueFullPolicy.REJECT);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                wal.append("server-1", i, sample("cpu", (double) i));
+            }
+            fail();
+        } catch (RejectedExecutionException e) {
+            assertEquals(2, wal.getSegmentsCount());
+        }
+
+        // replaying frees space
+        wal.checkpoint(wal.getWritePosition());
+        wal.append("server-1", 1000, sample("cpu", 0.0));
+        wal.close();
+    }
+
+    @Test
+    public void testFullDropOldest() throws Exception {
+        WriteAheadLog wal = open(2 * SEGMENT_SIZE, QueueFullPolicy.DROP_OLDEST);
+        for (int i = 0; i < 1000; i++) {
+            wal.append("server-1", i, sample("cpu", (double) i));
+        }
+        assertEquals(2, wal.getSegmentsCount());
+
+        List<WalRecord> records = wal.read(wal.getCheckpoint(), 1000);
+        assertEquals(1000, records.size() + wal.getRecordsDropped());
+        assertEquals(999, records.get(records.size() - 1).getTimestamp().getTime());
+        wal.close();
+    }
+}
@@ -0,0 +1,110 @@
+package util.data;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class FleetSimulatorTest {
+
+    @Test
+    public void testSplitMix64() {
+        SplitMix64 a = new SplitMix64(42);
+        SplitMix64 b = new SplitMix64(42);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(a.nextLong(), b.nextLong());
+        }
+
+        // stream(seed, i) is the (i + 1)th split, without the previous ones
+        SplitMix64 root = new SplitMix64(7);
+        for (int i = 0; i < 10; i++) {
+            SplitMix64 split = root.split();
+            SplitMix64 stream = SplitMix64.stream(7, i);
+            for (int j = 0; j < 10; j++) {
+                assertEquals(split.nextLong(), stream.nextLong());
+            }
+        }
+
+        SplitMix64 random = new SplitMix64(1);
+        double sum = 0;
+        double sumSquares = 0;
+        int n = 100000;
+        for (int i = 0; i < n; i++) {
+            double uniform = random.nextDouble();
+            assertTrue(uniform >= 0 && uniform < 1);
+            double gaussian = random.nextGaussian();
+            sum += gaussian;
+            sumSquares += gaussian * gaussian;
+        }
+        assertEquals(0, sum / n, 0.02);
+        assertEquals(1, sumSquares / n, 0.02);
+    }
+
+    @Test
+    public void testSeries() {
+        ServerLoadSimulator simulator = new ServerLoadSimulator(1, 0.5, 0.01);
+        double[] values = new double[1440];
+        simulator.newSeries(new SplitMix64(1)).fill(values, 0, values.length);
+        double sum = 0;
+        for (double value : values) {
+            assertTrue(value >= 0 && value <= 1);
+            sum += value;
+        }
+        // the daily cycle averages to 0
+        assertEquals(0.5, sum / values.length, 0.1);
+
+        // same values as the map version with the same seed
+        Date start = new Date(1388534400000L);
+        SortedMap<Date, Double> map = DataSimulationUtils.simulateServerLoad(start,
+                new Date(start.getTime() + 86400000L), 1, 0.5, 0.01, 1);
+        assertEquals(1440, map.size());
+        assertEquals(values[0], map.get(start), 0);
+        assertEquals(values[1439], map.get(map.lastKey()), 0);
+    }
+
+    @Test
+    public void testReproducible() throws Exception {
+        final FleetSimulator fleet = new FleetSimulator(42, new ServerLoadSimulator(1, 0.3, 0.05),
+                new ServerLoadSimulator(1, 0.7, 0.05));
+        final int servers = 64;
+        final int samples = 2880;
+
+        // sequential, in one call
+        final double[][] expected = new double[servers * 2][samples];
+        for (int server = 0; server < servers; server++) {
+            for (int metric = 0; metric < 2; metric++) {
+                fleet.newSeries(server, metric).fill(expected[server * 2 + metric], 0, samples);
+            }
+        }
+        assertFalse(Arrays.equals(expected[0], expected[2]));
+
+        // parallel, in reverse order, by chunks
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<double[][]>> results = new ArrayList<>();
+        for (int s = servers - 1; s >= 0; s--) {
+            final int server = s;
+            results.add(executor.submit(new Callable<double[][]>() {
+                @Override
+                public double[][] call() {
+                    double[][] values = new double[2][samples];
+                    for (int metric = 0; metric < 2; metric++) {
+                        ServerLoadSimulator.Series series = fleet.newSeries(server, metric);
+                        for (int first = 0; first < samples; first += 60) {
+                            series.fill(values[metric], first, 60);
+                        }
+                    }
+                    return values;
+                }
+            }));
+        }
+        for (int i = 0; i < servers; i++) {
+            int server = servers - 1 - i;
+            double[][] values = results.get(i).get();
+            assertArrayEquals(expected[server * 2], values[0], 0);
+            assertArrayEquals(expected[server * 2 + 1], values[1], 0);
+        }
+        executor.shutdown();
+    }
+}